@@ -0,0 +1,194 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.certificate;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertPathBuilderException;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import io.rubrica.certificate.ec.bce.BceCaCert;
+import io.rubrica.certificate.ec.bce.BceCaTestCert;
+import io.rubrica.certificate.ec.bce.BceSubCert;
+import io.rubrica.certificate.ec.bce.BceSubTestCert;
+import io.rubrica.certificate.ec.cj.ConsejoJudicaturaCaCert;
+import io.rubrica.certificate.ec.cj.ConsejoJudicaturaSubCert;
+import io.rubrica.certificate.ec.securitydata.SecurityDataCaCert;
+import io.rubrica.certificate.ec.securitydata.SecurityDataSubCaCert;
+
+/**
+ * Utilidades para validar rutas de certificacion contra las CA raiz
+ * soportadas.
+ */
+public class CertPathUtils {
+
+	private static final Logger logger = Logger.getLogger(CertPathUtils.class.getName());
+
+	private static final Set<TrustAnchor> TRUST_ANCHORS;
+	private static final List<X509Certificate> INTERMEDIATE_CERTIFICATES;
+
+	static {
+		Set<TrustAnchor> anchors = new HashSet<>();
+		for (X509Certificate cert : Arrays.asList(new SecurityDataCaCert(), new BceCaCert(), new BceCaTestCert(),
+				new ConsejoJudicaturaCaCert())) {
+			anchors.add(new TrustAnchor(toX509Certificate(cert), null));
+		}
+		TRUST_ANCHORS = Collections.unmodifiableSet(anchors);
+
+		List<X509Certificate> intermediates = new ArrayList<>();
+		for (X509Certificate cert : Arrays.asList(new SecurityDataSubCaCert(), new BceSubCert(), new BceSubTestCert(),
+				new ConsejoJudicaturaSubCert())) {
+			intermediates.add(toX509Certificate(cert));
+		}
+		INTERMEDIATE_CERTIFICATES = Collections.unmodifiableList(intermediates);
+	}
+
+	private CertPathUtils() {
+	}
+
+	/**
+	 * Obtiene las CA raiz soportadas.
+	 *
+	 * @return Certificados raiz de confianza
+	 */
+	public static Set<TrustAnchor> getTrustAnchors() {
+		return TRUST_ANCHORS;
+	}
+
+	/**
+	 * Obtiene los certificados de las CA intermedias conocidas, usados para
+	 * completar las cadenas que no los incluyen.
+	 *
+	 * @return Certificados intermedios
+	 */
+	public static List<X509Certificate> getIntermediateCertificates() {
+		return INTERMEDIATE_CERTIFICATES;
+	}
+
+	/**
+	 * Valida la ruta de certificacion de un certificado, sin comprobar su
+	 * revocacion, contra las CA raiz soportadas.
+	 *
+	 * @param cert
+	 *            Certificado a validar
+	 * @param chain
+	 *            Certificados adicionales con los que construir la ruta (puede
+	 *            ser {@code null})
+	 * @param date
+	 *            Fecha en la que se valida la ruta
+	 * @return Resultado de la validacion
+	 */
+	public static ValidationResult verifyCertPath(X509Certificate cert, Collection<? extends Certificate> chain,
+			Date date) {
+		return verifyCertPath(cert, chain, date, TRUST_ANCHORS);
+	}
+
+	/**
+	 * Valida la ruta de certificacion de un certificado, sin comprobar su
+	 * revocacion.
+	 *
+	 * @param cert
+	 *            Certificado a validar
+	 * @param chain
+	 *            Certificados adicionales con los que construir la ruta (puede
+	 *            ser {@code null})
+	 * @param date
+	 *            Fecha en la que se valida la ruta
+	 * @param trustAnchors
+	 *            CA raiz de confianza
+	 * @return Resultado de la validacion
+	 */
+	public static ValidationResult verifyCertPath(X509Certificate cert, Collection<? extends Certificate> chain,
+			Date date, Set<TrustAnchor> trustAnchors) {
+		if (cert == null) {
+			return ValidationResult.CORRUPT;
+		}
+
+		try {
+			cert.checkValidity(date);
+		} catch (CertificateExpiredException e) {
+			return ValidationResult.EXPIRED;
+		} catch (CertificateNotYetValidException e) {
+			return ValidationResult.NOT_YET_VALID;
+		}
+
+		List<Certificate> certs = new ArrayList<>(INTERMEDIATE_CERTIFICATES);
+		certs.add(cert);
+		if (chain != null) {
+			certs.addAll(chain);
+		}
+
+		try {
+			X509CertSelector target = new X509CertSelector();
+			target.setCertificate(cert);
+
+			PKIXBuilderParameters params = new PKIXBuilderParameters(trustAnchors, target);
+			params.setRevocationEnabled(false);
+			params.setDate(date);
+			params.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(certs)));
+
+			CertPathBuilder.getInstance("PKIX").build(params);
+			return ValidationResult.VALID;
+		} catch (CertPathBuilderException e) {
+			for (Throwable t = e; t != null; t = t.getCause()) {
+				if (t instanceof CertificateExpiredException) {
+					return ValidationResult.EXPIRED;
+				}
+				if (t instanceof CertificateNotYetValidException) {
+					return ValidationResult.NOT_YET_VALID;
+				}
+			}
+			return ValidationResult.CA_NOT_SUPPORTED;
+		} catch (GeneralSecurityException e) {
+			logger.warning("No se ha podido validar la ruta de certificacion: " + e);
+			return ValidationResult.UNKNOWN;
+		}
+	}
+
+	/**
+	 * Las CA embebidas extienden X509Certificate delegando en otra instancia;
+	 * se convierten en certificados normales para el validador PKIX.
+	 */
+	private static X509Certificate toX509Certificate(X509Certificate cert) {
+		try {
+			CertificateFactory cf = CertificateFactory.getInstance("X.509");
+			return (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(cert.getEncoded()));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
\ No newline at end of file
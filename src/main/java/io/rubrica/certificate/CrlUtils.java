@@ -136,7 +136,20 @@ public class CrlUtils {
 		return ValidationResult.UNKNOWN;
 	}
 
-	private static byte[] downloadCRL(final String crlURL) throws IOException, NamingException, CRLException {
+	/**
+	 * Descarga una CRL de un punto de distribucion HTTP, HTTPS o LDAP.
+	 *
+	 * @param crlURL
+	 *            URL del punto de distribucion
+	 * @return CRL codificada en DER
+	 * @throws IOException
+	 *             Si falla la descarga por HTTP
+	 * @throws NamingException
+	 *             Si falla la descarga por LDAP
+	 * @throws CRLException
+	 *             Si no se soporta el protocolo del punto de distribucion
+	 */
+	public static byte[] downloadCRL(final String crlURL) throws IOException, NamingException, CRLException {
 		if (crlURL.startsWith("http://") || crlURL.startsWith("https://")) {
 			return downloadCRLFromWeb(crlURL);
 		} else if (crlURL.startsWith("ldap://")) {
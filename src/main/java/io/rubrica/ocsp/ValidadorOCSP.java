@@ -74,6 +74,53 @@ public class ValidadorOCSP {
 	public void validar(X509Certificate checkCert, X509Certificate rootCert, String ocspURL)
 			throws IOException, OcspValidationException, RubricaException {
 
+		OCSPResp ocspResponse = new OCSPResp(consultar(checkCert, rootCert, ocspURL));
+
+		BasicOCSPResp basicResponse;
+		try {
+			basicResponse = (BasicOCSPResp) ocspResponse.getResponseObject();
+		} catch (OCSPException e) {
+			throw new RubricaException("Problema al decodificar respuesta", e);
+		}
+
+		if (basicResponse == null) {
+			throw new RubricaException("Respuesta OCSP inválida");
+		}
+
+		SingleResp[] responses = basicResponse.getResponses();
+		SingleResp response = responses[0];
+		CertificateStatus certStatus = response.getCertStatus();
+
+		if (certStatus == CertificateStatus.GOOD) {
+			return;
+		} else if (certStatus instanceof RevokedStatus) {
+			RevokedStatus revokedStatus = (RevokedStatus) certStatus;
+			throw new OcspValidationException(revokedStatus.getRevocationReason(), revokedStatus.getRevocationTime());
+		} else {
+			UnknownStatus unknownStatus = (UnknownStatus) certStatus;
+			throw new OcspValidationException();
+		}
+	}
+
+	/**
+	 * Consulta el estado de un certificado a un servidor OCSP, sin interpretar
+	 * la respuesta, por ejemplo para incorporarla a una firma longeva.
+	 *
+	 * @param checkCert
+	 *            Certificado a consultar
+	 * @param rootCert
+	 *            Certificado del emisor de <code>checkCert</code>
+	 * @param ocspURL
+	 *            URL del servidor OCSP
+	 * @return Respuesta OCSP codificada en DER, con estado correcto
+	 * @throws IOException
+	 *             Si falla la comunicacion con el servidor
+	 * @throws RubricaException
+	 *             Si el servidor no devuelve una respuesta OCSP correcta
+	 */
+	public byte[] consultar(X509Certificate checkCert, X509Certificate rootCert, String ocspURL)
+			throws IOException, RubricaException {
+
 		OCSPReq request;
 
 		try {
@@ -105,36 +152,12 @@ public class ValidadorOCSP {
 		InputStream in = (InputStream) con.getContent();
 		OCSPResp ocspResponse = new OCSPResp(in);
 
-		System.out.println("ocspResponse.getStatus()" + ocspResponse.getStatus());
+		logger.fine("Estado de la respuesta OCSP: " + ocspResponse.getStatus());
 		if (ocspResponse.getStatus() != 0) {
 			throw new RubricaException("Status HTTP inválido: " + ocspResponse.getStatus());
 		}
 
-		BasicOCSPResp basicResponse;
-		try {
-			basicResponse = (BasicOCSPResp) ocspResponse.getResponseObject();
-		} catch (OCSPException e) {
-			throw new RubricaException("Problema al decodificar respuesta", e);
-		}
-
-		if (basicResponse == null) {
-			throw new RubricaException("Respuesta OCSP inválida");
-		}
-
-		SingleResp[] responses = basicResponse.getResponses();
-		SingleResp response = responses[0];
-		CertificateStatus certStatus = response.getCertStatus();
-
-		if (certStatus == CertificateStatus.GOOD) {
-			System.out.println("yeah");
-			return;
-		} else if (certStatus instanceof RevokedStatus) {
-			RevokedStatus revokedStatus = (RevokedStatus) certStatus;
-			throw new OcspValidationException(revokedStatus.getRevocationReason(), revokedStatus.getRevocationTime());
-		} else {
-			UnknownStatus unknownStatus = (UnknownStatus) certStatus;
-			throw new OcspValidationException();
-		}
+		return ocspResponse.getEncoded();
 	}
 
 	private static OCSPReq generateOCSPRequest(X509Certificate issuerCert, BigInteger serialNumber)
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Procesa lotes de documentos en paralelo: firma de lotes de PDF y XML y
+ * ampliacion de lotes de firmas XAdES.
+ *
+ * Como mucho {@link #MAX_PENDING_DOCUMENTS} documentos estan en curso a la vez,
+ * de forma que un lote grande no se carga entero en memoria antes de empezar.
+ * Los resultados se devuelven en el mismo orden en que se entregaron los
+ * documentos; un error en un documento no detiene el resto del lote.
+ */
+public final class BatchProcessor {
+
+	private static final Logger logger = Logger.getLogger(BatchProcessor.class.getName());
+
+	/** Documentos de un lote que se procesan a la vez. */
+	public static final int MAX_PENDING_DOCUMENTS = 32;
+
+	/**
+	 * Operacion a aplicar sobre cada documento del lote.
+	 */
+	@FunctionalInterface
+	public interface Task {
+
+		/**
+		 * Procesa un documento.
+		 *
+		 * @param document
+		 *            Documento de entrada
+		 * @return Documento resultante
+		 * @throws Exception
+		 *             Si no se puede procesar el documento
+		 */
+		byte[] process(byte[] document) throws Exception;
+	}
+
+	private BatchProcessor() {
+	}
+
+	/**
+	 * Procesa cada documento del lote en el pool de hilos indicado.
+	 *
+	 * @param documents
+	 *            Documentos a procesar
+	 * @param task
+	 *            Operacion a aplicar sobre cada documento
+	 * @param executor
+	 *            Pool de hilos en donde se procesan los documentos
+	 * @return Resultado de cada documento, en el orden de entrada
+	 */
+	public static List<BatchResult> process(Iterable<byte[]> documents, Task task, Executor executor) {
+		return process(documents, document -> CompletableFuture.supplyAsync(() -> {
+			try {
+				return task.process(document);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executor));
+	}
+
+	/**
+	 * Procesa cada documento del lote con una operacion asincrona, por ejemplo
+	 * una que se ejecuta por etapas en un pool.
+	 *
+	 * @param documents
+	 *            Documentos a procesar
+	 * @param task
+	 *            Operacion que inicia el procesado de un documento
+	 * @return Resultado de cada documento, en el orden de entrada
+	 */
+	public static List<BatchResult> process(Iterable<byte[]> documents,
+			Function<byte[], CompletableFuture<byte[]>> task) {
+		List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+		Semaphore pending = new Semaphore(MAX_PENDING_DOCUMENTS);
+
+		for (byte[] document : documents) {
+			pending.acquireUninterruptibly();
+			CompletableFuture<byte[]> future;
+			try {
+				future = task.apply(document);
+			} catch (RuntimeException e) {
+				future = new CompletableFuture<>();
+				future.completeExceptionally(e);
+			}
+			future.whenComplete((result, e) -> pending.release());
+			futures.add(future);
+		}
+
+		List<BatchResult> results = new ArrayList<>(futures.size());
+
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(new BatchResult(i, futures.get(i).get(), null));
+			} catch (ExecutionException e) {
+				Throwable cause = unwrap(e.getCause());
+				logger.warning("No se ha podido procesar el documento " + i + ": " + cause);
+				results.add(new BatchResult(i, null, cause));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				results.add(new BatchResult(i, null, e));
+			}
+		}
+
+		return results;
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		while (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e;
+	}
+}
\ No newline at end of file
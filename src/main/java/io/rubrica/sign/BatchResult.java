@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign;
+
+/**
+ * Resultado de un documento dentro de un lote procesado con
+ * {@link BatchProcessor}: la firma de un lote de PDF o XML, o la ampliacion de
+ * un lote de firmas XAdES.
+ */
+public class BatchResult {
+
+	private final int index;
+	private final byte[] data;
+	private final Throwable error;
+
+	BatchResult(int index, byte[] data, Throwable error) {
+		this.index = index;
+		this.data = data;
+		this.error = error;
+	}
+
+	/**
+	 * Obtiene la posicion del documento dentro del lote.
+	 *
+	 * @return Posicion del documento, empezando en cero
+	 */
+	public int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Indica si el documento se proceso correctamente.
+	 *
+	 * @return {@code true} si no hubo errores
+	 */
+	public boolean isSuccessful() {
+		return this.error == null;
+	}
+
+	/**
+	 * Obtiene el documento resultante, o {@code null} si hubo un error.
+	 *
+	 * @return Documento firmado o ampliado
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * Obtiene el error que impidio procesar el documento, o {@code null} si se
+	 * proceso correctamente.
+	 *
+	 * @return Error del documento
+	 */
+	public Throwable getError() {
+		return this.error;
+	}
+}
\ No newline at end of file
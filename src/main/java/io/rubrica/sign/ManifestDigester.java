@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import io.rubrica.core.RubricaException;
+
+/**
+ * Calcula en paralelo las huellas digitales de las partes de un paquete (ODF,
+ * OOXML...) que se referencian desde un manifiesto de firma.
+ *
+ * La lectura, la canonicalizaci&oacute;n y el c&aacute;lculo de la huella de cada
+ * parte se reparten entre los hilos de un {@link ForkJoinPool}, cada parte con
+ * su propio {@link MessageDigest}, y las huellas se devuelven en el mismo orden en
+ * que se indicaron las partes, de forma que las referencias del manifiesto
+ * siempre se construyen en el mismo orden.
+ */
+public final class ManifestDigester {
+
+	/** Obtiene los datos de una parte sobre los que se calcula la huella. */
+	@FunctionalInterface
+	public interface PartReader {
+
+		/**
+		 * Obtiene los datos de una parte, ya transformados si es necesario (por
+		 * ejemplo, canonicalizados).
+		 *
+		 * @param name
+		 *            Nombre de la parte
+		 * @return Datos sobre los que calcular la huella
+		 * @throws Exception
+		 *             Si no se puede leer o transformar la parte
+		 */
+		byte[] read(String name) throws Exception;
+	}
+
+	private final String algorithm;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Crea un calculador de huellas que usa el pool com&uacute;n.
+	 *
+	 * @param algorithm
+	 *            Algoritmo de huella digital (por ejemplo, <i>SHA-256</i>)
+	 * @throws NoSuchAlgorithmException
+	 *             Si el algoritmo no est&aacute; disponible
+	 */
+	public ManifestDigester(String algorithm) throws NoSuchAlgorithmException {
+		this(algorithm, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Crea un calculador de huellas.
+	 *
+	 * @param algorithm
+	 *            Algoritmo de huella digital (por ejemplo, <i>SHA-256</i>)
+	 * @param pool
+	 *            Pool en el que se calculan las huellas
+	 * @throws NoSuchAlgorithmException
+	 *             Si el algoritmo no est&aacute; disponible
+	 */
+	public ManifestDigester(String algorithm, ForkJoinPool pool) throws NoSuchAlgorithmException {
+		if (pool == null) {
+			throw new IllegalArgumentException("El pool no puede ser nulo");
+		}
+		// Se comprueba el algoritmo antes de repartir el trabajo
+		MessageDigest.getInstance(algorithm);
+		this.algorithm = algorithm;
+		this.pool = pool;
+	}
+
+	/**
+	 * Calcula las huellas de varias partes.
+	 *
+	 * @param names
+	 *            Nombres de las partes
+	 * @param reader
+	 *            Lector de los datos de cada parte
+	 * @return Huellas de las partes, en el mismo orden que sus nombres
+	 * @throws RubricaException
+	 *             Si no se puede leer o transformar alguna de las partes
+	 */
+	public List<byte[]> digest(List<String> names, PartReader reader) throws RubricaException {
+		List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(names.size());
+		for (String name : names) {
+			tasks.add(this.pool.submit(() -> digest(name, reader)));
+		}
+
+		List<byte[]> result = new ArrayList<>(names.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			try {
+				result.add(tasks.get(i).get());
+			} catch (InterruptedException e) {
+				cancel(tasks);
+				Thread.currentThread().interrupt();
+				throw new RubricaException("Interrumpido el calculo de huellas del manifiesto", e);
+			} catch (ExecutionException e) {
+				cancel(tasks);
+				Throwable cause = e.getCause();
+				// El pool envuelve las excepciones comprobadas del lector, a veces
+				// mas de una vez
+				while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+					cause = cause.getCause();
+				}
+				throw new RubricaException("No se ha podido calcular la huella de '" + names.get(i) + "': " + cause,
+						cause instanceof Exception ? (Exception) cause : e);
+			}
+		}
+		return result;
+	}
+
+	private byte[] digest(String name, PartReader reader) throws Exception {
+		byte[] data = reader.read(name);
+		if (data == null) {
+			throw new RubricaException("No existe la parte " + name);
+		}
+		return MessageDigest.getInstance(this.algorithm).digest(data);
+	}
+
+	private static void cancel(List<ForkJoinTask<byte[]>> tasks) {
+		for (ForkJoinTask<byte[]> task : tasks) {
+			task.cancel(false);
+		}
+	}
+}
\ No newline at end of file
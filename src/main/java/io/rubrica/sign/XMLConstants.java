@@ -17,6 +17,7 @@
 
 package io.rubrica.sign;
 
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -81,6 +82,24 @@ public final class XMLConstants {
 		MESSAGEDIGEST_ALGOS_URI.put("sha-512", URL_SHA512);
 	}
 
+	/**
+	 * Obtiene el nombre JCA del algoritmo de huella a partir de su URI XMLDSig.
+	 *
+	 * @param digestMethodUri
+	 *            URI del algoritmo de huella
+	 * @return Nombre del algoritmo, por ejemplo <i>SHA-256</i>
+	 * @throws NoSuchAlgorithmException
+	 *             Si el algoritmo no est&aacute; soportado
+	 */
+	public static String getDigestAlgorithmName(String digestMethodUri) throws NoSuchAlgorithmException {
+		for (Map.Entry<String, String> entry : MESSAGEDIGEST_ALGOS_URI.entrySet()) {
+			if (entry.getValue().equals(digestMethodUri) && entry.getKey().contains("-")) {
+				return entry.getKey().toUpperCase();
+			}
+		}
+		throw new NoSuchAlgorithmException("No se soporta el algoritmo de huella: " + digestMethodUri);
+	}
+
 	/** MimeType por defecto para los datos firmados. */
 	public static final String DEFAULT_MIMETYPE = "application/octet-stream";
 
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.odf;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import io.rubrica.certificate.ValidationResult;
+import io.rubrica.sign.SignValidity;
+import io.rubrica.sign.SignValidity.SIGN_DETAIL_TYPE;
+import io.rubrica.sign.SignValidity.VALIDITY_ERROR;
+
+/**
+ * Resultado de la verificacion de una firma de un documento ODF.
+ */
+public class ODFSignatureReport {
+
+	private final String id;
+	private final int referenceCount;
+
+	X509Certificate[] certificates;
+	Date signingTime;
+	boolean referencesValid;
+	boolean signatureValueValid;
+	boolean coversWholeDocument;
+	ValidationResult certPathResult;
+	VALIDITY_ERROR error;
+	final List<String> messages = new ArrayList<>();
+
+	ODFSignatureReport(String id, int referenceCount) {
+		this.id = id;
+		this.referenceCount = referenceCount;
+	}
+
+	/**
+	 * Obtiene el identificador (atributo <i>Id</i>) del nodo de firma.
+	 *
+	 * @return Identificador de la firma, vacio si no tiene
+	 */
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * Obtiene el numero de referencias (<i>ds:Reference</i>) de la firma.
+	 *
+	 * @return Numero de referencias
+	 */
+	public int getReferenceCount() {
+		return this.referenceCount;
+	}
+
+	/**
+	 * Obtiene la cadena de certificados incluida en la firma, o {@code null} si
+	 * no se pudo leer.
+	 *
+	 * @return Cadena de certificados, empezando por el del firmante
+	 */
+	public X509Certificate[] getCertificates() {
+		return this.certificates == null ? null : this.certificates.clone();
+	}
+
+	/**
+	 * Obtiene la fecha de la firma declarada por el firmante (<i>dc:date</i>).
+	 * No esta protegida por un sello de tiempo, por lo que no se usa para
+	 * validar el certificado.
+	 *
+	 * @return Fecha de la firma, o {@code null} si no se indica
+	 */
+	public Date getSigningTime() {
+		return this.signingTime == null ? null : (Date) this.signingTime.clone();
+	}
+
+	/**
+	 * Indica si las huellas de todas las referencias son correctas, es decir, si
+	 * las partes firmadas del documento no han sido modificadas.
+	 *
+	 * @return {@code true} si todas las referencias son validas
+	 */
+	public boolean isReferencesValid() {
+		return this.referencesValid;
+	}
+
+	/**
+	 * Indica si el valor de firma corresponde al <i>SignedInfo</i> y a la clave
+	 * del firmante.
+	 *
+	 * @return {@code true} si el valor de firma es valido
+	 */
+	public boolean isSignatureValueValid() {
+		return this.signatureValueValid;
+	}
+
+	/**
+	 * Indica si la firma referencia todas las partes del documento, salvo el
+	 * propio documento de firmas.
+	 *
+	 * @return {@code true} si la firma cubre todo el documento
+	 */
+	public boolean isCoversWholeDocument() {
+		return this.coversWholeDocument;
+	}
+
+	/**
+	 * Obtiene el resultado de la validacion de la ruta de certificacion del
+	 * firmante.
+	 *
+	 * @return Resultado de la validacion, o {@code null} si no se pudo realizar
+	 */
+	public ValidationResult getCertPathResult() {
+		return this.certPathResult;
+	}
+
+	/**
+	 * Indica si la firma es valida.
+	 *
+	 * @return {@code true} si no se encontraron errores
+	 */
+	public boolean isValid() {
+		return this.error == null;
+	}
+
+	/**
+	 * Obtiene el primer error que invalida la firma, o {@code null} si es
+	 * valida.
+	 *
+	 * @return Error de la firma
+	 */
+	public VALIDITY_ERROR getError() {
+		return this.error;
+	}
+
+	/**
+	 * Obtiene la validez de la firma.
+	 *
+	 * @return Validez de la firma
+	 */
+	public SignValidity getValidity() {
+		return new SignValidity(isValid() ? SIGN_DETAIL_TYPE.OK : SIGN_DETAIL_TYPE.FAIL, this.error);
+	}
+
+	/**
+	 * Obtiene la descripcion de los problemas encontrados en la firma.
+	 *
+	 * @return Mensajes de la verificacion
+	 */
+	public List<String> getMessages() {
+		return Collections.unmodifiableList(this.messages);
+	}
+
+	void fail(VALIDITY_ERROR error, String message) {
+		if (this.error == null) {
+			this.error = error;
+		}
+		this.messages.add(message);
+	}
+
+	@Override
+	public String toString() {
+		return "ODFSignatureReport [id=" + id + ", referenceCount=" + referenceCount + ", referencesValid="
+				+ referencesValid + ", signatureValueValid=" + signatureValueValid + ", coversWholeDocument="
+				+ coversWholeDocument + ", certPathResult=" + certPathResult + ", error=" + error + ", messages="
+				+ messages + "]";
+	}
+}
\ No newline at end of file
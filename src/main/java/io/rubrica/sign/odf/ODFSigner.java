@@ -20,8 +20,6 @@ package io.rubrica.sign.odf;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -29,7 +27,6 @@ import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
-import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
@@ -38,16 +35,12 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.crypto.XMLStructure;
 import javax.xml.crypto.dom.DOMStructure;
@@ -78,12 +71,14 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import io.rubrica.core.RubricaException;
-import io.rubrica.core.Util;
 import io.rubrica.sign.InvalidFormatException;
+import io.rubrica.sign.ManifestDigester;
 import io.rubrica.sign.SignInfo;
 import io.rubrica.sign.Signer;
 import io.rubrica.sign.XMLConstants;
 import io.rubrica.util.Utils;
+import io.rubrica.zip.ZipContainer;
+import io.rubrica.zip.ZipContainerWriter;
 import nu.xom.canonical.Canonicalizer;
 import nu.xom.converters.DOMConverter;
 
@@ -122,16 +117,20 @@ public class ODFSigner implements Signer {
 	 *         ser firmado, <code>false</code> en caso contrario
 	 */
 	public boolean isValidDataFile(byte[] data) {
-		File odfFile;
+		ZipContainer odfFile = open(data);
+		return odfFile != null && isValidDataFile(odfFile);
+	}
 
+	private static ZipContainer open(byte[] data) {
 		try {
-			odfFile = createTempFile(data);
-			odfFile.deleteOnExit();
+			return ZipContainer.open(data);
 		} catch (Exception e) {
-			logger.warning("No se pudo crear una copia del fichero para su analisis, se devolvera false: " + e);
-			return false;
+			logger.warning("No se pudo abrir el fichero para su analisis, se devolvera false: " + e);
+			return null;
 		}
+	}
 
+	private static boolean isValidDataFile(ZipContainer odfFile) {
 		// Si el mimetype del fichero no se ajusta a alguno de los MimeTypes
 		// soportados
 		// para firma ODF se lanzara una excepcion, en ese caso deducimos que no
@@ -150,25 +149,17 @@ public class ODFSigner implements Signer {
 	}
 
 	public boolean isSign(byte[] signData) throws IOException {
-		if (!isValidDataFile(signData)) {
-			return false;
-		}
-
-		File odfFile;
+		ZipContainer odfFile = open(signData);
+		return odfFile != null && isSign(odfFile);
+	}
 
-		try {
-			odfFile = createTempFile(signData);
-			odfFile.deleteOnExit();
-		} catch (Exception e) {
-			logger.warning("No se pudo crear una copia del fichero para su analisis, se devolvera false: " + e);
+	private static boolean isSign(ZipContainer odfFile) {
+		if (!isValidDataFile(odfFile)) {
 			return false;
 		}
 
-		// carga el fichero zip
-		try (ZipFile zf = new ZipFile(odfFile);) {
-			// obtiene el archivo mimetype
-			return zf.getEntry(SIGNATURES_PATH) != null;
-		}
+		// obtiene el documento de firmas
+		return odfFile.contains(SIGNATURES_PATH);
 	}
 
 	@Override
@@ -184,228 +175,197 @@ public class ODFSigner implements Signer {
 		boolean isCofirm = false;
 
 		try {
-			// Genera el archivo zip temporal a partir del InputStream de
-			// entrada
-			File zipFile = File.createTempFile("sign", ".zip");
-
-			try (FileOutputStream fos = new FileOutputStream(zipFile)) {
-				fos.write(data);
-				fos.flush();
-			}
-
-			zipFile.deleteOnExit();
-
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
 			// carga el fichero zip
-			try (ZipFile zf = new ZipFile(zipFile)) {
-				byte[] manifestData;
+			ZipContainer zf = ZipContainer.open(data);
 
-				// obtiene el archivo manifest.xml, que indica los ficheros que
-				// contiene el ODF
-				try (InputStream manifest = zf.getInputStream(zf.getEntry(fullPath))) {
-					manifestData = Utils.getDataFromInputStream(manifest);
-				}
+			// obtiene el archivo manifest.xml, que indica los ficheros que
+			// contiene el ODF
+			byte[] manifestData = zf.getData(fullPath);
+			if (manifestData == null) {
+				throw new FormatFileException("El documento ODF no contiene " + fullPath);
+			}
 
-				// obtiene el documento manifest.xml y su raiz
-				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-				dbf.setNamespaceAware(true);
-				Document docManifest = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(manifestData));
-				Element rootManifest = docManifest.getDocumentElement();
+			// obtiene el documento manifest.xml y su raiz
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(true);
+			Document docManifest = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(manifestData));
+			Element rootManifest = docManifest.getDocumentElement();
 
-				// recupera todos los nodos de manifest.xml
-				NodeList listFileEntry = rootManifest.getElementsByTagName("manifest:file-entry");
+			// recupera todos los nodos de manifest.xml
+			NodeList listFileEntry = rootManifest.getElementsByTagName("manifest:file-entry");
 
-				// Datos necesarios para la firma
+			// Datos necesarios para la firma
 
-				// MessageDigest
-				MessageDigest md;
+			// Calculador de huellas de las partes, en paralelo
+			ManifestDigester digester;
 
-				try {
-					md = MessageDigest.getInstance(DIGEST_METHOD_ALGORITHM_NAME);
-				} catch (Exception e) {
-					throw new RubricaException(
-							"No se ha podido obtener un generador de huellas digitales con el algoritmo "
-									+ DIGEST_METHOD_ALGORITHM_NAME + ": " + e,
-							e);
-				}
+			try {
+				digester = new ManifestDigester(DIGEST_METHOD_ALGORITHM_NAME);
+			} catch (Exception e) {
+				throw new RubricaException(
+						"No se ha podido obtener un generador de huellas digitales con el algoritmo "
+								+ DIGEST_METHOD_ALGORITHM_NAME + ": " + e,
+						e);
+			}
 
-				// XMLSignatureFactory
-				XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
+			// XMLSignatureFactory
+			XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
 
-				// DigestMethod
-				DigestMethod dm;
+			// DigestMethod
+			DigestMethod dm;
 
-				try {
-					dm = fac.newDigestMethod(DEFAULT_DIGEST_METHOD, null);
-				} catch (Exception e) {
-					throw new RubricaException(
-							"No se ha podido obtener un generador de huellas digitales con el algoritmo: "
-									+ DEFAULT_DIGEST_METHOD,
-							e);
-				}
+			try {
+				dm = fac.newDigestMethod(DEFAULT_DIGEST_METHOD, null);
+			} catch (Exception e) {
+				throw new RubricaException(
+						"No se ha podido obtener un generador de huellas digitales con el algoritmo: "
+								+ DEFAULT_DIGEST_METHOD,
+						e);
+			}
 
-				// Configuramos las transformaciones y referencias
-
-				// Transforms
-				List<Transform> transformList = new ArrayList<>(1);
-				transformList.add(fac.newTransform(Canonicalizer.CANONICAL_XML, (TransformParameterSpec) null));
-
-				// References
-				List<Reference> referenceList = new ArrayList<>();
-
-				// Anadimos tambien referencias manualmente al propio
-				// manifest.xml y
-				// al mimetype
-
-				// mimetype es una referencia simple, porque no es XML
-				referenceList.add(fac.newReference("mimetype", dm, null, null, null,
-						md.digest(Utils.getDataFromInputStream(
-								// Recupera el fichero
-								zf.getInputStream(zf.getEntry("mimetype"))))));
-
-				referenceList
-						.add(fac.newReference(MANIFEST_PATH, dm, transformList, null, null,
-								md.digest(canonicalizeXml(dbf.newDocumentBuilder()
-										.parse(new ByteArrayInputStream(manifestData)).getDocumentElement(),
-										CANONICAL_XML_ALGORITHM))));
-
-				// para cada nodo de manifest.xml
-				Reference reference;
-				for (int i = 0; i < listFileEntry.getLength(); i++) {
-					fullPath = ((Element) listFileEntry.item(i)).getAttribute("manifest:full-path");
-
-					// si es un archivo
-					if (!fullPath.endsWith("/")) {
-
-						// y es uno de los siguientes archivos xml
-						if (fullPath.equals("content.xml") || fullPath.equals("meta.xml")
-								|| fullPath.equals("styles.xml") || fullPath.equals("settings.xml")) {
-
-							// crea la referencia
-							reference = fac.newReference(fullPath.replaceAll(" ", "%20"), dm, transformList, null, null,
-									// Obtiene su forma canonica y su
-									// DigestValue
-									md.digest(canonicalizeXml(dbf.newDocumentBuilder()
-											.parse(zf.getInputStream(zf.getEntry(fullPath))).getDocumentElement(),
-											CANONICAL_XML_ALGORITHM)));
-						}
-
-						// si no es uno de los archivos xml
-						else {
-							// crea la referencia
-							reference = fac.newReference(fullPath.replaceAll(" ", "%20"), dm, null, null, null,
-									md.digest(Utils.getDataFromInputStream(
-											// Recupera el fichero
-											zf.getInputStream(zf.getEntry(fullPath)))));
-						}
-
-						if (!fullPath.equals(SIGNATURES_PATH)) {
-							referenceList.add(reference);
-						} else {
-							// Para mantener la compatibilidad con OpenOffice
-							// 3.1?
-							isCofirm = true;
-						}
+			// Configuramos las transformaciones y referencias
+
+			// Transforms
+			List<Transform> transformList = new ArrayList<>(1);
+			transformList.add(fac.newTransform(Canonicalizer.CANONICAL_XML, (TransformParameterSpec) null));
+
+			// Partes a referenciar, en el orden de las referencias. Se anaden
+			// tambien manualmente el mimetype y el propio manifest.xml
+			List<String> parts = new ArrayList<>();
+			parts.add("mimetype");
+			parts.add(MANIFEST_PATH);
+
+			// para cada nodo de manifest.xml
+			for (int i = 0; i < listFileEntry.getLength(); i++) {
+				fullPath = ((Element) listFileEntry.item(i)).getAttribute("manifest:full-path");
+
+				// si es un archivo
+				if (!fullPath.endsWith("/")) {
+					if (!fullPath.equals(SIGNATURES_PATH)) {
+						parts.add(fullPath);
+					} else {
+						// Para mantener la compatibilidad con OpenOffice
+						// 3.1?
+						isCofirm = true;
 					}
 				}
+			}
 
-				// Si se encuentra el fichero de firmas en el documento, la
-				// nueva firma se debe agregar a el
-				if (!isCofirm && zf.getEntry(SIGNATURES_PATH) != null) {
-					isCofirm = true;
+			// Obtiene la forma canonica de los XML y las huellas de todas las
+			// partes en paralelo
+			List<byte[]> digests = digester.digest(parts, name -> {
+				if (MANIFEST_PATH.equals(name)) {
+					return canonicalizeXml(parseXml(manifestData), CANONICAL_XML_ALGORITHM);
 				}
-
-				Document docSignatures;
-				Element rootSignatures;
-				// si es cofirma
-				if (isCofirm) {
-					// recupera el documento de firmas y su raiz
-					docSignatures = dbf.newDocumentBuilder().parse(zf.getInputStream(zf.getEntry(SIGNATURES_PATH)));
-					rootSignatures = docSignatures.getDocumentElement();
+				if (isCanonicalizedPart(name)) {
+					return canonicalizeXml(parseXml(zf.getData(name)), CANONICAL_XML_ALGORITHM);
+				}
+				return zf.getData(name);
+			});
+
+			// References
+			List<Reference> referenceList = new ArrayList<>();
+			for (int i = 0; i < parts.size(); i++) {
+				String name = parts.get(i);
+				if ("mimetype".equals(name)) {
+					// mimetype es una referencia simple, porque no es XML
+					referenceList.add(fac.newReference(name, dm, null, null, null, digests.get(i)));
+				} else if (MANIFEST_PATH.equals(name) || isCanonicalizedPart(name)) {
+					referenceList.add(fac.newReference(name.replaceAll(" ", "%20"), dm, transformList, null, null,
+							digests.get(i)));
 				} else {
-					// crea un nuevo documento de firmas
-					docSignatures = dbf.newDocumentBuilder().newDocument();
-					rootSignatures = docSignatures.createElement("document-signatures");
-					rootSignatures.setAttribute("xmlns", OPENOFFICE);
-					docSignatures.appendChild(rootSignatures);
+					referenceList.add(
+							fac.newReference(name.replaceAll(" ", "%20"), dm, null, null, null, digests.get(i)));
 				}
+			}
 
-				// Ids de Signature y SignatureProperty
-				String signatureId = UUID.randomUUID().toString();
-				String signaturePropertyId = UUID.randomUUID().toString();
-
-				// referencia a SignatureProperty
-				referenceList.add(fac.newReference("#" + signaturePropertyId, dm));
-
-				// contenido de SignatureProperty
-				Element content = docSignatures.createElement("dc:date");
-				content.setAttribute("xmlns:dc", "http://purl.org/dc/elements/1.1/");
-				content.setTextContent(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss,SS").format(new Date()));
-				List<XMLStructure> contentList = new ArrayList<>();
-				contentList.add(new DOMStructure(content));
-
-				// SignatureProperty
-				List<SignatureProperty> spList = new ArrayList<>();
-				spList.add(fac.newSignatureProperty(contentList, "#" + signatureId, signaturePropertyId));
-
-				// SignatureProperties
-				List<SignatureProperties> spsList = new ArrayList<>();
-				spsList.add(fac.newSignatureProperties(spList, null));
-
-				// Object
-				List<XMLObject> objectList = new ArrayList<>();
-				objectList.add(fac.newXMLObject(spsList, null, null, null));
-
-				// Preparamos el KeyInfo
-				KeyInfoFactory kif = fac.getKeyInfoFactory();
-				List<Object> x509Content = new ArrayList<>();
-				X509Certificate cert = (X509Certificate) certChain[0];
-				x509Content.add(cert.getSubjectX500Principal().getName());
-				x509Content.add(cert);
-
-				// genera la firma
-				fac.newXMLSignature(
-						// SignedInfo
-						fac.newSignedInfo(
-								// CanonicalizationMethod
-								fac.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE,
-										(C14NMethodParameterSpec) null),
-								fac.newSignatureMethod(SignatureMethod.RSA_SHA1, null), referenceList),
-						// KeyInfo
-						kif.newKeyInfo(Collections.singletonList(kif.newX509Data(x509Content)), null), objectList,
-						signatureId, null).sign(new DOMSignContext(key, rootSignatures));
-
-				// crea un nuevo fichero zip
-				try (ZipOutputStream zos = new ZipOutputStream(baos);) {
-					// copia el contenido del zip original en el nuevo excepto
-					// el documento de firmas y manifest.xml
-					Enumeration<? extends ZipEntry> e = zf.entries();
-					ZipEntry ze;
-					ZipEntry zeOut;
-					while (e.hasMoreElements()) {
-						ze = e.nextElement();
-						zeOut = new ZipEntry(ze.getName());
-						if (!ze.getName().equals(SIGNATURES_PATH) && !ze.getName().equals(MANIFEST_PATH)) {
-							zos.putNextEntry(zeOut);
-							zos.write(Utils.getDataFromInputStream(zf.getInputStream(ze)));
-						}
-					}
+			// Si se encuentra el fichero de firmas en el documento, la
+			// nueva firma se debe agregar a el
+			if (!isCofirm && zf.contains(SIGNATURES_PATH)) {
+				isCofirm = true;
+			}
+
+			Document docSignatures;
+			Element rootSignatures;
+			// si es cofirma
+			if (isCofirm) {
+				// recupera el documento de firmas y su raiz
+				docSignatures = dbf.newDocumentBuilder().parse(zf.getInputStream(SIGNATURES_PATH));
+				rootSignatures = docSignatures.getDocumentElement();
+			} else {
+				// crea un nuevo documento de firmas
+				docSignatures = dbf.newDocumentBuilder().newDocument();
+				rootSignatures = docSignatures.createElement("document-signatures");
+				rootSignatures.setAttribute("xmlns", OPENOFFICE);
+				docSignatures.appendChild(rootSignatures);
+			}
 
-					// anade el documento de firmas
-					zos.putNextEntry(new ZipEntry(SIGNATURES_PATH));
-					ByteArrayOutputStream baosXML = new ByteArrayOutputStream();
-					writeXML(baosXML, rootSignatures, false);
-					zos.write(baosXML.toByteArray());
-					zos.closeEntry();
-
-					// anade manifest.xml
-					zos.putNextEntry(new ZipEntry(MANIFEST_PATH));
-					ByteArrayOutputStream baosManifest = new ByteArrayOutputStream();
-					writeXML(baosManifest, rootManifest, false);
-					zos.write(baosManifest.toByteArray());
-					zos.closeEntry();
+			// Ids de Signature y SignatureProperty
+			String signatureId = UUID.randomUUID().toString();
+			String signaturePropertyId = UUID.randomUUID().toString();
+
+			// referencia a SignatureProperty
+			referenceList.add(fac.newReference("#" + signaturePropertyId, dm));
+
+			// contenido de SignatureProperty
+			Element content = docSignatures.createElement("dc:date");
+			content.setAttribute("xmlns:dc", "http://purl.org/dc/elements/1.1/");
+			content.setTextContent(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss,SS").format(new Date()));
+			List<XMLStructure> contentList = new ArrayList<>();
+			contentList.add(new DOMStructure(content));
+
+			// SignatureProperty
+			List<SignatureProperty> spList = new ArrayList<>();
+			spList.add(fac.newSignatureProperty(contentList, "#" + signatureId, signaturePropertyId));
+
+			// SignatureProperties
+			List<SignatureProperties> spsList = new ArrayList<>();
+			spsList.add(fac.newSignatureProperties(spList, null));
+
+			// Object
+			List<XMLObject> objectList = new ArrayList<>();
+			objectList.add(fac.newXMLObject(spsList, null, null, null));
+
+			// Preparamos el KeyInfo
+			KeyInfoFactory kif = fac.getKeyInfoFactory();
+			List<Object> x509Content = new ArrayList<>();
+			X509Certificate cert = (X509Certificate) certChain[0];
+			x509Content.add(cert.getSubjectX500Principal().getName());
+			x509Content.add(cert);
+
+			// genera la firma
+			fac.newXMLSignature(
+					// SignedInfo
+					fac.newSignedInfo(
+							// CanonicalizationMethod
+							fac.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE,
+									(C14NMethodParameterSpec) null),
+							fac.newSignatureMethod(SignatureMethod.RSA_SHA1, null), referenceList),
+					// KeyInfo
+					kif.newKeyInfo(Collections.singletonList(kif.newX509Data(x509Content)), null), objectList,
+					signatureId, null).sign(new DOMSignContext(key, rootSignatures));
+
+			// crea un nuevo fichero zip
+			try (ZipContainerWriter zos = new ZipContainerWriter(baos);) {
+				// copia el contenido del zip original en el nuevo, sin
+				// recomprimirlo, excepto el documento de firmas y manifest.xml
+				for (String name : zf.getEntryNames()) {
+					if (!name.equals(SIGNATURES_PATH) && !name.equals(MANIFEST_PATH)) {
+						zos.copyEntry(zf, name);
+					}
 				}
+
+				// anade el documento de firmas
+				ByteArrayOutputStream baosXML = new ByteArrayOutputStream();
+				writeXML(baosXML, rootSignatures, false);
+				zos.putEntry(SIGNATURES_PATH, baosXML.toByteArray());
+
+				// anade manifest.xml
+				ByteArrayOutputStream baosManifest = new ByteArrayOutputStream();
+				writeXML(baosManifest, rootManifest, false);
+				zos.putEntry(MANIFEST_PATH, baosManifest.toByteArray());
 			}
 
 			return baos.toByteArray();
@@ -427,22 +387,15 @@ public class ODFSigner implements Signer {
 	}
 
 	public List<SignInfo> getSigners(byte[] sign) throws InvalidFormatException, IOException {
-		if (!isSign(sign)) {
+		ZipContainer odfFile = open(sign);
+		if (odfFile == null || !isSign(odfFile)) {
 			throw new InvalidFormatException("Los datos indicados no se corresponden con un ODF firmado");
 		}
 
 		try {
-			// Genera un archivo zip temporal a partir del byte[] de entrada
-			File zipFile = File.createTempFile("sign", ".zip");
-			try (final FileOutputStream fos = new FileOutputStream(zipFile);) {
-				fos.write(sign);
-				fos.flush();
-			}
-
 			List<SignInfo> signInfos = new ArrayList<>();
 
-			try (ZipFile zf = new ZipFile(zipFile);
-					InputStream signIs = zf.getInputStream(zf.getEntry(SIGNATURES_PATH))) {
+			try (InputStream signIs = odfFile.getInputStream(SIGNATURES_PATH)) {
 
 				// Recupera la raiz del documento de firmas
 				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -465,8 +418,6 @@ public class ODFSigner implements Signer {
 				}
 			}
 
-			zipFile.deleteOnExit();
-
 			return signInfos;
 		} catch (Exception e) {
 			logger.warning("Se ha producido un error al obtener la estructura de firmas: " + e);
@@ -474,6 +425,25 @@ public class ODFSigner implements Signer {
 		}
 	}
 
+	/**
+	 * Indica si una parte del documento se referencia en su forma
+	 * can&oacute;nica.
+	 */
+	private static boolean isCanonicalizedPart(String fullPath) {
+		return fullPath.equals("content.xml") || fullPath.equals("meta.xml") || fullPath.equals("styles.xml")
+				|| fullPath.equals("settings.xml");
+	}
+
+	private static Element parseXml(byte[] xml) throws Exception {
+		if (xml == null) {
+			throw new FormatFileException("Parte no encontrada en el documento ODF");
+		}
+		// Cada hilo usa su propio analizador
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml)).getDocumentElement();
+	}
+
 	private static byte[] canonicalizeXml(org.w3c.dom.Element element, String algorithm) throws IOException {
 		nu.xom.Element xomElement = DOMConverter.convert(element);
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -501,37 +471,15 @@ public class ODFSigner implements Signer {
 		}
 	}
 
-	private static String getODFMimeType(File odfFile) throws IOException {
-		// carga el fichero zip
-		try (ZipFile zf = new ZipFile(odfFile);) {
-			// obtiene el archivo mimetype
-			final ZipEntry entry = zf.getEntry("mimetype");
-			if (entry != null) {
-				return new String(Util.getDataFromInputStream(zf.getInputStream(entry)));
-			}
+	private static String getODFMimeType(ZipContainer odfFile) throws IOException {
+		// obtiene el archivo mimetype
+		final byte[] mimetype = odfFile.getData("mimetype");
+		if (mimetype != null) {
+			return new String(mimetype);
 		}
 		return null;
 	}
 
-	/**
-	 * Crea un fichero temporal con los datos.
-	 * 
-	 * @param data
-	 *            Datos del fichero.
-	 * @return Fichero generado.
-	 * @throws IOException
-	 *             Cuando se produce un error durante la generaci&oacute;n.
-	 */
-	private File createTempFile(byte[] data) throws IOException {
-		// Genera el archivo zip temporal a partir del InputStream de entrada
-		final File zipFile = File.createTempFile("sign", ".zip");
-		try (final FileOutputStream fos = new FileOutputStream(zipFile);) {
-			fos.write(data);
-			fos.flush();
-		}
-		return zipFile;
-	}
-
 	private SignInfo getSignInfo(Element signature) {
 		// Recupera la fecha de firma
 		Date signingTime = null;
@@ -0,0 +1,721 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.odf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.Data;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.NodeSetData;
+import javax.xml.crypto.OctetStreamData;
+import javax.xml.crypto.URIReferenceException;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.TransformService;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import io.rubrica.certificate.CertPathUtils;
+import io.rubrica.certificate.ValidationResult;
+import io.rubrica.sign.InvalidFormatException;
+import io.rubrica.sign.SignValidity;
+import io.rubrica.sign.SignValidity.SIGN_DETAIL_TYPE;
+import io.rubrica.sign.SignValidity.VALIDITY_ERROR;
+import io.rubrica.sign.Validator;
+import io.rubrica.sign.XMLConstants;
+import io.rubrica.sign.xades.XmlIdIndex;
+import io.rubrica.util.Utils;
+import io.rubrica.zip.ZipContainer;
+
+/**
+ * Valida todas las firmas de un documento ODF, incluidas las cofirmas.
+ *
+ * El paquete se lee una sola vez a traves de un {@link ZipContainer} y sus
+ * partes se transforman (canonicalizan) y digieren como mucho una vez por
+ * documento: las firmas que referencian la misma parte con las mismas
+ * transformaciones y el mismo algoritmo de huella comparten el resultado.
+ *
+ * Los contextos de XMLDSig y los arboles DOM no admiten varios hilos, por lo
+ * que las transformaciones, las referencias internas del documento de firmas
+ * y el valor de firma se comprueban en el hilo que llama. En el
+ * {@link ExecutorService} indicado solo se calculan, en paralelo, las huellas
+ * de las partes sin transformar y la ruta de certificacion del firmante, que
+ * se valida en la fecha actual porque la fecha declarada en la firma no esta
+ * protegida por un sello de tiempo.
+ */
+public class ODFValidator implements Validator {
+
+	private static final Logger logger = Logger.getLogger(ODFValidator.class.getName());
+
+	private static final String MIMETYPE_PATH = "mimetype";
+	private static final String SIGNATURES_PATH = "META-INF/documentsignatures.xml";
+	private static final String DC_NAMESPACE = "http://purl.org/dc/elements/1.1/";
+	private static final String ID_ATTRIBUTE = "Id";
+
+	/** Caracteristica de Xerces que construye el DOM bajo demanda. */
+	private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+
+	/**
+	 * Propiedad de la validacion segura de XMLDSig, que en las versiones
+	 * recientes de Java rechaza RSA-SHA1, el algoritmo de las firmas ODF 1.2.
+	 */
+	private static final String SECURE_VALIDATION = "org.jcp.xml.dsig.secureValidation";
+
+	/**
+	 * Unicas transformaciones admitidas en las referencias, ya que la validacion
+	 * segura de XMLDSig esta desactivada.
+	 */
+	private static final Set<String> ALLOWED_TRANSFORMS = new HashSet<>(
+			Arrays.asList(CanonicalizationMethod.INCLUSIVE, CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS,
+					CanonicalizationMethod.EXCLUSIVE, CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS));
+
+	private final Set<TrustAnchor> trustAnchors;
+	private final ExecutorService executor;
+
+	/**
+	 * Crea un validador que usa las CA raiz soportadas y el pool comun de
+	 * {@link ForkJoinPool}.
+	 */
+	public ODFValidator() {
+		this(CertPathUtils.getTrustAnchors(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Crea un validador.
+	 *
+	 * @param trustAnchors
+	 *            CA raiz de confianza
+	 * @param executor
+	 *            Pool de hilos en donde se verifican las firmas; no se cierra
+	 *            al terminar
+	 */
+	public ODFValidator(Set<TrustAnchor> trustAnchors, ExecutorService executor) {
+		if (trustAnchors == null || trustAnchors.isEmpty()) {
+			throw new IllegalArgumentException("Se debe indicar al menos una CA raiz de confianza");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("El pool de hilos no puede ser nulo");
+		}
+
+		this.trustAnchors = trustAnchors;
+		this.executor = executor;
+	}
+
+	/**
+	 * Valida todas las firmas del documento. El documento es valido si todas
+	 * sus firmas son validas y al menos una cubre todas las partes del paquete
+	 * salvo el documento de firmas; en caso contrario se devuelve el error de la
+	 * primera firma invalida, o {@link VALIDITY_ERROR#NO_MATCH_DATA} si ninguna
+	 * cubre todo el documento.
+	 */
+	@Override
+	public SignValidity validate(final byte[] sign) throws IOException {
+		List<ODFSignatureReport> reports;
+
+		try {
+			reports = verify(sign);
+		} catch (InvalidFormatException e) {
+			return new SignValidity(SIGN_DETAIL_TYPE.FAIL, VALIDITY_ERROR.UNKOWN_SIGNATURE_FORMAT);
+		}
+
+		if (reports.isEmpty()) {
+			return new SignValidity(SIGN_DETAIL_TYPE.FAIL, VALIDITY_ERROR.NO_SIGN);
+		}
+
+		boolean wholeDocumentSigned = false;
+		for (ODFSignatureReport report : reports) {
+			if (!report.isValid()) {
+				return report.getValidity();
+			}
+			wholeDocumentSigned |= report.isCoversWholeDocument();
+		}
+
+		if (!wholeDocumentSigned) {
+			logger.warning("Ninguna firma cubre todas las partes del documento");
+			return new SignValidity(SIGN_DETAIL_TYPE.FAIL, VALIDITY_ERROR.NO_MATCH_DATA);
+		}
+
+		return new SignValidity(SIGN_DETAIL_TYPE.OK, null);
+	}
+
+	/**
+	 * Verifica todas las firmas del documento.
+	 *
+	 * @param odf
+	 *            Documento ODF firmado
+	 * @return Resultado de cada firma, en el orden en que aparecen en el
+	 *         documento de firmas; vacio si el documento no esta firmado
+	 * @throws InvalidFormatException
+	 *             Si los datos no son un ODF o su documento de firmas no es un
+	 *             XML valido
+	 * @throws IOException
+	 *             Si se interrumpe la verificacion
+	 */
+	public List<ODFSignatureReport> verify(final byte[] odf) throws InvalidFormatException, IOException {
+		ZipContainer zip;
+		byte[] signatures;
+
+		try {
+			zip = ZipContainer.open(odf);
+			if (!zip.contains(MIMETYPE_PATH)) {
+				throw new InvalidFormatException("El documento no es un ODF: no contiene " + MIMETYPE_PATH);
+			}
+			signatures = zip.getData(SIGNATURES_PATH);
+		} catch (InvalidFormatException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InvalidFormatException("El documento no es un ODF valido", e);
+		}
+
+		if (signatures == null) {
+			return Collections.emptyList();
+		}
+
+		Document doc;
+		try {
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(true);
+			// Con la expansion diferida, hasta la lectura de un nodo modifica el
+			// arbol
+			dbf.setFeature(DEFER_NODE_EXPANSION, false);
+			doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(signatures));
+		} catch (Exception e) {
+			throw new InvalidFormatException("El documento de firmas no es un XML valido", e);
+		}
+
+		// Indice de identificadores y firmas, en una sola pasada
+		XmlIdIndex ids = new XmlIdIndex();
+		List<Element> signatureElements = new ArrayList<>();
+
+		NodeList elements = doc.getElementsByTagName("*");
+		for (int i = 0; i < elements.getLength(); i++) {
+			Element element = (Element) elements.item(i);
+			ids.addAttributes(element);
+
+			if (XMLSignature.XMLNS.equals(element.getNamespaceURI()) && "Signature".equals(element.getLocalName())) {
+				signatureElements.add(element);
+			}
+		}
+		ids.markIdAttributes();
+
+		// Partes que deberia cubrir cada firma
+		Set<String> signableParts = new LinkedHashSet<>();
+		for (String name : zip.getEntryNames()) {
+			if (!name.endsWith("/") && !name.equals(SIGNATURES_PATH)) {
+				signableParts.add(name);
+			}
+		}
+
+		PartDigests partDigests = new PartDigests(zip, this.executor);
+
+		List<PendingSignature> pending = new ArrayList<>(signatureElements.size());
+		for (Element signatureElement : signatureElements) {
+			pending.add(startVerification(signatureElement, ids, partDigests, signableParts));
+		}
+
+		List<ODFSignatureReport> reports = new ArrayList<>(pending.size());
+		for (PendingSignature signature : pending) {
+			completeVerification(signature);
+			reports.add(signature.report);
+		}
+
+		return reports;
+	}
+
+	/**
+	 * Lee la firma, comprueba en este hilo todo lo que trabaja sobre el DOM y
+	 * lanza en el pool las huellas de las partes sin transformar y la ruta de
+	 * certificacion.
+	 */
+	private PendingSignature startVerification(Element signatureElement, XmlIdIndex ids, PartDigests partDigests,
+			Set<String> signableParts) {
+		String id = signatureElement.getAttribute(ID_ATTRIBUTE);
+
+		// Certificados y firmante
+		List<X509Certificate> certificates = readCertificates(signatureElement);
+		X509Certificate signer = certificates.isEmpty() ? null : certificates.get(0);
+
+		DOMValidateContext context = new DOMValidateContext(
+				signer != null ? KeySelector.singletonKeySelector(signer.getPublicKey()) : new NullKeySelector(),
+				signatureElement);
+		context.setProperty(SECURE_VALIDATION, Boolean.FALSE);
+
+		XMLSignature signature;
+		try {
+			signature = XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(context);
+		} catch (MarshalException e) {
+			logger.warning("La firma " + id + " esta corrupta: " + e);
+			PendingSignature pending = new PendingSignature(new ODFSignatureReport(id, 0));
+			pending.report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "No se ha podido leer la firma: " + e);
+			return pending;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<Reference> references = signature.getSignedInfo().getReferences();
+		ODFSignatureReport report = new ODFSignatureReport(id, references.size());
+		PendingSignature pending = new PendingSignature(report);
+
+		if (signer == null) {
+			report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM, "La firma no incluye el certificado del firmante");
+		} else {
+			report.certificates = certificates.toArray(new X509Certificate[certificates.size()]);
+		}
+
+		report.signingTime = readSigningTime(signatureElement);
+
+		// Huellas de las referencias: las partes del paquete se digieren una
+		// sola vez para todas las firmas
+		Set<String> coveredParts = new HashSet<>();
+		boolean referencesValid = !references.isEmpty();
+		for (Reference reference : references) {
+			String uri = reference.getURI();
+
+			String transform = getUnsupportedTransform(reference);
+			if (transform != null) {
+				report.fail(VALIDITY_ERROR.ALGORITHM_NOT_SUPPORTED,
+						"La referencia '" + uri + "' usa la transformacion no admitida " + transform);
+				referencesValid = false;
+				continue;
+			}
+
+			if (uri != null && uri.startsWith("#")) {
+				if (ids.isDuplicated(uri)) {
+					report.fail(VALIDITY_ERROR.CORRUPTED_SIGN,
+							"La referencia " + uri + " apunta a un identificador duplicado");
+					referencesValid = false;
+				} else {
+					try {
+						referencesValid &= checkReference(report, uri, reference.validate(context));
+					} catch (Exception e) {
+						failReference(report, uri, e);
+						referencesValid = false;
+					}
+				}
+				continue;
+			}
+
+			String partName = getPartName(uri);
+			if (partName == null || !partDigests.contains(partName)) {
+				report.fail(VALIDITY_ERROR.NO_DATA, "El documento no contiene la parte referenciada '" + uri + "'");
+				referencesValid = false;
+				continue;
+			}
+
+			coveredParts.add(partName);
+			if (reference.getTransforms().isEmpty()) {
+				pending.partDigests.add(new PendingPartDigest(reference, partDigests.digest(partName, reference)));
+			} else {
+				try {
+					byte[] digest = partDigests.digest(partName, reference, context);
+					referencesValid &= checkReference(report, uri,
+							Arrays.equals(reference.getDigestValue(), digest));
+				} catch (Exception e) {
+					failReference(report, uri, e);
+					referencesValid = false;
+				}
+			}
+		}
+		pending.referencesValid = referencesValid;
+
+		report.coversWholeDocument = coveredParts.containsAll(signableParts);
+		if (!report.coversWholeDocument) {
+			Set<String> uncovered = new LinkedHashSet<>(signableParts);
+			uncovered.removeAll(coveredParts);
+			report.messages.add("La firma no cubre las partes " + uncovered);
+		}
+
+		// Valor de firma y ruta de certificacion
+		if (signer != null) {
+			try {
+				report.signatureValueValid = signature.getSignatureValue().validate(context);
+				if (!report.signatureValueValid) {
+					report.fail(VALIDITY_ERROR.NO_MATCH_DATA,
+							"El valor de firma no corresponde a la clave del firmante");
+				}
+			} catch (Exception e) {
+				logger.warning("No se ha podido verificar el valor de firma: " + e);
+				report.fail(getError(e), "No se ha podido verificar el valor de firma: " + e);
+			}
+
+			// Sin un sello de tiempo, la fecha declarada en la firma no es fiable
+			X509Certificate signerCert = signer;
+			Date date = new Date();
+			pending.certPathResult = executor
+					.submit(() -> CertPathUtils.verifyCertPath(signerCert, certificates, date, trustAnchors));
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Espera las huellas de las partes y la ruta de certificacion calculadas en
+	 * el pool y completa el informe.
+	 */
+	private void completeVerification(PendingSignature pending) throws InterruptedIOException {
+		ODFSignatureReport report = pending.report;
+
+		try {
+			boolean referencesValid = pending.referencesValid;
+
+			for (PendingPartDigest partDigest : pending.partDigests) {
+				String uri = partDigest.reference.getURI();
+				try {
+					referencesValid &= checkReference(report, uri,
+							Arrays.equals(partDigest.reference.getDigestValue(), partDigest.digest.get()));
+				} catch (ExecutionException e) {
+					failReference(report, uri, e.getCause());
+					referencesValid = false;
+				}
+			}
+
+			report.referencesValid = referencesValid;
+
+			if (pending.certPathResult != null) {
+				try {
+					report.certPathResult = pending.certPathResult.get();
+				} catch (ExecutionException e) {
+					logger.warning("No se ha podido validar la ruta de certificacion: " + e.getCause());
+					report.certPathResult = ValidationResult.UNKNOWN;
+				}
+
+				switch (report.certPathResult) {
+				case VALID:
+					break;
+				case EXPIRED:
+					report.fail(VALIDITY_ERROR.CERTIFICATE_EXPIRED, "El certificado esta caducado");
+					break;
+				case NOT_YET_VALID:
+					report.fail(VALIDITY_ERROR.CERTIFICATE_NOT_VALID_YET, "El certificado aun no es valido");
+					break;
+				case CA_NOT_SUPPORTED:
+					report.fail(VALIDITY_ERROR.CA_NOT_SUPPORTED, "El certificado no es de una CA soportada");
+					break;
+				default:
+					report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM,
+							"No se ha podido validar la ruta de certificacion: " + report.certPathResult);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Se ha interrumpido la verificacion de las firmas");
+		}
+	}
+
+	/**
+	 * Anota en el informe si la huella de una referencia no corresponde a los
+	 * datos.
+	 */
+	private static boolean checkReference(ODFSignatureReport report, String uri, boolean valid) {
+		if (!valid) {
+			report.fail(VALIDITY_ERROR.NO_MATCH_DATA,
+					"La huella de la referencia '" + uri + "' no corresponde a los datos");
+		}
+		return valid;
+	}
+
+	/**
+	 * Anota en el informe el error que impidio verificar una referencia.
+	 */
+	private static void failReference(ODFSignatureReport report, String uri, Throwable e) {
+		logger.warning("No se ha podido verificar la referencia '" + uri + "': " + e);
+		report.fail(getError(e), "No se ha podido verificar la referencia '" + uri + "': " + e);
+	}
+
+	private static VALIDITY_ERROR getError(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof NoSuchAlgorithmException) {
+				return VALIDITY_ERROR.ALGORITHM_NOT_SUPPORTED;
+			}
+			if (t instanceof URIReferenceException) {
+				return VALIDITY_ERROR.NO_DATA;
+			}
+		}
+		return VALIDITY_ERROR.CORRUPTED_SIGN;
+	}
+
+	/**
+	 * Obtiene la primera transformacion de la referencia que no es una
+	 * canonicalizacion, o {@code null} si todas lo son.
+	 */
+	private static String getUnsupportedTransform(Reference reference) {
+		for (Object transform : reference.getTransforms()) {
+			String algorithm = ((Transform) transform).getAlgorithm();
+			if (!ALLOWED_TRANSFORMS.contains(algorithm)) {
+				return algorithm;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Obtiene el nombre de la parte del paquete a partir de la URI relativa de
+	 * una referencia, o {@code null} si no es una URI relativa valida.
+	 */
+	private static String getPartName(String uri) {
+		if (uri == null || uri.isEmpty()) {
+			return null;
+		}
+		try {
+			URI parsed = new URI(uri);
+			if (parsed.isAbsolute() || parsed.getRawAuthority() != null || parsed.getPath() == null) {
+				return null;
+			}
+			return parsed.getPath();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Lee los certificados del <i>KeyInfo</i> de la firma, empezando por el
+	 * del firmante.
+	 */
+	private static List<X509Certificate> readCertificates(Element signatureElement) {
+		List<X509Certificate> certificates = new ArrayList<>();
+
+		for (Node child = signatureElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child instanceof Element && XMLSignature.XMLNS.equals(child.getNamespaceURI())
+					&& "KeyInfo".equals(child.getLocalName())) {
+				NodeList certs = ((Element) child).getElementsByTagNameNS(XMLConstants.DSIGNNS, "X509Certificate");
+				for (int i = 0; i < certs.getLength(); i++) {
+					X509Certificate certificate = Utils.getCertificate(certs.item(i));
+					if (certificate != null) {
+						certificates.add(certificate);
+					}
+				}
+			}
+		}
+
+		return certificates;
+	}
+
+	/**
+	 * Lee la fecha de firma (<i>dc:date</i>) de las propiedades de la firma.
+	 */
+	private static Date readSigningTime(Element signatureElement) {
+		NodeList dates = signatureElement.getElementsByTagNameNS(DC_NAMESPACE, "date");
+		if (dates.getLength() == 0) {
+			return null;
+		}
+		try {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").parse(dates.item(0).getTextContent().trim());
+		} catch (Exception e) {
+			logger.warning("No se ha podido recuperar la fecha de firma: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Huellas de las partes del paquete, compartidas por todas las firmas del
+	 * documento. Cada parte se transforma una sola vez por cadena de
+	 * transformaciones y se digiere una sola vez por algoritmo. Solo se usa
+	 * desde el hilo que verifica el documento: las partes transformadas se
+	 * digieren en ese hilo, porque las transformaciones trabajan sobre el
+	 * contexto XMLDSig, y las huellas de las partes sin transformar se calculan
+	 * en el pool.
+	 */
+	private static final class PartDigests {
+
+		private final ZipContainer zip;
+		private final ExecutorService executor;
+		private final Map<String, Future<byte[]>> digests = new HashMap<>();
+		private final Map<String, byte[]> transformedDigests = new HashMap<>();
+		private final Map<String, byte[]> transformed = new HashMap<>();
+
+		PartDigests(ZipContainer zip, ExecutorService executor) {
+			this.zip = zip;
+			this.executor = executor;
+		}
+
+		boolean contains(String name) {
+			return this.zip.contains(name);
+		}
+
+		/**
+		 * Lanza en el pool la huella de una parte sin transformaciones, o
+		 * devuelve la ya lanzada para el mismo algoritmo.
+		 */
+		Future<byte[]> digest(String name, Reference reference) {
+			String algorithm = reference.getDigestMethod().getAlgorithm();
+			String key = algorithm + ' ' + name;
+			Future<byte[]> digest = this.digests.get(key);
+			if (digest == null) {
+				digest = this.executor.submit(() -> digest(algorithm, this.zip.getData(name)));
+				this.digests.put(key, digest);
+			}
+			return digest;
+		}
+
+		/**
+		 * Calcula en este hilo la huella de una parte tal y como la calcula la
+		 * referencia indicada, con sus transformaciones.
+		 */
+		byte[] digest(String name, Reference reference, XMLCryptoContext context) throws Exception {
+			String algorithm = reference.getDigestMethod().getAlgorithm();
+			@SuppressWarnings("unchecked")
+			List<Transform> transforms = reference.getTransforms();
+
+			// Transformaciones con parametros: no se comparten
+			String transformsKey = getTransformsKey(transforms);
+			if (transformsKey == null) {
+				return digest(algorithm, transform(name, transforms, context));
+			}
+
+			String key = algorithm + ' ' + transformsKey + ' ' + name;
+			byte[] digest = this.transformedDigests.get(key);
+			if (digest == null) {
+				digest = digest(algorithm, transformed(name, transformsKey, transforms, context));
+				this.transformedDigests.put(key, digest);
+			}
+			return digest;
+		}
+
+		/**
+		 * Obtiene la parte transformada, calculandola solo la primera vez que se
+		 * pide.
+		 */
+		private byte[] transformed(String name, String transformsKey, List<Transform> transforms,
+				XMLCryptoContext context) throws Exception {
+			String key = transformsKey + ' ' + name;
+			byte[] data = this.transformed.get(key);
+			if (data == null) {
+				data = transform(name, transforms, context);
+				this.transformed.put(key, data);
+			}
+			return data;
+		}
+
+		private byte[] transform(String name, List<Transform> transforms, XMLCryptoContext context)
+				throws Exception {
+			Data data = new OctetStreamData(this.zip.getInputStream(name), name, null);
+			for (Transform transform : transforms) {
+				data = transform.transform(data, context);
+			}
+
+			if (data instanceof NodeSetData) {
+				// Sin canonicalizacion final se aplica la inclusiva, como XMLDSig
+				TransformService c14n = TransformService.getInstance(CanonicalizationMethod.INCLUSIVE, "DOM");
+				c14n.init(null);
+				data = c14n.transform(data, context);
+			}
+
+			try (InputStream is = ((OctetStreamData) data).getOctetStream()) {
+				return Utils.getDataFromInputStream(is);
+			}
+		}
+
+		private static byte[] digest(String algorithm, byte[] data) throws NoSuchAlgorithmException {
+			return MessageDigest.getInstance(XMLConstants.getDigestAlgorithmName(algorithm)).digest(data);
+		}
+
+		/**
+		 * Obtiene la clave de una cadena de transformaciones sin parametros, o
+		 * {@code null} si alguna tiene parametros.
+		 */
+		private static String getTransformsKey(List<Transform> transforms) {
+			StringBuilder key = new StringBuilder();
+			for (Transform transform : transforms) {
+				if (transform.getParameterSpec() != null) {
+					return null;
+				}
+				key.append(transform.getAlgorithm()).append(',');
+			}
+			return key.toString();
+		}
+	}
+
+	/**
+	 * Referencia a una parte sin transformar cuya huella se calcula en el pool.
+	 */
+	private static final class PendingPartDigest {
+
+		private final Reference reference;
+		private final Future<byte[]> digest;
+
+		PendingPartDigest(Reference reference, Future<byte[]> digest) {
+			this.reference = reference;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * Selector de claves para firmas sin certificado, que no devuelve ninguna.
+	 */
+	private static final class NullKeySelector extends KeySelector {
+
+		@Override
+		public KeySelectorResult select(KeyInfo keyInfo, Purpose purpose, AlgorithmMethod method,
+				XMLCryptoContext context) throws KeySelectorException {
+			throw new KeySelectorException("La firma no incluye el certificado del firmante");
+		}
+	}
+
+	/**
+	 * Firma en proceso de verificacion.
+	 */
+	private static final class PendingSignature {
+
+		private final ODFSignatureReport report;
+		private final List<PendingPartDigest> partDigests = new ArrayList<>();
+		private boolean referencesValid;
+		private Future<ValidationResult> certPathResult;
+
+		PendingSignature(ODFSignatureReport report) {
+			this.report = report;
+		}
+	}
+}
\ No newline at end of file
@@ -17,20 +17,18 @@
 
 package io.rubrica.sign.ooxml;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.xml.crypto.XMLStructure;
 import javax.xml.crypto.dom.DOMStructure;
@@ -54,8 +52,12 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import io.rubrica.core.RubricaException;
+import io.rubrica.sign.ManifestDigester;
+import io.rubrica.sign.XMLConstants;
 import io.rubrica.sign.ooxml.relprovider.RelationshipTransformParameterSpec;
 import io.rubrica.sign.ooxml.relprovider.RelationshipTransformService;
+import io.rubrica.zip.ZipContainer;
 
 final class OOXMLPackageObjectHelper {
 
@@ -88,7 +90,7 @@ final class OOXMLPackageObjectHelper {
 
 	static XMLObject getPackageObject(String nodeId, XMLSignatureFactory fac, byte[] ooXmlDocument, Document document,
 			String signatureId) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException,
-			ParserConfigurationException, SAXException {
+			ParserConfigurationException, SAXException, RubricaException {
 		List<XMLStructure> objectContent = new LinkedList<>();
 		objectContent.add(constructManifest(fac, ooXmlDocument));
 
@@ -106,12 +108,12 @@ final class OOXMLPackageObjectHelper {
 		return false;
 	}
 
-	private static boolean alreadyContains(List<Reference> references, Reference reference) {
-		if (reference == null || references == null) {
+	private static boolean alreadyContains(List<Reference> references, String uri) {
+		if (uri == null || references == null) {
 			return true;
 		}
 		for (Reference r : references) {
-			if (r.getURI().equals(reference.getURI())) {
+			if (r.getURI().equals(uri)) {
 				return true;
 			}
 		}
@@ -119,39 +121,50 @@ final class OOXMLPackageObjectHelper {
 	}
 
 	private static void addParts(XMLSignatureFactory fac, ContentTypeManager contentTypeManager,
-			List<Reference> references, byte[] ooXmlDocument, String[] applications, DigestMethod digestMethod)
-			throws IOException {
-		ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(ooXmlDocument));
-
-		ZipEntry zipEntry;
-		while (null != (zipEntry = zipInputStream.getNextEntry())) {
-			if (!startsWithAnyOfThose(zipEntry.getName(), applications)) {
+			List<Reference> references, ZipContainer ooXmlZip, String[] applications, DigestMethod digestMethod)
+			throws IOException, RubricaException {
+		List<String> parts = new ArrayList<>();
+		List<String> uris = new ArrayList<>();
+		for (String zipEntry : ooXmlZip.getEntryNames()) {
+			if (!startsWithAnyOfThose(zipEntry, applications)) {
 				continue;
 			}
 
-			String contentType = contentTypeManager.getContentType(zipEntry.getName());
+			String contentType = contentTypeManager.getContentType(zipEntry);
 
 			// Solo se anade la referencia si existe contentType
 			if (contentType != null) {
-				Reference reference = fac.newReference("/" + zipEntry.getName() + "?ContentType=" + contentType,
-						digestMethod);
-				if (!alreadyContains(references, reference)) {
-					references.add(reference);
+				String uri = "/" + zipEntry + "?ContentType=" + contentType;
+				if (!alreadyContains(references, uri) && !uris.contains(uri)) {
+					parts.add(zipEntry);
+					uris.add(uri);
 				}
 			}
 		}
+
+		// Las huellas de las partes se calculan en paralelo, con el algoritmo
+		// de las referencias, y se incluyen ya calculadas en el orden del
+		// paquete
+		List<byte[]> digests;
+		try {
+			String algorithm = XMLConstants.getDigestAlgorithmName(digestMethod.getAlgorithm());
+			digests = new ManifestDigester(algorithm).digest(parts, ooXmlZip::getData);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RubricaException("No se ha podido obtener un generador de huellas digitales con el algoritmo "
+					+ digestMethod.getAlgorithm() + ": " + e, e);
+		}
+		for (int i = 0; i < parts.size(); i++) {
+			references.add(fac.newReference(uris.get(i), digestMethod, null, null, null, digests.get(i)));
+		}
 	}
 
-	private static InputStream getContentTypesXMLInputStream(byte[] ooXmlDocument) throws IOException {
-		ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(ooXmlDocument));
-		ZipEntry zipEntry;
-		while (null != (zipEntry = zipInputStream.getNextEntry())) {
-			if ("[Content_Types].xml".equals(zipEntry.getName())) {
-				return zipInputStream;
-			}
+	private static InputStream getContentTypesXMLInputStream(ZipContainer ooXmlZip) throws IOException {
+		InputStream contentTypes = ooXmlZip.getInputStream("[Content_Types].xml");
+		if (contentTypes == null) {
+			throw new IllegalStateException(
+					"El documento OOXML es invalido ya que no contiene el fichero [Content_Types].xml");
 		}
-		throw new IllegalStateException(
-				"El documento OOXML es invalido ya que no contiene el fichero [Content_Types].xml");
+		return contentTypes;
 	}
 
 	private static Document loadDocumentNoClose(InputStream documentInputStream)
@@ -196,33 +209,33 @@ final class OOXMLPackageObjectHelper {
 	}
 
 	private static void addRelationshipsReferences(XMLSignatureFactory fac, List<Reference> manifestReferences,
-			byte[] ooXmlDocument, DigestMethod digestMethod) throws IOException, ParserConfigurationException,
+			ZipContainer ooXmlZip, DigestMethod digestMethod) throws IOException, ParserConfigurationException,
 			SAXException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
-		ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(ooXmlDocument));
-		ZipEntry zipEntry;
-		while (null != (zipEntry = zipInputStream.getNextEntry())) {
-			if (!zipEntry.getName().endsWith(".rels")) {
+		for (String zipEntry : ooXmlZip.getEntryNames()) {
+			if (!zipEntry.endsWith(".rels")) {
 				continue;
 			}
-			Document relsDocument = loadDocumentNoClose(zipInputStream);
-			addRelationshipsReference(fac, zipEntry.getName(), relsDocument, manifestReferences,
-					PACKAGE_REL_CONTENT_TYPE, digestMethod);
+			Document relsDocument = loadDocumentNoClose(ooXmlZip.getInputStream(zipEntry));
+			addRelationshipsReference(fac, zipEntry, relsDocument, manifestReferences, PACKAGE_REL_CONTENT_TYPE,
+					digestMethod);
 		}
 	}
 
 	private static Manifest constructManifest(XMLSignatureFactory fac, byte[] ooXmlDocument)
 			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException,
-			ParserConfigurationException, SAXException {
+			ParserConfigurationException, SAXException, RubricaException {
 		DigestMethod digestMethod = fac.newDigestMethod(DigestMethod.SHA256, null);
+		ZipContainer ooXmlZip = ZipContainer.open(ooXmlDocument);
 
+		// Las relaciones se transforman y se digieren al firmar
 		List<Reference> manifestReferences = new LinkedList<>();
-		addRelationshipsReferences(fac, manifestReferences, ooXmlDocument, digestMethod);
+		addRelationshipsReferences(fac, manifestReferences, ooXmlZip, digestMethod);
 
 		// Se obtiene el inputstream del fichero [Content_Types].xml para
 		// inicializar el ContentTypeManager
-		try (InputStream contentXml = getContentTypesXMLInputStream(ooXmlDocument);) {
+		try (InputStream contentXml = getContentTypesXMLInputStream(ooXmlZip);) {
 			ContentTypeManager contentTypeManager = new ContentTypeManager(contentXml);
-			addParts(fac, contentTypeManager, manifestReferences, ooXmlDocument, CONTENT_DIRS, digestMethod);
+			addParts(fac, contentTypeManager, manifestReferences, ooXmlZip, CONTENT_DIRS, digestMethod);
 		}
 		return fac.newManifest(manifestReferences);
 	}
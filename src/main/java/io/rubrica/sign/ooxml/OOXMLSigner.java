@@ -28,7 +28,6 @@ import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipFile;
 
 import io.rubrica.core.RubricaException;
 import io.rubrica.sign.InvalidFormatException;
@@ -36,8 +35,8 @@ import io.rubrica.sign.SignInfo;
 import io.rubrica.sign.Signer;
 import io.rubrica.sign.ooxml.relprovider.OOXMLProvider;
 import io.rubrica.sign.xades.XAdESSigner;
-import io.rubrica.xml.FileUtils;
 import io.rubrica.xml.Utils;
+import io.rubrica.zip.ZipContainer;
 
 public class OOXMLSigner implements Signer {
 
@@ -101,7 +100,13 @@ public class OOXMLSigner implements Signer {
 			throw new IllegalArgumentException("Los datos de firma introducidos son nulos");
 		}
 
-		if (!isSign(sign)) {
+		ZipContainer zipFile;
+		try {
+			zipFile = ZipContainer.open(sign);
+		} catch (IOException e) {
+			zipFile = null;
+		}
+		if (zipFile == null || !isSign(zipFile)) {
 			logger.severe("La firma indicada no es de tipo OOXML");
 			return null;
 		}
@@ -112,7 +117,7 @@ public class OOXMLSigner implements Signer {
 		List<SignInfo> sis = new ArrayList<>();
 
 		try {
-			for (byte[] elementSign : OOXMLUtil.getOOXMLSignatures(sign)) {
+			for (byte[] elementSign : OOXMLUtil.getOOXMLSignatures(zipFile)) {
 				List<SignInfo> signInfos = xmldsigSigner.getSigners(elementSign);
 				sis.add(signInfos.get(0));
 			}
@@ -140,27 +145,33 @@ public class OOXMLSigner implements Signer {
 			return false;
 		}
 		try {
-			return isOOXMLFile(sign) && OOXMLUtil.countOOXMLSignatures(sign) > 0;
+			return isSign(ZipContainer.open(sign));
 		} catch (final Exception e) {
 			return false;
 		}
 	}
 
-	private static boolean isOOXMLFile(final byte[] data) throws IOException {
-		try (ZipFile zipFile = FileUtils.createTempZipFile(data)) {
-			// Se separa en varios "if" para simplificar la condicional
-			if (zipFile.getEntry("[Content_Types].xml") == null) {
-				return false;
-			}
-			if (zipFile.getEntry("_rels/.rels") == null && zipFile.getEntry("_rels\\.rels") == null) {
-				return false;
-			}
-			if (zipFile.getEntry("docProps/app.xml") == null && zipFile.getEntry("docProps\\app.xml") == null) {
-				return false;
-			}
-			if (zipFile.getEntry("docProps/core.xml") == null && zipFile.getEntry("docProps\\core.xml") == null) {
-				return false;
-			}
+	private static boolean isSign(ZipContainer zipFile) {
+		try {
+			return isOOXMLFile(zipFile) && OOXMLUtil.countOOXMLSignatures(zipFile) > 0;
+		} catch (final Exception e) {
+			return false;
+		}
+	}
+
+	private static boolean isOOXMLFile(final ZipContainer zipFile) {
+		// Se separa en varios "if" para simplificar la condicional
+		if (!zipFile.contains("[Content_Types].xml")) {
+			return false;
+		}
+		if (!zipFile.contains("_rels/.rels") && !zipFile.contains("_rels\\.rels")) {
+			return false;
+		}
+		if (!zipFile.contains("docProps/app.xml") && !zipFile.contains("docProps\\app.xml")) {
+			return false;
+		}
+		if (!zipFile.contains("docProps/core.xml") && !zipFile.contains("docProps\\core.xml")) {
+			return false;
 		}
 		return true;
 	}
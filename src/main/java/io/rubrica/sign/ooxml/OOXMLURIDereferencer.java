@@ -19,12 +19,9 @@ package io.rubrica.sign.ooxml;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.xml.crypto.Data;
 import javax.xml.crypto.OctetStreamData;
@@ -34,7 +31,7 @@ import javax.xml.crypto.URIReferenceException;
 import javax.xml.crypto.XMLCryptoContext;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 
-import io.rubrica.core.Util;
+import io.rubrica.zip.ZipContainer;
 
 /**
  * Resuelve referencias dentro del Zip de un documento OOXML.
@@ -43,6 +40,9 @@ public class OOXMLURIDereferencer implements URIDereferencer {
 
 	private byte[] ooxml;
 
+	/** Contenedor del documento, que se abre una sola vez por firma. */
+	private ZipContainer ooxmlZip;
+
 	private URIDereferencer baseUriDereferencer;
 
 	private static final Logger logger = Logger.getLogger(OOXMLURIDereferencer.class.getName());
@@ -73,20 +73,19 @@ public class OOXMLURIDereferencer implements URIDereferencer {
 			logger.warning("No se puede decodificar la URI '" + uri + "': " + e);
 		}
 
-		try (final InputStream dataInputStream = findDataInputStream(uri);) {
-			if (null == dataInputStream) {
+		try {
+			byte[] data = findData(uri);
+			if (null == data) {
 				return this.baseUriDereferencer.dereference(uriReference, context);
 			}
 
-			byte[] data = Util.getDataFromInputStream(dataInputStream);
-			dataInputStream.close();
 			return new OctetStreamData(new ByteArrayInputStream(data), uri, null);
 		} catch (final IOException e) {
 			throw new URIReferenceException("Error de I/O: " + e, e);
 		}
 	}
 
-	private InputStream findDataInputStream(String uri) throws IOException {
+	private byte[] findData(String uri) throws IOException {
 		String entryName;
 
 		if (uri.startsWith("/")) {
@@ -99,15 +98,9 @@ public class OOXMLURIDereferencer implements URIDereferencer {
 			entryName = entryName.substring(0, entryName.indexOf('?'));
 		}
 
-		ZipInputStream ooxmlZipInputStream = new ZipInputStream(new ByteArrayInputStream(this.ooxml));
-		ZipEntry zipEntry;
-
-		while (null != (zipEntry = ooxmlZipInputStream.getNextEntry())) {
-			if (zipEntry.getName().equals(entryName)) {
-				return ooxmlZipInputStream;
-			}
+		if (this.ooxmlZip == null) {
+			this.ooxmlZip = ZipContainer.open(this.ooxml);
 		}
-
-		return null;
+		return this.ooxmlZip.getData(entryName);
 	}
 }
\ No newline at end of file
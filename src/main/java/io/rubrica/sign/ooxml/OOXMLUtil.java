@@ -21,15 +21,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;
 
-import io.rubrica.util.Utils;
-import io.rubrica.xml.FileUtils;
+import io.rubrica.zip.ZipContainer;
 
 /** Clase con m&eacute;todos de utilidad para las firmas OOXML. */
 final class OOXMLUtil {
@@ -48,7 +45,7 @@ final class OOXMLUtil {
 	 * Cuenta el n&uacute;mero de firmas del documento OOXML.
 	 * 
 	 * @param ooxmlFile
-	 *            Documento OOXML.
+	 *            Contenedor del documento OOXML.
 	 * @return N&uacute;mero de firma del documento OOXML.
 	 * @throws ParserConfigurationException
 	 *             Cuando hay problemas con el analizador SAX.
@@ -59,7 +56,7 @@ final class OOXMLUtil {
 	 *             Cuando alguno de los XML internos del fichero no est&aacute; bien
 	 *             formado.
 	 */
-	static int countOOXMLSignatures(final byte[] ooxmlFile)
+	static int countOOXMLSignatures(final ZipContainer ooxmlFile)
 			throws IOException, SAXException, ParserConfigurationException {
 		final Relationship[] rels = getOOXMLSignaturesRelationships(ooxmlFile);
 		return rels == null ? 0 : rels.length;
@@ -70,8 +67,8 @@ final class OOXMLUtil {
 	 * alg&uacute;n error durante el an&aacute;lisis del fichero, se
 	 * devolver&aacute; 0.
 	 * 
-	 * @param ooxmlFile
-	 *            Documento OOXML.
+	 * @param zipFile
+	 *            Contenedor del documento OOXML.
 	 * @return N&uacute;mero de firma del documento OOXML.
 	 * @throws ParserConfigurationException
 	 *             Cuando hay problemas con el analizador SAX.
@@ -82,27 +79,25 @@ final class OOXMLUtil {
 	 *             Cuando alguno de los XML internos del fichero no est&aacute; bien
 	 *             formado.
 	 */
-	private static Relationship[] getOOXMLSignaturesRelationships(byte[] ooxmlFile)
+	private static Relationship[] getOOXMLSignaturesRelationships(ZipContainer zipFile)
 			throws IOException, SAXException, ParserConfigurationException {
 		List<Relationship> relations = new ArrayList<>();
 
-		try (ZipFile zipFile = FileUtils.createTempZipFile(ooxmlFile);) {
-			// Comprobamos si existe la relacion de firmas del documento
-			ZipEntry relsEntry = getSignaturesRelsEntry(zipFile);
+		// Comprobamos si existe la relacion de firmas del documento
+		String relsEntry = getSignaturesRelsEntry(zipFile);
 
-			// Si no existe el fichero, el documento no contiene firmas
-			if (relsEntry == null) {
-				return new Relationship[0];
-			}
+		// Si no existe el fichero, el documento no contiene firmas
+		if (relsEntry == null) {
+			return new Relationship[0];
+		}
 
-			// Analizamos el fichero de relaciones
-			RelationshipsParser parser = new RelationshipsParser(zipFile.getInputStream(relsEntry));
+		// Analizamos el fichero de relaciones
+		RelationshipsParser parser = new RelationshipsParser(zipFile.getInputStream(relsEntry));
 
-			// Contamos las relaciones de firma
-			for (Relationship rel : parser.getRelationships()) {
-				if (OOXML_SIGNATURE_RELATIONSHIP_TYPE.equals(rel.getType())) {
-					relations.add(rel);
-				}
+		// Contamos las relaciones de firma
+		for (Relationship rel : parser.getRelationships()) {
+			if (OOXML_SIGNATURE_RELATIONSHIP_TYPE.equals(rel.getType())) {
+				relations.add(rel);
 			}
 		}
 
@@ -112,8 +107,8 @@ final class OOXMLUtil {
 	/**
 	 * Recupera las firmas XMLdSig empotradas en el documento OOXML.
 	 * 
-	 * @param ooxmlFile
-	 *            Documento OOXML.
+	 * @param zipFile
+	 *            Contenedor del documento OOXML.
 	 * @return Firmas empotradas en el documento.
 	 * @throws ParserConfigurationException
 	 *             Cuando hay problemas con el analizador SAX.
@@ -124,48 +119,44 @@ final class OOXMLUtil {
 	 *             Cuando alguno de los XML internos del fichero no est&aacute; bien
 	 *             formado.
 	 */
-	static byte[][] getOOXMLSignatures(byte[] ooxmlFile)
+	static byte[][] getOOXMLSignatures(ZipContainer zipFile)
 			throws IOException, SAXException, ParserConfigurationException {
 
 		List<byte[]> relations = new ArrayList<>();
 
-		try (ZipFile zipFile = FileUtils.createTempZipFile(ooxmlFile);) {
-			// Comprobamos si existe la relacion de firmas del documento
-			ZipEntry relsEntry = getSignaturesRelsEntry(zipFile);
+		// Comprobamos si existe la relacion de firmas del documento
+		String relsEntry = getSignaturesRelsEntry(zipFile);
 
-			// Si no existe el fichero, el documento no contiene firmas
-			if (relsEntry == null) {
-				return new byte[0][];
-			}
+		// Si no existe el fichero, el documento no contiene firmas
+		if (relsEntry == null) {
+			return new byte[0][];
+		}
 
-			// Analizamos el fichero de relaciones
-			RelationshipsParser parser = new RelationshipsParser(zipFile.getInputStream(relsEntry));
-
-			// Contamos las relaciones de firma
-			for (Relationship rel : parser.getRelationships()) {
-				if (OOXML_SIGNATURE_RELATIONSHIP_TYPE.equals(rel.getType())) {
-					// Comprobamos que exista el firma referenciada
-					String target = rel.getTarget();
-
-					ZipEntry signEntry = zipFile.getEntry("_xmlsignatures/" + target);
-					if (signEntry == null) {
-						signEntry = zipFile.getEntry("_xmlsignatures\\" + target);
-					}
-
-					if (signEntry == null) {
-						logger.severe("El documento OOXML no contiene las firmas declaradas");
-						zipFile.close();
-						return new byte[0][];
-					}
-
-					// Guardamos la firma
-					try {
-						relations.add(Utils.getDataFromInputStream(zipFile.getInputStream(signEntry)));
-					} catch (Exception e) {
-						logger.severe("No se pudo leer una de las firmas del documento OOXML: " + e);
-						zipFile.close();
-						return new byte[0][];
-					}
+		// Analizamos el fichero de relaciones
+		RelationshipsParser parser = new RelationshipsParser(zipFile.getInputStream(relsEntry));
+
+		// Contamos las relaciones de firma
+		for (Relationship rel : parser.getRelationships()) {
+			if (OOXML_SIGNATURE_RELATIONSHIP_TYPE.equals(rel.getType())) {
+				// Comprobamos que exista el firma referenciada
+				String target = rel.getTarget();
+
+				String signEntry = "_xmlsignatures/" + target;
+				if (!zipFile.contains(signEntry)) {
+					signEntry = "_xmlsignatures\\" + target;
+				}
+
+				if (!zipFile.contains(signEntry)) {
+					logger.severe("El documento OOXML no contiene las firmas declaradas");
+					return new byte[0][];
+				}
+
+				// Guardamos la firma
+				try {
+					relations.add(zipFile.getData(signEntry));
+				} catch (Exception e) {
+					logger.severe("No se pudo leer una de las firmas del documento OOXML: " + e);
+					return new byte[0][];
 				}
 			}
 		}
@@ -178,13 +169,13 @@ final class OOXMLUtil {
 	 * 
 	 * @param ooxmlZipFile
 	 *            Fichero OOXML.
-	 * @return Entrada con la relaci&oacute;n de firmas.
+	 * @return Nombre de la entrada con la relaci&oacute;n de firmas.
 	 */
-	private static ZipEntry getSignaturesRelsEntry(ZipFile ooxmlZipFile) {
-		ZipEntry relsEntry = ooxmlZipFile.getEntry("_rels/.rels");
+	private static String getSignaturesRelsEntry(ZipContainer ooxmlZipFile) {
+		String relsEntry = "_rels/.rels";
 
-		if (relsEntry == null) {
-			relsEntry = ooxmlZipFile.getEntry("_rels\\.rels");
+		if (!ooxmlZipFile.contains(relsEntry)) {
+			relsEntry = "_rels\\.rels";
 		}
 
 		// Analizamos el fichero de relaciones
@@ -197,14 +188,17 @@ final class OOXMLUtil {
 			return null;
 		}
 
-		ZipEntry signsEntry = null;
+		String signsEntry = null;
 		for (Relationship rel : parser.getRelationships()) {
 			if (OOXML_SIGNATURE_ORIGIN_RELATIONSHIP_TYPE.equals(rel.getType())) {
 				String middleTarget = rel.getTarget().substring(0, "_xmlsignatures".length() + 1);
 				String target = rel.getTarget().substring("_xmlsignatures".length() + 1);
-				signsEntry = ooxmlZipFile.getEntry(middleTarget + "_rels/" + target + ".rels");
-				if (signsEntry == null) {
-					signsEntry = ooxmlZipFile.getEntry(middleTarget + "_rels\\" + target + ".rels");
+				signsEntry = middleTarget + "_rels/" + target + ".rels";
+				if (!ooxmlZipFile.contains(signsEntry)) {
+					signsEntry = middleTarget + "_rels\\" + target + ".rels";
+				}
+				if (!ooxmlZipFile.contains(signsEntry)) {
+					signsEntry = null;
 				}
 				break;
 			}
@@ -55,6 +55,7 @@ import es.uji.crypto.xades.jxades.security.xml.XAdES.SignerRoleImpl;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.XAdES;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.XAdES_EPES;
 import es.uji.crypto.xades.jxades.util.DOMOutputImpl;
+import io.rubrica.core.RubricaException;
 import io.rubrica.sign.XMLConstants;
 import io.rubrica.sign.xades.XAdESUtil;
 
@@ -104,10 +105,13 @@ class OOXMLXAdESSigner {
 	 *             Si hay problemas con la firma XML.
 	 * @throws MarshalException
 	 *             Si hay problemas con la envoltura de la firma XML.
+	 * @throws RubricaException
+	 *             Si no se pueden calcular las huellas de las partes del
+	 *             documento.
 	 */
 	static byte[] getSignedXML(byte[] ooXmlDocument, String algorithm, PrivateKey pk, X509Certificate[] certChain,
 			Properties xParams) throws ParserConfigurationException, GeneralSecurityException, IOException,
-			SAXException, MarshalException, XMLSignatureException {
+			SAXException, MarshalException, XMLSignatureException, RubricaException {
 
 		String algoUri = XMLConstants.SIGN_ALGOS_URI.get(algorithm);
 		if (algoUri == null) {
@@ -17,7 +17,6 @@
 
 package io.rubrica.sign.ooxml;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilterInputStream;
@@ -27,9 +26,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
@@ -55,7 +51,8 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
-import io.rubrica.util.Utils;
+import io.rubrica.zip.ZipContainer;
+import io.rubrica.zip.ZipContainerWriter;
 
 class OOXMLZipHelper {
 
@@ -75,165 +72,165 @@ class OOXMLZipHelper {
 
 		// Copiamos el contenido del OOXML original al OOXML firmado
 		// Durante el proceso es necesario modificar ciertos ficheros
-		try (final ZipOutputStream zipOutputStream = copyOOXMLContent(ooXmlDocument, signatureZipEntryName,
+		try (final ZipContainerWriter zipOutputStream = copyOOXMLContent(ooXmlDocument, signatureZipEntryName,
 				signedOOXMLOutputStream);) {
 			// Anadimos el fichero de firma XML al paquete OOXML
-			zipOutputStream.putNextEntry(new ZipEntry(signatureZipEntryName));
-			if (xmlSignatureFile != null) {
-				zipOutputStream.write(xmlSignatureFile);
-			}
+			zipOutputStream.putEntry(signatureZipEntryName,
+					xmlSignatureFile != null ? xmlSignatureFile : new byte[0]);
 		}
 
 		return signedOOXMLOutputStream.toByteArray();
 	}
 
-	private static ZipOutputStream copyOOXMLContent(final byte[] ooXmlDocument, final String signatureZipEntryName,
-			final OutputStream signedOOXMLOutputStream) throws IOException, ParserConfigurationException, SAXException,
-			TransformerException, XPathExpressionException {
-		final ZipOutputStream zipOutputStream = new ZipOutputStream(signedOOXMLOutputStream);
-		try (final ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(ooXmlDocument));) {
-			ZipEntry zipEntry;
-			boolean hasOriginSigsRels = false;
-			while (null != (zipEntry = zipInputStream.getNextEntry())) {
-				zipOutputStream.putNextEntry(new ZipEntry(zipEntry.getName()));
-				if ("[Content_Types].xml".equals(zipEntry.getName())) {
-					final Document contentTypesDocument = loadDocumentNoClose(zipInputStream);
-					final Element typesElement = contentTypesDocument.getDocumentElement();
-
-					// We need to add an Override element.
-					final Element overrideElement = contentTypesDocument.createElementNS(
-							"http://schemas.openxmlformats.org/package/2006/content-types", "Override");
-					overrideElement.setAttribute("PartName", "/" + signatureZipEntryName);
-					overrideElement.setAttribute("ContentType",
-							"application/vnd.openxmlformats-package.digital-signature-xmlsignature+xml");
-					typesElement.appendChild(overrideElement);
-
-					final XPath xpath = XPathFactory.newInstance().newXPath();
-					xpath.setNamespaceContext(new NamespaceContext() {
-
-						@Override
-						public Iterator<?> getPrefixes(final String namespaceURI) {
-							throw new UnsupportedOperationException();
-						}
+	private static ZipContainerWriter copyOOXMLContent(final byte[] ooXmlDocument,
+			final String signatureZipEntryName, final OutputStream signedOOXMLOutputStream) throws IOException,
+			ParserConfigurationException, SAXException, TransformerException, XPathExpressionException {
+		final ZipContainerWriter zipOutputStream = new ZipContainerWriter(signedOOXMLOutputStream);
+		final ZipContainer ooxmlZip = ZipContainer.open(ooXmlDocument);
+		boolean hasOriginSigsRels = false;
+		for (final String zipEntry : ooxmlZip.getEntryNames()) {
+			// Solo se reescriben las relaciones y los tipos de contenido, el
+			// resto de entradas se copia sin descomprimir
+			final ByteArrayOutputStream modified = new ByteArrayOutputStream();
+			if ("[Content_Types].xml".equals(zipEntry)) {
+				final Document contentTypesDocument = loadDocumentNoClose(ooxmlZip.getInputStream(zipEntry));
+				final Element typesElement = contentTypesDocument.getDocumentElement();
+
+				// We need to add an Override element.
+				final Element overrideElement = contentTypesDocument.createElementNS(
+						"http://schemas.openxmlformats.org/package/2006/content-types", "Override");
+				overrideElement.setAttribute("PartName", "/" + signatureZipEntryName);
+				overrideElement.setAttribute("ContentType",
+						"application/vnd.openxmlformats-package.digital-signature-xmlsignature+xml");
+				typesElement.appendChild(overrideElement);
+
+				final XPath xpath = XPathFactory.newInstance().newXPath();
+				xpath.setNamespaceContext(new NamespaceContext() {
+
+					@Override
+					public Iterator<?> getPrefixes(final String namespaceURI) {
+						throw new UnsupportedOperationException();
+					}
 
-						@Override
-						public String getPrefix(final String namespaceURI) {
-							throw new UnsupportedOperationException();
-						}
+					@Override
+					public String getPrefix(final String namespaceURI) {
+						throw new UnsupportedOperationException();
+					}
 
-						@Override
-						public String getNamespaceURI(final String prefix) {
-							if (prefix == null) {
-								throw new IllegalArgumentException("El prefijo no puede ser nulo");
-							}
-							if ("xml".equals(prefix)) {
-								return XMLConstants.XML_NS_URI;
-							}
-							if ("tns".equals(prefix)) {
-								return "http://schemas.openxmlformats.org/package/2006/content-types";
-							}
-							return XMLConstants.NULL_NS_URI;
+					@Override
+					public String getNamespaceURI(final String prefix) {
+						if (prefix == null) {
+							throw new IllegalArgumentException("El prefijo no puede ser nulo");
+						}
+						if ("xml".equals(prefix)) {
+							return XMLConstants.XML_NS_URI;
+						}
+						if ("tns".equals(prefix)) {
+							return "http://schemas.openxmlformats.org/package/2006/content-types";
 						}
-					});
-
-					final XPathExpression exp = xpath.compile("/tns:Types/tns:Default[@Extension='sigs']");
-					final NodeList nodeList = (NodeList) exp.evaluate(contentTypesDocument, XPathConstants.NODESET);
-
-					if (0 == nodeList.getLength()) {
-						// Add Default element for 'sigs' extension.
-						final Element defaultElement = contentTypesDocument.createElementNS(
-								"http://schemas.openxmlformats.org/package/2006/content-types", "Default" //$NON-NLS-2$
-						);
-						defaultElement.setAttribute("Extension", "sigs");
-						defaultElement.setAttribute("ContentType",
-								"application/vnd.openxmlformats-package.digital-signature-origin");
-						typesElement.appendChild(defaultElement);
+						return XMLConstants.NULL_NS_URI;
 					}
+				});
 
-					writeDocumentNoClosing(contentTypesDocument, zipOutputStream, false);
-				} else if ("_rels/.rels".equals(zipEntry.getName())) {
-					final Document relsDocument = loadDocumentNoClose(zipInputStream);
+				final XPathExpression exp = xpath.compile("/tns:Types/tns:Default[@Extension='sigs']");
+				final NodeList nodeList = (NodeList) exp.evaluate(contentTypesDocument, XPathConstants.NODESET);
 
-					final XPath xpath = XPathFactory.newInstance().newXPath();
-					xpath.setNamespaceContext(new NamespaceContext() {
+				if (0 == nodeList.getLength()) {
+					// Add Default element for 'sigs' extension.
+					final Element defaultElement = contentTypesDocument.createElementNS(
+							"http://schemas.openxmlformats.org/package/2006/content-types", "Default" //$NON-NLS-2$
+					);
+					defaultElement.setAttribute("Extension", "sigs");
+					defaultElement.setAttribute("ContentType",
+							"application/vnd.openxmlformats-package.digital-signature-origin");
+					typesElement.appendChild(defaultElement);
+				}
 
-						@Override
-						public Iterator<?> getPrefixes(final String namespaceURI) {
-							throw new UnsupportedOperationException();
-						}
+				writeDocumentNoClosing(contentTypesDocument, modified, false);
+			} else if ("_rels/.rels".equals(zipEntry)) {
+				final Document relsDocument = loadDocumentNoClose(ooxmlZip.getInputStream(zipEntry));
 
-						@Override
-						public String getPrefix(final String namespaceURI) {
-							throw new UnsupportedOperationException();
-						}
+				final XPath xpath = XPathFactory.newInstance().newXPath();
+				xpath.setNamespaceContext(new NamespaceContext() {
 
-						@Override
-						public String getNamespaceURI(final String prefix) {
-							if (prefix == null) {
-								throw new IllegalArgumentException("El prefijo no puede ser nulo");
-							}
-							if ("xml".equals(prefix)) {
-								return XMLConstants.XML_NS_URI;
-							}
-							if ("tns".equals(prefix)) {
-								return RELATIONSHIPS_SCHEMA;
-							}
-							return XMLConstants.NULL_NS_URI;
-						}
-					});
-					final XPathExpression exp = xpath.compile(
-							"/tns:Relationships/tns:Relationship[@Type='http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/origin']" //$NON-NLS-1$
-					);
-					final NodeList nodeList = (NodeList) exp.evaluate(relsDocument, XPathConstants.NODESET);
+					@Override
+					public Iterator<?> getPrefixes(final String namespaceURI) {
+						throw new UnsupportedOperationException();
+					}
 
-					if (0 == nodeList.getLength()) {
-						final Element relationshipElement = relsDocument.createElementNS(RELATIONSHIPS_SCHEMA,
-								"Relationship");
-						relationshipElement.setAttribute("Id", "rel-id-" + UUID.randomUUID().toString());
-						relationshipElement.setAttribute("Type",
-								"http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/origin");
-						relationshipElement.setAttribute("Target", "_xmlsignatures/origin.sigs");
+					@Override
+					public String getPrefix(final String namespaceURI) {
+						throw new UnsupportedOperationException();
+					}
 
-						relsDocument.getDocumentElement().appendChild(relationshipElement);
+					@Override
+					public String getNamespaceURI(final String prefix) {
+						if (prefix == null) {
+							throw new IllegalArgumentException("El prefijo no puede ser nulo");
+						}
+						if ("xml".equals(prefix)) {
+							return XMLConstants.XML_NS_URI;
+						}
+						if ("tns".equals(prefix)) {
+							return RELATIONSHIPS_SCHEMA;
+						}
+						return XMLConstants.NULL_NS_URI;
 					}
+				});
+				final XPathExpression exp = xpath.compile(
+						"/tns:Relationships/tns:Relationship[@Type='http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/origin']" //$NON-NLS-1$
+				);
+				final NodeList nodeList = (NodeList) exp.evaluate(relsDocument, XPathConstants.NODESET);
+
+				if (0 == nodeList.getLength()) {
+					final Element relationshipElement = relsDocument.createElementNS(RELATIONSHIPS_SCHEMA,
+							"Relationship");
+					relationshipElement.setAttribute("Id", "rel-id-" + UUID.randomUUID().toString());
+					relationshipElement.setAttribute("Type",
+							"http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/origin");
+					relationshipElement.setAttribute("Target", "_xmlsignatures/origin.sigs");
 
-					writeDocumentNoClosing(relsDocument, zipOutputStream, false);
-				} else if (zipEntry.getName().startsWith("_xmlsignatures/_rels/")
-						&& zipEntry.getName().endsWith(".rels")) {
+					relsDocument.getDocumentElement().appendChild(relationshipElement);
+				}
 
-					hasOriginSigsRels = true;
-					final Document originSignRelsDocument = loadDocumentNoClose(zipInputStream);
+				writeDocumentNoClosing(relsDocument, modified, false);
+			} else if (zipEntry.startsWith("_xmlsignatures/_rels/") && zipEntry.endsWith(".rels")) {
 
-					final Element relationshipElement = originSignRelsDocument.createElementNS(RELATIONSHIPS_SCHEMA,
-							"Relationship");
-					relationshipElement.setAttribute("Id", "rel-" + UUID.randomUUID().toString());
-					relationshipElement.setAttribute("Type",
-							"http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/signature");
-					relationshipElement.setAttribute("Target", new File(signatureZipEntryName).getName());
+				hasOriginSigsRels = true;
+				final Document originSignRelsDocument = loadDocumentNoClose(ooxmlZip.getInputStream(zipEntry));
 
-					originSignRelsDocument.getDocumentElement().appendChild(relationshipElement);
+				final Element relationshipElement = originSignRelsDocument.createElementNS(RELATIONSHIPS_SCHEMA,
+						"Relationship");
+				relationshipElement.setAttribute("Id", "rel-" + UUID.randomUUID().toString());
+				relationshipElement.setAttribute("Type",
+						"http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/signature");
+				relationshipElement.setAttribute("Target", new File(signatureZipEntryName).getName());
 
-					writeDocumentNoClosing(originSignRelsDocument, zipOutputStream, false);
-				} else {
-					zipOutputStream.write(Utils.getDataFromInputStream(zipInputStream));
-				}
-			}
+				originSignRelsDocument.getDocumentElement().appendChild(relationshipElement);
 
-			if (!hasOriginSigsRels) {
-				// Add signature relationships document.
-				addOriginSigsRels(signatureZipEntryName, zipOutputStream);
-				addOriginSigs(zipOutputStream);
+				writeDocumentNoClosing(originSignRelsDocument, modified, false);
+			} else {
+				zipOutputStream.copyEntry(ooxmlZip, zipEntry);
+				continue;
 			}
+			zipOutputStream.putEntry(zipEntry, modified.toByteArray());
+		}
+
+		if (!hasOriginSigsRels) {
+			// Add signature relationships document.
+			addOriginSigsRels(signatureZipEntryName, zipOutputStream);
+			addOriginSigs(zipOutputStream);
 		}
 
 		return zipOutputStream;
 	}
 
-	private static void addOriginSigs(final ZipOutputStream zipOutputStream) throws IOException {
-		zipOutputStream.putNextEntry(new ZipEntry("_xmlsignatures/origin.sigs"));
+	private static void addOriginSigs(final ZipContainerWriter zipOutputStream) throws IOException {
+		zipOutputStream.putEntry("_xmlsignatures/origin.sigs", new byte[0]);
 	}
 
-	private static void addOriginSigsRels(final String signatureZipEntryName, final ZipOutputStream zipOutputStream)
+	private static void addOriginSigsRels(final String signatureZipEntryName,
+			final ZipContainerWriter zipOutputStream)
 			throws ParserConfigurationException, IOException, TransformerException {
 		final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 		documentBuilderFactory.setNamespaceAware(true);
@@ -255,8 +252,9 @@ class OOXMLZipHelper {
 		relationshipElement.setAttribute("Target", new File(signatureZipEntryName).getName());
 		relationshipsElement.appendChild(relationshipElement);
 
-		zipOutputStream.putNextEntry(new ZipEntry("_xmlsignatures/_rels/origin.sigs.rels"));
-		writeDocumentNoClosing(originSignRelsDocument, zipOutputStream, false);
+		final ByteArrayOutputStream originSignRels = new ByteArrayOutputStream();
+		writeDocumentNoClosing(originSignRelsDocument, originSignRels, false);
+		zipOutputStream.putEntry("_xmlsignatures/_rels/origin.sigs.rels", originSignRels.toByteArray());
 	}
 
 	static Document loadDocumentNoClose(final InputStream documentInputStream)
@@ -100,12 +100,14 @@ public class FirmaPDF {
 	}
 
 	/**
-	 * TODO: Mas de dos firmas?
+	 * Solo verifica la primera firma del documento.
 	 * 
 	 * @param pdf
 	 * @throws IOException
 	 * @throws SignatureException
+	 * @deprecated Usar {@link PdfValidator}, que verifica todas las firmas
 	 */
+	@Deprecated
 	public static boolean verificar(byte[] pdf) throws IOException, SignatureException {
 
 		PdfReader reader = new PdfReader(pdf);
@@ -18,40 +18,70 @@
 package io.rubrica.sign.pdf;
 
 import java.awt.Color;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
 
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+
 import com.lowagie.text.DocumentException;
+import com.lowagie.text.ExceptionConverter;
 import com.lowagie.text.Font;
 import com.lowagie.text.Paragraph;
 import com.lowagie.text.Rectangle;
 import com.lowagie.text.pdf.AcroFields;
 import com.lowagie.text.pdf.ColumnText;
+import com.lowagie.text.pdf.PdfDate;
 import com.lowagie.text.pdf.PdfDictionary;
 import com.lowagie.text.pdf.PdfName;
 import com.lowagie.text.pdf.PdfPKCS7;
 import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSignature;
 import com.lowagie.text.pdf.PdfSignatureAppearance;
 import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfString;
 import com.lowagie.text.pdf.PdfTemplate;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+import com.lowagie.text.pdf.TSAClient;
 
 import io.rubrica.core.RubricaException;
 import io.rubrica.sign.InvalidFormatException;
+import io.rubrica.sign.SignConstants;
 import io.rubrica.sign.SignInfo;
 import io.rubrica.sign.Signer;
 import io.rubrica.util.BouncyCastleUtils;
-import io.rubrica.util.Utils;
 
 public class PDFSigner implements Signer {
 
@@ -78,6 +108,9 @@ public class PDFSigner implements Signer {
 	public static final String TYPE_SIG = "information1";
 	public static final String INFO_QR = "";
 
+	/** Tamaño base reservado para el PKCS#7 en una firma diferida. */
+	private static final int CONTENTS_BASE_SIZE = 8192;
+
 	static {
 		BouncyCastleUtils.initializeBouncyCastle();
 	}
@@ -96,67 +129,281 @@ public class PDFSigner implements Signer {
 	public byte[] sign(byte[] data, String algorithm, PrivateKey key, Certificate[] certChain, Properties xParams)
 			throws RubricaException, IOException {
 
-		Properties extraParams = xParams != null ? xParams : new Properties();
+		return sign(data, key, new PdfSignatureSettings(certChain, xParams));
+	}
 
-		// Motivo de la firma
-		String reason = extraParams.getProperty(SIGNING_REASON);
+	/**
+	 * Firma un PDF con parámetros ya interpretados, que pueden compartirse entre
+	 * varias firmas con el mismo certificado.
+	 */
+	byte[] sign(byte[] data, PrivateKey key, PdfSignatureSettings settings) throws RubricaException, IOException {
+		// Leer el PDF
+		PdfReader pdfReader = new PdfReader(data);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-		// Lugar de realizacion de la firma
-		String location = extraParams.getProperty(SIGNING_LOCATION);
+		sign(pdfReader, baos, null, key, settings);
 
-		// Fecha y hora de la firma, en formato ISO-8601
-		String signTime = extraParams.getProperty(SIGN_TIME);
+		return baos.toByteArray();
+	}
 
-		// Tamaño letra
-		float fontSize = 3;
-		try {
-			if (extraParams.getProperty(FONT_SIZE) == null)
-				fontSize = 3;
-			else
-				fontSize = Float.parseFloat(extraParams.getProperty(FONT_SIZE).trim());
-		} catch (final Exception e) {
-			logger.warning("Se ha indicado un tamaño de letra invalida ('" + extraParams.getProperty(FONT_SIZE)
-					+ "'), se usara el tamaño por defecto: " + fontSize + " " + e);
+	/**
+	 * Firma un documento PDF almacenado en disco, escribiendo el resultado en el
+	 * archivo indicado.
+	 *
+	 * @see #sign(Path, WritableByteChannel, String, PrivateKey, Certificate[],
+	 *      Properties)
+	 */
+	public void sign(Path input, Path output, String algorithm, PrivateKey key, Certificate[] certChain,
+			Properties xParams) throws RubricaException, IOException {
+		try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			sign(input, channel, algorithm, key, certChain, xParams);
 		}
+	}
 
-		// Tipo de firma (Información, QR)
-		String typeSig = extraParams.getProperty(TYPE_SIG);
-		if (typeSig == null)
-			typeSig = "information1";
+	/**
+	 * Firma un documento PDF almacenado en disco sin cargarlo completo en
+	 * memoria.
+	 *
+	 * El PDF se lee mediante un archivo mapeado en memoria con lectura parcial, y
+	 * la nueva revision se construye en un archivo temporal (modo incremental)
+	 * antes de copiarse al canal de salida, por lo que el uso de memoria no
+	 * depende del tamaño del documento. El canal de salida no se cierra.
+	 *
+	 * @param input
+	 *            Archivo PDF a firmar
+	 * @param output
+	 *            Canal en donde se escribe el PDF firmado
+	 */
+	public void sign(Path input, WritableByteChannel output, String algorithm, PrivateKey key,
+			Certificate[] certChain, Properties xParams) throws RubricaException, IOException {
 
-		if (typeSig.equals("QR") && extraParams.getProperty(FONT_SIZE) == null)
-			fontSize = 4.5f;
+		// Leer el PDF de forma parcial, mapeado en memoria
+		PdfReader pdfReader = new PdfReader(new RandomAccessFileOrArray(input.toString(), false, false), null);
+		Path tempFile = Files.createTempFile("rubrica-pdf", ".pdf");
 
-		// Información QR
-		String infoQR = "";
-		if (extraParams.getProperty(INFO_QR) == null)
-			infoQR = "";
-		else
-			infoQR = extraParams.getProperty(INFO_QR).trim();
+		// El estampador cierra el stream al terminar, pero el canal es del
+		// invocador
+		OutputStream out = new FilterOutputStream(Channels.newOutputStream(output)) {
 
-		// Tamaño espaciado
-		float fontLeading = fontSize;
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
 
-		// Pagina donde situar la firma visible
-		int page = 0;
 		try {
-			if (extraParams.getProperty(LAST_PAGE) == null)
-				page = 0;
-			else
-				page = Integer.parseInt(extraParams.getProperty(LAST_PAGE).trim());
-		} catch (final Exception e) {
-			logger.warning("Se ha indicado un numero de pagina invalido ('" + extraParams.getProperty(LAST_PAGE)
-					+ "'), se usara la ultima pagina: " + e);
+			sign(pdfReader, out, tempFile.toFile(), key, new PdfSignatureSettings(certChain, xParams));
+		} finally {
+			pdfReader.close();
+			Files.deleteIfExists(tempFile);
 		}
+	}
+
+	private void sign(PdfReader pdfReader, OutputStream out, File tempFile, PrivateKey key,
+			PdfSignatureSettings settings) throws RubricaException, IOException {
+
+		PdfSignatureAppearance sap = createSignatureAppearance(pdfReader, out, tempFile, settings);
+		sap.setCrypto(key, settings.getSignerCert(), null, PdfSignatureAppearance.WINCER_SIGNED);
+
+		try {
+			sap.getStamper().close();
+		} catch (DocumentException e) {
+			logger.severe("Error al estampar la firma: " + e);
+			throw new RubricaException("Error al estampar la firma", e);
+		}
+	}
+
+	/**
+	 * Primera fase de una firma diferida: prepara el PDF con un espacio reservado
+	 * para la firma y calcula la huella digital de los rangos firmados.
+	 *
+	 * La clave privada no es necesaria en esta fase, por lo que el trabajo
+	 * costoso sobre el PDF puede realizarse sin retener el dispositivo
+	 * criptografico. Los atributos firmados devueltos por
+	 * {@link PreparedPdfSignature#getSignedAttributes()} deben firmarse
+	 * externamente con el algoritmo indicado, y el resultado entregarse a
+	 * {@link #complete(PreparedPdfSignature, byte[], Certificate[])}.
+	 *
+	 * @param data
+	 *            Archivo PDF a firmar
+	 * @param algorithm
+	 *            Algoritmo a usar para la firma
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @param xParams
+	 *            Parámetros adicionales para la firma
+	 * @return Firma preparada, pendiente de completar
+	 */
+	public PreparedPdfSignature prepare(byte[] data, String algorithm, Certificate[] certChain, Properties xParams)
+			throws RubricaException, IOException {
+		return prepare(data, algorithm, certChain, xParams, null);
+	}
+
+	/**
+	 * Primera fase de una firma diferida con sello de tiempo. Se reserva
+	 * espacio adicional segun {@link TSAClient#getTokenSizeEstimate()}, y el
+	 * sello se solicita al completar la firma.
+	 *
+	 * @param data
+	 *            Archivo PDF a firmar
+	 * @param algorithm
+	 *            Algoritmo a usar para la firma
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @param xParams
+	 *            Parámetros adicionales para la firma
+	 * @param tsaClient
+	 *            Cliente de la autoridad de sellado de tiempo, o {@code null}
+	 *            para no sellar la firma
+	 * @return Firma preparada, pendiente de completar
+	 */
+	public PreparedPdfSignature prepare(byte[] data, String algorithm, Certificate[] certChain, Properties xParams,
+			TSAClient tsaClient) throws RubricaException, IOException {
+
+		String hashAlgorithm = SignConstants.getDigestAlgorithmName(algorithm);
+		PdfSignatureSettings settings = new PdfSignatureSettings(certChain, xParams);
+		X509Certificate signerCert = settings.getSignerCert();
 
-		// Leer el PDF
 		PdfReader pdfReader = new PdfReader(data);
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
+		PdfSignatureAppearance sap = createSignatureAppearance(pdfReader, baos, null, settings);
+		sap.setCrypto(null, signerCert, null, PdfSignatureAppearance.WINCER_SIGNED);
+
+		Calendar signDate = sap.getSignDate();
+
+		PdfSignature dic = new PdfSignature(PdfName.ADOBE_PPKLITE, PdfName.ADBE_PKCS7_DETACHED);
+		dic.setReason(sap.getReason());
+		dic.setLocation(sap.getLocation());
+		dic.setDate(new PdfDate(signDate));
+		dic.setName(PdfPKCS7.getSubjectFields(signerCert).getField("CN"));
+		sap.setCryptoDictionary(dic);
+
+		// Espacio reservado para el PKCS#7, codificado en hexadecimal
+		int contentsSize = CONTENTS_BASE_SIZE;
+		try {
+			for (Certificate cert : certChain) {
+				contentsSize += cert.getEncoded().length;
+			}
+		} catch (CertificateEncodingException e) {
+			throw new RubricaException("No se ha podido codificar la cadena de certificados", e);
+		}
+		if (tsaClient != null) {
+			contentsSize += tsaClient.getTokenSizeEstimate();
+		}
+
+		HashMap<PdfName, Integer> exclusions = new HashMap<>();
+		exclusions.put(PdfName.CONTENTS, contentsSize * 2 + 2);
+
+		try {
+			sap.preClose(exclusions);
+		} catch (DocumentException e) {
+			logger.severe("Error al preparar la firma: " + e);
+			throw new RubricaException("Error al preparar la firma", e);
+		}
+
+		byte[] hash;
+		byte[] signedAttributes;
+
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance(hashAlgorithm);
+			try (InputStream rangeStream = sap.getRangeStream()) {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = rangeStream.read(buffer)) > 0) {
+					messageDigest.update(buffer, 0, n);
+				}
+			}
+			hash = messageDigest.digest();
+
+			PdfPKCS7 pkcs7 = new PdfPKCS7(null, certChain, null, hashAlgorithm, null, false);
+			signedAttributes = pkcs7.getAuthenticatedAttributeBytes(hash, signDate, null);
+		} catch (GeneralSecurityException e) {
+			throw new RubricaException("Error al calcular la huella digital del PDF", e);
+		}
+
+		return new PreparedPdfSignature(pdfReader, sap, baos, hashAlgorithm, signDate, hash, signedAttributes,
+				contentsSize, tsaClient);
+	}
+
+	/**
+	 * Segunda fase de una firma diferida: construye el PKCS#7 a partir de la
+	 * firma de los atributos firmados y lo inserta en el espacio reservado.
+	 *
+	 * @param prepared
+	 *            Firma preparada por
+	 *            {@link #prepare(byte[], String, Certificate[], Properties)}
+	 * @param signedAttributesSignature
+	 *            Firma (PKCS#1) de los atributos firmados
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @return PDF firmado
+	 */
+	public byte[] complete(PreparedPdfSignature prepared, byte[] signedAttributesSignature, Certificate[] certChain)
+			throws RubricaException, IOException {
+
+		byte[] pkcs7Bytes;
+
+		try {
+			PdfPKCS7 pkcs7 = new PdfPKCS7(null, certChain, null, prepared.getHashAlgorithm(), null, false);
+			pkcs7.setExternalDigest(signedAttributesSignature, null, certChain[0].getPublicKey().getAlgorithm());
+			pkcs7Bytes = pkcs7.getEncodedPKCS7(prepared.getDigest(), prepared.getSignDate(),
+					prepared.getTsaClient(), null);
+		} catch (GeneralSecurityException e) {
+			throw new RubricaException("Error al construir el PKCS#7", e);
+		} catch (ExceptionConverter e) {
+			// PdfPKCS7 envuelve los errores del cliente TSA
+			logger.severe("Error al obtener el sello de tiempo: " + e.getException());
+			throw new RubricaException("Error al obtener el sello de tiempo", e.getException());
+		}
+
+		if (pkcs7Bytes.length > prepared.getContentsSize()) {
+			throw new RubricaException("La firma no cabe en el espacio reservado del PDF");
+		}
+
+		byte[] contents = new byte[prepared.getContentsSize()];
+		System.arraycopy(pkcs7Bytes, 0, contents, 0, pkcs7Bytes.length);
+
+		PdfDictionary dic = new PdfDictionary();
+		dic.put(PdfName.CONTENTS, new PdfString(contents).setHexWriting(true));
+
+		try {
+			prepared.getSignatureAppearance().close(dic);
+		} catch (DocumentException e) {
+			logger.severe("Error al estampar la firma: " + e);
+			throw new RubricaException("Error al estampar la firma", e);
+		} finally {
+			prepared.getPdfReader().close();
+		}
+
+		return prepared.getOutput().toByteArray();
+	}
+
+	private PdfSignatureAppearance createSignatureAppearance(PdfReader pdfReader, OutputStream out, File tempFile,
+			PdfSignatureSettings settings) throws RubricaException, IOException {
+
+		String reason = settings.getReason();
+		String signTime = settings.getSignTime();
+		float fontSize = settings.getFontSize();
+		String typeSig = settings.getTypeSig();
+		Properties extraParams = settings.getExtraParams();
+
+		// Tamaño espaciado
+		float fontLeading = fontSize;
+
+		// Pagina donde situar la firma visible
+		int page = settings.getPage();
+
 		PdfStamper stp;
 
 		try {
-			stp = PdfStamper.createSignature(pdfReader, baos, '\0', null, true);
+			stp = PdfStamper.createSignature(pdfReader, out, '\0', tempFile, true);
 		} catch (DocumentException e) {
 			logger.severe("Error al crear la firma para estampar: " + e);
 			throw new RubricaException("Error al crear la firma para estampar", e);
@@ -171,30 +418,25 @@ public class PDFSigner implements Signer {
 		}
 
 		// Localizacion en donde se produce la firma
-		if (location != null) {
-			sap.setLocation(location);
+		if (settings.getLocation() != null) {
+			sap.setLocation(settings.getLocation());
 		}
 
 		// Fecha y hora de la firma
 		if (signTime != null) {
-			Date date = Utils.getSignTime(signTime);
-			GregorianCalendar calendar = new GregorianCalendar();
-			calendar.setTime(date);
-			sap.setSignDate(calendar);
+			sap.setSignDate(settings.getSignDate());
 		}
 
 		if (page == 0 || page < 0 || page > pdfReader.getNumberOfPages())
 			page = pdfReader.getNumberOfPages();
 
-		Rectangle signaturePositionOnPage = getSignaturePositionOnPage(extraParams);
+		Rectangle signaturePositionOnPage = settings.getPosition();
 
 		if (signaturePositionOnPage != null) {
 			sap.setVisibleSignature(signaturePositionOnPage, page, null);
 
-			X509Certificate x509Certificate = (X509Certificate) certChain[0];
-			String informacionCertificado = x509Certificate.getSubjectDN().getName();
-			String nombreFirmante = (informacionCertificado.substring(informacionCertificado.lastIndexOf("CN=") + 3,
-					informacionCertificado.indexOf(","))).toUpperCase();
+			String informacionCertificado = settings.getInformacionCertificado();
+			String nombreFirmante = settings.getNombreFirmante();
 			try {
 				// Creating the appearance for layer 0
 				PdfTemplate pdfTemplate = sap.getLayer(0);
@@ -214,7 +456,7 @@ public class PDFSigner implements Signer {
 					// nombreFirmante="JOSE DAVID GAMBOA VERA";
 					PdfTemplate pdfTemplate1 = sap.getLayer(2);
 					Font font = new Font(Font.COURIER, fontSize + (fontSize / 2), Font.BOLD, Color.BLACK);
-					float maxFontSize = getMaxFontSize(com.lowagie.text.pdf.BaseFont.createFont(),
+					float maxFontSize = PdfAppearanceCache.getMaxFontSize(settings.getBaseFont(),
 							nombreFirmante.trim(), width - ((width / 3) + 3));
 					font.setSize(maxFontSize);
 					fontLeading = maxFontSize;
@@ -228,25 +470,12 @@ public class PDFSigner implements Signer {
 					columnText.setSimpleColumn((width / 3) + 3, 0, width, height);
 					columnText.addElement(paragraph);
 					columnText.go();
-					// Imagen
-					java.awt.image.BufferedImage bufferedImage = null;
-					// QR
-					String text = "FIRMADO POR: " + nombreFirmante.trim() + "\n";
-					text = text + "RAZON: " + reason + "\n";
-					text = text + "FECHA: " + signTime + "\n";
-					text = text + infoQR;
-					try {
-						bufferedImage = io.rubrica.util.QRCode.generateQR(text, (int) height, (int) height);
-					} catch (Exception e) {
-						e.printStackTrace();
+					// QR vectorial, centrado en la primera columna
+					PdfQRCode qrCode = settings.getQrCode();
+					if (qrCode != null) {
+						float qrSize = Math.min(width / 3, height);
+						qrCode.draw(sap.getLayer(2), (width / 3 - qrSize) / 2, height - qrSize, qrSize);
 					}
-					// QR
-					PdfTemplate pdfTemplateImage = sap.getLayer(2);
-					ColumnText columnTextImage = new ColumnText(pdfTemplateImage);
-					columnTextImage.setSimpleColumn(0, 0, width / 3, height);
-					columnTextImage.setAlignment(Paragraph.ALIGN_CENTER);
-					columnTextImage.addElement(com.lowagie.text.Image.getInstance(bufferedImage, null));
-					columnTextImage.go();
 					break;
 				}
 				case "information1": {
@@ -277,12 +506,12 @@ public class PDFSigner implements Signer {
 					// Creating the appearance for layer 2
 					// ETSI TS 102 778-6 V1.1.1 (2010-07)
 					Font font = new Font(Font.HELVETICA, fontSize, Font.BOLD, Color.BLACK);
-					com.lowagie.text.pdf.BaseFont baseFont = com.lowagie.text.pdf.BaseFont.createFont();
+					com.lowagie.text.pdf.BaseFont baseFont = settings.getBaseFont();
 
 					float x = Float.parseFloat(extraParams.getProperty("PositionOnPageLowerLeftX").trim());
 					float y = Float.parseFloat(extraParams.getProperty("PositionOnPageLowerLeftY").trim());
 					nombreFirmante = nombreFirmante.replace(" ", "*");
-					width = baseFont.getWidthPoint(nombreFirmante, font.getSize());
+					width = PdfAppearanceCache.getWidthPoint(baseFont, nombreFirmante, font.getSize());
 					nombreFirmante = nombreFirmante.replace("*", " ");
 					height = font.getSize() * 3;
 					sap.setVisibleSignature(new Rectangle(x, y, x + width, y - height), page, null);
@@ -311,47 +540,7 @@ public class PDFSigner implements Signer {
 			}
 		}
 
-		sap.setCrypto(key, (X509Certificate) certChain[0], null, PdfSignatureAppearance.WINCER_SIGNED);
-
-		try {
-			stp.close();
-		} catch (DocumentException e) {
-			logger.severe("Error al estampar la firma: " + e);
-			throw new RubricaException("Error al estampar la firma", e);
-		}
-
-		return baos.toByteArray();
-	}
-
-	private float getMaxFontSize(com.lowagie.text.pdf.BaseFont baseFont, String text, float width) {
-		float measureWidth = 1;
-		float fontSize = 0.1f;
-		float oldSize = 0.1f;
-		int repeat = 0;
-		float multiply = 1;
-		text = text.replace(" ", "*");
-		while (measureWidth < width) {
-			repeat++;
-			measureWidth = baseFont.getWidthPoint(text, fontSize);
-			oldSize = fontSize;
-			fontSize += 0.1f;
-		}
-		System.out.println("repeat: " + repeat);
-		System.out.println("fontSize: " + fontSize);
-		if (repeat > 60)
-			multiply = 1;
-		if (repeat <= 60 && repeat > 20)
-			multiply = 2;
-		if (repeat <= 20 && repeat > 10)
-			multiply = 3;
-		if (repeat <= 10)
-			multiply = 4;
-
-		if (fontSize > 20) {
-			oldSize = 20;
-			multiply = 1;
-		}
-		return oldSize * multiply;
+		return sap;
 	}
 
 	@Override
@@ -360,113 +549,147 @@ public class PDFSigner implements Signer {
 			throw new InvalidFormatException("El archivo no es un PDF");
 		}
 
+		return getSigners(new RandomAccessFileOrArray(sign));
+	}
+
+	/**
+	 * Obtiene los firmantes de un PDF en disco. El archivo se mapea en memoria y
+	 * solo se leen el formulario y los diccionarios de firma, por lo que el
+	 * tiempo y la memoria usados no dependen del tamaño del documento.
+	 *
+	 * @param input
+	 *            Ruta del PDF firmado
+	 * @return Firmantes del documento
+	 * @throws InvalidFormatException
+	 *             Si el archivo no es un PDF
+	 * @throws IOException
+	 *             Si no se puede leer el archivo
+	 */
+	public List<SignInfo> getSigners(Path input) throws InvalidFormatException, IOException {
+		byte[] header = new byte[PDF_FILE_HEADER.length()];
+
+		try (InputStream is = Files.newInputStream(input)) {
+			if (is.read(header) != header.length || !isPdfFile(header)) {
+				throw new InvalidFormatException("El archivo no es un PDF");
+			}
+		}
+
+		return getSigners(new RandomAccessFileOrArray(input.toString(), false, false));
+	}
+
+	private List<SignInfo> getSigners(RandomAccessFileOrArray file) throws InvalidFormatException, IOException {
 		PdfReader pdfReader;
 
 		try {
-			pdfReader = new PdfReader(sign);
+			// Lectura parcial: los objetos se cargan solo cuando se necesitan
+			pdfReader = new PdfReader(file, null);
 		} catch (Exception e) {
+			file.close();
 			logger.severe("No se ha podido leer el PDF: " + e);
 			throw new InvalidFormatException("No se ha podido leer el PDF", e);
 		}
 
-		AcroFields af;
-
 		try {
-			af = pdfReader.getAcroFields();
-		} catch (Exception e) {
-			logger.severe(
-					"No se ha podido obtener la informacion de los firmantes del PDF, se devolvera un arbol vacio: "
-							+ e);
-			throw new InvalidFormatException("No se ha podido obtener la informacion de los firmantes del PDF", e);
-		}
-
-		@SuppressWarnings("unchecked")
-		List<String> names = af.getSignatureNames();
-
-		Object pkcs1Object = null;
-		List<SignInfo> signInfos = new ArrayList<>();
-
-		for (String signatureName : names) {
-			// Comprobamos si es una firma o un sello
-			PdfDictionary pdfDictionary = af.getSignatureDictionary(signatureName);
-
-			if (PDFNAME_ETSI_RFC3161.equals(pdfDictionary.get(PdfName.SUBFILTER))
-					|| PDFNAME_DOCTIMESTAMP.equals(pdfDictionary.get(PdfName.SUBFILTER))) {
-				// Ignoramos los sellos
-				continue;
-			}
-
-			PdfPKCS7 pcks7;
+			AcroFields af;
 
 			try {
-				pcks7 = af.verifySignature(signatureName);
+				af = pdfReader.getAcroFields();
 			} catch (Exception e) {
-				e.printStackTrace();
-				logger.severe("El PDF contiene una firma corrupta o con un formato desconocido (" + signatureName
-						+ "), se continua con las siguientes si las hubiese: " + e);
-				continue;
+				logger.severe(
+						"No se ha podido obtener la informacion de los firmantes del PDF, se devolvera un arbol vacio: "
+								+ e);
+				throw new InvalidFormatException("No se ha podido obtener la informacion de los firmantes del PDF", e);
 			}
 
-			Certificate[] signCertificateChain = pcks7.getSignCertificateChain();
-			X509Certificate[] certChain = new X509Certificate[signCertificateChain.length];
+			@SuppressWarnings("unchecked")
+			List<String> names = af.getSignatureNames();
 
-			for (int i = 0; i < certChain.length; i++) {
-				certChain[i] = (X509Certificate) signCertificateChain[i];
-			}
+			List<SignInfo> signInfos = new ArrayList<>();
 
-			SignInfo signInfo = new SignInfo(certChain, pcks7.getSignDate().getTime());
+			for (String signatureName : names) {
+				// Comprobamos si es una firma o un sello
+				PdfDictionary pdfDictionary = af.getSignatureDictionary(signatureName);
 
-			// Extraemos el PKCS1 de la firma
-			try {
-				// iText antiguo
-				Field digestField = Class.forName("com.lowagie.text.pdf.PdfPKCS7").getDeclaredField("digest");
-				digestField.setAccessible(true);
-				pkcs1Object = digestField.get(pcks7);
+				if (PDFNAME_ETSI_RFC3161.equals(pdfDictionary.get(PdfName.SUBFILTER))
+						|| PDFNAME_DOCTIMESTAMP.equals(pdfDictionary.get(PdfName.SUBFILTER))) {
+					// Ignoramos los sellos
+					continue;
+				}
 
-				if (pkcs1Object instanceof byte[]) {
-					signInfo.setPkcs1((byte[]) pkcs1Object);
+				try {
+					signInfos.add(getSignInfo(pdfDictionary));
+				} catch (Exception e) {
+					logger.severe("El PDF contiene una firma corrupta o con un formato desconocido (" + signatureName
+							+ "), se continua con las siguientes si las hubiese: " + e);
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				logger.severe(
-						"No se ha podido obtener informacion de una de las firmas del PDF, se continuara con la siguiente: "
-								+ e);
-				continue;
 			}
 
-			signInfos.add(signInfo);
+			return signInfos;
+		} finally {
+			pdfReader.close();
 		}
-
-		return signInfos;
 	}
 
-	private boolean isPdfFile(final byte[] data) {
+	/**
+	 * Lee la informacion de una firma directamente de su diccionario. A
+	 * diferencia de {@link AcroFields#verifySignature(String)}, no calcula la
+	 * huella de los rangos firmados, que implicaria leer todo el documento.
+	 */
+	private static SignInfo getSignInfo(PdfDictionary pdfDictionary) throws IOException, CMSException {
+		PdfName subFilter = pdfDictionary.getAsName(PdfName.SUBFILTER);
+		byte[] contents = pdfDictionary.getAsString(PdfName.CONTENTS).getOriginalBytes();
+
+		PdfPKCS7 pcks7;
+		byte[] pkcs1;
+		Date cmsSigningTime = null;
+
+		if (PdfName.ADBE_X509_RSA_SHA1.equals(subFilter)) {
+			byte[] cert = pdfDictionary.getAsString(PdfName.CERT).getBytes();
+			pcks7 = new PdfPKCS7(contents, cert, null);
+			try (ASN1InputStream is = new ASN1InputStream(contents)) {
+				pkcs1 = ASN1OctetString.getInstance(is.readObject()).getOctets();
+			}
+		} else {
+			pcks7 = new PdfPKCS7(contents, null);
+			try (ASN1InputStream is = new ASN1InputStream(contents)) {
+				// El contenido esta relleno con ceros al final
+				CMSSignedData signedData = new CMSSignedData(ContentInfo.getInstance(is.readObject()));
+				SignerInformation signer = signedData.getSignerInfos().getSigners().iterator().next();
+				pkcs1 = signer.getSignature();
+
+				// Atributo signing-time, por si el diccionario no tiene /M
+				AttributeTable signedAttributes = signer.getSignedAttributes();
+				Attribute signingTime = signedAttributes == null ? null
+						: signedAttributes.get(CMSAttributes.signingTime);
+				if (signingTime != null && signingTime.getAttrValues().size() > 0) {
+					cmsSigningTime = Time.getInstance(signingTime.getAttrValues().getObjectAt(0)).getDate();
+				}
+			}
+		}
 
-		byte[] buffer = new byte[PDF_FILE_HEADER.length()];
+		Certificate[] signCertificateChain = pcks7.getSignCertificateChain();
+		X509Certificate[] certChain = new X509Certificate[signCertificateChain.length];
 
-		try {
-			new ByteArrayInputStream(data).read(buffer);
-		} catch (Exception e) {
-			buffer = null;
+		for (int i = 0; i < certChain.length; i++) {
+			certChain[i] = (X509Certificate) signCertificateChain[i];
 		}
 
-		// Comprobamos que cuente con una cabecera PDF
-		if (buffer != null && !PDF_FILE_HEADER.equals(new String(buffer))) {
-			return false;
-		}
+		PdfString signDate = pdfDictionary.getAsString(PdfName.M);
+		Calendar signTime = signDate != null ? PdfDate.decode(signDate.toString()) : null;
 
-		try {
-			// Si lanza una excepcion al crear la instancia, no es un fichero
-			// PDF
-			new PdfReader(data);
-		} catch (final Exception e) {
+		SignInfo signInfo = new SignInfo(certChain, signTime != null ? signTime.getTime() : cmsSigningTime);
+		signInfo.setPkcs1(pkcs1);
+		return signInfo;
+	}
+
+	/**
+	 * Comprueba la cabecera del PDF. El contenido se valida al leerlo.
+	 */
+	private static boolean isPdfFile(final byte[] data) {
+		if (data == null || data.length < PDF_FILE_HEADER.length()) {
 			return false;
 		}
 
-		return true;
-	}
-
-	private static Rectangle getSignaturePositionOnPage(Properties extraParams) {
-		return PdfUtil.getPositionOnPage(extraParams);
+		return PDF_FILE_HEADER.equals(new String(data, 0, PDF_FILE_HEADER.length(), StandardCharsets.US_ASCII));
 	}
 }
@@ -37,9 +37,6 @@ import java.util.Enumeration;
 import java.util.List;
 import java.util.logging.Logger;
 
-import com.lowagie.text.pdf.AcroFields;
-import com.lowagie.text.pdf.PdfReader;
-
 import io.rubrica.core.AliasesNotFoundException;
 import io.rubrica.core.PrivateKeyAndCertificateChain;
 
@@ -52,20 +49,17 @@ import io.rubrica.core.PrivateKeyAndCertificateChain;
 public class PDFUtils {
 	private static final Logger logger = Logger.getLogger(PDFUtils.class.getName());
 
+	/**
+	 * Indica si el PDF tiene al menos una firma, ver
+	 * {@link PdfSignatureScanner#isSigned(byte[])}.
+	 *
+	 * @param archivoPDF
+	 *            Documento PDF
+	 * @return {@code true} si el documento ya esta firmado
+	 */
 	public static boolean yaEstaFirmado(byte[] archivoPDF) {
 		try {
-			// Verificar si ya esta firmado?
-			PdfReader reader = new PdfReader(archivoPDF);
-			AcroFields fields = reader.getAcroFields();
-
-			@SuppressWarnings("unchecked")
-			ArrayList<String> nombreLista = fields.getSignatureNames();
-
-			for (String nombre : nombreLista) {
-				System.out.println("Firmante=" + nombre);
-			}
-
-			return (nombreLista.size() == 1);
+			return PdfSignatureScanner.isSigned(archivoPDF);
 		} catch (IOException e) {
 			throw new RuntimeException(e); // FIXME
 		}
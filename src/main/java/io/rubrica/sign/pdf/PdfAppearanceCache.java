@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.lowagie.text.pdf.BaseFont;
+
+/**
+ * Cache LRU de las medidas de texto usadas en la apariencia de las firmas
+ * visibles. Las medidas dependen solo del tipo de firma, del nombre del
+ * firmante y del ancho disponible, por lo que se reutilizan entre firmas de la
+ * misma persona.
+ */
+final class PdfAppearanceCache {
+
+	/** Numero maximo de medidas almacenadas. */
+	private static final int MAX_ENTRIES = 512;
+
+	/** Incremento del tamaño de letra al ajustar el nombre del firmante. */
+	private static final float FONT_SIZE_STEP = 0.1f;
+
+	/** Tamaño maximo de letra para el nombre del firmante. */
+	private static final float MAX_FONT_SIZE = 20;
+
+	private static final Map<Key, Float> metrics = Collections
+			.synchronizedMap(new LinkedHashMap<Key, Float>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Float> eldest) {
+					return size() > MAX_ENTRIES;
+				}
+			});
+
+	private PdfAppearanceCache() {
+	}
+
+	/**
+	 * Obtiene el tamaño de letra con el que se dibuja el nombre del firmante en
+	 * una firma de tipo QR.
+	 *
+	 * @param baseFont
+	 *            Fuente con la que se mide el texto
+	 * @param text
+	 *            Nombre del firmante
+	 * @param width
+	 *            Ancho disponible
+	 * @return Tamaño de letra
+	 */
+	static float getMaxFontSize(BaseFont baseFont, String text, float width) {
+		return metrics.computeIfAbsent(new Key("QR", text, width),
+				k -> computeMaxFontSize(baseFont, text, width));
+	}
+
+	/**
+	 * Obtiene el ancho del nombre del firmante en una firma de tipo
+	 * information2.
+	 *
+	 * @param baseFont
+	 *            Fuente con la que se mide el texto
+	 * @param text
+	 *            Nombre del firmante
+	 * @param fontSize
+	 *            Tamaño de letra
+	 * @return Ancho del texto
+	 */
+	static float getWidthPoint(BaseFont baseFont, String text, float fontSize) {
+		return metrics.computeIfAbsent(new Key("information2", text, fontSize),
+				k -> baseFont.getWidthPoint(text, fontSize));
+	}
+
+	/**
+	 * Busca el menor tamaño de letra, en pasos de {@link #FONT_SIZE_STEP}, con el
+	 * que el texto ocupa el ancho indicado, y lo escala segun el numero de pasos
+	 * necesarios. Como el ancho del texto es proporcional al tamaño de letra, el
+	 * numero de pasos se calcula directamente.
+	 */
+	private static float computeMaxFontSize(BaseFont baseFont, String text, float width) {
+		float unitWidth = baseFont.getWidthPoint(text.replace(" ", "*"), 1);
+
+		int repeat = 0;
+		if (width > 1 && unitWidth > 0) {
+			repeat = (int) Math.ceil(width / (unitWidth * FONT_SIZE_STEP));
+		}
+
+		float oldSize = Math.max(repeat, 1) * FONT_SIZE_STEP;
+		float fontSize = oldSize + FONT_SIZE_STEP;
+		float multiply;
+
+		if (repeat > 60)
+			multiply = 1;
+		else if (repeat > 20)
+			multiply = 2;
+		else if (repeat > 10)
+			multiply = 3;
+		else
+			multiply = 4;
+
+		if (fontSize > MAX_FONT_SIZE) {
+			oldSize = MAX_FONT_SIZE;
+			multiply = 1;
+		}
+		return oldSize * multiply;
+	}
+
+	private static final class Key {
+
+		private final String type;
+		private final String text;
+		private final float size;
+
+		Key(String type, String text, float size) {
+			this.type = type;
+			this.text = text;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return type.equals(other.type) && text.equals(other.text)
+					&& Float.floatToIntBits(size) == Float.floatToIntBits(other.size);
+		}
+
+		@Override
+		public int hashCode() {
+			return (type.hashCode() * 31 + text.hashCode()) * 31 + Float.floatToIntBits(size);
+		}
+	}
+}
\ No newline at end of file
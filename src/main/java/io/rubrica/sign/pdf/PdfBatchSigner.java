@@ -0,0 +1,103 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import io.rubrica.core.RubricaException;
+import io.rubrica.sign.BatchProcessor;
+import io.rubrica.sign.BatchResult;
+
+/**
+ * Firma lotes de documentos PDF con una misma clave y cadena de certificados.
+ *
+ * Los parámetros de firma y los recursos de la apariencia (fuentes, nombre del
+ * firmante, codigo QR) se preparan una sola vez para todo el lote, y cada
+ * documento se firma en paralelo en el {@link ExecutorService} indicado (ver
+ * {@link BatchProcessor}).
+ */
+public class PdfBatchSigner {
+
+	private final PDFSigner signer = new PDFSigner();
+	private final PrivateKey key;
+	private final PdfSignatureSettings settings;
+	private final ExecutorService executor;
+
+	/**
+	 * Crea un firmador de lotes que usa el pool comun de
+	 * {@link ForkJoinPool}.
+	 *
+	 * @param key
+	 *            Clave privada a usar para firmar
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @param extraParams
+	 *            Parámetros adicionales para la firma, comunes a todo el lote
+	 */
+	public PdfBatchSigner(PrivateKey key, Certificate[] certChain, Properties extraParams)
+			throws RubricaException, IOException {
+		this(key, certChain, extraParams, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Crea un firmador de lotes.
+	 *
+	 * @param key
+	 *            Clave privada a usar para firmar
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @param extraParams
+	 *            Parámetros adicionales para la firma, comunes a todo el lote
+	 * @param executor
+	 *            Pool de hilos en donde se firman los documentos; no se cierra
+	 *            al terminar
+	 */
+	public PdfBatchSigner(PrivateKey key, Certificate[] certChain, Properties extraParams, ExecutorService executor)
+			throws RubricaException, IOException {
+		if (key == null) {
+			throw new IllegalArgumentException("La clave privada no puede ser nula");
+		}
+		if (certChain == null || certChain.length == 0) {
+			throw new IllegalArgumentException("No se ha introducido la cadena de certificacion");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("El pool de hilos no puede ser nulo");
+		}
+
+		this.key = key;
+		this.settings = new PdfSignatureSettings(certChain, extraParams);
+		this.executor = executor;
+	}
+
+	/**
+	 * Firma un lote de documentos PDF.
+	 *
+	 * @param documents
+	 *            Documentos a firmar
+	 * @return Resultado de cada documento, en el orden de entrada
+	 */
+	public List<BatchResult> sign(Iterable<byte[]> documents) {
+		return BatchProcessor.process(documents, document -> signer.sign(document, key, settings), executor);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfTemplate;
+
+import io.rubrica.util.QRCode;
+
+/**
+ * Dibuja codigos QR como trazos vectoriales de PDF, en lugar de incrustarlos
+ * como imagenes. Las instancias son inmutables.
+ *
+ * Los modulos oscuros consecutivos de cada fila se agrupan en rectangulos, y
+ * los rectangulos iguales de filas contiguas se unen. El resultado solo usa
+ * operadores de trazado y color, sin recursos, por lo que puede guardarse en
+ * cache por contenido del QR y reutilizarse en cualquier documento.
+ */
+public final class PdfQRCode {
+
+	/** Numero maximo de QR almacenados en la cache. */
+	private static final int MAX_ENTRIES = 256;
+
+	private static final Map<String, PdfQRCode> cache = Collections
+			.synchronizedMap(new LinkedHashMap<String, PdfQRCode>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PdfQRCode> eldest) {
+					return size() > MAX_ENTRIES;
+				}
+			});
+
+	private final int modules;
+	private final String content;
+
+	private PdfQRCode(int modules, String content) {
+		this.modules = modules;
+		this.content = content;
+	}
+
+	/**
+	 * Genera el QR de un texto.
+	 *
+	 * @param text
+	 *            Texto a codificar
+	 * @param cached
+	 *            Si se debe reutilizar (y guardar) el QR de la cache
+	 * @return QR listo para dibujar
+	 * @throws WriterException
+	 *             Si no se puede codificar el texto
+	 */
+	public static PdfQRCode getInstance(String text, boolean cached) throws WriterException {
+		if (!cached) {
+			return render(QRCode.encode(text));
+		}
+
+		PdfQRCode qr = cache.get(text);
+		if (qr == null) {
+			qr = render(QRCode.encode(text));
+			cache.put(text, qr);
+		}
+		return qr;
+	}
+
+	/**
+	 * Convierte una matriz QR en operadores de trazado PDF, en unidades de un
+	 * modulo.
+	 *
+	 * @param matrix
+	 *            Matriz de modulos del QR
+	 * @return QR listo para dibujar
+	 */
+	public static PdfQRCode render(BitMatrix matrix) {
+		int width = matrix.getWidth();
+		int height = matrix.getHeight();
+
+		StringBuilder sb = new StringBuilder(width * height);
+
+		// Fondo blanco
+		sb.append("q 1 g 0 0 ").append(width).append(' ').append(height).append(" re f 0 g\n");
+
+		// Tramos abiertos, indexados por columna inicial: fin del tramo y fila
+		// en la que empezo. Un tramo que se repite en la fila siguiente se
+		// extiende hacia abajo en lugar de emitir un rectangulo nuevo.
+		int[] openEnd = new int[width];
+		int[] openTop = new int[width];
+		Arrays.fill(openEnd, -1);
+
+		for (int y = 0; y <= height; y++) {
+			boolean[] continued = new boolean[width];
+			int x = 0;
+			while (y < height && x < width) {
+				if (!matrix.get(x, y)) {
+					x++;
+					continue;
+				}
+				int start = x;
+				while (x < width && matrix.get(x, y)) {
+					x++;
+				}
+				if (openEnd[start] == x) {
+					continued[start] = true;
+				} else {
+					if (openEnd[start] != -1) {
+						appendRect(sb, start, openEnd[start], openTop[start], y, height);
+					}
+					openEnd[start] = x;
+					openTop[start] = y;
+					continued[start] = true;
+				}
+			}
+			for (int i = 0; i < width; i++) {
+				if (openEnd[i] != -1 && !continued[i]) {
+					appendRect(sb, i, openEnd[i], openTop[i], y, height);
+					openEnd[i] = -1;
+				}
+			}
+		}
+
+		sb.append("f Q\n");
+
+		return new PdfQRCode(width, sb.toString());
+	}
+
+	private static void appendRect(StringBuilder sb, int start, int end, int top, int bottom, int height) {
+		// El origen de PDF esta en la esquina inferior izquierda
+		sb.append(start).append(' ').append(height - bottom).append(' ').append(end - start).append(' ')
+				.append(bottom - top).append(" re\n");
+	}
+
+	/**
+	 * Dibuja el QR como un formulario (PdfTemplate) dentro del contenido
+	 * indicado.
+	 *
+	 * @param canvas
+	 *            Contenido en donde se dibuja el QR
+	 * @param x
+	 *            Coordenada X de la esquina inferior izquierda
+	 * @param y
+	 *            Coordenada Y de la esquina inferior izquierda
+	 * @param size
+	 *            Lado del QR
+	 * @return Formulario con el QR
+	 */
+	public PdfTemplate draw(PdfContentByte canvas, float x, float y, float size) {
+		PdfTemplate template = canvas.createTemplate(modules, modules);
+		template.setLiteral(content);
+
+		float scale = size / modules;
+		canvas.addTemplate(template, scale, 0, 0, scale, x, y);
+		return template;
+	}
+
+	/**
+	 * Obtiene el numero de modulos por lado del QR.
+	 *
+	 * @return Modulos por lado
+	 */
+	public int getModules() {
+		return modules;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import io.rubrica.certificate.ValidationResult;
+import io.rubrica.sign.SignValidity.VALIDITY_ERROR;
+
+/**
+ * Resultado de la verificacion de una firma de un documento PDF.
+ */
+public class PdfSignatureReport {
+
+	private final String name;
+	private final int revision;
+	private final int totalRevisions;
+	private final boolean coversWholeDocument;
+
+	X509Certificate[] certificates;
+	Date signingTime;
+	boolean integrityValid;
+	boolean timeStamped;
+	Date timeStampDate;
+	boolean timeStampValid;
+	ValidationResult certPathResult;
+	ValidationResult ocspResult;
+	ValidationResult crlResult;
+	VALIDITY_ERROR error;
+	final List<String> messages = new ArrayList<>();
+
+	PdfSignatureReport(String name, int revision, int totalRevisions, boolean coversWholeDocument) {
+		this.name = name;
+		this.revision = revision;
+		this.totalRevisions = totalRevisions;
+		this.coversWholeDocument = coversWholeDocument;
+	}
+
+	/**
+	 * Obtiene el nombre del campo de firma.
+	 *
+	 * @return Nombre de la firma
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Obtiene la revision del documento que cubre la firma.
+	 *
+	 * @return Revision, empezando en uno
+	 */
+	public int getRevision() {
+		return this.revision;
+	}
+
+	/**
+	 * Obtiene el numero total de revisiones del documento.
+	 *
+	 * @return Total de revisiones
+	 */
+	public int getTotalRevisions() {
+		return this.totalRevisions;
+	}
+
+	/**
+	 * Indica si la firma cubre todo el documento, es decir, si no se han
+	 * agregado revisiones despues de ella.
+	 *
+	 * @return {@code true} si la firma cubre todo el documento
+	 */
+	public boolean isCoversWholeDocument() {
+		return this.coversWholeDocument;
+	}
+
+	/**
+	 * Obtiene la cadena de certificados de la firma, o {@code null} si no se
+	 * pudo leer.
+	 *
+	 * @return Cadena de certificados, empezando por el del firmante
+	 */
+	public X509Certificate[] getCertificates() {
+		return this.certificates == null ? null : this.certificates.clone();
+	}
+
+	/**
+	 * Obtiene la fecha de la firma declarada por el firmante.
+	 *
+	 * @return Fecha de la firma
+	 */
+	public Date getSigningTime() {
+		return this.signingTime;
+	}
+
+	/**
+	 * Indica si el contenido firmado no ha sido modificado.
+	 *
+	 * @return {@code true} si la firma corresponde a los datos
+	 */
+	public boolean isIntegrityValid() {
+		return this.integrityValid;
+	}
+
+	/**
+	 * Indica si la firma incluye un sello de tiempo.
+	 *
+	 * @return {@code true} si hay sello de tiempo
+	 */
+	public boolean isTimeStamped() {
+		return this.timeStamped;
+	}
+
+	/**
+	 * Obtiene la fecha del sello de tiempo, o {@code null} si no lo hay.
+	 *
+	 * @return Fecha del sello de tiempo
+	 */
+	public Date getTimeStampDate() {
+		return this.timeStampDate;
+	}
+
+	/**
+	 * Indica si el sello de tiempo corresponde a la firma, su firma es correcta
+	 * y la TSA es de una CA de confianza. Solo en ese caso la fecha del sello se
+	 * usa para validar el certificado firmante. Es {@code false} si no hay sello
+	 * de tiempo.
+	 *
+	 * @return {@code true} si el sello de tiempo es valido
+	 */
+	public boolean isTimeStampValid() {
+		return this.timeStampValid;
+	}
+
+	/**
+	 * Obtiene el resultado de la validacion de la ruta de certificacion del
+	 * firmante.
+	 *
+	 * @return Resultado de la validacion, o {@code null} si no se pudo realizar
+	 */
+	public ValidationResult getCertPathResult() {
+		return this.certPathResult;
+	}
+
+	/**
+	 * Obtiene el resultado de la respuesta OCSP incluida en la firma.
+	 *
+	 * @return Resultado del OCSP, o {@code null} si la firma no incluye OCSP
+	 */
+	public ValidationResult getOcspResult() {
+		return this.ocspResult;
+	}
+
+	/**
+	 * Obtiene el resultado de las CRL incluidas en la firma.
+	 *
+	 * @return Resultado de las CRL, o {@code null} si la firma no incluye CRL
+	 */
+	public ValidationResult getCrlResult() {
+		return this.crlResult;
+	}
+
+	/**
+	 * Indica si la firma es valida.
+	 *
+	 * @return {@code true} si no se encontraron errores
+	 */
+	public boolean isValid() {
+		return this.error == null;
+	}
+
+	/**
+	 * Obtiene el primer error que invalida la firma, o {@code null} si es
+	 * valida.
+	 *
+	 * @return Error de la firma
+	 */
+	public VALIDITY_ERROR getError() {
+		return this.error;
+	}
+
+	/**
+	 * Obtiene la descripcion de los problemas encontrados en la firma.
+	 *
+	 * @return Mensajes de la verificacion
+	 */
+	public List<String> getMessages() {
+		return Collections.unmodifiableList(this.messages);
+	}
+
+	void fail(VALIDITY_ERROR error, String message) {
+		if (this.error == null) {
+			this.error = error;
+		}
+		this.messages.add(message);
+	}
+
+	@Override
+	public String toString() {
+		return "PdfSignatureReport [name=" + name + ", revision=" + revision + "/" + totalRevisions
+				+ ", coversWholeDocument=" + coversWholeDocument + ", integrityValid=" + integrityValid
+				+ ", timeStamped=" + timeStamped + ", certPathResult=" + certPathResult + ", ocspResult="
+				+ ocspResult + ", crlResult=" + crlResult + ", error=" + error + ", messages=" + messages + "]";
+	}
+}
\ No newline at end of file
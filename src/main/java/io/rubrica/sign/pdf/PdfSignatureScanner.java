@@ -0,0 +1,888 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.lowagie.text.pdf.PdfReader;
+
+/**
+ * Cuenta las firmas de un PDF sin construir un PdfReader.
+ *
+ * Lee la tabla de referencias cruzadas (clasica, en stream o hibrida, con sus
+ * actualizaciones incrementales) y resuelve solo los objetos del formulario:
+ * el catalogo, /AcroForm, /Fields y los diccionarios de firma. Cuenta los
+ * campos /FT /Sig cuyo /V es una firma (con /Contents y /ByteRange), igual que
+ * {@link com.lowagie.text.pdf.AcroFields#getSignatureNames()}. El contenido de
+ * las cadenas se salta sin copiarlo, por lo que el tamaño de las firmas no
+ * influye. Si el archivo esta dañado o cifrado se usa el PdfReader completo.
+ */
+public final class PdfSignatureScanner {
+
+	private static final Logger logger = Logger.getLogger(PdfSignatureScanner.class.getName());
+
+	/** Bytes del final del archivo en donde se busca startxref. */
+	private static final int STARTXREF_SEARCH = 1024;
+
+	/** Profundidad maxima del arbol de campos. */
+	private static final int MAX_DEPTH = 64;
+
+	/** Objeto null de PDF. */
+	private static final Object NULL = new Object();
+
+	/** Cadena de PDF, cuyo contenido no se lee. */
+	private static final Object STRING = new Object();
+
+	private static final byte[] STARTXREF = { 's', 't', 'a', 'r', 't', 'x', 'r', 'e', 'f' };
+
+	private final ByteBuffer buffer;
+
+	/** Entradas de la tabla de referencias: {tipo, campo 2, campo 3}. */
+	private final Map<Integer, long[]> xref = new HashMap<>();
+	private final Map<Integer, Object> objects = new HashMap<>();
+	private final Map<Integer, ObjectStream> objectStreams = new HashMap<>();
+	private final Set<Integer> visitedFields = new HashSet<>();
+	private Map<String, Object> trailer;
+
+	private PdfSignatureScanner(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Cuenta las firmas de un PDF.
+	 *
+	 * @param pdf
+	 *            Documento PDF
+	 * @return Numero de firmas
+	 * @throws IOException
+	 *             Si el documento no se puede leer
+	 */
+	public static int countSignatures(byte[] pdf) throws IOException {
+		try {
+			return new PdfSignatureScanner(ByteBuffer.wrap(pdf)).count();
+		} catch (IOException | RuntimeException e) {
+			logger.fine("No se ha podido analizar el PDF de forma rapida, se usara el lector completo: " + e);
+			return countWithReader(new PdfReader(pdf));
+		}
+	}
+
+	/**
+	 * Cuenta las firmas de un PDF en disco. El archivo se mapea en memoria.
+	 *
+	 * @param pdf
+	 *            Ruta del documento PDF
+	 * @return Numero de firmas
+	 * @throws IOException
+	 *             Si el documento no se puede leer
+	 */
+	public static int countSignatures(Path pdf) throws IOException {
+		try (FileChannel channel = FileChannel.open(pdf, StandardOpenOption.READ)) {
+			if (channel.size() <= Integer.MAX_VALUE) {
+				try {
+					return new PdfSignatureScanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+							.count();
+				} catch (IOException | RuntimeException e) {
+					logger.fine("No se ha podido analizar el PDF de forma rapida, se usara el lector completo: " + e);
+				}
+			}
+		}
+
+		return countWithReader(new PdfReader(pdf.toString()));
+	}
+
+	/**
+	 * Indica si el PDF tiene al menos una firma.
+	 *
+	 * @param pdf
+	 *            Documento PDF
+	 * @return {@code true} si el documento ya esta firmado
+	 * @throws IOException
+	 *             Si el documento no se puede leer
+	 */
+	public static boolean isSigned(byte[] pdf) throws IOException {
+		return countSignatures(pdf) > 0;
+	}
+
+	/**
+	 * Indica si el PDF en disco tiene al menos una firma. El archivo se mapea en
+	 * memoria.
+	 *
+	 * @param pdf
+	 *            Ruta del documento PDF
+	 * @return {@code true} si el documento ya esta firmado
+	 * @throws IOException
+	 *             Si el documento no se puede leer
+	 */
+	public static boolean isSigned(Path pdf) throws IOException {
+		return countSignatures(pdf) > 0;
+	}
+
+	private static int countWithReader(PdfReader reader) {
+		try {
+			return reader.getAcroFields().getSignatureNames().size();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private int count() throws IOException {
+		readXref();
+
+		if (trailer.containsKey("Encrypt")) {
+			throw new IOException("El PDF esta cifrado");
+		}
+
+		Map<String, Object> root = asDictionary(resolve(trailer.get("Root")));
+		if (root == null) {
+			throw new IOException("El PDF no tiene catalogo");
+		}
+
+		Map<String, Object> acroForm = asDictionary(resolve(root.get("AcroForm")));
+		if (acroForm == null) {
+			return 0;
+		}
+
+		List<Object> fields = asArray(resolve(acroForm.get("Fields")));
+		if (fields == null) {
+			return 0;
+		}
+
+		int count = 0;
+		for (Object field : fields) {
+			count += countField(field, null, null, 0);
+		}
+		return count;
+	}
+
+	/**
+	 * Cuenta las firmas de un campo y sus descendientes. /FT y /V se heredan;
+	 * los hijos sin /T son anotaciones del mismo campo.
+	 */
+	private int countField(Object reference, Object inheritedType, Object inheritedValue, int depth)
+			throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("Arbol de campos demasiado profundo");
+		}
+		if (reference instanceof Ref && !visitedFields.add(((Ref) reference).number)) {
+			return 0;
+		}
+
+		Map<String, Object> field = asDictionary(resolve(reference));
+		if (field == null) {
+			return 0;
+		}
+
+		Object type = field.containsKey("FT") ? resolve(field.get("FT")) : inheritedType;
+		Object value = field.containsKey("V") ? field.get("V") : inheritedValue;
+
+		List<Object> kids = asArray(resolve(field.get("Kids")));
+		if (kids != null) {
+			int count = 0;
+			boolean hasFieldKids = false;
+			for (Object kid : kids) {
+				Map<String, Object> kidField = asDictionary(resolve(kid));
+				if (kidField != null && kidField.containsKey("T")) {
+					hasFieldKids = true;
+					count += countField(kid, type, value, depth + 1);
+				}
+			}
+			if (hasFieldKids) {
+				return count;
+			}
+		}
+
+		return "Sig".equals(type) && isSignature(value) ? 1 : 0;
+	}
+
+	private boolean isSignature(Object value) throws IOException {
+		Map<String, Object> signature = asDictionary(resolve(value));
+		if (signature == null || resolve(signature.get("Contents")) != STRING) {
+			return false;
+		}
+
+		List<Object> byteRange = asArray(resolve(signature.get("ByteRange")));
+		return byteRange != null && byteRange.size() >= 2;
+	}
+
+	private void readXref() throws IOException {
+		Set<Long> visited = new HashSet<>();
+		Long offset = findStartXref();
+
+		// Las secciones mas recientes tienen prioridad sobre las anteriores
+		while (offset != null && visited.add(offset)) {
+			Map<String, Object> sectionTrailer = readXrefSection(offset.intValue());
+
+			if (trailer == null) {
+				trailer = sectionTrailer;
+			}
+
+			Object xrefStm = sectionTrailer.get("XRefStm");
+			if (xrefStm instanceof Long && visited.add((Long) xrefStm)) {
+				readXrefSection(((Long) xrefStm).intValue());
+			}
+
+			Object prev = sectionTrailer.get("Prev");
+			offset = prev instanceof Long ? (Long) prev : null;
+		}
+
+		if (trailer == null) {
+			throw new IOException("El PDF no tiene trailer");
+		}
+	}
+
+	private long findStartXref() throws IOException {
+		int limit = buffer.limit();
+		int from = Math.max(0, limit - STARTXREF_SEARCH);
+
+		for (int i = limit - STARTXREF.length; i >= from; i--) {
+			boolean match = true;
+			for (int j = 0; j < STARTXREF.length && match; j++) {
+				match = buffer.get(i + j) == STARTXREF[j];
+			}
+			if (match) {
+				Lexer lexer = new Lexer(buffer, i + STARTXREF.length);
+				return lexer.readLong();
+			}
+		}
+
+		throw new IOException("No se ha encontrado startxref");
+	}
+
+	private Map<String, Object> readXrefSection(int offset) throws IOException {
+		Lexer lexer = new Lexer(buffer, offset);
+		lexer.skipWhitespace();
+
+		if (lexer.nextKeywordIs("xref")) {
+			lexer.readToken();
+			return readXrefTable(lexer);
+		}
+
+		// Seccion en stream (PDF 1.5)
+		lexer.readObjectHeader(-1);
+		Map<String, Object> dictionary = asDictionary(lexer.parseObject());
+		if (dictionary == null || !"XRef".equals(dictionary.get("Type"))) {
+			throw new IOException("La seccion de referencias no es valida");
+		}
+
+		readXrefStream(dictionary, decodeStream(buffer, lexer, dictionary));
+		return dictionary;
+	}
+
+	private Map<String, Object> readXrefTable(Lexer lexer) throws IOException {
+		while (true) {
+			lexer.skipWhitespace();
+			if (lexer.nextKeywordIs("trailer")) {
+				lexer.readToken();
+				break;
+			}
+
+			int start = (int) lexer.readLong();
+			int count = (int) lexer.readLong();
+
+			for (int i = 0; i < count; i++) {
+				long offset = lexer.readLong();
+				long generation = lexer.readLong();
+				String type = lexer.readToken();
+
+				if ("n".equals(type)) {
+					xref.putIfAbsent(start + i, new long[] { 1, offset, generation });
+				} else if ("f".equals(type)) {
+					xref.putIfAbsent(start + i, new long[] { 0, 0, 0 });
+				} else {
+					throw new IOException("Entrada de referencia no valida: " + type);
+				}
+			}
+		}
+
+		Map<String, Object> dictionary = asDictionary(lexer.parseObject());
+		if (dictionary == null) {
+			throw new IOException("El trailer no es valido");
+		}
+		return dictionary;
+	}
+
+	private void readXrefStream(Map<String, Object> dictionary, byte[] data) throws IOException {
+		List<Object> w = asArray(dictionary.get("W"));
+		if (w == null || w.size() != 3) {
+			throw new IOException("El stream de referencias no tiene /W");
+		}
+
+		int[] widths = { toInt(w.get(0)), toInt(w.get(1)), toInt(w.get(2)) };
+		int entrySize = widths[0] + widths[1] + widths[2];
+
+		List<Object> index = asArray(dictionary.get("Index"));
+		if (index == null) {
+			index = new ArrayList<>();
+			index.add(0L);
+			index.add(dictionary.get("Size"));
+		}
+
+		int position = 0;
+		for (int i = 0; i + 1 < index.size(); i += 2) {
+			int start = toInt(index.get(i));
+			int count = toInt(index.get(i + 1));
+
+			for (int j = 0; j < count; j++) {
+				if (position + entrySize > data.length) {
+					throw new IOException("El stream de referencias esta truncado");
+				}
+
+				long[] entry = new long[3];
+				for (int k = 0; k < 3; k++) {
+					long value = 0;
+					for (int b = 0; b < widths[k]; b++) {
+						value = (value << 8) | (data[position++] & 0xff);
+					}
+					entry[k] = value;
+				}
+
+				// Sin el primer campo, el tipo por defecto es 1
+				if (widths[0] == 0) {
+					entry[0] = 1;
+				}
+
+				xref.putIfAbsent(start + j, entry);
+			}
+		}
+	}
+
+	private Object resolve(Object object) throws IOException {
+		if (object instanceof Ref) {
+			return loadObject(((Ref) object).number);
+		}
+		return object;
+	}
+
+	private Object loadObject(int number) throws IOException {
+		Object object = objects.get(number);
+		if (object != null) {
+			return object;
+		}
+
+		long[] entry = xref.get(number);
+
+		if (entry == null || entry[0] == 0) {
+			object = NULL;
+		} else if (entry[0] == 1) {
+			Lexer lexer = new Lexer(buffer, (int) entry[1]);
+			lexer.readObjectHeader(number);
+			object = lexer.parseObject();
+		} else if (entry[0] == 2) {
+			ObjectStream objectStream = loadObjectStream((int) entry[1]);
+			object = objectStream.getObject((int) entry[2]);
+		} else {
+			object = NULL;
+		}
+
+		objects.put(number, object);
+		return object;
+	}
+
+	private ObjectStream loadObjectStream(int number) throws IOException {
+		ObjectStream objectStream = objectStreams.get(number);
+		if (objectStream != null) {
+			return objectStream;
+		}
+
+		long[] entry = xref.get(number);
+		if (entry == null || entry[0] != 1) {
+			throw new IOException("No se encuentra el stream de objetos " + number);
+		}
+
+		Lexer lexer = new Lexer(buffer, (int) entry[1]);
+		lexer.readObjectHeader(number);
+		Map<String, Object> dictionary = asDictionary(lexer.parseObject());
+		if (dictionary == null) {
+			throw new IOException("El stream de objetos " + number + " no es valido");
+		}
+
+		byte[] data = decodeStream(buffer, lexer, dictionary);
+		objectStream = new ObjectStream(ByteBuffer.wrap(data), toInt(resolve(dictionary.get("N"))),
+				toInt(resolve(dictionary.get("First"))));
+		objectStreams.put(number, objectStream);
+		return objectStream;
+	}
+
+	/**
+	 * Lee y descomprime el stream que sigue al diccionario ya leido por el
+	 * analizador. Solo se soporta FlateDecode, con o sin predictor PNG.
+	 */
+	private byte[] decodeStream(ByteBuffer source, Lexer lexer, Map<String, Object> dictionary)
+			throws IOException {
+		lexer.skipWhitespace();
+		if (!lexer.nextKeywordIs("stream")) {
+			throw new IOException("Se esperaba un stream");
+		}
+		lexer.readToken();
+		if (lexer.peek() == '\r') {
+			lexer.position++;
+		}
+		if (lexer.peek() == '\n') {
+			lexer.position++;
+		}
+
+		int length = toInt(resolve(dictionary.get("Length")));
+		if (length < 0 || lexer.position + length > source.limit()) {
+			throw new IOException("Longitud de stream no valida");
+		}
+
+		byte[] raw = new byte[length];
+		ByteBuffer slice = source.duplicate();
+		slice.position(lexer.position);
+		slice.get(raw);
+
+		Object filter = resolve(dictionary.get("Filter"));
+		Object parameters = resolve(dictionary.get("DecodeParms"));
+
+		if (filter instanceof List) {
+			List<Object> filters = asArray(filter);
+			if (filters.isEmpty()) {
+				return raw;
+			}
+			if (filters.size() != 1) {
+				throw new IOException("Filtros encadenados no soportados");
+			}
+			filter = resolve(filters.get(0));
+			if (parameters instanceof List) {
+				parameters = resolve(asArray(parameters).get(0));
+			}
+		}
+
+		if (filter == null || filter == NULL) {
+			return raw;
+		}
+		if (!"FlateDecode".equals(filter)) {
+			throw new IOException("Filtro no soportado: " + filter);
+		}
+
+		byte[] data = inflate(raw);
+
+		Map<String, Object> decodeParms = asDictionary(parameters);
+		if (decodeParms != null) {
+			int predictor = decodeParms.containsKey("Predictor") ? toInt(decodeParms.get("Predictor")) : 1;
+			if (predictor >= 10) {
+				int columns = decodeParms.containsKey("Columns") ? toInt(decodeParms.get("Columns")) : 1;
+				data = decodePng(data, columns);
+			} else if (predictor != 1) {
+				throw new IOException("Predictor no soportado: " + predictor);
+			}
+		}
+
+		return data;
+	}
+
+	private static byte[] inflate(byte[] raw) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(raw);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length * 4);
+			byte[] chunk = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(chunk);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				out.write(chunk, 0, n);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Stream comprimido no valido", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/** Deshace el predictor PNG, con un byte por componente. */
+	private static byte[] decodePng(byte[] data, int columns) throws IOException {
+		int rowSize = columns + 1;
+		int rows = data.length / rowSize;
+		byte[] out = new byte[rows * columns];
+		byte[] previous = new byte[columns];
+
+		for (int r = 0; r < rows; r++) {
+			int type = data[r * rowSize] & 0xff;
+			int offset = r * columns;
+
+			for (int c = 0; c < columns; c++) {
+				int raw = data[r * rowSize + 1 + c] & 0xff;
+				int left = c > 0 ? out[offset + c - 1] & 0xff : 0;
+				int up = previous[c] & 0xff;
+				int upLeft = c > 0 ? previous[c - 1] & 0xff : 0;
+				int value;
+
+				switch (type) {
+				case 0:
+					value = raw;
+					break;
+				case 1:
+					value = raw + left;
+					break;
+				case 2:
+					value = raw + up;
+					break;
+				case 3:
+					value = raw + ((left + up) >> 1);
+					break;
+				case 4:
+					int p = left + up - upLeft;
+					int pa = Math.abs(p - left);
+					int pb = Math.abs(p - up);
+					int pc = Math.abs(p - upLeft);
+					value = raw + (pa <= pb && pa <= pc ? left : pb <= pc ? up : upLeft);
+					break;
+				default:
+					throw new IOException("Tipo de predictor PNG no valido: " + type);
+				}
+
+				out[offset + c] = (byte) value;
+			}
+
+			System.arraycopy(out, offset, previous, 0, columns);
+		}
+
+		return out;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> asDictionary(Object object) {
+		return object instanceof Map ? (Map<String, Object>) object : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object> asArray(Object object) {
+		return object instanceof List ? (List<Object>) object : null;
+	}
+
+	private static int toInt(Object object) throws IOException {
+		if (!(object instanceof Long)) {
+			throw new IOException("Se esperaba un entero: " + object);
+		}
+		return ((Long) object).intValue();
+	}
+
+	/** Referencia indirecta. */
+	private static final class Ref {
+
+		final int number;
+
+		Ref(int number) {
+			this.number = number;
+		}
+	}
+
+	/** Stream de objetos (PDF 1.5) ya descomprimido. */
+	private static final class ObjectStream {
+
+		private final ByteBuffer data;
+		private final int[] offsets;
+		private final int first;
+
+		ObjectStream(ByteBuffer data, int n, int first) throws IOException {
+			this.data = data;
+			this.first = first;
+			this.offsets = new int[n];
+
+			Lexer lexer = new Lexer(data, 0);
+			for (int i = 0; i < n; i++) {
+				lexer.readLong();
+				offsets[i] = (int) lexer.readLong();
+			}
+		}
+
+		Object getObject(int index) throws IOException {
+			if (index < 0 || index >= offsets.length) {
+				throw new IOException("Indice de stream de objetos no valido: " + index);
+			}
+			return new Lexer(data, first + offsets[index]).parseObject();
+		}
+	}
+
+	/**
+	 * Analizador lexico minimo de objetos PDF. Los nombres se devuelven como
+	 * String, los enteros como Long, los reales como Double, los diccionarios
+	 * como Map y los arreglos como List; las cadenas se saltan.
+	 */
+	private static final class Lexer {
+
+		private final ByteBuffer buffer;
+		private final int limit;
+		private int position;
+
+		Lexer(ByteBuffer buffer, int position) {
+			this.buffer = buffer;
+			this.limit = buffer.limit();
+			this.position = position;
+		}
+
+		int peek() {
+			return position < limit ? buffer.get(position) & 0xff : -1;
+		}
+
+		private int peek(int ahead) {
+			return position + ahead < limit ? buffer.get(position + ahead) & 0xff : -1;
+		}
+
+		private static boolean isWhitespace(int c) {
+			return c == 0 || c == 9 || c == 10 || c == 12 || c == 13 || c == 32;
+		}
+
+		private static boolean isDelimiter(int c) {
+			return c == '(' || c == ')' || c == '<' || c == '>' || c == '[' || c == ']' || c == '{' || c == '}'
+					|| c == '/' || c == '%';
+		}
+
+		private static boolean isRegular(int c) {
+			return c != -1 && !isWhitespace(c) && !isDelimiter(c);
+		}
+
+		void skipWhitespace() {
+			while (true) {
+				int c = peek();
+				if (isWhitespace(c)) {
+					position++;
+				} else if (c == '%') {
+					while (c != -1 && c != '\r' && c != '\n') {
+						position++;
+						c = peek();
+					}
+				} else {
+					return;
+				}
+			}
+		}
+
+		boolean nextKeywordIs(String keyword) {
+			for (int i = 0; i < keyword.length(); i++) {
+				if (peek(i) != keyword.charAt(i)) {
+					return false;
+				}
+			}
+			return !isRegular(peek(keyword.length()));
+		}
+
+		String readToken() throws IOException {
+			skipWhitespace();
+			int start = position;
+			while (isRegular(peek())) {
+				position++;
+			}
+			if (start == position) {
+				throw new IOException("Se esperaba un elemento en la posicion " + position);
+			}
+
+			char[] chars = new char[position - start];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) (buffer.get(start + i) & 0xff);
+			}
+			return new String(chars);
+		}
+
+		long readLong() throws IOException {
+			String token = readToken();
+			try {
+				return Long.parseLong(token);
+			} catch (NumberFormatException e) {
+				throw new IOException("Se esperaba un entero: " + token);
+			}
+		}
+
+		/** Lee "numero generacion obj", comprobando el numero si no es -1. */
+		void readObjectHeader(int number) throws IOException {
+			long actual = readLong();
+			if (number != -1 && actual != number) {
+				throw new IOException("Se esperaba el objeto " + number + " y se encontro " + actual);
+			}
+			readLong();
+			if (!"obj".equals(readToken())) {
+				throw new IOException("Se esperaba 'obj' para el objeto " + actual);
+			}
+		}
+
+		Object parseObject() throws IOException {
+			skipWhitespace();
+			int c = peek();
+
+			switch (c) {
+			case -1:
+				throw new IOException("Fin de archivo inesperado");
+			case '<':
+				if (peek(1) == '<') {
+					position += 2;
+					return parseDictionary();
+				}
+				skipHexString();
+				return STRING;
+			case '(':
+				skipLiteralString();
+				return STRING;
+			case '[':
+				position++;
+				return parseArray();
+			case '/':
+				position++;
+				return readName();
+			default:
+				if (c == '+' || c == '-' || c == '.' || (c >= '0' && c <= '9')) {
+					return parseNumberOrReference();
+				}
+
+				String keyword = readToken();
+				if ("true".equals(keyword)) {
+					return Boolean.TRUE;
+				}
+				if ("false".equals(keyword)) {
+					return Boolean.FALSE;
+				}
+				if ("null".equals(keyword)) {
+					return NULL;
+				}
+				throw new IOException("Elemento inesperado: " + keyword);
+			}
+		}
+
+		private Map<String, Object> parseDictionary() throws IOException {
+			Map<String, Object> dictionary = new LinkedHashMap<>();
+			while (true) {
+				skipWhitespace();
+				if (peek() == '>' && peek(1) == '>') {
+					position += 2;
+					return dictionary;
+				}
+				if (peek() != '/') {
+					throw new IOException("Se esperaba un nombre en la posicion " + position);
+				}
+				position++;
+				String key = readName();
+				dictionary.put(key, parseObject());
+			}
+		}
+
+		private List<Object> parseArray() throws IOException {
+			List<Object> array = new ArrayList<>();
+			while (true) {
+				skipWhitespace();
+				if (peek() == ']') {
+					position++;
+					return array;
+				}
+				array.add(parseObject());
+			}
+		}
+
+		private String readName() {
+			int start = position;
+			while (isRegular(peek())) {
+				position++;
+			}
+			char[] chars = new char[position - start];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) (buffer.get(start + i) & 0xff);
+			}
+			return new String(chars);
+		}
+
+		private Object parseNumberOrReference() throws IOException {
+			String token = readToken();
+
+			if (token.indexOf('.') >= 0) {
+				try {
+					return Double.valueOf(token);
+				} catch (NumberFormatException e) {
+					throw new IOException("Numero no valido: " + token);
+				}
+			}
+
+			long value;
+			try {
+				value = Long.parseLong(token);
+			} catch (NumberFormatException e) {
+				throw new IOException("Numero no valido: " + token);
+			}
+
+			// Referencia indirecta: "numero generacion R"
+			int mark = position;
+			skipWhitespace();
+			int c = peek();
+			if (value >= 0 && c >= '0' && c <= '9') {
+				String generation = readToken();
+				skipWhitespace();
+				if (peek() == 'R' && !isRegular(peek(1)) && isDigits(generation)) {
+					position++;
+					return new Ref((int) value);
+				}
+			}
+			position = mark;
+			return value;
+		}
+
+		private static boolean isDigits(String s) {
+			for (int i = 0; i < s.length(); i++) {
+				if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+					return false;
+				}
+			}
+			return !s.isEmpty();
+		}
+
+		private void skipHexString() throws IOException {
+			position++;
+			int c;
+			while ((c = peek()) != '>') {
+				if (c == -1) {
+					throw new IOException("Cadena hexadecimal sin terminar");
+				}
+				position++;
+			}
+			position++;
+		}
+
+		private void skipLiteralString() throws IOException {
+			position++;
+			int depth = 1;
+			while (depth > 0) {
+				int c = peek();
+				if (c == -1) {
+					throw new IOException("Cadena sin terminar");
+				}
+				position++;
+				if (c == '\\') {
+					position++;
+				} else if (c == '(') {
+					depth++;
+				} else if (c == ')') {
+					depth--;
+				}
+			}
+		}
+	}
+}
\ No newline at end of file
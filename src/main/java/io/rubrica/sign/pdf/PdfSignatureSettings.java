@@ -0,0 +1,238 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.io.IOException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.BaseFont;
+
+import io.rubrica.core.RubricaException;
+import io.rubrica.util.Utils;
+
+/**
+ * Parámetros de firma PDF ya interpretados, junto con los recursos de la
+ * apariencia que dependen solo del firmante. Es inmutable, por lo que puede
+ * compartirse entre varias firmas concurrentes con el mismo certificado.
+ */
+final class PdfSignatureSettings {
+
+	private static final Logger logger = Logger.getLogger(PdfSignatureSettings.class.getName());
+
+	private final Properties extraParams;
+	private final X509Certificate signerCert;
+	private final String reason;
+	private final String location;
+	private final String signTime;
+	private final Date signDate;
+	private final float fontSize;
+	private final String typeSig;
+	private final String infoQR;
+	private final int page;
+	private final Rectangle position;
+
+	// Recursos de la firma visible
+	private final String informacionCertificado;
+	private final String nombreFirmante;
+	private final BaseFont baseFont;
+	private final PdfQRCode qrCode;
+
+	PdfSignatureSettings(Certificate[] certChain, Properties xParams) throws RubricaException, IOException {
+		this.extraParams = new Properties();
+		if (xParams != null) {
+			this.extraParams.putAll(xParams);
+		}
+
+		this.signerCert = (X509Certificate) certChain[0];
+
+		// Motivo de la firma
+		this.reason = extraParams.getProperty(PDFSigner.SIGNING_REASON);
+
+		// Lugar de realizacion de la firma
+		this.location = extraParams.getProperty(PDFSigner.SIGNING_LOCATION);
+
+		// Fecha y hora de la firma, en formato ISO-8601
+		this.signTime = extraParams.getProperty(PDFSigner.SIGN_TIME);
+		this.signDate = signTime != null ? Utils.getSignTime(signTime) : null;
+
+		// Tamaño letra
+		float fontSize = 3;
+		try {
+			if (extraParams.getProperty(PDFSigner.FONT_SIZE) == null)
+				fontSize = 3;
+			else
+				fontSize = Float.parseFloat(extraParams.getProperty(PDFSigner.FONT_SIZE).trim());
+		} catch (final Exception e) {
+			logger.warning("Se ha indicado un tamaño de letra invalida ('"
+					+ extraParams.getProperty(PDFSigner.FONT_SIZE) + "'), se usara el tamaño por defecto: "
+					+ fontSize + " " + e);
+		}
+
+		// Tipo de firma (Información, QR)
+		String typeSig = extraParams.getProperty(PDFSigner.TYPE_SIG);
+		if (typeSig == null)
+			typeSig = "information1";
+		this.typeSig = typeSig;
+
+		if (typeSig.equals("QR") && extraParams.getProperty(PDFSigner.FONT_SIZE) == null)
+			fontSize = 4.5f;
+		this.fontSize = fontSize;
+
+		// Información QR
+		if (extraParams.getProperty(PDFSigner.INFO_QR) == null)
+			this.infoQR = "";
+		else
+			this.infoQR = extraParams.getProperty(PDFSigner.INFO_QR).trim();
+
+		// Pagina donde situar la firma visible
+		int page = 0;
+		try {
+			if (extraParams.getProperty(PDFSigner.LAST_PAGE) == null)
+				page = 0;
+			else
+				page = Integer.parseInt(extraParams.getProperty(PDFSigner.LAST_PAGE).trim());
+		} catch (final Exception e) {
+			logger.warning("Se ha indicado un numero de pagina invalido ('"
+					+ extraParams.getProperty(PDFSigner.LAST_PAGE) + "'), se usara la ultima pagina: " + e);
+		}
+		this.page = page;
+
+		this.position = PdfUtil.getPositionOnPage(extraParams);
+
+		if (position == null) {
+			this.informacionCertificado = null;
+			this.nombreFirmante = null;
+			this.baseFont = null;
+			this.qrCode = null;
+			return;
+		}
+
+		this.informacionCertificado = signerCert.getSubjectDN().getName();
+		this.nombreFirmante = (informacionCertificado.substring(informacionCertificado.lastIndexOf("CN=") + 3,
+				informacionCertificado.indexOf(","))).toUpperCase();
+
+		try {
+			this.baseFont = BaseFont.createFont();
+		} catch (DocumentException e) {
+			logger.severe("Error al crear la fuente de la firma: " + e);
+			throw new RubricaException("Error al crear la fuente de la firma", e);
+		}
+
+		if (typeSig.equals("QR")) {
+			this.qrCode = generateQR();
+		} else {
+			this.qrCode = null;
+		}
+	}
+
+	private PdfQRCode generateQR() {
+		String text = "FIRMADO POR: " + nombreFirmante.trim() + "\n";
+		text = text + "RAZON: " + reason + "\n";
+		text = text + "FECHA: " + signTime + "\n";
+		text = text + infoQR;
+
+		try {
+			return PdfQRCode.getInstance(text, true);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "No se ha podido generar el codigo QR de la firma", e);
+			return null;
+		}
+	}
+
+	Properties getExtraParams() {
+		return extraParams;
+	}
+
+	X509Certificate getSignerCert() {
+		return signerCert;
+	}
+
+	String getReason() {
+		return reason;
+	}
+
+	String getLocation() {
+		return location;
+	}
+
+	String getSignTime() {
+		return signTime;
+	}
+
+	/**
+	 * Fecha de firma indicada en los parámetros, o {@code null} si se debe usar
+	 * la fecha actual. Se devuelve una nueva instancia en cada llamada.
+	 */
+	Calendar getSignDate() {
+		if (signDate == null) {
+			return null;
+		}
+		GregorianCalendar calendar = new GregorianCalendar();
+		calendar.setTime(signDate);
+		return calendar;
+	}
+
+	float getFontSize() {
+		return fontSize;
+	}
+
+	String getTypeSig() {
+		return typeSig;
+	}
+
+	String getInfoQR() {
+		return infoQR;
+	}
+
+	int getPage() {
+		return page;
+	}
+
+	/**
+	 * Posicion de la firma visible, o {@code null} si la firma es invisible. Se
+	 * devuelve una copia en cada llamada.
+	 */
+	Rectangle getPosition() {
+		return position == null ? null : new Rectangle(position);
+	}
+
+	String getInformacionCertificado() {
+		return informacionCertificado;
+	}
+
+	String getNombreFirmante() {
+		return nombreFirmante;
+	}
+
+	BaseFont getBaseFont() {
+		return baseFont;
+	}
+
+	PdfQRCode getQrCode() {
+		return qrCode;
+	}
+}
\ No newline at end of file
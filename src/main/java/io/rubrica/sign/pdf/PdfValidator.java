@@ -0,0 +1,585 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.util.Store;
+
+import com.lowagie.text.pdf.AcroFields;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfDate;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfPKCS7;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfString;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import io.rubrica.certificate.CertPathUtils;
+import io.rubrica.certificate.ValidationResult;
+import io.rubrica.sign.InvalidFormatException;
+import io.rubrica.sign.SignValidity;
+import io.rubrica.sign.SignValidity.SIGN_DETAIL_TYPE;
+import io.rubrica.sign.SignValidity.VALIDITY_ERROR;
+import io.rubrica.sign.Validator;
+
+/**
+ * Valida todas las firmas de un documento PDF.
+ *
+ * El documento se lee una sola vez para extraer los diccionarios de firma; la
+ * verificacion de cada firma (integridad, sello de tiempo, ruta de
+ * certificacion, OCSP y CRL incluidos) se realiza en paralelo en el
+ * {@link ExecutorService} indicado. Los sellos de tiempo de documento
+ * (ETSI.RFC3161) no se consideran firmas.
+ */
+public class PdfValidator implements Validator {
+
+	private static final Logger logger = Logger.getLogger(PdfValidator.class.getName());
+
+	private static final String PDF_FILE_HEADER = "%PDF-";
+	private static final PdfName PDFNAME_ETSI_RFC3161 = new PdfName("ETSI.RFC3161");
+	private static final PdfName PDFNAME_DOCTIMESTAMP = new PdfName("DocTimeStamp");
+
+	private final Set<TrustAnchor> trustAnchors;
+	private final ExecutorService executor;
+
+	/**
+	 * Crea un validador que usa las CA raiz soportadas y el pool comun de
+	 * {@link ForkJoinPool}.
+	 */
+	public PdfValidator() {
+		this(CertPathUtils.getTrustAnchors(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Crea un validador.
+	 *
+	 * @param trustAnchors
+	 *            CA raiz de confianza
+	 * @param executor
+	 *            Pool de hilos en donde se verifican las firmas; no se cierra
+	 *            al terminar
+	 */
+	public PdfValidator(Set<TrustAnchor> trustAnchors, ExecutorService executor) {
+		if (trustAnchors == null || trustAnchors.isEmpty()) {
+			throw new IllegalArgumentException("Se debe indicar al menos una CA raiz de confianza");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("El pool de hilos no puede ser nulo");
+		}
+
+		this.trustAnchors = trustAnchors;
+		this.executor = executor;
+	}
+
+	/**
+	 * Valida todas las firmas del documento. El documento es valido si tiene al
+	 * menos una firma y todas son validas; en caso contrario se devuelve el error
+	 * de la primera firma invalida. Que una firma no cubra todo el documento no
+	 * la invalida, pero se indica en {@link #verify(byte[])}.
+	 */
+	@Override
+	public SignValidity validate(final byte[] sign) throws IOException {
+		List<PdfSignatureReport> reports;
+
+		try {
+			reports = verify(sign);
+		} catch (InvalidFormatException e) {
+			return new SignValidity(SIGN_DETAIL_TYPE.FAIL, VALIDITY_ERROR.UNKOWN_SIGNATURE_FORMAT);
+		}
+
+		if (reports.isEmpty()) {
+			return new SignValidity(SIGN_DETAIL_TYPE.FAIL, VALIDITY_ERROR.NO_SIGN);
+		}
+
+		for (PdfSignatureReport report : reports) {
+			if (!report.isValid()) {
+				return new SignValidity(SIGN_DETAIL_TYPE.FAIL, report.getError());
+			}
+		}
+
+		return new SignValidity(SIGN_DETAIL_TYPE.OK, null);
+	}
+
+	/**
+	 * Verifica todas las firmas del documento.
+	 *
+	 * @param pdf
+	 *            Documento PDF firmado
+	 * @return Resultado de cada firma, en el orden en que aparecen en el
+	 *         documento
+	 * @throws InvalidFormatException
+	 *             Si los datos no son un PDF
+	 * @throws IOException
+	 *             Si se interrumpe la verificacion
+	 */
+	public List<PdfSignatureReport> verify(final byte[] pdf) throws InvalidFormatException, IOException {
+		if (pdf == null || pdf.length < PDF_FILE_HEADER.length()
+				|| !PDF_FILE_HEADER.equals(new String(pdf, 0, PDF_FILE_HEADER.length(), StandardCharsets.US_ASCII))) {
+			throw new InvalidFormatException("El archivo no es un PDF");
+		}
+
+		List<PdfSignatureReport> reports = new ArrayList<>();
+		List<Future<?>> futures = new ArrayList<>();
+
+		PdfReader reader;
+
+		try {
+			reader = new PdfReader(new RandomAccessFileOrArray(pdf), null);
+		} catch (Exception e) {
+			logger.severe("No se ha podido leer el PDF: " + e);
+			throw new InvalidFormatException("No se ha podido leer el PDF", e);
+		}
+
+		try {
+			AcroFields af = reader.getAcroFields();
+			int totalRevisions = af.getTotalRevisions();
+
+			@SuppressWarnings("unchecked")
+			List<String> names = af.getSignatureNames();
+
+			for (String name : names) {
+				PdfDictionary dictionary = af.getSignatureDictionary(name);
+				PdfName subFilter = dictionary.getAsName(PdfName.SUBFILTER);
+
+				if (PDFNAME_ETSI_RFC3161.equals(subFilter) || PDFNAME_DOCTIMESTAMP.equals(subFilter)) {
+					// Ignoramos los sellos
+					continue;
+				}
+
+				PdfSignatureReport report = new PdfSignatureReport(name, af.getRevision(name), totalRevisions,
+						af.signatureCoversWholeDocument(name));
+				reports.add(report);
+
+				// Los objetos del PDF se leen aqui, en serie; las tareas solo
+				// usan los valores extraidos y el arreglo de bytes compartido
+				SignatureData data;
+				try {
+					data = new SignatureData(dictionary);
+				} catch (RuntimeException e) {
+					logger.warning("La firma " + name + " esta corrupta: " + e);
+					report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "Diccionario de firma invalido: " + e);
+					continue;
+				}
+
+				futures.add(executor.submit(() -> verifySignature(pdf, data, report)));
+			}
+		} finally {
+			reader.close();
+		}
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// verifySignature captura sus propios errores
+				logger.severe("Error inesperado al verificar una firma: " + e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Se ha interrumpido la verificacion de las firmas");
+			}
+		}
+
+		return reports;
+	}
+
+	private void verifySignature(byte[] pdf, SignatureData data, PdfSignatureReport report) {
+		try {
+			PdfPKCS7 pkcs7;
+
+			try {
+				if (PdfName.ADBE_X509_RSA_SHA1.equals(data.subFilter)) {
+					pkcs7 = new PdfPKCS7(data.contents, data.cert, null);
+				} else {
+					pkcs7 = new PdfPKCS7(data.contents, null);
+				}
+			} catch (RuntimeException e) {
+				logger.warning("La firma " + report.getName() + " esta corrupta: " + e);
+				report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "No se ha podido leer la firma: " + e);
+				return;
+			}
+
+			if (data.signDate != null) {
+				pkcs7.setSignDate(PdfDate.decode(data.signDate));
+			}
+
+			// Integridad
+			if (!updateByteRange(pkcs7, pdf, data.byteRange)) {
+				report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "El rango de bytes firmado no es valido");
+				return;
+			}
+
+			report.integrityValid = pkcs7.verify();
+			if (!report.integrityValid) {
+				report.fail(VALIDITY_ERROR.NO_MATCH_DATA, "El documento ha sido modificado despues de la firma");
+			}
+
+			Certificate[] chain = pkcs7.getSignCertificateChain();
+			report.certificates = new X509Certificate[chain.length];
+			for (int i = 0; i < chain.length; i++) {
+				report.certificates[i] = (X509Certificate) chain[i];
+			}
+
+			X509Certificate signer = pkcs7.getSigningCertificate();
+			report.signingTime = pkcs7.getSignDate() == null ? null : pkcs7.getSignDate().getTime();
+
+			// Sello de tiempo
+			if (pkcs7.getTimeStampToken() != null) {
+				report.timeStamped = true;
+				report.timeStampDate = pkcs7.getTimeStampDate().getTime();
+				if (!pkcs7.verifyTimestampImprint()) {
+					report.fail(VALIDITY_ERROR.NO_MATCH_DATA, "El sello de tiempo no corresponde a la firma");
+				} else {
+					ValidationResult tsaResult = verifyTimeStamp(pkcs7.getTimeStampToken());
+					report.timeStampValid = tsaResult == ValidationResult.VALID;
+					switch (tsaResult) {
+					case VALID:
+						break;
+					case CORRUPT:
+						report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "La firma del sello de tiempo no es valida");
+						break;
+					case CA_NOT_SUPPORTED:
+						report.fail(VALIDITY_ERROR.CA_NOT_SUPPORTED,
+								"El certificado de la TSA no es de una CA soportada");
+						break;
+					default:
+						report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM,
+								"No se ha podido validar el certificado de la TSA: " + tsaResult);
+					}
+				}
+			}
+
+			// Solo un sello de tiempo verificado acredita la fecha de la firma;
+			// la fecha declarada por el firmante (/M) no se usa
+			Date date = report.timeStampValid ? report.timeStampDate : new Date();
+
+			// Ruta de certificacion
+			report.certPathResult = CertPathUtils.verifyCertPath(signer, Arrays.asList(chain), date, trustAnchors);
+			switch (report.certPathResult) {
+			case VALID:
+				break;
+			case EXPIRED:
+				report.fail(VALIDITY_ERROR.CERTIFICATE_EXPIRED, "El certificado estaba caducado en la fecha de firma");
+				break;
+			case NOT_YET_VALID:
+				report.fail(VALIDITY_ERROR.CERTIFICATE_NOT_VALID_YET,
+						"El certificado aun no era valido en la fecha de firma");
+				break;
+			case CA_NOT_SUPPORTED:
+				report.fail(VALIDITY_ERROR.CA_NOT_SUPPORTED, "El certificado no es de una CA soportada");
+				break;
+			default:
+				report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM,
+						"No se ha podido validar la ruta de certificacion: " + report.certPathResult);
+			}
+
+			X509Certificate issuer = findIssuer(signer, report.certificates);
+
+			// OCSP incluido en la firma
+			BasicOCSPResp ocsp = pkcs7.getOcsp();
+			if (ocsp != null) {
+				report.ocspResult = verifyOcsp(ocsp, signer, issuer);
+				if (report.ocspResult != ValidationResult.VALID) {
+					report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM,
+							"La respuesta OCSP incluida no es valida: " + report.ocspResult);
+				}
+			}
+
+			// CRL incluidas en la firma
+			Collection<?> crls = pkcs7.getCRLs();
+			if (crls != null && !crls.isEmpty()) {
+				report.crlResult = verifyCrls(signer, issuer, crls, date);
+				if (report.crlResult == ValidationResult.REVOKED) {
+					report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM, "El certificado esta revocado en la CRL incluida");
+				} else if (report.crlResult == ValidationResult.CORRUPT) {
+					report.fail(VALIDITY_ERROR.CRL_PROBLEM, "La CRL incluida no esta firmada por el emisor");
+				}
+			}
+		} catch (Exception e) {
+			logger.warning("No se ha podido verificar la firma " + report.getName() + ": " + e);
+			report.fail(VALIDITY_ERROR.UNKOWN_ERROR, "Error al verificar la firma: " + e);
+		}
+	}
+
+	private static boolean updateByteRange(PdfPKCS7 pkcs7, byte[] pdf, int[] byteRange) throws Exception {
+		if (byteRange.length == 0 || byteRange.length % 2 != 0) {
+			return false;
+		}
+
+		for (int i = 0; i < byteRange.length; i += 2) {
+			int start = byteRange[i];
+			int length = byteRange[i + 1];
+			if (start < 0 || length < 0 || start > pdf.length - length) {
+				return false;
+			}
+			pkcs7.update(pdf, start, length);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Verifica la firma del sello de tiempo y la ruta de certificacion de la
+	 * TSA en la fecha del sello.
+	 */
+	private ValidationResult verifyTimeStamp(TimeStampToken token) {
+		try {
+			// BouncyCastle 1.59 devuelve el almacen sin tipo
+			@SuppressWarnings("unchecked")
+			Store<X509CertificateHolder> certificates = token.getCertificates();
+
+			JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+			List<X509Certificate> chain = new ArrayList<>();
+			X509Certificate tsaCert = null;
+			for (X509CertificateHolder holder : certificates.getMatches(null)) {
+				X509Certificate cert = converter.getCertificate(holder);
+				chain.add(cert);
+				if (tsaCert == null && token.getSID().match(holder)) {
+					tsaCert = cert;
+				}
+			}
+
+			if (tsaCert == null) {
+				return ValidationResult.CORRUPT;
+			}
+
+			// Comprueba la firma, el uso extendido de sellado de tiempo y la
+			// validez del certificado en la fecha del sello
+			token.validate(new JcaSimpleSignerInfoVerifierBuilder().build(tsaCert));
+
+			return CertPathUtils.verifyCertPath(tsaCert, chain, token.getTimeStampInfo().getGenTime(),
+					trustAnchors);
+		} catch (Exception e) {
+			logger.warning("No se ha podido verificar el sello de tiempo: " + e);
+			return ValidationResult.CORRUPT;
+		}
+	}
+
+	/**
+	 * Verifica que la respuesta OCSP este firmada por el emisor del certificado
+	 * o por un respondedor delegado por el, y obtiene el estado que indica para
+	 * el certificado firmante.
+	 */
+	private static ValidationResult verifyOcsp(BasicOCSPResp ocsp, X509Certificate signer, X509Certificate issuer)
+			throws Exception {
+		if (issuer == null) {
+			return ValidationResult.CA_NOT_SUPPORTED;
+		}
+
+		JcaContentVerifierProviderBuilder builder = new JcaContentVerifierProviderBuilder();
+		List<PublicKey> responderKeys = new ArrayList<>();
+		responderKeys.add(issuer.getPublicKey());
+
+		for (X509CertificateHolder holder : ocsp.getCerts()) {
+			X509Certificate responder = new JcaX509CertificateConverter().getCertificate(holder);
+			if (isDelegatedResponder(responder, issuer, ocsp.getProducedAt())) {
+				responderKeys.add(responder.getPublicKey());
+			}
+		}
+
+		boolean signed = false;
+		for (PublicKey key : responderKeys) {
+			if (ocsp.isSignatureValid(builder.build(key))) {
+				signed = true;
+				break;
+			}
+		}
+
+		if (!signed) {
+			return ValidationResult.CORRUPT;
+		}
+
+		// Solo cuentan las respuestas cuyo CertID es el del firmante
+		X509CertificateHolder issuerHolder = new JcaX509CertificateHolder(issuer);
+		DigestCalculatorProvider digestCalculators = new JcaDigestCalculatorProviderBuilder().build();
+		ValidationResult result = ValidationResult.UNKNOWN;
+
+		for (SingleResp response : ocsp.getResponses()) {
+			CertificateID id = response.getCertID();
+			if (!id.getSerialNumber().equals(signer.getSerialNumber())
+					|| !id.matchesIssuer(issuerHolder, digestCalculators)) {
+				continue;
+			}
+
+			Object status = response.getCertStatus();
+			if (status instanceof RevokedStatus) {
+				return ValidationResult.REVOKED;
+			}
+			if (status == CertificateStatus.GOOD) {
+				result = ValidationResult.VALID;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Indica si un certificado incluido en la respuesta OCSP es un respondedor
+	 * delegado por el emisor: emitido y firmado por el, vigente al generar la
+	 * respuesta y con el uso extendido id-kp-OCSPSigning.
+	 */
+	private static boolean isDelegatedResponder(X509Certificate responder, X509Certificate issuer,
+			Date producedAt) {
+		if (!responder.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+			return false;
+		}
+
+		try {
+			responder.verify(issuer.getPublicKey());
+			responder.checkValidity(producedAt);
+			List<String> extendedKeyUsage = responder.getExtendedKeyUsage();
+			return extendedKeyUsage != null && extendedKeyUsage.contains(KeyPurposeId.id_kp_OCSPSigning.getId());
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static ValidationResult verifyCrls(X509Certificate signer, X509Certificate issuer, Collection<?> crls,
+			Date date) {
+		// Sin el emisor no se puede comprobar la firma de las CRL
+		if (issuer == null) {
+			return ValidationResult.UNKNOWN;
+		}
+
+		boolean found = false;
+
+		for (Object o : crls) {
+			if (!(o instanceof X509CRL)) {
+				continue;
+			}
+
+			X509CRL crl = (X509CRL) o;
+			if (!crl.getIssuerX500Principal().equals(signer.getIssuerX500Principal())) {
+				continue;
+			}
+
+			try {
+				crl.verify(issuer.getPublicKey());
+			} catch (Exception e) {
+				return ValidationResult.CORRUPT;
+			}
+
+			found = true;
+			X509CRLEntry entry = crl.getRevokedCertificate(signer);
+			if (entry != null && !entry.getRevocationDate().after(date)) {
+				return ValidationResult.REVOKED;
+			}
+		}
+
+		return found ? ValidationResult.VALID : ValidationResult.UNKNOWN;
+	}
+
+	/**
+	 * Busca el certificado emisor en la cadena de la firma y, si no esta, entre
+	 * las CA conocidas.
+	 */
+	private X509Certificate findIssuer(X509Certificate cert, X509Certificate[] chain) {
+		List<X509Certificate> candidates = new ArrayList<>(Arrays.asList(chain));
+		candidates.addAll(CertPathUtils.getIntermediateCertificates());
+		for (TrustAnchor anchor : trustAnchors) {
+			if (anchor.getTrustedCert() != null) {
+				candidates.add(anchor.getTrustedCert());
+			}
+		}
+
+		for (X509Certificate candidate : candidates) {
+			if (candidate.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+				try {
+					cert.verify(candidate.getPublicKey());
+					return candidate;
+				} catch (Exception e) {
+					// No es el emisor, se sigue buscando
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Valores de un diccionario de firma necesarios para verificarla, leidos
+	 * antes de liberar el PdfReader.
+	 */
+	private static final class SignatureData {
+
+		private final PdfName subFilter;
+		private final byte[] contents;
+		private final byte[] cert;
+		private final int[] byteRange;
+		private final String signDate;
+
+		SignatureData(PdfDictionary dictionary) {
+			this.subFilter = dictionary.getAsName(PdfName.SUBFILTER);
+
+			PdfString contents = dictionary.getAsString(PdfName.CONTENTS);
+			if (contents == null) {
+				throw new IllegalArgumentException("La firma no tiene contenido");
+			}
+			this.contents = contents.getOriginalBytes();
+
+			PdfString cert = dictionary.getAsString(PdfName.CERT);
+			this.cert = cert == null ? null : cert.getBytes();
+
+			PdfArray range = dictionary.getAsArray(PdfName.BYTERANGE);
+			if (range == null) {
+				throw new IllegalArgumentException("La firma no tiene rango de bytes");
+			}
+			this.byteRange = new int[range.size()];
+			for (int i = 0; i < byteRange.length; i++) {
+				byteRange[i] = range.getAsNumber(i).intValue();
+			}
+
+			PdfString m = dictionary.getAsString(PdfName.M);
+			this.signDate = m == null ? null : m.toString();
+		}
+	}
+}
\ No newline at end of file
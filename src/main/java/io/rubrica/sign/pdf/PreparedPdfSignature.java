@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSignatureAppearance;
+import com.lowagie.text.pdf.TSAClient;
+
+/**
+ * Firma PDF preparada por {@link PDFSigner#prepare}, con el espacio para el
+ * PKCS#7 reservado y pendiente de completar con una firma externa.
+ */
+public class PreparedPdfSignature {
+
+	private final PdfReader pdfReader;
+	private final PdfSignatureAppearance signatureAppearance;
+	private final ByteArrayOutputStream output;
+	private final String hashAlgorithm;
+	private final Calendar signDate;
+	private final byte[] digest;
+	private final byte[] signedAttributes;
+	private final int contentsSize;
+	private final TSAClient tsaClient;
+
+	PreparedPdfSignature(PdfReader pdfReader, PdfSignatureAppearance signatureAppearance,
+			ByteArrayOutputStream output, String hashAlgorithm, Calendar signDate, byte[] digest,
+			byte[] signedAttributes, int contentsSize, TSAClient tsaClient) {
+		this.pdfReader = pdfReader;
+		this.signatureAppearance = signatureAppearance;
+		this.output = output;
+		this.hashAlgorithm = hashAlgorithm;
+		this.signDate = signDate;
+		this.digest = digest;
+		this.signedAttributes = signedAttributes;
+		this.contentsSize = contentsSize;
+		this.tsaClient = tsaClient;
+	}
+
+	/**
+	 * Obtiene la huella digital de los rangos firmados del PDF.
+	 *
+	 * @return Huella digital del PDF
+	 */
+	public byte[] getDigest() {
+		return this.digest.clone();
+	}
+
+	/**
+	 * Obtiene los atributos firmados (codificados en DER) que deben firmarse
+	 * externamente.
+	 *
+	 * @return Atributos firmados
+	 */
+	public byte[] getSignedAttributes() {
+		return this.signedAttributes.clone();
+	}
+
+	/**
+	 * Obtiene el algoritmo de huella digital utilizado.
+	 *
+	 * @return Algoritmo de huella digital
+	 */
+	public String getHashAlgorithm() {
+		return this.hashAlgorithm;
+	}
+
+	Calendar getSignDate() {
+		return this.signDate;
+	}
+
+	PdfReader getPdfReader() {
+		return this.pdfReader;
+	}
+
+	PdfSignatureAppearance getSignatureAppearance() {
+		return this.signatureAppearance;
+	}
+
+	ByteArrayOutputStream getOutput() {
+		return this.output;
+	}
+
+	int getContentsSize() {
+		return this.contentsSize;
+	}
+
+	TSAClient getTsaClient() {
+		return this.tsaClient;
+	}
+}
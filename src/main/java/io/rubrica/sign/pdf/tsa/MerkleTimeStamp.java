@@ -0,0 +1,269 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf.tsa;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+
+/**
+ * Sello de tiempo de un documento obtenido en lote mediante un arbol de Merkle.
+ *
+ * Contiene la huella del documento, el camino de hashes hermanos hasta la raiz
+ * del arbol y el sello de tiempo (RFC 3161) de esa raiz. Se guarda junto al
+ * documento con {@link #getEncoded()}, en DER:
+ *
+ * <pre>
+ * MerkleTimeStamp ::= SEQUENCE {
+ *   version        INTEGER (1),
+ *   hashAlgorithm  OBJECT IDENTIFIER,
+ *   imprint        OCTET STRING,
+ *   path           SEQUENCE OF SEQUENCE { left BOOLEAN, hash OCTET STRING },
+ *   timeStampToken ContentInfo }
+ * </pre>
+ *
+ * Las hojas se calculan como H(0x00 || huella) y los nodos como H(0x01 ||
+ * izquierdo || derecho), para que una hoja no pueda hacerse pasar por un nodo.
+ */
+public final class MerkleTimeStamp {
+
+	private static final int VERSION = 1;
+
+	static final byte LEAF_PREFIX = 0x00;
+	static final byte NODE_PREFIX = 0x01;
+
+	private final ASN1ObjectIdentifier hashAlgorithm;
+	private final byte[] imprint;
+	private final List<PathNode> path;
+	private final TimeStampToken timeStampToken;
+
+	MerkleTimeStamp(ASN1ObjectIdentifier hashAlgorithm, byte[] imprint, List<PathNode> path,
+			TimeStampToken timeStampToken) {
+		this.hashAlgorithm = hashAlgorithm;
+		this.imprint = imprint.clone();
+		this.path = Collections.unmodifiableList(new ArrayList<>(path));
+		this.timeStampToken = timeStampToken;
+	}
+
+	/**
+	 * Lee un sello codificado con {@link #getEncoded()}.
+	 *
+	 * @param encoded
+	 *            Sello codificado en DER
+	 * @return Sello de tiempo
+	 * @throws IOException
+	 *             Si el sello no tiene un formato valido
+	 */
+	public static MerkleTimeStamp getInstance(byte[] encoded) throws IOException {
+		try {
+			ASN1Sequence seq = ASN1Sequence.getInstance(ASN1Primitive.fromByteArray(encoded));
+			int version = ASN1Integer.getInstance(seq.getObjectAt(0)).getValue().intValue();
+			if (version != VERSION) {
+				throw new IOException("Version de sello Merkle no soportada: " + version);
+			}
+
+			ASN1ObjectIdentifier hashAlgorithm = ASN1ObjectIdentifier.getInstance(seq.getObjectAt(1));
+			byte[] imprint = ASN1OctetString.getInstance(seq.getObjectAt(2)).getOctets();
+
+			List<PathNode> path = new ArrayList<>();
+			for (Object o : ASN1Sequence.getInstance(seq.getObjectAt(3))) {
+				ASN1Sequence node = ASN1Sequence.getInstance(o);
+				path.add(new PathNode(ASN1Boolean.getInstance(node.getObjectAt(0)).isTrue(),
+						ASN1OctetString.getInstance(node.getObjectAt(1)).getOctets()));
+			}
+
+			TimeStampToken token = new TimeStampToken(
+					new CMSSignedData(ContentInfo.getInstance(seq.getObjectAt(4))));
+
+			return new MerkleTimeStamp(hashAlgorithm, imprint, path, token);
+		} catch (IllegalArgumentException | ClassCastException | IndexOutOfBoundsException | CMSException
+				| TSPException e) {
+			throw new IOException("El sello Merkle no tiene un formato valido", e);
+		}
+	}
+
+	/**
+	 * Codifica el sello en DER.
+	 *
+	 * @return Sello codificado
+	 * @throws IOException
+	 *             Si no se puede codificar el sello de tiempo
+	 */
+	public byte[] getEncoded() throws IOException {
+		ASN1EncodableVector nodes = new ASN1EncodableVector();
+		for (PathNode node : path) {
+			ASN1EncodableVector v = new ASN1EncodableVector();
+			v.add(ASN1Boolean.getInstance(node.left));
+			v.add(new DEROctetString(node.hash));
+			nodes.add(new DERSequence(v));
+		}
+
+		ASN1EncodableVector v = new ASN1EncodableVector();
+		v.add(new ASN1Integer(VERSION));
+		v.add(hashAlgorithm);
+		v.add(new DEROctetString(imprint));
+		v.add(new DERSequence(nodes));
+		v.add(ASN1Primitive.fromByteArray(timeStampToken.getEncoded()));
+		return new DERSequence(v).getEncoded("DER");
+	}
+
+	/**
+	 * Obtiene la huella del documento sellado.
+	 *
+	 * @return Huella del documento
+	 */
+	public byte[] getImprint() {
+		return imprint.clone();
+	}
+
+	/**
+	 * Obtiene el sello de tiempo de la raiz del arbol, compartido por todo el
+	 * lote.
+	 *
+	 * @return Sello de tiempo RFC 3161
+	 */
+	public TimeStampToken getTimeStampToken() {
+		return timeStampToken;
+	}
+
+	/**
+	 * Obtiene la fecha del sello de tiempo.
+	 *
+	 * @return Fecha del sello
+	 */
+	public Date getGenTime() {
+		return timeStampToken.getTimeStampInfo().getGenTime();
+	}
+
+	/**
+	 * Obtiene el numero de niveles entre el documento y la raiz del arbol.
+	 *
+	 * @return Longitud del camino
+	 */
+	public int getPathLength() {
+		return path.size();
+	}
+
+	/**
+	 * Comprueba que la huella corresponde a este sello: reconstruye la raiz del
+	 * arbol a partir de la huella y del camino, y la compara con la huella
+	 * sellada por la TSA. No verifica la firma de la TSA.
+	 *
+	 * @param documentImprint
+	 *            Huella del documento
+	 * @return {@code true} si la huella esta incluida en el sello
+	 */
+	public boolean verify(byte[] documentImprint) {
+		if (!Arrays.equals(imprint, documentImprint)) {
+			return false;
+		}
+
+		if (!hashAlgorithm.equals(timeStampToken.getTimeStampInfo().getMessageImprintAlgOID())) {
+			return false;
+		}
+
+		byte[] root;
+		try {
+			root = computeRoot();
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+
+		return MessageDigest.isEqual(root, timeStampToken.getTimeStampInfo().getMessageImprintDigest());
+	}
+
+	/**
+	 * Comprueba que la huella corresponde a este sello y que el sello esta
+	 * firmado por la TSA indicada.
+	 *
+	 * @param documentImprint
+	 *            Huella del documento
+	 * @param tsaCertificate
+	 *            Certificado de la TSA
+	 * @return {@code true} si la huella esta incluida en un sello valido
+	 */
+	public boolean verify(byte[] documentImprint, X509Certificate tsaCertificate) {
+		if (!verify(documentImprint)) {
+			return false;
+		}
+
+		try {
+			timeStampToken.validate(new JcaSimpleSignerInfoVerifierBuilder().build(tsaCertificate));
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private byte[] computeRoot() throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance(hashAlgorithm.getId());
+
+		md.update(LEAF_PREFIX);
+		byte[] hash = md.digest(imprint);
+
+		for (PathNode node : path) {
+			md.update(NODE_PREFIX);
+			if (node.left) {
+				md.update(node.hash);
+				hash = md.digest(hash);
+			} else {
+				md.update(hash);
+				hash = md.digest(node.hash);
+			}
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Hash hermano en el camino hacia la raiz.
+	 */
+	static final class PathNode {
+
+		/** Si el hermano esta a la izquierda del nodo actual. */
+		final boolean left;
+		final byte[] hash;
+
+		PathNode(boolean left, byte[] hash) {
+			this.left = left;
+			this.hash = hash;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf.tsa;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+
+import io.rubrica.sign.pdf.tsa.MerkleTimeStamp.PathNode;
+
+/**
+ * Sella en lote las huellas de varios documentos con una sola peticion a la
+ * TSA. Las huellas se agrupan en un arbol de Merkle (SHA-256), se sella la
+ * raiz, y cada documento recibe un {@link MerkleTimeStamp} con su camino hasta
+ * la raiz y el sello compartido.
+ */
+public class MerkleTimeStamper {
+
+	private static final ASN1ObjectIdentifier HASH_ALGORITHM = NISTObjectIdentifiers.id_sha256;
+
+	private final TSAClientBouncyCastleWithOid tsaClient;
+
+	public MerkleTimeStamper(TSAClientBouncyCastleWithOid tsaClient) {
+		if (tsaClient == null) {
+			throw new IllegalArgumentException("El cliente TSA no puede ser nulo");
+		}
+		this.tsaClient = tsaClient;
+	}
+
+	/**
+	 * Sella un lote de huellas.
+	 *
+	 * @param imprints
+	 *            Huellas digitales de los documentos
+	 * @return Sello de cada documento, en el orden de entrada
+	 * @throws IOException
+	 *             Si no se puede obtener el sello de la TSA
+	 */
+	public List<MerkleTimeStamp> timeStamp(List<byte[]> imprints) throws IOException {
+		if (imprints == null || imprints.isEmpty()) {
+			throw new IllegalArgumentException("Se debe indicar al menos una huella");
+		}
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(HASH_ALGORITHM.getId());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int n = imprints.size();
+
+		// Niveles del arbol, desde las hojas hasta la raiz
+		List<byte[][]> levels = new ArrayList<>();
+		byte[][] level = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			md.update(MerkleTimeStamp.LEAF_PREFIX);
+			level[i] = md.digest(imprints.get(i));
+		}
+		levels.add(level);
+
+		while (level.length > 1) {
+			byte[][] parent = new byte[(level.length + 1) / 2][];
+			for (int i = 0; i < level.length / 2; i++) {
+				md.update(MerkleTimeStamp.NODE_PREFIX);
+				md.update(level[2 * i]);
+				parent[i] = md.digest(level[2 * i + 1]);
+			}
+			// Un nodo sin hermano sube sin cambios
+			if (level.length % 2 != 0) {
+				parent[parent.length - 1] = level[level.length - 1];
+			}
+			levels.add(parent);
+			level = parent;
+		}
+
+		TimeStampToken token;
+		try {
+			token = new TimeStampToken(new CMSSignedData(tsaClient.getTimeStampToken(level[0])));
+		} catch (TSPException | CMSException e) {
+			throw new IOException("No se ha podido obtener el sello de tiempo del lote", e);
+		}
+
+		List<MerkleTimeStamp> timeStamps = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			List<PathNode> path = new ArrayList<>();
+			int index = i;
+			for (int l = 0; l < levels.size() - 1; l++) {
+				byte[][] current = levels.get(l);
+				int sibling = index ^ 1;
+				if (sibling < current.length) {
+					path.add(new PathNode(sibling < index, current[sibling]));
+				}
+				index /= 2;
+			}
+			timeStamps.add(new MerkleTimeStamp(HASH_ALGORITHM, imprints.get(i), path, token));
+		}
+
+		return timeStamps;
+	}
+}
\ No newline at end of file
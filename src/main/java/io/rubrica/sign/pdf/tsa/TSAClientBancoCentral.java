@@ -24,7 +24,6 @@ import com.lowagie.text.pdf.TSAClient;
  * Banco Central del Ecuador.
  *
  * @author Ricardo Arguello <ricardo.arguello@soportelibre.com>
- * @deprecated
  */
 public class TSAClientBancoCentral extends TSAClientBouncyCastleWithOid implements TSAClient {
 
@@ -32,7 +31,6 @@ public class TSAClientBancoCentral extends TSAClientBouncyCastleWithOid implemen
 	private static final String OID = "1.3.6.1.4.1.37947.4.10";
 
 	public TSAClientBancoCentral(String url) {
-		// super(url, OID);
-		super(url);
+		super(url, OID);
 	}
 }
\ No newline at end of file
@@ -18,57 +18,84 @@
 package io.rubrica.sign.pdf.tsa;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.cmp.PKIFailureInfo;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
 import org.bouncycastle.tsp.TSPException;
 import org.bouncycastle.tsp.TimeStampRequest;
 import org.bouncycastle.tsp.TimeStampRequestGenerator;
 import org.bouncycastle.tsp.TimeStampResponse;
 import org.bouncycastle.tsp.TimeStampToken;
-import org.bouncycastle.tsp.TimeStampTokenInfo;
 
-import com.lowagie.text.error_messages.MessageLocalization;
 import com.lowagie.text.pdf.TSAClient;
 import com.lowagie.text.pdf.TSAClientBouncyCastle;
 
+import io.rubrica.util.Utils;
+
 /**
- * Implementacion de TSAClient que permite establecer un Policy OID para su
- * utilizacion. Extiende de TSAClientBouncyCastle.
+ * Implementacion de TSAClient (RFC 3161) que permite establecer un Policy OID
+ * para su utilizacion. Extiende de TSAClientBouncyCastle.
+ *
+ * Las peticiones se envian por HTTP reutilizando las conexiones persistentes
+ * (keep-alive) de {@link HttpURLConnection}, que las devuelve al pool cuando
+ * la respuesta se lee completa. Cada peticion lleva un nonce aleatorio, y el
+ * tamaño estimado del sello se ajusta al mayor sello recibido, para no
+ * reservar en la firma mas espacio del necesario. Es seguro usar una misma
+ * instancia desde varios hilos.
  *
  * @author Ricardo Arguello <ricardo.arguello@soportelibre.com>
- * @deprecated
  */
 public class TSAClientBouncyCastleWithOid extends TSAClientBouncyCastle implements TSAClient {
 
 	/** The Logger instance. */
 	private static final Logger logger = Logger.getLogger(TSAClientBouncyCastleWithOid.class.getName());
 
-	private String policy;
+	/** Tamaño estimado del sello antes de recibir el primero. */
+	private static final int DEFAULT_TOKEN_SIZE = 4096;
 
-	public TSAClientBouncyCastleWithOid(String ignore) {
-		super(ignore);
-	}
+	/** Margen sobre el mayor sello recibido. */
+	private static final int TOKEN_SIZE_MARGIN = 32;
 
-	// public TSAClientBouncyCastleWithOid(String url) {
-	// super(url, null, null, DEFAULTTOKENSIZE, DEFAULTHASHALGORITHM);
-	// }
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 15000;
 
-	// public TSAClientBouncyCastleWithOid(String url, String username, String
-	// password) {
-	// super(url, username, password, 4096, DEFAULTHASHALGORITHM);
-	// }
+	private static final String CONTENT_TYPE_QUERY = "application/timestamp-query";
 
-	// public TSAClientBouncyCastleWithOid(String url, String policy) {
-	// super(url, null, null, 4096, DEFAULTHASHALGORITHM);
-	// this.policy = policy;
-	// }
+	private static final SecureRandom random = new SecureRandom();
+
+	private volatile String policy;
+
+	/** Mayor sello recibido, o cero si aun no se ha recibido ninguno. */
+	private final AtomicInteger maxTokenSize = new AtomicInteger();
+
+	public TSAClientBouncyCastleWithOid(String url) {
+		this(url, null, null, null);
+	}
+
+	public TSAClientBouncyCastleWithOid(String url, String policy) {
+		this(url, null, null, policy);
+	}
+
+	public TSAClientBouncyCastleWithOid(String url, String username, String password, String policy) {
+		super(url, username, password, DEFAULT_TOKEN_SIZE);
+		this.policy = policy;
+	}
 
 	/**
 	 * Gets Policy OID of TSA request.
-	 * 
+	 *
 	 * @param policy
 	 */
 	public String getPolicy() {
@@ -77,7 +104,7 @@ public class TSAClientBouncyCastleWithOid extends TSAClientBouncyCastle implemen
 
 	/**
 	 * Sets Policy OID of TSA request.
-	 * 
+	 *
 	 * @param policy
 	 */
 	public void setPolicy(String policy) {
@@ -85,123 +112,130 @@ public class TSAClientBouncyCastleWithOid extends TSAClientBouncyCastle implemen
 	}
 
 	/**
-	 * Se reimplementa este metodo para establecer un OID mediante el metodo
-	 * tsqGenerator.setReqPolicy()
+	 * Estima el tamaño del sello a partir del mayor sello recibido; antes del
+	 * primero se usa el tamaño por defecto.
+	 */
+	@Override
+	public int getTokenSizeEstimate() {
+		int size = maxTokenSize.get();
+		return size == 0 ? tokSzEstimate : size + TOKEN_SIZE_MARGIN;
+	}
+
+	/**
+	 * Obtiene un sello de tiempo para una huella digital. El algoritmo de la
+	 * huella (SHA-1, SHA-256, SHA-384 o SHA-512) se deduce de su longitud.
+	 *
+	 * @param imprint
+	 *            Huella digital a sellar
+	 * @return Sello de tiempo codificado en DER
 	 */
+	@Override
 	public byte[] getTimeStampToken(byte[] imprint) throws IOException, TSPException {
-		byte[] respBytes = null;
 		// Setup the time stamp request
 		TimeStampRequestGenerator tsqGenerator = new TimeStampRequestGenerator();
 		tsqGenerator.setCertReq(true);
 
 		// Se agrega una PID Policy:
+		String policy = this.policy;
 		if (policy != null && policy.length() > 0) {
 			tsqGenerator.setReqPolicy(new ASN1ObjectIdentifier(policy));
 		}
 
-		BigInteger nonce = BigInteger.valueOf(System.currentTimeMillis());
-		// TimeStampRequest request = tsqGenerator.generate(
-		// new
-		// ASN1ObjectIdentifier(DigestAlgorithms.getAllowedDigests(getDigestAlgorithm())),
-		// imprint, nonce);
-		TimeStampRequest request = null;
-		byte[] requestBytes = request.getEncoded();
+		BigInteger nonce = new BigInteger(64, random);
+		TimeStampRequest request = tsqGenerator.generate(getDigestAlgorithm(imprint), imprint, nonce);
 
 		// Call the communications layer
-		// respBytes = getTSAResponse(requestBytes);
-		respBytes = null;
+		byte[] respBytes = getTSAResponse(request.getEncoded());
 
 		// Handle the TSA response
 		TimeStampResponse response = new TimeStampResponse(respBytes);
 
-		// validate communication level attributes (RFC 3161 PKIStatus)
+		// validate communication level attributes (RFC 3161 PKIStatus), nonce,
+		// imprint and policy
 		response.validate(request);
 		PKIFailureInfo failure = response.getFailInfo();
 		int value = (failure == null) ? 0 : failure.intValue();
 		if (value != 0) {
-			// @todo: Translate value of 15 error codes defined by
-			// PKIFailureInfo to string
-			throw new IOException(MessageLocalization.getComposedMessage("invalid.tsa.1.response.code.2", tsaURL,
-					String.valueOf(value)));
+			throw new IOException("Respuesta invalida de la TSA " + tsaURL + ", codigo de error: " + value);
 		}
-		// @todo: validate the time stap certificate chain (if we want
-		// assure we do not sign using an invalid timestamp).
 
 		// extract just the time stamp token (removes communication status info)
 		TimeStampToken tsToken = response.getTimeStampToken();
 		if (tsToken == null) {
-			throw new IOException(MessageLocalization.getComposedMessage("tsa.1.failed.to.return.time.stamp.token.2",
-					tsaURL, response.getStatusString()));
+			throw new IOException(
+					"La TSA " + tsaURL + " no ha devuelto un sello de tiempo: " + response.getStatusString());
 		}
-		tsToken.getTimeStampInfo(); // to view details
+
 		byte[] encoded = tsToken.getEncoded();
 
-		// Update our token size estimate for the next call (padded to be safe)
-		// this.tokenSizeEstimate = encoded.length + 32;
+		// Update our token size estimate for the next call
+		maxTokenSize.accumulateAndGet(encoded.length, Math::max);
 		return encoded;
 	}
 
 	/**
-	 * Se reimplementa este metodo para establecer un OID mediante el metodo
-	 * tsqGenerator.setReqPolicy()
+	 * Envia la peticion a la TSA. La respuesta se lee completa y el stream se
+	 * cierra sin desconectar, para que la conexion vuelva al pool de
+	 * conexiones persistentes.
 	 */
-	public byte[] getTimeStampToken54(byte[] imprint) throws IOException, TSPException {
-		byte[] respBytes = null;
-		// Setup the time stamp request
-		TimeStampRequestGenerator tsqGenerator = new TimeStampRequestGenerator();
-		tsqGenerator.setCertReq(true);
-
-		// Se agrega una PID Policy:
-		if (policy != null && policy.length() > 0) {
-			tsqGenerator.setReqPolicy(new ASN1ObjectIdentifier(policy));
+	@Override
+	protected byte[] getTSAResponse(byte[] requestBytes) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(tsaURL).openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setUseCaches(false);
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", CONTENT_TYPE_QUERY);
+
+		if (tsaUsername != null && tsaUsername.length() > 0) {
+			String userPassword = tsaUsername + ":" + tsaPassword;
+			conn.setRequestProperty("Authorization",
+					"Basic " + Base64.getEncoder().encodeToString(userPassword.getBytes(StandardCharsets.UTF_8)));
 		}
 
-		BigInteger nonce = BigInteger.valueOf(System.currentTimeMillis());
-		// TimeStampRequest request = tsqGenerator.generate(
-		// new
-		// ASN1ObjectIdentifier(DigestAlgorithms.getAllowedDigests(digestAlgorithm)),
-		// imprint, nonce);
-		TimeStampRequest request = null;
-		byte[] requestBytes = request.getEncoded();
-
-		// Call the communications layer
-		// respBytes = getTSAResponse(requestBytes);
-		respBytes = null;
+		try (OutputStream out = conn.getOutputStream()) {
+			out.write(requestBytes);
+		}
 
-		// Handle the TSA response
-		TimeStampResponse response = new TimeStampResponse(respBytes);
+		int resCode = conn.getResponseCode();
+		if (resCode != HttpURLConnection.HTTP_OK) {
+			// Se consume el error para poder reutilizar la conexion
+			InputStream error = conn.getErrorStream();
+			if (error != null) {
+				try (InputStream is = error) {
+					Utils.getDataFromInputStream(is);
+				}
+			}
+			logger.warning("La TSA " + tsaURL + " ha respondido con el codigo " + resCode);
+			throw new IOException("Error en conexion HTTP con la TSA " + tsaURL + ", codigo de respuesta " + resCode);
+		}
 
-		// validate communication level attributes (RFC 3161 PKIStatus)
-		response.validate(request);
-		PKIFailureInfo failure = response.getFailInfo();
-		int value = (failure == null) ? 0 : failure.intValue();
-		if (value != 0) {
-			// @todo: Translate value of 15 error codes defined by
-			// PKIFailureInfo to string
-			throw new IOException(MessageLocalization.getComposedMessage("invalid.tsa.1.response.code.2", tsaURL,
-					String.valueOf(value)));
+		byte[] respBytes;
+		try (InputStream is = conn.getInputStream()) {
+			respBytes = Utils.getDataFromInputStream(is);
 		}
-		// @todo: validate the time stap certificate chain (if we want
-		// assure we do not sign using an invalid timestamp).
 
-		// extract just the time stamp token (removes communication status info)
-		TimeStampToken tsToken = response.getTimeStampToken();
-		if (tsToken == null) {
-			throw new IOException(MessageLocalization.getComposedMessage("tsa.1.failed.to.return.time.stamp.token.2",
-					tsaURL, response.getStatusString()));
+		String encoding = conn.getContentEncoding();
+		if (encoding != null && encoding.equalsIgnoreCase("base64")) {
+			respBytes = Base64.getMimeDecoder().decode(respBytes);
 		}
-		TimeStampTokenInfo tsTokenInfo = tsToken.getTimeStampInfo(); // to view
-																		// details
-		byte[] encoded = tsToken.getEncoded();
 
-		logger.info("Timestamp generated: " + tsTokenInfo.getGenTime());
+		return respBytes;
+	}
 
-		// QUITAR COMENTARIO:
-		// if (tsaInfo != null) {
-		// tsaInfo.inspectTimeStampTokenInfo(tsTokenInfo);
-		// }
-		// Update our token size estimate for the next call (padded to be safe)
-		// this.tokenSizeEstimate = encoded.length + 32;
-		return encoded;
+	private static ASN1ObjectIdentifier getDigestAlgorithm(byte[] imprint) {
+		switch (imprint.length) {
+		case 20:
+			return OIWObjectIdentifiers.idSHA1;
+		case 32:
+			return NISTObjectIdentifiers.id_sha256;
+		case 48:
+			return NISTObjectIdentifiers.id_sha384;
+		case 64:
+			return NISTObjectIdentifiers.id_sha512;
+		default:
+			throw new IllegalArgumentException("Longitud de huella digital no soportada: " + imprint.length);
+		}
 	}
 }
\ No newline at end of file
@@ -50,6 +50,9 @@ public final class CustomUriDereferencer implements URIDereferencer {
 	private static final String DEFAULT_SUN_NODESET_DATA = "org.jcp.xml.dsig.internal.dom.ApacheNodeSetData"; //$NON-NLS-1$
 	private static final String DEFAULT_APACHE_NODESET_DATA = "org.apache.jcp.xml.dsig.internal.dom.ApacheNodeSetData"; //$NON-NLS-1$
 
+	/** Dereferenciador por defecto, obtenido por reflexi&oacute;n una sola vez. */
+	private static volatile URIDereferencer defaultDereferencer;
+
 	private final URIDereferencer defaultUriDereferencer;
 
 	/**
@@ -128,14 +131,34 @@ public final class CustomUriDereferencer implements URIDereferencer {
 	 */
 	public static URIDereferencer getDefaultDereferencer()
 			throws NoSuchFieldException, ClassNotFoundException, IllegalAccessException {
-		final Field instanceField = getDereferencerClass().getDeclaredField("INSTANCE");
-		instanceField.setAccessible(true);
-		return (URIDereferencer) instanceField.get(null);
+		URIDereferencer dereferencer = defaultDereferencer;
+		if (dereferencer == null) {
+			final Field instanceField = getDereferencerClass().getDeclaredField("INSTANCE");
+			instanceField.setAccessible(true);
+			dereferencer = (URIDereferencer) instanceField.get(null);
+			defaultDereferencer = dereferencer;
+		}
+		return dereferencer;
 	}
 
 	@Override
 	public Data dereference(final URIReference domRef, final XMLCryptoContext context) throws URIReferenceException {
-		return this.defaultUriDereferencer.dereference(domRef, context);
+		try {
+			return this.defaultUriDereferencer.dereference(domRef, context);
+		} catch (final URIReferenceException e) {
+			// Si falla el por defecto, buscamos las referencias internas en el
+			// indice de identificadores registrado en el contexto
+			final String uri = domRef.getURI();
+			final XmlIdIndex index = XmlIdIndex.get(context);
+			if (index == null || uri == null || uri.isEmpty() || uri.charAt(0) != '#') {
+				throw e;
+			}
+			final Element element = index.getElement(uri);
+			if (element == null) {
+				throw e;
+			}
+			return getStreamData(element);
+		}
 	}
 
 	/**
@@ -18,15 +18,12 @@
 package io.rubrica.sign.xades;
 
 import java.io.ByteArrayInputStream;
-import java.net.URI;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -41,7 +38,7 @@ import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
 import javax.xml.crypto.dsig.spec.XPathFilterParameterSpec;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.DocumentBuilder;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -49,13 +46,10 @@ import org.w3c.dom.Element;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.CommitmentTypeIndication;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.DataObjectFormat;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.DataObjectFormatImpl;
-import es.uji.crypto.xades.jxades.security.xml.XAdES.ObjectIdentifierImpl;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.XAdES;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.XAdES_EPES;
 import io.rubrica.core.RubricaException;
-import io.rubrica.core.Util;
 import io.rubrica.sign.XMLConstants;
-import io.rubrica.util.MimeHelper;
 import io.rubrica.xml.Utils;
 
 /**
@@ -189,145 +183,48 @@ public final class FirmadorXAdES {
 	 */
 	public static byte[] sign(byte[] data, String algorithm, PrivateKey pk, Certificate[] certChain, Properties xParams)
 			throws RubricaException {
+		return sign(data, pk, new XAdESSignatureSettings(algorithm, certChain, xParams));
+	}
 
-		String algoUri = XMLConstants.SIGN_ALGOS_URI.get(algorithm);
-
-		if (algoUri == null) {
-			throw new UnsupportedOperationException(
-					"Los formatos de firma XML no soportan el algoritmo de firma '" + algorithm + "'");
-		}
-
-		// ***********************************************************************************************
-		// ********** LECTURA PARAMETROS ADICIONALES
-		// *****************************************************
-
-		Properties extraParams = xParams != null ? xParams : new Properties();
-
-		boolean avoidXpathExtraTransformsOnEnveloped = Boolean.parseBoolean(extraParams
-				.getProperty(XAdESExtraParams.AVOID_XPATH_EXTRA_TRANSFORMS_ON_ENVELOPED, Boolean.FALSE.toString()));
-
-		boolean onlySignningCert = Boolean.parseBoolean(
-				extraParams.getProperty(XAdESExtraParams.INCLUDE_ONLY_SIGNNING_CERTIFICATE, Boolean.FALSE.toString()));
-
-		String envelopedNodeXPath = extraParams
-				.getProperty(XAdESExtraParams.INSERT_ENVELOPED_SIGNATURE_ON_NODE_BY_XPATH);
-
-		String nodeToSign = extraParams.getProperty(XAdESExtraParams.NODE_TOSIGN);
-
-		String digestMethodAlgorithm = extraParams.getProperty(XAdESExtraParams.REFERENCES_DIGEST_METHOD,
-				XAdESSigner.DIGEST_METHOD);
-
-		String canonicalizationAlgorithm = extraParams.getProperty(XAdESExtraParams.CANONICALIZATION_ALGORITHM,
-				CanonicalizationMethod.INCLUSIVE);
-		if ("none".equalsIgnoreCase(canonicalizationAlgorithm)) {
-			canonicalizationAlgorithm = null;
-		}
-
-		String xadesNamespace = extraParams.getProperty(XAdESExtraParams.XADES_NAMESPACE, XAdESSigner.XADESNS);
-
-		String signedPropertiesTypeUrl = extraParams.getProperty(XAdESExtraParams.SIGNED_PROPERTIES_TYPE_URL,
-				XAdESSigner.XADES_SIGNED_PROPERTIES_TYPE);
-
-		boolean ignoreStyleSheets = Boolean
-				.parseBoolean(extraParams.getProperty(XAdESExtraParams.IGNORE_STYLE_SHEETS, Boolean.FALSE.toString()));
-
-		boolean avoidBase64Transforms = Boolean.parseBoolean(
-				extraParams.getProperty(XAdESExtraParams.AVOID_BASE64_TRANSFORMS, Boolean.FALSE.toString()));
-
-		boolean headless = Boolean
-				.parseBoolean(extraParams.getProperty(XAdESExtraParams.HEADLESS, Boolean.TRUE.toString()));
-
-		boolean addKeyInfoKeyValue = Boolean.parseBoolean(
-				extraParams.getProperty(XAdESExtraParams.ADD_KEY_INFO_KEY_VALUE, Boolean.TRUE.toString()));
-
-		boolean addKeyInfoKeyName = Boolean.parseBoolean(
-				extraParams.getProperty(XAdESExtraParams.ADD_KEY_INFO_KEY_NAME, Boolean.FALSE.toString()));
-
-		boolean addKeyInfoX509IssuerSerial = Boolean.parseBoolean(
-				extraParams.getProperty(XAdESExtraParams.ADD_KEY_INFO_X509_ISSUER_SERIAL, Boolean.FALSE.toString()));
-
-		String precalculatedHashAlgorithm = extraParams.getProperty(XAdESExtraParams.PRECALCULATED_HASH_ALGORITHM);
-
-		boolean facturaeSign = Boolean
-				.parseBoolean(extraParams.getProperty(XAdESExtraParams.FACTURAE_SIGN, Boolean.FALSE.toString()));
-
-		String outputXmlEncoding = extraParams.getProperty(XAdESExtraParams.OUTPUT_XML_ENCODING);
-
-		String mimeType = extraParams.getProperty(XAdESExtraParams.XMLDSIG_OBJECT_MIME_TYPE);
-
-		String encoding = extraParams.getProperty(XAdESExtraParams.XMLDSIG_OBJECT_ENCODING);
-
-		// Dejamos que indiquen "base64" en vez de la URI, hacemos el cambio
-		// manualmente
-		if ("base64".equalsIgnoreCase(encoding)) {
-			encoding = XMLConstants.BASE64_ENCODING;
-		}
-
-		// Comprobamos que sea una URI
-		if (encoding != null && !encoding.isEmpty()) {
+	/**
+	 * Firma datos en formato XAdES con parámetros ya interpretados.
+	 * 
+	 * @param data
+	 *            Datos que deseamos firmar.
+	 * @param pk
+	 *            Clave privada del firmante
+	 * @param settings
+	 *            Parámetros de la firma y datos del firmante
+	 * @return Firma en formato XAdES
+	 * @throws RubricaException
+	 *             Cuando ocurre cualquier problema durante el proceso
+	 */
+	static byte[] sign(byte[] data, PrivateKey pk, XAdESSignatureSettings settings) throws RubricaException {
+		if (settings.getPrecalculatedHashAlgorithm() != null) {
+			String digestMethodAlgorithm;
 			try {
-				new URI(encoding);
-			} catch (final Exception e) {
-				throw new RubricaException("La codificacion indicada en 'encoding' debe ser una URI: " + e, e);
+				digestMethodAlgorithm = XAdESUtil.getDigestMethodByCommonName(settings.getPrecalculatedHashAlgorithm());
+			} catch (NoSuchAlgorithmException e) {
+				throw new RubricaException("No se soporta el algoritmo de la huella precalculada: "
+						+ settings.getPrecalculatedHashAlgorithm(), e);
 			}
+			return signPrecalculatedHash(data, digestMethodAlgorithm, pk, settings);
 		}
 
-		final boolean keepKeyInfoUnsigned = Boolean.parseBoolean(
-				extraParams.getProperty(XAdESExtraParams.KEEP_KEYINFO_UNSIGNED, Boolean.FALSE.toString()));
-
-		// ********** FIN LECTURA PARAMETROS ADICIONALES
-		// *************************************************
-		// ***********************************************************************************************
-
-		URI uri = null;
-		try {
-			uri = extraParams.getProperty(XAdESExtraParams.URI) != null
-					? Util.createURI(extraParams.getProperty(XAdESExtraParams.URI))
-					: null;
-		} catch (final Exception e) {
-			logger.warning("Se ha pasado una URI invalida como referencia a los datos a firmar: " + e);
-		}
-
-		// Utils.checkIllegalParams(format,
-		// extraParams.getProperty(XAdESExtraParams.MODE,
-		// SignConstants.SIGN_MODE_IMPLICIT), uri,
-		// precalculatedHashAlgorithm, true);
-
 		// Propiedades del documento XML original
-		Map<String, String> originalXMLProperties = new Hashtable<>();
-
-		// Factoria XML
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
+		Map<String, String> originalXMLProperties;
 
 		// Elemento de datos
 		Element dataElement;
 
-		// Documento final de firma
-		Document docSignature = null;
-
-		String contentId = XAdESSigner.DETACHED_CONTENT_ELEMENT_NAME + "-" + UUID.randomUUID().toString();
-		String styleId = XAdESSigner.DETACHED_STYLE_ELEMENT_NAME + "-" + UUID.randomUUID().toString();
-		boolean avoidDetachedContentInclusion = false;
-
-		// Elemento de estilo
-		XmlStyle xmlStyle = new XmlStyle();
-
-		// Nodo donde insertar la firma
-		Element signatureInsertionNode = null;
+		DocumentBuilder documentBuilder = Utils.getDocumentBuilder();
 
 		try {
 			// Obtenemos el objeto XML
-			Document docum = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(data));
-
-			// Si no hay asignado un MimeType o es el por defecto
-			// establecemos el de XML
-			if (mimeType == null || XMLConstants.DEFAULT_MIMETYPE.equals(mimeType)) {
-				mimeType = "text/xml";
-			}
+			Document docum = documentBuilder.parse(new ByteArrayInputStream(data));
 
 			// Obtenemos las propiedades del documento original
-			originalXMLProperties = XAdESUtil.getOriginalXMLProperties(docum, outputXmlEncoding);
+			originalXMLProperties = XAdESUtil.getOriginalXMLProperties(docum, settings.getOutputXmlEncoding());
 			dataElement = docum.getDocumentElement();
 		}
 
@@ -343,17 +240,46 @@ public final class FirmadorXAdES {
 		// ********* Fin contenido no XML ***************************
 		// **********************************************************
 
-		// ***************************************************
-		// ***************************************************
+		Document docSignature = signEnveloped(dataElement, pk, settings, "Reference-" + UUID.randomUUID().toString(),
+				"Signature-" + UUID.randomUUID().toString());
 
-		// La URI de contenido a firmar puede ser el nodo especifico si asi se
-		// indico o el
-		// nodo de contenido completo
-		String tmpUri = "#" + contentId;
-		String tmpStyleUri = "#" + styleId;
+		// Si no es enveloped quito los valores del estilo para que no se
+		// inserte la
+		// cabecera de hoja de estilo
+		return Utils.writeXML(docSignature.getDocumentElement(), originalXMLProperties);
+	}
+
+	/**
+	 * Genera una firma <i>enveloped</i> sobre un elemento ya analizado, con los
+	 * identificadores indicados.
+	 * 
+	 * @param dataElement
+	 *            Elemento ra&iacute;z de los datos a firmar
+	 * @param pk
+	 *            Clave privada del firmante
+	 * @param settings
+	 *            Par&aacute;metros de la firma y datos del firmante
+	 * @param referenceId
+	 *            Identificador de la referencia a los datos
+	 * @param signatureIdPrefix
+	 *            Prefijo de los identificadores de la firma
+	 * @return Documento con la firma ya insertada
+	 * @throws RubricaException
+	 *             Cuando ocurre cualquier problema durante el proceso
+	 */
+	static Document signEnveloped(Element dataElement, PrivateKey pk, XAdESSignatureSettings settings,
+			String referenceId, String signatureIdPrefix) throws RubricaException {
+		String nodeToSign = settings.getNodeToSign();
+		String digestMethodAlgorithm = settings.getDigestMethodAlgorithm();
+
+		// Documento final de firma
+		Document docSignature = null;
+
+		// Nodo donde insertar la firma
+		Element signatureInsertionNode = null;
 
 		try {
-			docSignature = dbf.newDocumentBuilder().newDocument();
+			docSignature = Utils.getDocumentBuilder().newDocument();
 			docSignature.appendChild(docSignature.adoptNode(dataElement));
 		} catch (Exception e) {
 			throw new RubricaException("Error al crear la firma en formato Enveloped" + ": " + e, e);
@@ -370,115 +296,291 @@ public final class FirmadorXAdES {
 					+ digestMethodAlgorithm + "'", e);
 		}
 
-		String referenceId = "Reference-" + UUID.randomUUID().toString();
+		List<Transform> transformList = getEnvelopedTransforms(settings);
+
+		// Establecemos que es lo que se firma
+		// 1.- Si se especifico un nodo, se firma ese nodo
+		// 2.- Si el raiz tiene Id, se firma ese Id
+		// 3.- Se firma todo el XML con ""
+		// Tiene la raiz un Id?
+		String ident = docSignature.getDocumentElement().getAttribute(ID_IDENTIFIER);
+		if (ident != null && !ident.isEmpty()) {
+			nodeToSign = ident;
+		}
+
+		// Crea una referencia indicando que se trata de una firma enveloped
+		try {
+			referenceList.add(fac.newReference(nodeToSign != null ? "#" + nodeToSign : "", digestMethod, transformList,
+					XMLConstants.OBJURI, referenceId));
+		} catch (Exception e) {
+			throw new RubricaException("Error al generar la firma en formato enveloped: " + e, e);
+		}
+
+		// Indexamos los identificadores una sola vez, para localizar el nodo y
+		// resolver despues las referencias internas de la firma
+		XmlIdIndex idIndex = XmlIdIndex.build(docSignature);
+
+		// Nodo donde insertar la firma
+		if (nodeToSign != null) {
+			signatureInsertionNode = idIndex.getElement(nodeToSign);
+		}
+
+		// Nodo donde se inserta la firma (como hijo), si no se indica se usa la
+		// raiz
+		if (signatureInsertionNode == null) {
+			signatureInsertionNode = docSignature.getDocumentElement();
+		}
+
+		signReferences(docSignature, signatureInsertionNode, referenceList, referenceId, pk, settings,
+				signatureIdPrefix, idIndex);
+
+		return docSignature;
+	}
+
+	/**
+	 * Obtiene las transformaciones de la referencia a los datos de una firma
+	 * <i>enveloped</i>.
+	 * 
+	 * @param settings
+	 *            Par&aacute;metros de la firma
+	 * @return Transformaciones, en el orden en que se aplican
+	 * @throws RubricaException
+	 *             Si no se puede crear alguna de las transformaciones
+	 */
+	static List<Transform> getEnvelopedTransforms(XAdESSignatureSettings settings) throws RubricaException {
+		String canonicalizationAlgorithm = settings.getCanonicalizationAlgorithm();
+		XMLSignatureFactory fac = Utils.getDOMFactory();
 
 		List<Transform> transformList = new ArrayList<>();
 
 		// Primero anadimos las transformaciones a medida
-		Utils.addCustomTransforms(transformList, extraParams, XAdESSigner.XML_SIGNATURE_PREFIX);
+		Utils.addCustomTransforms(transformList, settings.getExtraParams(), XAdESSigner.XML_SIGNATURE_PREFIX);
 
-		Transform canonicalizationTransform;
 		if (canonicalizationAlgorithm != null) {
 			try {
-				canonicalizationTransform = fac.newTransform(canonicalizationAlgorithm, (TransformParameterSpec) null);
+				// Transformada para la canonicalizacion inclusiva
+				transformList.add(fac.newTransform(canonicalizationAlgorithm, (TransformParameterSpec) null));
 			} catch (Exception e1) {
 				throw new RubricaException("No se ha posido crear el canonizador para el algoritmo indicado ("
 						+ canonicalizationAlgorithm + "): " + e1, e1);
 			}
-		} else {
-			canonicalizationTransform = null;
 		}
 
-		if (canonicalizationTransform != null) {
-			try {
-				// Transformada para la canonicalizacion inclusiva
-				transformList.add(canonicalizationTransform);
-			} catch (Exception e) {
-				throw new RubricaException("No se puede encontrar el algoritmo de canonicalizacion: " + e, e);
-			}
-		}
-
-		// Crea una referencia indicando que se trata de una firma enveloped
 		try {
 			// Transformacion enveloped.
 			// La enveloped siempre la primera, para que no se quede sin
 			// nodos Signature por haber ejecutado antes otra transformacion
 			transformList.add(fac.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null));
 
-			// Establecemos que es lo que se firma
-			// 1.- Si se especifico un nodo, se firma ese nodo
-			// 2.- Si el raiz tiene Id, se firma ese Id
-			// 3.- Se firma todo el XML con ""
-			// Tiene la raiz un Id?
-			String ident = docSignature.getDocumentElement().getAttribute(ID_IDENTIFIER);
-			if (ident != null && !ident.isEmpty()) {
-				nodeToSign = ident;
-			}
-
 			// Salvo que sea una factura electronica o que se indique lo
 			// contrario
 			// se agrega una transformacion XPATH para eliminar el resto de
 			// firmas del documento en las firmas Enveloped
-			if (!facturaeSign && !avoidXpathExtraTransformsOnEnveloped) {
+			if (excludesOtherSignatures(settings)) {
 				transformList.add(fac.newTransform(Transform.XPATH,
 						new XPathFilterParameterSpec(
 								"not(ancestor-or-self::" + XAdESSigner.XML_SIGNATURE_PREFIX + ":Signature)",
 								Collections.singletonMap(XAdESSigner.XML_SIGNATURE_PREFIX, XMLSignature.XMLNS))));
 			}
-
-			// Crea la referencia
-			referenceList.add(fac.newReference(nodeToSign != null ? "#" + nodeToSign : "", digestMethod, transformList,
-					XMLConstants.OBJURI, referenceId));
 		} catch (Exception e) {
 			throw new RubricaException("Error al generar la firma en formato enveloped: " + e, e);
 		}
 
-		// Nodo donde insertar la firma
-		if (nodeToSign != null) {
-			signatureInsertionNode = CustomUriDereferencer.getElementById(docSignature, nodeToSign);
+		return transformList;
+	}
+
+	/**
+	 * Indica si la referencia de una firma <i>enveloped</i> excluye las firmas
+	 * previas del documento, ademas de la propia.
+	 * 
+	 * @param settings
+	 *            Par&aacute;metros de la firma
+	 * @return {@code true} si se a&ntilde;ade la transformaci&oacute;n XPath
+	 *         que elimina las firmas
+	 */
+	static boolean excludesOtherSignatures(XAdESSignatureSettings settings) {
+		return !settings.isFacturaeSign() && !settings.isAvoidXpathExtraTransformsOnEnveloped();
+	}
+
+	/**
+	 * Genera una firma <i>enveloped</i> con la huella de los datos ya
+	 * calculada. La firma se inserta como hijo del elemento indicado, que debe
+	 * tener las mismas declaraciones de espacios de nombres y atributos
+	 * <code>xml:*</code> que la ra&iacute;z real del documento, ya que forman
+	 * parte de la forma can&oacute;nica de la firma.
+	 * 
+	 * @param root
+	 *            Elemento en el que insertar la firma
+	 * @param uri
+	 *            URI de la referencia a los datos
+	 * @param hash
+	 *            Huella de los datos transformados
+	 * @param pk
+	 *            Clave privada del firmante
+	 * @param settings
+	 *            Par&aacute;metros de la firma y datos del firmante
+	 * @return Nodo de firma
+	 * @throws RubricaException
+	 *             Cuando ocurre cualquier problema durante el proceso
+	 */
+	static Element signEnvelopedHash(Element root, String uri, byte[] hash, PrivateKey pk,
+			XAdESSignatureSettings settings) throws RubricaException {
+		String digestMethodAlgorithm = settings.getDigestMethodAlgorithm();
+		checkDigestLength(hash, digestMethodAlgorithm);
+
+		String referenceId = "Reference-" + UUID.randomUUID().toString();
+
+		List<Reference> referenceList = new ArrayList<>();
+		XMLSignatureFactory fac = Utils.getDOMFactory();
+		try {
+			referenceList.add(fac.newReference(uri, fac.newDigestMethod(digestMethodAlgorithm, null),
+					getEnvelopedTransforms(settings), XMLConstants.OBJURI, referenceId, hash));
+		} catch (RubricaException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RubricaException("Error al generar la referencia a los datos: " + e, e);
 		}
 
+		signReferences(root.getOwnerDocument(), root, referenceList, referenceId, pk, settings,
+				"Signature-" + UUID.randomUUID().toString(), null);
+
+		return (Element) root.getElementsByTagNameNS(XMLSignature.XMLNS, XAdESSigner.SIGNATURE_TAG).item(0);
+	}
+
+	/**
+	 * Firma <i>externally detached</i> de una huella calculada por el llamante.
+	 * Los datos no se ven nunca: la referencia se crea directamente con la URI
+	 * y la huella indicadas, por lo que el coste de la firma no depende del
+	 * tama&ntilde;o de los datos.
+	 * 
+	 * @param hash
+	 *            Huella digital de los datos
+	 * @param digestMethodAlgorithm
+	 *            URI del algoritmo de la huella
+	 * @param pk
+	 *            Clave privada del firmante
+	 * @param settings
+	 *            Par&aacute;metros de la firma y datos del firmante
+	 * @return Firma en formato XAdES
+	 * @throws RubricaException
+	 *             Cuando ocurre cualquier problema durante el proceso
+	 */
+	static byte[] signPrecalculatedHash(byte[] hash, String digestMethodAlgorithm, PrivateKey pk,
+			XAdESSignatureSettings settings) throws RubricaException {
+		if (settings.getUri() == null) {
+			throw new RubricaException("Debe indicarse la URI de los datos para firmar una huella precalculada");
+		}
+
+		checkDigestLength(hash, digestMethodAlgorithm);
+
+		Document docSignature = Utils.getDocumentBuilder().newDocument();
+		docSignature.appendChild(XAdESUtil.getRootElement(docSignature, settings.getExtraParams()));
+
+		String referenceId = "Reference-" + UUID.randomUUID().toString();
+
+		// La referencia se crea ya resumida, no se resuelve su URI
+		List<Reference> referenceList = new ArrayList<>();
+		XMLSignatureFactory fac = Utils.getDOMFactory();
+		try {
+			referenceList.add(fac.newReference(settings.getUri(), fac.newDigestMethod(digestMethodAlgorithm, null),
+					null, null, referenceId, hash));
+		} catch (Exception e) {
+			throw new RubricaException("Error al generar la referencia a la huella precalculada: " + e, e);
+		}
+
+		signReferences(docSignature, docSignature.getDocumentElement(), referenceList, referenceId, pk, settings,
+				"Signature-" + UUID.randomUUID().toString(), null);
+
+		return Utils.writeXML(docSignature.getDocumentElement(), null);
+	}
+
+	/**
+	 * Genera una firma <i>enveloping</i> cuyos datos, codificados en Base64, se
+	 * a&ntilde;adir&aacute;n despu&eacute;s en un <i>ds:Object</i> con el
+	 * identificador indicado. La referencia se crea ya resumida con la huella
+	 * de los datos originales y una transformaci&oacute;n Base64.
+	 * 
+	 * @param objectId
+	 *            Identificador del <i>ds:Object</i> de datos
+	 * @param hash
+	 *            Huella de los datos con el algoritmo de huella de la firma
+	 * @param pk
+	 *            Clave privada del firmante
+	 * @param settings
+	 *            Par&aacute;metros de la firma y datos del firmante
+	 * @return Nodo de firma, todav&iacute;a sin el <i>ds:Object</i> de datos
+	 * @throws RubricaException
+	 *             Cuando ocurre cualquier problema durante el proceso
+	 */
+	static Element signEnvelopingHash(String objectId, byte[] hash, PrivateKey pk, XAdESSignatureSettings settings)
+			throws RubricaException {
+		String digestMethodAlgorithm = settings.getDigestMethodAlgorithm();
+		checkDigestLength(hash, digestMethodAlgorithm);
+
+		// Contenedor temporal sin espacios de nombres, para que no formen parte
+		// de la forma canonica de la firma
+		Document docSignature = Utils.getDocumentBuilder().newDocument();
+		docSignature.appendChild(docSignature.createElement(XAdESSigner.AFIRMA));
+
+		String referenceId = "Reference-" + UUID.randomUUID().toString();
+
+		List<Reference> referenceList = new ArrayList<>();
+		XMLSignatureFactory fac = Utils.getDOMFactory();
+		try {
+			referenceList.add(fac.newReference("#" + objectId, fac.newDigestMethod(digestMethodAlgorithm, null),
+					Collections.singletonList(fac.newTransform(Transform.BASE64, (TransformParameterSpec) null)),
+					XMLConstants.OBJURI, referenceId, hash));
+		} catch (Exception e) {
+			throw new RubricaException("Error al generar la referencia a los datos: " + e, e);
+		}
+
+		signReferences(docSignature, docSignature.getDocumentElement(), referenceList, referenceId, pk, settings,
+				"Signature-" + UUID.randomUUID().toString(), null);
+
+		return (Element) docSignature.getElementsByTagNameNS(XMLSignature.XMLNS, XAdESSigner.SIGNATURE_TAG).item(0);
+	}
+
+	private static void checkDigestLength(byte[] hash, String digestMethodAlgorithm) throws RubricaException {
+		try {
+			int digestLength = MessageDigest.getInstance(XMLConstants.getDigestAlgorithmName(digestMethodAlgorithm))
+					.getDigestLength();
+			if (hash == null || hash.length != digestLength) {
+				throw new RubricaException("La huella proporcionada no corresponde al algoritmo " + digestMethodAlgorithm);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new RubricaException("No se soporta el algoritmo de huella: " + digestMethodAlgorithm, e);
+		}
+	}
+
+	/**
+	 * Completa las propiedades XAdES y genera la firma de las referencias
+	 * indicadas.
+	 */
+	private static void signReferences(Document docSignature, Element signatureInsertionNode,
+			List<Reference> referenceList, String referenceId, PrivateKey pk, XAdESSignatureSettings settings,
+			String signatureIdPrefix, XmlIdIndex idIndex) throws RubricaException {
+		String digestMethodAlgorithm = settings.getDigestMethodAlgorithm();
+		String canonicalizationAlgorithm = settings.getCanonicalizationAlgorithm();
+
 		// Instancia XADES_EPES
 		XAdES_EPES xades = (XAdES_EPES) XAdES.newInstance(XAdES.EPES, // XAdES
-				xadesNamespace, // XAdES NameSpace
+				settings.getXadesNamespace(), // XAdES NameSpace
 				XAdESSigner.XADES_SIGNATURE_PREFIX, // XAdES Prefix
 				XAdESSigner.XML_SIGNATURE_PREFIX, // XMLDSig Prefix
 				digestMethodAlgorithm, // DigestMethod
 				docSignature, // Document
-				signatureInsertionNode != null ? // Nodo donde se inserta la
-													// firma (como hijo), si no
-													// se indica se usa la raiz
-						signatureInsertionNode : docSignature.getDocumentElement());
+				signatureInsertionNode); // Nodo donde se inserta la firma (como hijo)
 
 		// SigningCertificate
-		xades.setSigningCertificate((X509Certificate) certChain[0]);
+		xades.setSigningCertificate(settings.getSignerCert());
 
-		XAdESCommonMetadataUtil.addCommonMetadata(xades, extraParams);
+		XAdESCommonMetadataUtil.addCommonMetadata(xades, settings.getSignaturePolicyIdentifier(),
+				settings.getSignatureProductionPlace(), settings.getSignerRole());
 
 		// DataObjectFormat
-		String oid = extraParams.getProperty(XAdESExtraParams.CONTENT_TYPE_OID);
-
-		if (oid == null && mimeType != null) {
-			try {
-				oid = MimeHelper.transformMimeTypeToOid(mimeType);
-			} catch (final Exception e) {
-				logger.warning("Error en la obtencion del OID del tipo de datos a partir del MimeType: " + e);
-			}
-			// Si no se reconoce el MimeType se habra establecido el por
-			// defecto. Evitamos este comportamiento
-			if (!MimeHelper.DEFAULT_MIMETYPE.equals(mimeType) && MimeHelper.DEFAULT_CONTENT_OID_DATA.equals(oid)) {
-				oid = null;
-			}
-		}
-
-		ObjectIdentifierImpl objectIdentifier = oid != null
-				? new ObjectIdentifierImpl("OIDAsURN", (oid.startsWith("urn:oid:") ? "" : "urn:oid:") + oid, null,
-						new ArrayList<String>(0))
-				: null;
-
 		ArrayList<DataObjectFormat> objectFormats = new ArrayList<>();
-		DataObjectFormat objectFormat = new DataObjectFormatImpl(null, objectIdentifier,
-				mimeType != null ? mimeType : XMLConstants.DEFAULT_MIMETYPE, encoding, "#" + referenceId);
+		DataObjectFormat objectFormat = new DataObjectFormatImpl(null, settings.getObjectIdentifier(),
+				settings.getMimeType(), settings.getEncoding(), "#" + referenceId);
 		objectFormats.add(objectFormat);
 		xades.setDataObjectFormats(objectFormats);
 
@@ -486,30 +588,26 @@ public final class FirmadorXAdES {
 		// -
 		// http://www.w3.org/TR/XAdES/#Syntax_for_XAdES_The_CommitmentTypeIndication_element
 		// - http://uri.etsi.org/01903/v1.2.2/ts_101903v010202p.pdf
-		List<CommitmentTypeIndication> ctis = XAdESUtil.parseCommitmentTypeIndications(extraParams, referenceId);
+		List<CommitmentTypeIndication> ctis = XAdESUtil.parseCommitmentTypeIndications(settings.getExtraParams(),
+				referenceId);
 		if (ctis != null && ctis.size() > 0) {
 			xades.setCommitmentTypeIndications(ctis);
 		}
 
-		RubricaXMLAdvancedSignature xmlSignature = XAdESUtil.getXmlAdvancedSignature(xades, signedPropertiesTypeUrl,
-				digestMethodAlgorithm,
+		RubricaXMLAdvancedSignature xmlSignature = XAdESUtil.getXmlAdvancedSignature(xades,
+				settings.getSignedPropertiesTypeUrl(), digestMethodAlgorithm,
 				canonicalizationAlgorithm != null ? canonicalizationAlgorithm : CanonicalizationMethod.INCLUSIVE);
+		xmlSignature.setIdIndex(idIndex);
 
 		// Genera la firma
 		try {
-			xmlSignature.sign(Arrays.asList(certChain), pk, algoUri, referenceList,
-					"Signature-" + UUID.randomUUID().toString(), addKeyInfoKeyValue, addKeyInfoKeyName,
-					addKeyInfoX509IssuerSerial, keepKeyInfoUnsigned);
+			xmlSignature.sign(settings.getCertChain(), settings.getKeyInfoContent(), pk, settings.getAlgoUri(),
+					referenceList, signatureIdPrefix, settings.isKeepKeyInfoUnsigned());
 		} catch (NoSuchAlgorithmException e) {
-			throw new UnsupportedOperationException(
-					"Los formatos de firma XML no soportan el algoritmo de firma '" + algorithm + "':" + e, e);
+			throw new UnsupportedOperationException("Los formatos de firma XML no soportan el algoritmo de firma '"
+					+ settings.getAlgorithm() + "':" + e, e);
 		} catch (final Exception e) {
 			throw new RubricaException("Error al generar la firma XAdES: " + e, e);
 		}
-
-		// Si no es enveloped quito los valores del estilo para que no se
-		// inserte la
-		// cabecera de hoja de estilo
-		return Utils.writeXML(docSignature.getDocumentElement(), originalXMLProperties);
 	}
 }
\ No newline at end of file
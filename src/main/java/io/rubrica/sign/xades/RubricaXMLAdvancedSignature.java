@@ -37,7 +37,6 @@ import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.dom.DOMSignContext;
-import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
 import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
 
@@ -47,6 +46,7 @@ import es.uji.crypto.xades.jxades.security.xml.WrappedKeyStorePlace;
 import es.uji.crypto.xades.jxades.security.xml.XmlWrappedKeyInfo;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.XAdES_BES;
 import es.uji.crypto.xades.jxades.security.xml.XAdES.XMLAdvancedSignature;
+import io.rubrica.xml.Utils;
 
 /**
  * Derivado de
@@ -76,6 +76,7 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 	private String styleType = "text/xsl";
 	private String styleEncoding = null;
 	private String styleId = null;
+	private XmlIdIndex idIndex = null;
 
 	/**
 	 * A&ntilde;ade una hoja de estilo en modo <i>enveloping</i> dentro de la firma.
@@ -97,6 +98,27 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 		this.styleEncoding = xmlStyle.getStyleEncoding();
 	}
 
+	/**
+	 * Establece el &iacute;ndice de identificadores del documento en el que se
+	 * inserta la firma. Si no se establece, se construye al firmar.
+	 * 
+	 * @param index
+	 *            &Iacute;ndice de identificadores del documento
+	 */
+	void setIdIndex(final XmlIdIndex index) {
+		this.idIndex = index;
+	}
+
+	/**
+	 * Obtiene el &iacute;ndice de identificadores del documento, que tras firmar
+	 * incluye los de la propia firma.
+	 * 
+	 * @return &Iacute;ndice de identificadores del documento
+	 */
+	XmlIdIndex getIdIndex() {
+		return this.idIndex;
+	}
+
 	/**
 	 * Establece el algoritmo de canonicalizaci&oacute;n.
 	 * 
@@ -110,13 +132,17 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 		}
 	}
 
-	private KeyInfo newKeyInfo(final List<Certificate> certs, final String keyInfoId, final boolean addKeyValue,
-			final boolean addKeyName, final boolean addIssuerSerial) throws KeyException {
+	/**
+	 * Crea el contenido del <i>KeyInfo</i>. No depende del documento firmado,
+	 * por lo que puede reutilizarse entre firmas con el mismo certificado.
+	 */
+	static List<XMLStructure> newKeyInfoContent(final KeyInfoFactory keyInfoFactory, final List<Certificate> certs,
+			final boolean addCertificates, final boolean addKeyValue, final boolean addKeyName,
+			final boolean addIssuerSerial) throws KeyException {
 
 		final List<Certificate> certificates = EscapeHelper.getEscapedCertificates(certs);
-		final KeyInfoFactory keyInfoFactory = getXMLSignatureFactory().getKeyInfoFactory();
 		final List<Certificate> x509DataList = new ArrayList<>();
-		if (!XmlWrappedKeyInfo.PUBLIC_KEY.equals(getXmlWrappedKeyInfo())) {
+		if (addCertificates) {
 			for (final Certificate cert : certificates) {
 				x509DataList.add(cert);
 			}
@@ -136,7 +162,7 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 							((X509Certificate) certificates.get(0)).getIssuerX500Principal().toString()),
 					((X509Certificate) certificates.get(0)).getSerialNumber()));
 		}
-		return keyInfoFactory.newKeyInfo(newList, keyInfoId);
+		return newList;
 	}
 
 	void sign(final List<Certificate> certificates, final PrivateKey privateKey, final String signatureMethod,
@@ -145,6 +171,18 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 			final boolean keepKeyInfoUnsigned)
 			throws MarshalException, GeneralSecurityException, XMLSignatureException {
 
+		sign(certificates,
+				newKeyInfoContent(getXMLSignatureFactory().getKeyInfoFactory(), certificates,
+						!XmlWrappedKeyInfo.PUBLIC_KEY.equals(getXmlWrappedKeyInfo()), addKeyInfoKeyValue,
+						addKeyInfoKeyName, addKeyInfoX509IssuerSerial),
+				privateKey, signatureMethod, refsIdList, signatureIdPrefix, keepKeyInfoUnsigned);
+	}
+
+	void sign(final List<Certificate> certificates, final List<XMLStructure> keyInfoContent,
+			final PrivateKey privateKey, final String signatureMethod, final List<?> refsIdList,
+			final String signatureIdPrefix, final boolean keepKeyInfoUnsigned)
+			throws MarshalException, GeneralSecurityException, XMLSignatureException {
+
 		final List<?> referencesIdList = new ArrayList<>(refsIdList);
 
 		if (WrappedKeyStorePlace.SIGNING_CERTIFICATE_PROPERTY.equals(getWrappedKeyStorePlace()) && certificates != null
@@ -173,7 +211,7 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 				fac.newSignedInfo(
 						fac.newCanonicalizationMethod(this.canonicalizationMethod, (C14NMethodParameterSpec) null),
 						fac.newSignatureMethod(signatureMethod, null), documentReferences),
-				newKeyInfo(certificates, keyInfoId, addKeyInfoKeyValue, addKeyInfoKeyName, addKeyInfoX509IssuerSerial),
+				fac.getKeyInfoFactory().newKeyInfo(keyInfoContent, keyInfoId),
 				getXMLObjects(), getSignatureId(signatureIdPrefix), getSignatureValueId(signatureIdPrefix));
 
 		this.signContext = new DOMSignContext(privateKey, this.baseElement);
@@ -192,7 +230,17 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 					e);
 		}
 
+		// Los identificadores del documento se resuelven con el indice, sin
+		// recorrer el arbol por cada referencia
+		if (this.idIndex == null) {
+			this.idIndex = XmlIdIndex.build(this.baseElement.getOwnerDocument());
+		}
+		this.idIndex.register(this.signContext);
+
 		this.signature.sign(this.signContext);
+
+		// La firma se inserta como ultimo hijo del nodo base
+		this.idIndex.add((Element) this.baseElement.getLastChild());
 	}
 
 	/**
@@ -207,6 +255,7 @@ public final class RubricaXMLAdvancedSignature extends XMLAdvancedSignature {
 	 */
 	public static RubricaXMLAdvancedSignature newInstance(final XAdES_BES xades) throws GeneralSecurityException {
 		final RubricaXMLAdvancedSignature result = new RubricaXMLAdvancedSignature(xades);
+		result.xmlSignatureFactory = Utils.getDOMFactory();
 		result.setDigestMethod(xades.getDigestMethod());
 		result.setXadesNamespace(xades.getXadesNamespace());
 		return result;
@@ -41,36 +41,27 @@ final class XAdESCommonMetadataUtil {
 		// No instanciable
 	}
 
-	static void addCommonMetadata(final XAdES_EPES xades, final Properties extraParams) throws RubricaException {
+	static void addCommonMetadata(final XAdES_EPES xades, final SignaturePolicyIdentifier spi,
+			final SignatureProductionPlace spp, final SignerRole signerRole) {
 
 		// SignaturePolicyIdentifier
-		final SignaturePolicyIdentifier spi;
-		try {
-			spi = getPolicy(extraParams);
-		} catch (final NoSuchAlgorithmException e1) {
-			throw new RubricaException("El algoritmo indicado para la politica ("
-					+ extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER_HASH_ALGORITHM)
-					+ ") no esta soportado: " + e1, e1);
-		}
 		if (spi != null) {
 			xades.setSignaturePolicyIdentifier(spi);
 		}
 
 		// SignatureProductionPlace
-		final SignatureProductionPlace spp = getSignatureProductionPlace(extraParams);
 		if (spp != null) {
 			xades.setSignatureProductionPlace(spp);
 		}
 
 		// SignerRole
-		final SignerRole signerRole = parseSignerRole(extraParams);
 		if (signerRole != null) {
 			xades.setSignerRole(signerRole);
 		}
 
 	}
 
-	private static SignerRole parseSignerRole(final Properties extraParams) {
+	static SignerRole parseSignerRole(final Properties extraParams) {
 		if (extraParams == null) {
 			return null;
 		}
@@ -90,7 +81,7 @@ final class XAdESCommonMetadataUtil {
 		return signerRole;
 	}
 
-	private static SignatureProductionPlace getSignatureProductionPlace(final Properties extraParams) {
+	static SignatureProductionPlace getSignatureProductionPlace(final Properties extraParams) {
 		if (extraParams == null) {
 			return null;
 		}
@@ -108,15 +99,21 @@ final class XAdESCommonMetadataUtil {
 		return new SignatureProductionPlaceImpl(city, province, postalCode, country);
 	}
 
-	private static SignaturePolicyIdentifier getPolicy(final Properties extraParams) throws NoSuchAlgorithmException {
+	static SignaturePolicyIdentifier getPolicy(final Properties extraParams) throws RubricaException {
 		if (extraParams == null) {
 			return null;
 		}
-		return getPolicy(extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER),
-				extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER_HASH),
-				extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER_HASH_ALGORITHM),
-				extraParams.getProperty(XAdESExtraParams.POLICY_DESCRIPTION),
-				extraParams.getProperty(XAdESExtraParams.POLICY_QUALIFIER));
+		try {
+			return getPolicy(extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER),
+					extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER_HASH),
+					extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER_HASH_ALGORITHM),
+					extraParams.getProperty(XAdESExtraParams.POLICY_DESCRIPTION),
+					extraParams.getProperty(XAdESExtraParams.POLICY_QUALIFIER));
+		} catch (final NoSuchAlgorithmException e1) {
+			throw new RubricaException("El algoritmo indicado para la politica ("
+					+ extraParams.getProperty(XAdESExtraParams.POLICY_IDENTIFIER_HASH_ALGORITHM)
+					+ ") no esta soportado: " + e1, e1);
+		}
 	}
 
 	private static SignaturePolicyIdentifier getPolicy(final String id, final String identifierHash,
@@ -199,6 +199,9 @@ final class XAdESExtraParams {
 	 * <li>Solo puede indicarse una huella cuando no se incluyan los datos dentro de
 	 * la propia firma, es decir, en firmas <i>externally detached</i>, siendo
 	 * conveniente adem&aacute;s hacer uso de un <i>Manifest</i>.</li>
+	 * <li>Es obligatorio indicar la URI de los datos en el par&aacute;metro
+	 * {@link #URI}, y conveniente indicar su tipo en {@link #XMLDSIG_OBJECT_MIME_TYPE}
+	 * (por defecto, <i>application/octet-stream</i>).</li>
 	 * </ul>
 	 */
 	static final String PRECALCULATED_HASH_ALGORITHM = "precalculatedHashAlgorithm";//$NON-NLS-1$
@@ -425,6 +428,16 @@ final class XAdESExtraParams {
 	 */
 	public static final String ROOT_XML_NODE_NAMESPACE_PREFIX = "RootXmlNodeNamespacePrefix"; //$NON-NLS-1$
 
+	/**
+	 * Indica, mediante <code>true</code> o <code>false</code> (por defecto), si
+	 * el firmador de lotes XAdES debe generar una plantilla de firma para el
+	 * certificado y los par&aacute;metros del lote y firmar cada documento
+	 * rellenando sus valores variables, en vez de construir la firma completa
+	 * para cada documento. Los documentos que no encajan en la plantilla se
+	 * firman de la forma habitual.
+	 */
+	static final String USE_SIGNATURE_TEMPLATE = "useSignatureTemplate"; //$NON-NLS-1$
+
 	/**
 	 * Constructor vac&iacute;o privado para que no se pueda instanciar la clase ya
 	 * que es est&aacute;tico.
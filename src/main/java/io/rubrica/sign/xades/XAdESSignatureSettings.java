@@ -0,0 +1,319 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.net.URI;
+import java.security.KeyException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.xml.crypto.XMLStructure;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+
+import es.uji.crypto.xades.jxades.security.xml.XAdES.ObjectIdentifierImpl;
+import es.uji.crypto.xades.jxades.security.xml.XAdES.SignaturePolicyIdentifier;
+import es.uji.crypto.xades.jxades.security.xml.XAdES.SignatureProductionPlace;
+import es.uji.crypto.xades.jxades.security.xml.XAdES.SignerRole;
+import io.rubrica.core.RubricaException;
+import io.rubrica.core.Util;
+import io.rubrica.sign.XMLConstants;
+import io.rubrica.util.MimeHelper;
+import io.rubrica.xml.Utils;
+
+/**
+ * Parámetros de firma XAdES ya interpretados, junto con lo que depende solo
+ * del certificado del firmante (certificados escapados y contenido del
+ * <i>KeyInfo</i>). Es inmutable, por lo que puede compartirse entre varias
+ * firmas concurrentes con el mismo certificado.
+ */
+final class XAdESSignatureSettings {
+
+	private static final Logger logger = Logger.getLogger(XAdESSignatureSettings.class.getName());
+
+	private final Properties extraParams;
+	private final String algorithm;
+	private final String algoUri;
+	private final List<Certificate> certChain;
+	private final X509Certificate signerCert;
+
+	private final boolean avoidXpathExtraTransformsOnEnveloped;
+	private final String nodeToSign;
+	private final String digestMethodAlgorithm;
+	private final String canonicalizationAlgorithm;
+	private final String xadesNamespace;
+	private final String signedPropertiesTypeUrl;
+	private final boolean facturaeSign;
+	private final String outputXmlEncoding;
+	private final String mimeType;
+	private final String encoding;
+	private final boolean keepKeyInfoUnsigned;
+	private final String precalculatedHashAlgorithm;
+	private final String uri;
+
+	// Valores derivados
+	private final ObjectIdentifierImpl objectIdentifier;
+	private final SignaturePolicyIdentifier signaturePolicyIdentifier;
+	private final SignatureProductionPlace signatureProductionPlace;
+	private final SignerRole signerRole;
+	private final List<XMLStructure> keyInfoContent;
+
+	XAdESSignatureSettings(String algorithm, Certificate[] certChain, Properties xParams) throws RubricaException {
+		this(algorithm, certChain, xParams, false);
+	}
+
+	/**
+	 * @param binaryData
+	 *            {@code true} si los datos firmados no son XML, con lo que el
+	 *            MimeType por defecto es el de datos binarios
+	 */
+	XAdESSignatureSettings(String algorithm, Certificate[] certChain, Properties xParams, boolean binaryData)
+			throws RubricaException {
+		this.algoUri = XMLConstants.SIGN_ALGOS_URI.get(algorithm);
+
+		if (algoUri == null) {
+			throw new UnsupportedOperationException(
+					"Los formatos de firma XML no soportan el algoritmo de firma '" + algorithm + "'");
+		}
+
+		this.algorithm = algorithm;
+		this.certChain = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(certChain)));
+		this.signerCert = (X509Certificate) certChain[0];
+
+		this.extraParams = new Properties();
+		if (xParams != null) {
+			this.extraParams.putAll(xParams);
+		}
+
+		this.avoidXpathExtraTransformsOnEnveloped = Boolean.parseBoolean(extraParams
+				.getProperty(XAdESExtraParams.AVOID_XPATH_EXTRA_TRANSFORMS_ON_ENVELOPED, Boolean.FALSE.toString()));
+
+		this.nodeToSign = extraParams.getProperty(XAdESExtraParams.NODE_TOSIGN);
+
+		this.digestMethodAlgorithm = extraParams.getProperty(XAdESExtraParams.REFERENCES_DIGEST_METHOD,
+				XAdESSigner.DIGEST_METHOD);
+
+		String canonicalization = extraParams.getProperty(XAdESExtraParams.CANONICALIZATION_ALGORITHM,
+				CanonicalizationMethod.INCLUSIVE);
+		this.canonicalizationAlgorithm = "none".equalsIgnoreCase(canonicalization) ? null : canonicalization;
+
+		this.xadesNamespace = extraParams.getProperty(XAdESExtraParams.XADES_NAMESPACE, XAdESSigner.XADESNS);
+
+		this.signedPropertiesTypeUrl = extraParams.getProperty(XAdESExtraParams.SIGNED_PROPERTIES_TYPE_URL,
+				XAdESSigner.XADES_SIGNED_PROPERTIES_TYPE);
+
+		boolean addKeyInfoKeyValue = Boolean.parseBoolean(
+				extraParams.getProperty(XAdESExtraParams.ADD_KEY_INFO_KEY_VALUE, Boolean.TRUE.toString()));
+
+		boolean addKeyInfoKeyName = Boolean.parseBoolean(
+				extraParams.getProperty(XAdESExtraParams.ADD_KEY_INFO_KEY_NAME, Boolean.FALSE.toString()));
+
+		boolean addKeyInfoX509IssuerSerial = Boolean.parseBoolean(
+				extraParams.getProperty(XAdESExtraParams.ADD_KEY_INFO_X509_ISSUER_SERIAL, Boolean.FALSE.toString()));
+
+		this.facturaeSign = Boolean
+				.parseBoolean(extraParams.getProperty(XAdESExtraParams.FACTURAE_SIGN, Boolean.FALSE.toString()));
+
+		this.outputXmlEncoding = extraParams.getProperty(XAdESExtraParams.OUTPUT_XML_ENCODING);
+
+		this.precalculatedHashAlgorithm = extraParams.getProperty(XAdESExtraParams.PRECALCULATED_HASH_ALGORITHM);
+
+		// Salvo para huellas o datos binarios solo se firman datos XML: si no
+		// hay asignado un MimeType o es el por defecto establecemos el de XML
+		String mime = extraParams.getProperty(XAdESExtraParams.XMLDSIG_OBJECT_MIME_TYPE);
+		if (binaryData || precalculatedHashAlgorithm != null) {
+			this.mimeType = mime != null ? mime : XMLConstants.DEFAULT_MIMETYPE;
+		} else {
+			this.mimeType = mime == null || XMLConstants.DEFAULT_MIMETYPE.equals(mime) ? "text/xml" : mime;
+		}
+
+		String enc = extraParams.getProperty(XAdESExtraParams.XMLDSIG_OBJECT_ENCODING);
+
+		// Dejamos que indiquen "base64" en vez de la URI, hacemos el cambio
+		// manualmente
+		if ("base64".equalsIgnoreCase(enc)) {
+			enc = XMLConstants.BASE64_ENCODING;
+		}
+
+		// Comprobamos que sea una URI
+		if (enc != null && !enc.isEmpty()) {
+			try {
+				new URI(enc);
+			} catch (final Exception e) {
+				throw new RubricaException("La codificacion indicada en 'encoding' debe ser una URI: " + e, e);
+			}
+		}
+		this.encoding = enc;
+
+		this.keepKeyInfoUnsigned = Boolean.parseBoolean(
+				extraParams.getProperty(XAdESExtraParams.KEEP_KEYINFO_UNSIGNED, Boolean.FALSE.toString()));
+
+		String dataUri = extraParams.getProperty(XAdESExtraParams.URI);
+		try {
+			if (dataUri != null) {
+				dataUri = Util.createURI(dataUri).toString();
+			}
+		} catch (final Exception e) {
+			logger.warning("Se ha pasado una URI invalida como referencia a los datos a firmar: " + e);
+		}
+		this.uri = dataUri;
+
+		// DataObjectFormat
+		String oid = extraParams.getProperty(XAdESExtraParams.CONTENT_TYPE_OID);
+
+		if (oid == null) {
+			try {
+				oid = MimeHelper.transformMimeTypeToOid(mimeType);
+			} catch (final Exception e) {
+				logger.warning("Error en la obtencion del OID del tipo de datos a partir del MimeType: " + e);
+			}
+			// Si no se reconoce el MimeType se habra establecido el por
+			// defecto. Evitamos este comportamiento
+			if (!MimeHelper.DEFAULT_MIMETYPE.equals(mimeType) && MimeHelper.DEFAULT_CONTENT_OID_DATA.equals(oid)) {
+				oid = null;
+			}
+		}
+
+		this.objectIdentifier = oid != null
+				? new ObjectIdentifierImpl("OIDAsURN", (oid.startsWith("urn:oid:") ? "" : "urn:oid:") + oid, null,
+						new ArrayList<String>(0))
+				: null;
+
+		this.signaturePolicyIdentifier = XAdESCommonMetadataUtil.getPolicy(extraParams);
+		this.signatureProductionPlace = XAdESCommonMetadataUtil.getSignatureProductionPlace(extraParams);
+		this.signerRole = XAdESCommonMetadataUtil.parseSignerRole(extraParams);
+
+		try {
+			this.keyInfoContent = Collections.unmodifiableList(RubricaXMLAdvancedSignature.newKeyInfoContent(
+					Utils.getDOMFactory().getKeyInfoFactory(), this.certChain, true, addKeyInfoKeyValue,
+					addKeyInfoKeyName, addKeyInfoX509IssuerSerial));
+		} catch (KeyException e) {
+			throw new RubricaException("No se ha podido crear el KeyInfo de la firma: " + e, e);
+		}
+	}
+
+	/**
+	 * Parámetros originales. No debe modificarse.
+	 */
+	Properties getExtraParams() {
+		return extraParams;
+	}
+
+	String getAlgorithm() {
+		return algorithm;
+	}
+
+	String getAlgoUri() {
+		return algoUri;
+	}
+
+	List<Certificate> getCertChain() {
+		return certChain;
+	}
+
+	X509Certificate getSignerCert() {
+		return signerCert;
+	}
+
+	boolean isAvoidXpathExtraTransformsOnEnveloped() {
+		return avoidXpathExtraTransformsOnEnveloped;
+	}
+
+	String getNodeToSign() {
+		return nodeToSign;
+	}
+
+	String getDigestMethodAlgorithm() {
+		return digestMethodAlgorithm;
+	}
+
+	/**
+	 * Algoritmo de canonicalizacion, o {@code null} si se indico "none".
+	 */
+	String getCanonicalizationAlgorithm() {
+		return canonicalizationAlgorithm;
+	}
+
+	String getXadesNamespace() {
+		return xadesNamespace;
+	}
+
+	String getSignedPropertiesTypeUrl() {
+		return signedPropertiesTypeUrl;
+	}
+
+	boolean isFacturaeSign() {
+		return facturaeSign;
+	}
+
+	String getOutputXmlEncoding() {
+		return outputXmlEncoding;
+	}
+
+	String getMimeType() {
+		return mimeType;
+	}
+
+	String getEncoding() {
+		return encoding;
+	}
+
+	boolean isKeepKeyInfoUnsigned() {
+		return keepKeyInfoUnsigned;
+	}
+
+	/**
+	 * Algoritmo de la huella que se firma en lugar de los datos, o
+	 * {@code null} si se firman los datos.
+	 */
+	String getPrecalculatedHashAlgorithm() {
+		return precalculatedHashAlgorithm;
+	}
+
+	/**
+	 * URI de los datos firmados, o {@code null} si no se indico.
+	 */
+	String getUri() {
+		return uri;
+	}
+
+	ObjectIdentifierImpl getObjectIdentifier() {
+		return objectIdentifier;
+	}
+
+	SignaturePolicyIdentifier getSignaturePolicyIdentifier() {
+		return signaturePolicyIdentifier;
+	}
+
+	SignatureProductionPlace getSignatureProductionPlace() {
+		return signatureProductionPlace;
+	}
+
+	SignerRole getSignerRole() {
+		return signerRole;
+	}
+
+	List<XMLStructure> getKeyInfoContent() {
+		return keyInfoContent;
+	}
+}
\ No newline at end of file
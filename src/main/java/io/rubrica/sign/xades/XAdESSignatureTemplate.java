@@ -0,0 +1,532 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import es.uji.crypto.xades.jxades.util.SystemUtils;
+import io.rubrica.core.RubricaException;
+import io.rubrica.sign.XMLConstants;
+import io.rubrica.xml.Utils;
+import nu.xom.Builder;
+import nu.xom.Node;
+import nu.xom.ParsingException;
+import nu.xom.canonical.Canonicalizer;
+
+/**
+ * Plantilla precompilada de firma XAdES-BES <i>enveloped</i> para un firmante
+ * y unos parámetros fijos.
+ *
+ * La firma se genera una sola vez con jxades sobre un documento vacío,
+ * poniendo marcadores en los valores que cambian de un documento a otro
+ * (identificadores, hora de firma, URI y huellas de las referencias y valor de
+ * firma). De ella se guardan las formas canónicas del <i>SignedInfo</i>, del
+ * <i>SignedProperties</i>, del <i>KeyInfo</i> y de la firma completa, partidas
+ * en tramos constantes. Para cada documento solo se canonicaliza y resume el
+ * propio documento; las demás huellas y el valor de firma se calculan
+ * recorriendo los tramos con los valores nuevos, y la firma se inserta en los
+ * bytes originales justo antes de la etiqueta de cierre del nodo raíz, sin
+ * volver a serializar el documento.
+ *
+ * Los documentos que no encajan en la plantilla (raíz con espacios de nombres
+ * o atributos <code>xml:*</code>, firmas previas, codificación distinta de
+ * UTF-8, etc.) no se firman, y deben firmarse por la vía general.
+ */
+final class XAdESSignatureTemplate {
+
+	private static final String SIGNATURE_ID_TOKEN = "xTPLSIGx";
+	private static final String REFERENCE_ID_TOKEN = "xTPLREFx";
+	private static final String SIGNING_TIME_TOKEN = "xTPLTIMEx";
+	private static final String DATA_URI_TOKEN = "xTPLURIx";
+	private static final String DATA_DIGEST_TOKEN = "xTPLDOCx";
+	private static final String SIGNED_PROPERTIES_DIGEST_TOKEN = "xTPLSPx";
+	private static final String KEY_INFO_DIGEST_TOKEN = "xTPLKIx";
+	private static final String SIGNATURE_VALUE_TOKEN = "xTPLVALx";
+
+	/** Marcadores, en el orden de los valores de cada firma. */
+	private static final String[] TOKENS = { SIGNATURE_ID_TOKEN, REFERENCE_ID_TOKEN, SIGNING_TIME_TOKEN,
+			DATA_URI_TOKEN, DATA_DIGEST_TOKEN, SIGNED_PROPERTIES_DIGEST_TOKEN, KEY_INFO_DIGEST_TOKEN,
+			SIGNATURE_VALUE_TOKEN };
+
+	private static final int SIGNATURE_ID = 0;
+	private static final int REFERENCE_ID = 1;
+	private static final int SIGNING_TIME = 2;
+	private static final int DATA_URI = 3;
+	private static final int DATA_DIGEST = 4;
+	private static final int SIGNED_PROPERTIES_DIGEST = 5;
+	private static final int KEY_INFO_DIGEST = 6;
+	private static final int SIGNATURE_VALUE = 7;
+
+	private static final byte[] XMLDSIG_NAMESPACE = XMLSignature.XMLNS.getBytes(StandardCharsets.US_ASCII);
+
+	private static final Pattern XML_DECLARATION_ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+	private static final ThreadLocal<Builder> BUILDER = new ThreadLocal<Builder>() {
+		@Override
+		protected Builder initialValue() {
+			// Analizador de JAXP, el que escoge XOM por defecto no es accesible
+			// en Java 9 y posteriores
+			try {
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setNamespaceAware(true);
+				return new Builder(factory.newSAXParser().getXMLReader());
+			} catch (ParserConfigurationException | SAXException e) {
+				throw new IllegalStateException("No se ha podido crear el analizador XML: " + e, e);
+			}
+		}
+	};
+
+	private final String signatureAlgorithm;
+	private final String digestAlgorithm;
+
+	private final TemplatePart signedInfo;
+	private final TemplatePart signedProperties;
+	private final TemplatePart keyInfo;
+	private final TemplatePart signature;
+
+	/**
+	 * Genera la plantilla de firma.
+	 *
+	 * @param pk
+	 *            Clave privada del firmante, solo se usa para generar la firma
+	 *            de la que se extrae la plantilla
+	 * @param settings
+	 *            Parámetros de la firma y datos del firmante
+	 * @throws UnsupportedOperationException
+	 *             Si los parámetros indicados no admiten plantilla
+	 * @throws RubricaException
+	 *             Si no se puede generar la firma de la plantilla
+	 */
+	XAdESSignatureTemplate(PrivateKey pk, XAdESSignatureSettings settings) throws RubricaException {
+		checkSupported(settings);
+
+		this.signatureAlgorithm = settings.getAlgorithm();
+		try {
+			this.digestAlgorithm = XMLConstants.getDigestAlgorithmName(settings.getDigestMethodAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			throw new UnsupportedOperationException(e.getMessage(), e);
+		}
+
+		Document templateDocument = Utils.getDocumentBuilder().newDocument();
+		Element templateRoot = templateDocument.createElement("Plantilla");
+		templateDocument.appendChild(templateRoot);
+
+		Document signedDocument = FirmadorXAdES.signEnveloped(templateRoot, pk, settings,
+				"Reference-" + REFERENCE_ID_TOKEN, "Signature-" + SIGNATURE_ID_TOKEN);
+
+		// Marcamos los valores que cambian en cada firma
+		Element signatureElement = getElement(signedDocument, XMLSignature.XMLNS, "Signature");
+		Element signedInfoElement = getElement(signatureElement, XMLSignature.XMLNS, "SignedInfo");
+
+		NodeList references = signedInfoElement.getElementsByTagNameNS(XMLSignature.XMLNS, "Reference");
+		for (int i = 0; i < references.getLength(); i++) {
+			Element reference = (Element) references.item(i);
+			String uri = reference.getAttribute("URI");
+			Element digestValue = getElement(reference, XMLSignature.XMLNS, "DigestValue");
+
+			if (uri.isEmpty()) {
+				reference.setAttribute("URI", DATA_URI_TOKEN);
+				digestValue.setTextContent(DATA_DIGEST_TOKEN);
+			} else if (uri.endsWith("-SignedProperties")) {
+				digestValue.setTextContent(SIGNED_PROPERTIES_DIGEST_TOKEN);
+			} else if (uri.endsWith("-KeyInfo")) {
+				digestValue.setTextContent(KEY_INFO_DIGEST_TOKEN);
+			} else {
+				throw new UnsupportedOperationException("Referencia no soportada en la plantilla de firma: " + uri);
+			}
+		}
+
+		getElement(signatureElement, XMLSignature.XMLNS, "SignatureValue").setTextContent(SIGNATURE_VALUE_TOKEN);
+		getElement(signedDocument, settings.getXadesNamespace(), "SigningTime").setTextContent(SIGNING_TIME_TOKEN);
+
+		// Formas canonicas de cada parte, sobre la firma ya serializada
+		nu.xom.Element xomSignature;
+		try {
+			xomSignature = findElement(BUILDER.get()
+					.build(new ByteArrayInputStream(Utils.writeXML(signedDocument.getDocumentElement(), null)))
+					.getRootElement(), XMLSignature.XMLNS, "Signature");
+		} catch (ParsingException | IOException e) {
+			throw new RubricaException("No se ha podido leer la firma de la plantilla: " + e, e);
+		}
+
+		this.signedInfo = new TemplatePart(canonicalize(findElement(xomSignature, XMLSignature.XMLNS, "SignedInfo")));
+		this.signedProperties = new TemplatePart(
+				canonicalize(findElement(xomSignature, settings.getXadesNamespace(), "SignedProperties")));
+		this.keyInfo = settings.isKeepKeyInfoUnsigned() ? null
+				: new TemplatePart(canonicalize(findElement(xomSignature, XMLSignature.XMLNS, "KeyInfo")));
+		this.signature = new TemplatePart(canonicalize(xomSignature));
+	}
+
+	/**
+	 * Firma un documento XML con la plantilla. Puede llamarse desde varios hilos
+	 * a la vez.
+	 *
+	 * @param data
+	 *            Documento a firmar
+	 * @param pk
+	 *            Clave privada del firmante
+	 * @return Documento firmado, o <code>null</code> si el documento no encaja
+	 *         en la plantilla y debe firmarse por la vía general
+	 * @throws RubricaException
+	 *             Si no se puede firmar el documento
+	 */
+	byte[] sign(byte[] data, PrivateKey pk) throws RubricaException {
+		if (!isUtf8(data) || indexOf(data, XMLDSIG_NAMESPACE) >= 0) {
+			return null;
+		}
+
+		nu.xom.Document document;
+		try {
+			document = BUILDER.get().build(new ByteArrayInputStream(data));
+		} catch (ParsingException | IOException e) {
+			// El error se notificara desde la via general
+			return null;
+		}
+
+		nu.xom.Element root = document.getRootElement();
+
+		// La firma no debe heredar espacios de nombres ni atributos xml:* de
+		// la raiz, para que su forma canonica sea la de la plantilla
+		if (!root.getNamespaceURI().isEmpty()) {
+			return null;
+		}
+		for (int i = 0; i < root.getNamespaceDeclarationCount(); i++) {
+			if (!root.getNamespacePrefix(i).isEmpty()) {
+				return null;
+			}
+		}
+		for (int i = 0; i < root.getAttributeCount(); i++) {
+			if (!root.getAttribute(i).getNamespaceURI().isEmpty()) {
+				return null;
+			}
+		}
+
+		int insertionOffset = getRootEndTagOffset(data, root.getQualifiedName());
+		if (insertionOffset < 0) {
+			return null;
+		}
+
+		// Si la raiz tiene Id se firma ese nodo, si no todo el documento
+		String id = root.getAttributeValue(FirmadorXAdES.ID_IDENTIFIER);
+		Node signedNode = document;
+		String uri = "";
+		if (id != null && !id.isEmpty()) {
+			if (needsEscaping(id)) {
+				return null;
+			}
+			signedNode = root;
+			uri = "#" + id;
+		}
+
+		try {
+			byte[][] values = new byte[TOKENS.length][];
+			values[SIGNATURE_ID] = ascii(UUID.randomUUID().toString());
+			values[REFERENCE_ID] = ascii(UUID.randomUUID().toString());
+			values[SIGNING_TIME] = ascii(SystemUtils.formatDate(new Date()));
+			values[DATA_URI] = uri.getBytes(StandardCharsets.UTF_8);
+
+			MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+			new Canonicalizer(new DigestSink(md), Canonicalizer.CANONICAL_XML).write(signedNode);
+			values[DATA_DIGEST] = base64(md.digest());
+
+			signedProperties.update(md, values);
+			values[SIGNED_PROPERTIES_DIGEST] = base64(md.digest());
+
+			if (keyInfo != null) {
+				keyInfo.update(md, values);
+				values[KEY_INFO_DIGEST] = base64(md.digest());
+			}
+
+			Signature sig = Signature.getInstance(signatureAlgorithm);
+			sig.initSign(pk);
+			signedInfo.update(sig, values);
+			values[SIGNATURE_VALUE] = base64(sig.sign());
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length + signature.length());
+			baos.write(data, 0, insertionOffset);
+			signature.write(baos, values);
+			baos.write(data, insertionOffset, data.length - insertionOffset);
+			return baos.toByteArray();
+		} catch (GeneralSecurityException | IOException e) {
+			throw new RubricaException("Error al generar la firma XAdES: " + e, e);
+		}
+	}
+
+	private static void checkSupported(XAdESSignatureSettings settings) {
+		if (settings.getPrecalculatedHashAlgorithm() != null) {
+			throw new UnsupportedOperationException("La plantilla de firma solo admite firmas enveloped");
+		}
+
+		if (settings.getNodeToSign() != null) {
+			throw new UnsupportedOperationException("La plantilla de firma no admite indicar el nodo a firmar");
+		}
+
+		String canonicalization = settings.getCanonicalizationAlgorithm();
+		if (canonicalization != null && !CanonicalizationMethod.INCLUSIVE.equals(canonicalization)) {
+			throw new UnsupportedOperationException(
+					"La plantilla de firma solo admite canonicalizacion inclusiva: " + canonicalization);
+		}
+
+		List<Transform> customTransforms = new ArrayList<>();
+		Utils.addCustomTransforms(customTransforms, settings.getExtraParams(), XAdESSigner.XML_SIGNATURE_PREFIX);
+		if (!customTransforms.isEmpty()) {
+			throw new UnsupportedOperationException("La plantilla de firma no admite transformaciones a medida");
+		}
+	}
+
+	private static Element getElement(Document document, String namespace, String localName) {
+		return getElement(document.getDocumentElement(), namespace, localName);
+	}
+
+	private static Element getElement(Element parent, String namespace, String localName) {
+		NodeList nodes = parent.getElementsByTagNameNS(namespace, localName);
+		if (nodes.getLength() == 0) {
+			throw new UnsupportedOperationException("No se encuentra el nodo " + localName + " en la firma generada");
+		}
+		return (Element) nodes.item(0);
+	}
+
+	private static nu.xom.Element findElement(nu.xom.Element element, String namespace, String localName) {
+		if (namespace.equals(element.getNamespaceURI()) && localName.equals(element.getLocalName())) {
+			return element;
+		}
+		nu.xom.Elements children = element.getChildElements();
+		for (int i = 0; i < children.size(); i++) {
+			nu.xom.Element found = findElement(children.get(i), namespace, localName);
+			if (found != null) {
+				return found;
+			}
+		}
+		return null;
+	}
+
+	private static String canonicalize(Node node) throws RubricaException {
+		if (node == null) {
+			throw new UnsupportedOperationException("No se encuentra un nodo de la firma generada");
+		}
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			new Canonicalizer(baos, Canonicalizer.CANONICAL_XML).write(node);
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new RubricaException("No se ha podido canonicalizar la plantilla de firma: " + e, e);
+		}
+	}
+
+	/**
+	 * Comprueba que el documento esté codificado en UTF-8, que es como se
+	 * escribe la firma insertada.
+	 */
+	private static boolean isUtf8(byte[] data) {
+		int start = 0;
+		if (data.length >= 3 && (data[0] & 0xff) == 0xEF && (data[1] & 0xff) == 0xBB && (data[2] & 0xff) == 0xBF) {
+			start = 3;
+		}
+		if (data.length < start + 2 || data[start] == 0 || data[start + 1] == 0 || (data[start] & 0xff) == 0xFE
+				|| (data[start] & 0xff) == 0xFF) {
+			return false;
+		}
+		if (!new String(data, start, Math.min(5, data.length - start), StandardCharsets.US_ASCII).equals("<?xml")) {
+			return true;
+		}
+		int end = indexOf(data, "?>".getBytes(StandardCharsets.US_ASCII));
+		if (end < 0) {
+			return false;
+		}
+		Matcher matcher = XML_DECLARATION_ENCODING
+				.matcher(new String(data, start, end - start, StandardCharsets.US_ASCII));
+		return !matcher.find() || "UTF-8".equalsIgnoreCase(matcher.group(1));
+	}
+
+	/**
+	 * Posición de la etiqueta de cierre del nodo raíz, o -1 si tras ella hay
+	 * algo distinto de espacios en blanco o la raíz es un elemento vacío.
+	 */
+	private static int getRootEndTagOffset(byte[] data, String qualifiedName) {
+		int end = data.length - 1;
+		while (end >= 0 && (data[end] == ' ' || data[end] == '\t' || data[end] == '\r' || data[end] == '\n')) {
+			end--;
+		}
+		if (end < 0 || data[end] != '>') {
+			return -1;
+		}
+		for (int i = end - 1; i > 0; i--) {
+			if (data[i - 1] == '<' && data[i] == '/') {
+				String name = new String(data, i + 1, end - i - 1, StandardCharsets.UTF_8).trim();
+				return name.equals(qualifiedName) ? i - 1 : -1;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean needsEscaping(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&' || c == '<' || c == '>' || c == '"' || c == '\t' || c == '\n' || c == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		outer: for (int i = 0; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] base64(byte[] value) {
+		return Base64.getEncoder().encode(value);
+	}
+
+	/**
+	 * Forma canónica de una parte de la firma, partida en tramos constantes
+	 * separados por los valores de cada firma.
+	 */
+	private static final class TemplatePart {
+
+		private final byte[][] literals;
+		private final int[] fields;
+		private final int length;
+
+		TemplatePart(String text) {
+			List<byte[]> literalList = new ArrayList<>();
+			List<Integer> fieldList = new ArrayList<>();
+			int position = 0;
+			int total = 0;
+
+			while (true) {
+				int next = -1;
+				int field = -1;
+				for (int f = 0; f < TOKENS.length; f++) {
+					int index = text.indexOf(TOKENS[f], position);
+					if (index >= 0 && (next < 0 || index < next)) {
+						next = index;
+						field = f;
+					}
+				}
+				if (next < 0) {
+					break;
+				}
+				byte[] literal = text.substring(position, next).getBytes(StandardCharsets.UTF_8);
+				literalList.add(literal);
+				total += literal.length;
+				fieldList.add(field);
+				position = next + TOKENS[field].length();
+			}
+			byte[] literal = text.substring(position).getBytes(StandardCharsets.UTF_8);
+			literalList.add(literal);
+			total += literal.length;
+
+			this.literals = literalList.toArray(new byte[literalList.size()][]);
+			this.fields = new int[fieldList.size()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = fieldList.get(i);
+			}
+			this.length = total;
+		}
+
+		/** Tamaño aproximado, sin contar los valores de cada firma. */
+		int length() {
+			return length + 512;
+		}
+
+		void update(MessageDigest md, byte[][] values) {
+			for (int i = 0; i < fields.length; i++) {
+				md.update(literals[i]);
+				md.update(values[fields[i]]);
+			}
+			md.update(literals[fields.length]);
+		}
+
+		void update(Signature sig, byte[][] values) throws GeneralSecurityException {
+			for (int i = 0; i < fields.length; i++) {
+				sig.update(literals[i]);
+				sig.update(values[fields[i]]);
+			}
+			sig.update(literals[fields.length]);
+		}
+
+		void write(ByteArrayOutputStream out, byte[][] values) {
+			for (int i = 0; i < fields.length; i++) {
+				out.write(literals[i], 0, literals[i].length);
+				out.write(values[fields[i]], 0, values[fields[i]].length);
+			}
+			out.write(literals[fields.length], 0, literals[fields.length].length);
+		}
+	}
+
+	/**
+	 * Salida que solo actualiza una huella digital.
+	 */
+	private static final class DigestSink extends OutputStream {
+
+		private final MessageDigest md;
+
+		DigestSink(MessageDigest md) {
+			this.md = md;
+		}
+
+		@Override
+		public void write(int b) {
+			md.update((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			md.update(b, off, len);
+		}
+	}
+}
\ No newline at end of file
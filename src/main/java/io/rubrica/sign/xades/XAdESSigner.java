@@ -17,12 +17,9 @@
 
 package io.rubrica.sign.xades;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
@@ -35,11 +32,8 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import es.uji.crypto.xades.jxades.util.Base64;
-import es.uji.crypto.xades.jxades.util.XMLUtils;
 import io.rubrica.core.RubricaException;
 import io.rubrica.sign.InvalidFormatException;
 import io.rubrica.sign.SignInfo;
@@ -520,130 +514,18 @@ public final class XAdESSigner implements Signer {
 		return false;
 	}
 
-	public byte[] getData(final byte[] sign) throws InvalidFormatException {
-		// nueva instancia de DocumentBuilderFactory que permita espacio de
-		// nombres (necesario para XML)
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-
-		Element rootSig;
-		Element elementRes = null;
-
-		try {
-			// comprueba que sea una documento de firma valido
-			if (!isSign(sign)) {
-				throw new InvalidFormatException("El documento no es un documento de firmas valido.");
-			}
-
-			// obtiene la raiz del documento de firmas
-			rootSig = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign)).getDocumentElement();
-
-			// si es detached
-			if (XAdESSigner.isDetached(rootSig)) {
-				Element firstChild = (Element) rootSig.getFirstChild();
-				// si el documento es un xml se extrae como tal
-				if (firstChild.getAttribute(XMLDSIG_ATTR_MIMETYPE_STR).equals("text/xml")) {
-					elementRes = (Element) firstChild.getFirstChild();
-				}
-				// si el documento es binario se deshace la codificacion en
-				// Base64 si y solo si esta declarada esta transformacion
-				else {
-					// TODO: Deshacer solo el Base64 si existe la transformacion
-					// Base64 (COMPROBAR)
-					return isBase64TransformationDeclared(rootSig, firstChild.getAttribute(ID_IDENTIFIER))
-							? Base64.decode(firstChild.getTextContent())
-							: firstChild.getTextContent().getBytes();
-				}
-			}
-
-			// Si es enveloped
-			else if (XAdESSigner.isEnveloped(rootSig)) {
-				removeEnvelopedSignatures(rootSig);
-				elementRes = rootSig;
-			}
-
-			// Si es enveloping
-			else if (XAdESSigner.isEnveloping(rootSig)) {
-				// Obtiene el nodo Object de la primera firma
-				Element object = (Element) rootSig.getElementsByTagNameNS(XMLConstants.DSIGNNS, "Object").item(0);
-				// Si el documento es un xml se extrae como tal
-				if (object.getAttribute(XMLDSIG_ATTR_MIMETYPE_STR).equals("text/xml")) {
-					elementRes = (Element) object.getFirstChild();
-				}
-				// Si el documento es binario se deshace la codificacion en
-				// Base64 si y solo si esta declarada esta transformacion
-				else {
-					// TODO: Deshacer solo el Base64 si existe la transformacion
-					// Base64 (COMPROBAR)
-					return isBase64TransformationDeclared(rootSig, object.getAttribute(ID_IDENTIFIER))
-							? Base64.decode(object.getTextContent())
-							: object.getTextContent().getBytes();
-				}
-			}
-		} catch (Exception ex) {
-			throw new InvalidFormatException("Error al leer el fichero de firmas: " + ex, ex);
-		}
-
-		// si no se ha recuperado ningun dato se devuelve null
-		if (elementRes == null) {
-			return null;
-		}
-
-		// convierte el documento obtenido en un array de bytes
-		ByteArrayOutputStream baosSig = new ByteArrayOutputStream();
-		XMLUtils.writeXML(baosSig, elementRes, false);
-
-		return baosSig.toByteArray();
-	}
-
-	private void removeEnvelopedSignatures(Element rootSig) {
-		// obtiene las firmas y las elimina
-		NodeList mainChildNodes = rootSig.getChildNodes();
-		for (int i = 0; i < mainChildNodes.getLength(); i++) {
-			if (mainChildNodes.item(i).getNodeType() == Node.ELEMENT_NODE
-					&& mainChildNodes.item(i).getNodeName().endsWith(":" + SIGNATURE_TAG)) {
-				rootSig.removeChild(mainChildNodes.item(i));
-				removeEnvelopedSignatures(rootSig);
-				return;
-			}
-		}
-	}
-
 	/**
-	 * Comprueba si unos datos firmados tienen declarados una transformaci&oacute;n
-	 * de tipo Base64.
+	 * Obtiene los datos firmados. El documento se analiza una sola vez (ver
+	 * {@link XadesSignatureDocument}).
 	 * 
-	 * @param rootSig
-	 *            Nodo raiz de la firma.
-	 * @param objectId
-	 *            Identificador de los datos.
-	 * @return {@code true} si la transformaci&oacute;n est&aacute; definida,
-	 *         {@code false} en caso contrario.
+	 * @param sign
+	 *            Documento de firmas
+	 * @return Datos firmados, o {@code null} si no se encuentran
+	 * @throws InvalidFormatException
+	 *             Si los datos no son una firma XAdES valida
 	 */
-	private static boolean isBase64TransformationDeclared(final Element rootSig, final String objectId) {
-		if (objectId == null || objectId.trim().equals("")) {
-			return false;
-		}
-
-		Element reference = null;
-		final NodeList references = rootSig.getElementsByTagNameNS(XMLConstants.DSIGNNS, "Reference");
-		for (int i = 0; i < references.getLength(); i++) {
-			reference = (Element) references.item(i);
-			if (reference.hasAttribute("URI") && ("#" + objectId).equals(reference.getAttribute("URI"))) { //$NON-NLS-3$
-				break;
-			}
-			reference = null;
-		}
-		if (reference != null) {
-			final NodeList transforms = reference.getElementsByTagNameNS(XMLConstants.DSIGNNS, "Transform");
-			for (int i = 0; i < transforms.getLength(); i++) {
-				if (((Element) transforms.item(i)).hasAttribute("Algorithm") && XMLConstants.BASE64_ENCODING
-						.equals(((Element) transforms.item(i)).getAttribute("Algorithm"))) {
-					return true;
-				}
-			}
-		}
-		return false;
+	public byte[] getData(final byte[] sign) throws InvalidFormatException {
+		return XadesSignatureDocument.parse(sign).getData();
 	}
 
 	public boolean isSign(final byte[] sign) {
@@ -653,35 +535,10 @@ public final class XAdESSigner implements Signer {
 		}
 
 		try {
-			// Carga el documento a validar
-			final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			dbf.setNamespaceAware(true);
-
-			// JXades no captura un nodo de firma si se pasa este como raiz del
-			// arbol de firmas, asi
-			// que nos vemos obligados a crear un nodo padre, del que colgara
-			// todo el arbol de firmas,
-			// para que lo detecte correctamente
-			Element rootNode = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign)).getDocumentElement();
-
-			List<Node> signNodes = new ArrayList<>();
-			if (rootNode.getNodeName().equals(SIGNATURE_NODE_NAME)) {
-				signNodes.add(rootNode);
-			}
-
-			NodeList signatures = rootNode.getElementsByTagNameNS(XMLConstants.DSIGNNS, SIGNATURE_TAG);
-			for (int i = 0; i < signatures.getLength(); i++) {
-				signNodes.add(signatures.item(i));
-			}
-
-			// Si no se encuentran firmas, no es un documento de firma
-			if (signNodes.size() == 0 || !XAdESUtil.checkSignNodes(signNodes)) {
-				return false;
-			}
-		} catch (final Exception e) {
+			return XadesSignatureDocument.parse(sign).isSign();
+		} catch (final InvalidFormatException e) {
 			return false;
 		}
-		return true;
 	}
 
 	public boolean isValidDataFile(final byte[] data) {
@@ -727,36 +584,12 @@ public final class XAdESSigner implements Signer {
 
 	@Override
 	public List<SignInfo> getSigners(byte[] sign) throws InvalidFormatException, IOException {
-		if (!isSign(sign)) {
-			throw new InvalidFormatException("Los datos indicados no son una firma XAdES compatible");
-		}
-
-		// Obtenemos el arbol del documento
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-
-		Document signDoc;
-
+		XadesSignatureDocument document;
 		try {
-			signDoc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sign));
-		} catch (Exception e) {
-			logger.warning("Se ha producido un error al obtener la estructura de firmas: " + e);
-			return null;
+			document = XadesSignatureDocument.parse(sign);
+		} catch (InvalidFormatException e) {
+			throw new InvalidFormatException("Los datos indicados no son una firma XAdES compatible", e);
 		}
-
-		// Obtenemos todas las firmas del documento y el SignatureValue de cada
-		// una de ellas
-		NodeList signatures = signDoc.getElementsByTagNameNS(XMLConstants.DSIGNNS, SIGNATURE_TAG);
-		List<SignInfo> signInfos = new ArrayList<>();
-
-		// Rellenamos la lista con los datos de las firmas del documento
-		for (int i = 0; i < signatures.getLength(); i++) {
-			Element signature = (Element) signatures.item(i);
-			SignInfo signInfo = Utils.getSimpleSignInfoNode(Utils.guessXAdESNamespaceURL(signDoc.getDocumentElement()),
-					signature);
-			signInfos.add(signInfo);
-		}
-
-		return signInfos;
+		return document.getSigners();
 	}
 }
\ No newline at end of file
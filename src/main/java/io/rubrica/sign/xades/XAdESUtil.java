@@ -44,7 +44,6 @@ import javax.xml.xpath.XPathFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentType;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import es.uji.crypto.xades.jxades.security.xml.XAdES.CommitmentTypeIdImpl;
@@ -66,24 +65,20 @@ public final class XAdESUtil {
 	private static final Logger logger = Logger.getLogger(XAdESUtil.class.getName());
 
 	/**
-	 * Comprueba que los nodos de firma proporcionados sean firmas en formato XAdES.
+	 * Indica si un espacio de nombres corresponde a una versi&oacute;n soportada
+	 * de XAdES.
 	 * 
-	 * @param signNodes
-	 *            Listado de nodos de firma.
-	 * @return {@code true} cuando todos los nodos sean firmas en este formato.
+	 * @param namespaceURI
+	 *            Espacio de nombres a comprobar.
+	 * @return {@code true} si es un espacio de nombres XAdES soportado.
 	 */
-	static boolean checkSignNodes(List<Node> signNodes) {
-		for (Node signNode : signNodes) {
-			int lenCount = 0;
-			for (final String xadesNamespace : SUPPORTED_XADES_NAMESPACE_URIS) {
-				lenCount = lenCount + ((Element) signNode)
-						.getElementsByTagNameNS(xadesNamespace, "QualifyingProperties").getLength();
-			}
-			if (lenCount == 0) {
-				return false;
+	static boolean isSupportedXadesNamespace(String namespaceURI) {
+		for (String xadesNamespace : SUPPORTED_XADES_NAMESPACE_URIS) {
+			if (xadesNamespace.equals(namespaceURI)) {
+				return true;
 			}
 		}
-		return true;
+		return false;
 	}
 
 	static RubricaXMLAdvancedSignature getXmlAdvancedSignature(XAdES_EPES xades, String signedPropertiesTypeUrl,
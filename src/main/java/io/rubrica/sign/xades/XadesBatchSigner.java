@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import io.rubrica.core.RubricaException;
+import io.rubrica.sign.BatchProcessor;
+import io.rubrica.sign.BatchResult;
+
+/**
+ * Firma lotes de documentos XML en formato XAdES-BES (enveloped) con una misma
+ * clave y cadena de certificados, por ejemplo comprobantes electronicos.
+ *
+ * Los parámetros de firma y lo que depende solo del certificado (algoritmo,
+ * tipo de datos, politica, <i>KeyInfo</i>) se preparan una sola vez para todo
+ * el lote. Cada hilo reutiliza su propio analizador XML y su factoria de
+ * firmas, y los documentos se firman en paralelo en el {@link ExecutorService}
+ * indicado (ver {@link BatchProcessor}).
+ *
+ * Con el parámetro <code>useSignatureTemplate</code> a <code>true</code> la
+ * firma se precompila una sola vez como plantilla y para cada documento solo se
+ * calculan la huella de los datos, la hora, los identificadores y el valor de
+ * firma (ver {@link XAdESSignatureTemplate}).
+ */
+public class XadesBatchSigner {
+
+	private static final Logger logger = Logger.getLogger(XadesBatchSigner.class.getName());
+
+	private final PrivateKey key;
+	private final XAdESSignatureSettings settings;
+	private final XAdESSignatureTemplate template;
+	private final ExecutorService executor;
+
+	/**
+	 * Crea un firmador de lotes que usa el pool comun de
+	 * {@link ForkJoinPool}.
+	 *
+	 * @param key
+	 *            Clave privada a usar para firmar
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @param algorithm
+	 *            Algoritmo de firma, por ejemplo <i>SHA1withRSA</i>
+	 * @param extraParams
+	 *            Parámetros adicionales para la firma, comunes a todo el lote
+	 */
+	public XadesBatchSigner(PrivateKey key, Certificate[] certChain, String algorithm, Properties extraParams)
+			throws RubricaException {
+		this(key, certChain, algorithm, extraParams, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Crea un firmador de lotes.
+	 *
+	 * @param key
+	 *            Clave privada a usar para firmar
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @param algorithm
+	 *            Algoritmo de firma, por ejemplo <i>SHA1withRSA</i>
+	 * @param extraParams
+	 *            Parámetros adicionales para la firma, comunes a todo el lote
+	 * @param executor
+	 *            Pool de hilos en donde se firman los documentos; no se cierra
+	 *            al terminar
+	 */
+	public XadesBatchSigner(PrivateKey key, Certificate[] certChain, String algorithm, Properties extraParams,
+			ExecutorService executor) throws RubricaException {
+		if (key == null) {
+			throw new IllegalArgumentException("La clave privada no puede ser nula");
+		}
+		if (certChain == null || certChain.length == 0) {
+			throw new IllegalArgumentException("No se ha introducido la cadena de certificacion");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("El pool de hilos no puede ser nulo");
+		}
+
+		this.key = key;
+		this.settings = new XAdESSignatureSettings(algorithm, certChain, extraParams);
+		this.executor = executor;
+
+		XAdESSignatureTemplate signatureTemplate = null;
+		if (Boolean.parseBoolean(settings.getExtraParams().getProperty(XAdESExtraParams.USE_SIGNATURE_TEMPLATE,
+				Boolean.FALSE.toString()))) {
+			try {
+				signatureTemplate = new XAdESSignatureTemplate(key, settings);
+			} catch (UnsupportedOperationException e) {
+				logger.warning("No se puede usar una plantilla de firma con estos parametros: " + e.getMessage());
+			}
+		}
+		this.template = signatureTemplate;
+	}
+
+	/**
+	 * Firma un documento XML en el hilo actual. Puede llamarse desde varios
+	 * hilos a la vez.
+	 *
+	 * @param document
+	 *            Documento a firmar
+	 * @return Documento firmado
+	 * @throws RubricaException
+	 *             Si no se puede firmar el documento
+	 */
+	public byte[] sign(byte[] document) throws RubricaException {
+		if (template != null) {
+			byte[] signed = template.sign(document, key);
+			if (signed != null) {
+				return signed;
+			}
+		}
+		return FirmadorXAdES.sign(document, key, settings);
+	}
+
+	/**
+	 * Firma un lote de documentos XML.
+	 *
+	 * @param documents
+	 *            Documentos a firmar
+	 * @return Resultado de cada documento, en el orden de entrada
+	 */
+	public List<BatchResult> sign(Iterable<byte[]> documents) {
+		return BatchProcessor.process(documents, this::sign, executor);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.crypto.dsig.Transform;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import es.uji.crypto.xades.jxades.util.Base64;
+import es.uji.crypto.xades.jxades.util.XMLUtils;
+import io.rubrica.sign.InvalidFormatException;
+import io.rubrica.sign.SignInfo;
+import io.rubrica.sign.XMLConstants;
+import io.rubrica.xml.Utils;
+
+/**
+ * Documento de firmas XML analizado una sola vez.
+ *
+ * Al crearlo se recorre el arbol una unica vez indexando los nodos
+ * <i>ds:Signature</i>, <i>ds:Reference</i> (con sus transformaciones) y
+ * <i>ds:Object</i>, y los identificadores de los elementos, de modo que todas
+ * las consultas (si es una firma, su tipo, los datos firmados o los firmantes)
+ * se resuelven con el indice sin volver a analizar ni recorrer el documento.
+ *
+ * Las consultas no modifican el documento; el arbol DOM subyacente no es seguro
+ * para su uso desde varios hilos a la vez.
+ */
+public final class XadesSignatureDocument {
+
+	private static final String ID_IDENTIFIER = "Id";
+
+	private final Element root;
+	private final List<Element> signatures = new ArrayList<>();
+	private final List<Element> references = new ArrayList<>();
+	private final List<Element> objects = new ArrayList<>();
+	private final Map<Element, List<String>> transforms = new IdentityHashMap<>();
+	private final Map<String, Element> referencesByUri = new HashMap<>();
+	private final XmlIdIndex ids = new XmlIdIndex();
+	private boolean allXadesSignatures = true;
+	private String xadesNamespace;
+
+	private XadesSignatureDocument(Element root) {
+		this.root = root;
+		index();
+	}
+
+	/**
+	 * Analiza un documento XML de firmas.
+	 *
+	 * @param sign
+	 *            Documento de firmas
+	 * @return Documento analizado
+	 * @throws InvalidFormatException
+	 *             Si los datos no son un XML valido
+	 */
+	public static XadesSignatureDocument parse(byte[] sign) throws InvalidFormatException {
+		if (sign == null) {
+			throw new InvalidFormatException("Se han introducido datos nulos");
+		}
+		try {
+			return new XadesSignatureDocument(
+					Utils.getDocumentBuilder().parse(new ByteArrayInputStream(sign)).getDocumentElement());
+		} catch (Exception e) {
+			throw new InvalidFormatException("Error al leer el fichero de firmas: " + e, e);
+		}
+	}
+
+	/**
+	 * Recorre el arbol una sola vez, en orden de documento.
+	 */
+	private void index() {
+		List<boolean[]> openSignatures = new ArrayList<>();
+		Element currentReference = null;
+
+		Node node = root;
+		while (node != null) {
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				Element element = (Element) node;
+				ids.addAttributes(element);
+
+				String namespace = element.getNamespaceURI();
+				String localName = element.getLocalName();
+				if (XMLConstants.DSIGNNS.equals(namespace)) {
+					if (XAdESSigner.SIGNATURE_TAG.equals(localName)) {
+						signatures.add(element);
+						openSignatures.add(new boolean[1]);
+					} else if ("Reference".equals(localName)) {
+						references.add(element);
+						if (element.hasAttribute("URI") && !referencesByUri.containsKey(element.getAttribute("URI"))) {
+							referencesByUri.put(element.getAttribute("URI"), element);
+						}
+						transforms.put(element, new ArrayList<String>());
+						currentReference = element;
+					} else if ("Object".equals(localName)) {
+						objects.add(element);
+					} else if ("Transform".equals(localName) && currentReference != null) {
+						transforms.get(currentReference).add(element.getAttribute("Algorithm"));
+					}
+				} else if ("QualifyingProperties".equals(localName) && XAdESUtil.isSupportedXadesNamespace(namespace)) {
+					for (boolean[] xades : openSignatures) {
+						xades[0] = true;
+					}
+				}
+			}
+
+			if (node.getFirstChild() != null) {
+				node = node.getFirstChild();
+				continue;
+			}
+
+			// Subimos cerrando los elementos hasta encontrar un hermano
+			while (node != null) {
+				if (node.getNodeType() == Node.ELEMENT_NODE && XMLConstants.DSIGNNS.equals(node.getNamespaceURI())) {
+					if (XAdESSigner.SIGNATURE_TAG.equals(node.getLocalName())) {
+						allXadesSignatures &= openSignatures.remove(openSignatures.size() - 1)[0];
+					} else if ("Reference".equals(node.getLocalName())) {
+						currentReference = null;
+					}
+				}
+				if (node == root) {
+					node = null;
+				} else if (node.getNextSibling() != null) {
+					node = node.getNextSibling();
+					break;
+				} else {
+					node = node.getParentNode();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Indica si el documento es una firma XAdES: contiene al menos un nodo de
+	 * firma y todos ellos tienen propiedades XAdES de una versi&oacute;n
+	 * soportada.
+	 *
+	 * @return {@code true} si es un documento de firmas XAdES
+	 */
+	public boolean isSign() {
+		return !signatures.isEmpty() && allXadesSignatures;
+	}
+
+	/**
+	 * Obtiene el n&uacute;mero de nodos <i>ds:Signature</i> del documento.
+	 *
+	 * @return N&uacute;mero de firmas
+	 */
+	public int getSignatureCount() {
+		return signatures.size();
+	}
+
+	/**
+	 * Obtiene el n&uacute;mero de nodos <i>ds:Reference</i> del documento.
+	 *
+	 * @return N&uacute;mero de referencias
+	 */
+	public int getReferenceCount() {
+		return references.size();
+	}
+
+	/**
+	 * Obtiene el n&uacute;mero de nodos <i>ds:Object</i> del documento.
+	 *
+	 * @return N&uacute;mero de objetos
+	 */
+	public int getObjectCount() {
+		return objects.size();
+	}
+
+	/**
+	 * Indica si existe un elemento con el identificador indicado, con el
+	 * criterio de {@link XmlIdIndex}.
+	 *
+	 * @param id
+	 *            Identificador a buscar
+	 * @return {@code true} si existe el elemento
+	 */
+	public boolean containsId(String id) {
+		return ids.getElement(id) != null;
+	}
+
+	/**
+	 * Comprueba si la firma es <i>detached</i>: el primer nodo del documento que
+	 * no es una firma tiene un identificador referenciado desde alguna firma.
+	 *
+	 * @return {@code true} si la firma es <i>detached</i>
+	 */
+	public boolean isDetached() {
+		Element dataNode = getDetachedDataNode();
+		if (dataNode == null) {
+			return false;
+		}
+		String dataNodeId = dataNode.getAttribute(ID_IDENTIFIER);
+		return !dataNodeId.isEmpty() && referencesByUri.containsKey('#' + dataNodeId);
+	}
+
+	/**
+	 * Comprueba si la firma es <i>enveloped</i>: alguna referencia tiene la
+	 * transformaci&oacute;n <i>enveloped-signature</i>.
+	 *
+	 * @return {@code true} si la firma es <i>enveloped</i>
+	 */
+	public boolean isEnveloped() {
+		for (List<String> algorithms : transforms.values()) {
+			if (algorithms.contains(Transform.ENVELOPED)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Comprueba si la firma es <i>enveloping</i>: la ra&iacute;z es la firma o
+	 * un nodo <i>AFIRMA</i> cuyo primer hijo es la firma.
+	 *
+	 * @return {@code true} si la firma es <i>enveloping</i>
+	 */
+	public boolean isEnveloping() {
+		if (XAdESSigner.SIGNATURE_TAG.equals(root.getLocalName())) {
+			return true;
+		}
+		Node firstChild = root.getFirstChild();
+		return XAdESSigner.AFIRMA.equals(root.getLocalName()) && firstChild != null
+				&& XAdESSigner.SIGNATURE_TAG.equals(firstChild.getLocalName());
+	}
+
+	/**
+	 * Obtiene los datos firmados.
+	 *
+	 * @return Datos firmados, o {@code null} si no se encuentran
+	 * @throws InvalidFormatException
+	 *             Si el documento no es una firma XAdES o no se pueden extraer
+	 *             los datos
+	 */
+	public byte[] getData() throws InvalidFormatException {
+		if (!isSign()) {
+			throw new InvalidFormatException("El documento no es un documento de firmas valido.");
+		}
+
+		Element elementRes = null;
+
+		try {
+			// si es detached
+			if (isDetached()) {
+				Element firstChild = getDetachedDataNode();
+				// si el documento es un xml se extrae como tal
+				if (firstChild.getAttribute(XAdESSigner.XMLDSIG_ATTR_MIMETYPE_STR).equals("text/xml")) {
+					elementRes = (Element) firstChild.getFirstChild();
+				}
+				// si el documento es binario se deshace la codificacion en
+				// Base64 si y solo si esta declarada esta transformacion
+				else {
+					return decode(firstChild);
+				}
+			}
+
+			// Si es enveloped se devuelve una copia sin las firmas
+			else if (isEnveloped()) {
+				elementRes = (Element) root.cloneNode(true);
+				removeEnvelopedSignatures(elementRes);
+			}
+
+			// Si es enveloping
+			else if (isEnveloping()) {
+				// Obtiene el nodo Object de la primera firma
+				Element object = objects.get(0);
+				// Si el documento es un xml se extrae como tal
+				if (object.getAttribute(XAdESSigner.XMLDSIG_ATTR_MIMETYPE_STR).equals("text/xml")) {
+					elementRes = (Element) object.getFirstChild();
+				}
+				// Si el documento es binario se deshace la codificacion en
+				// Base64 si y solo si esta declarada esta transformacion
+				else {
+					return decode(object);
+				}
+			}
+		} catch (Exception ex) {
+			throw new InvalidFormatException("Error al leer el fichero de firmas: " + ex, ex);
+		}
+
+		// si no se ha recuperado ningun dato se devuelve null
+		if (elementRes == null) {
+			return null;
+		}
+
+		// convierte el documento obtenido en un array de bytes
+		ByteArrayOutputStream baosSig = new ByteArrayOutputStream();
+		XMLUtils.writeXML(baosSig, elementRes, false);
+
+		return baosSig.toByteArray();
+	}
+
+	/**
+	 * Obtiene la informaci&oacute;n de los firmantes, en orden de documento.
+	 *
+	 * @return Informaci&oacute;n de cada firma
+	 * @throws InvalidFormatException
+	 *             Si el documento no es una firma XAdES
+	 */
+	public List<SignInfo> getSigners() throws InvalidFormatException {
+		if (!isSign()) {
+			throw new InvalidFormatException("Los datos indicados no son una firma XAdES compatible");
+		}
+
+		// El espacio de nombres se deduce una sola vez para todo el documento
+		if (xadesNamespace == null) {
+			xadesNamespace = Utils.guessXAdESNamespaceURL(root);
+		}
+
+		List<SignInfo> signInfos = new ArrayList<>(signatures.size());
+		for (Element signature : signatures) {
+			signInfos.add(Utils.getSimpleSignInfoNode(xadesNamespace, signature));
+		}
+		return signInfos;
+	}
+
+	/**
+	 * Primer hijo de la ra&iacute;z que no es una firma, o {@code null} si no es
+	 * un elemento.
+	 */
+	private Element getDetachedDataNode() {
+		NodeList mainChildNodes = root.getChildNodes();
+		for (int i = 0; i < mainChildNodes.getLength(); i++) {
+			Node child = mainChildNodes.item(i);
+			if (!child.getNodeName().equals(XAdESSigner.SIGNATURE_TAG)) {
+				return child.getNodeType() == Node.ELEMENT_NODE ? (Element) child : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Deshace la codificaci&oacute;n Base64 de los datos si la referencia a
+	 * ellos declara esa transformaci&oacute;n.
+	 */
+	private byte[] decode(Element dataNode) throws Exception {
+		String objectId = dataNode.getAttribute(ID_IDENTIFIER);
+		Element reference = objectId.trim().isEmpty() ? null : referencesByUri.get("#" + objectId);
+		if (reference != null && transforms.get(reference).contains(XMLConstants.BASE64_ENCODING)) {
+			return Base64.decode(dataNode.getTextContent());
+		}
+		return dataNode.getTextContent().getBytes();
+	}
+
+	private static void removeEnvelopedSignatures(Element rootSig) {
+		// obtiene las firmas y las elimina
+		Node child = rootSig.getFirstChild();
+		while (child != null) {
+			Node next = child.getNextSibling();
+			if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().endsWith(":" + XAdESSigner.SIGNATURE_TAG)) {
+				rootSig.removeChild(child);
+			}
+			child = next;
+		}
+	}
+}
\ No newline at end of file
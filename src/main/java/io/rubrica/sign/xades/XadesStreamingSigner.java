@@ -0,0 +1,626 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import io.rubrica.core.RubricaException;
+import io.rubrica.xml.Utils;
+
+/**
+ * Firma XAdES-BES de datos binarios de gran tama&ntilde;o sin cargarlos en
+ * memoria.
+ *
+ * La huella de los datos se calcula leyendolos por bloques, y solo la firma
+ * (unos pocos KB) se construye como DOM. En modo <i>enveloping</i> el documento
+ * resultante se escribe con StAX y el contenido se codifica en Base64 dentro
+ * del <i>ds:Object</i> de datos a medida que se lee, con un buffer de
+ * tama&ntilde;o fijo. En modo <i>externally detached</i> solo se firma la
+ * huella, con la URI indicada en el par&aacute;metro <code>uri</code>.
+ *
+ * En modo <i>enveloped</i> el documento XML se canonicaliza y resume en una
+ * sola pasada con StAX (ver {@link XmlStreamCanonicalizer}), y la firma se
+ * inserta al copiar los bytes originales, justo antes de la etiqueta de cierre
+ * del nodo ra&iacute;z.
+ *
+ * El consumo de memoria no depende del tama&ntilde;o de los datos.
+ */
+public class XadesStreamingSigner {
+
+	private static final Logger logger = Logger.getLogger(XadesStreamingSigner.class.getName());
+
+	private static final String BASE64_ENCODING = XMLSignature.XMLNS + "base64";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+		@Override
+		public void write(int b) {
+			// Solo interesa la huella
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// Solo interesa la huella
+		}
+	};
+
+	private final PrivateKey key;
+	private final XAdESSignatureSettings settings;
+	private final XAdESSignatureSettings xmlSettings;
+	private final String digestAlgorithmName;
+
+	/**
+	 * Crea un firmador de datos en streaming.
+	 *
+	 * @param key
+	 *            Clave privada a usar para firmar
+	 * @param certChain
+	 *            Cadena de certificados del firmante
+	 * @param algorithm
+	 *            Algoritmo de firma, por ejemplo <i>SHA1withRSA</i>
+	 * @param extraParams
+	 *            Parámetros adicionales para la firma
+	 */
+	public XadesStreamingSigner(PrivateKey key, Certificate[] certChain, String algorithm, Properties extraParams)
+			throws RubricaException {
+		if (key == null) {
+			throw new IllegalArgumentException("La clave privada no puede ser nula");
+		}
+		if (certChain == null || certChain.length == 0) {
+			throw new IllegalArgumentException("No se ha introducido la cadena de certificacion");
+		}
+
+		this.key = key;
+		this.settings = new XAdESSignatureSettings(algorithm, certChain, extraParams, true);
+		this.xmlSettings = new XAdESSignatureSettings(algorithm, certChain, extraParams);
+
+		try {
+			this.digestAlgorithmName = io.rubrica.sign.XMLConstants.getDigestAlgorithmName(settings.getDigestMethodAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RubricaException("No se soporta el algoritmo de huella: " + settings.getDigestMethodAlgorithm(),
+					e);
+		}
+	}
+
+	/**
+	 * Firma en modo <i>enveloping</i> el contenido de un fichero. El fichero se
+	 * lee dos veces: una para calcular la huella y otra para copiarlo a la
+	 * firma.
+	 *
+	 * @param data
+	 *            Fichero con los datos a firmar
+	 * @param out
+	 *            Flujo en el que se escribe la firma; no se cierra
+	 * @throws RubricaException
+	 *             Si no se puede generar la firma
+	 * @throws IOException
+	 *             Si hay problemas leyendo los datos o escribiendo la firma
+	 */
+	public void signEnveloping(Path data, OutputStream out) throws RubricaException, IOException {
+		byte[] hash;
+		try (InputStream in = Files.newInputStream(data)) {
+			hash = digest(in, null);
+		}
+		writeEnveloping(hash, data, out);
+	}
+
+	/**
+	 * Firma en modo <i>enveloping</i> los datos de un flujo. Como la firma se
+	 * escribe antes que los datos, mientras se calcula la huella los datos se
+	 * vuelcan a un fichero temporal que se borra al terminar.
+	 *
+	 * @param data
+	 *            Flujo con los datos a firmar; no se cierra
+	 * @param out
+	 *            Flujo en el que se escribe la firma; no se cierra
+	 * @throws RubricaException
+	 *             Si no se puede generar la firma
+	 * @throws IOException
+	 *             Si hay problemas leyendo los datos o escribiendo la firma
+	 */
+	public void signEnveloping(InputStream data, OutputStream out) throws RubricaException, IOException {
+		Path tmp = Files.createTempFile("rubrica-xades", ".tmp");
+		try {
+			byte[] hash;
+			try (OutputStream copy = Files.newOutputStream(tmp)) {
+				hash = digest(data, copy);
+			}
+			writeEnveloping(hash, tmp, out);
+		} finally {
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+				logger.warning("No se ha podido borrar el fichero temporal " + tmp + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Firma en modo <i>externally detached</i> los datos de un flujo. La firma
+	 * referencia a los datos mediante la URI del par&aacute;metro
+	 * <code>uri</code>.
+	 *
+	 * @param data
+	 *            Flujo con los datos a firmar; no se cierra
+	 * @return Firma en formato XAdES
+	 * @throws RubricaException
+	 *             Si no se puede generar la firma
+	 * @throws IOException
+	 *             Si hay problemas leyendo los datos
+	 */
+	public byte[] signDetached(InputStream data) throws RubricaException, IOException {
+		return FirmadorXAdES.signPrecalculatedHash(digest(data, null), settings.getDigestMethodAlgorithm(), key,
+				settings);
+	}
+
+	/**
+	 * Firma en modo <i>enveloped</i> un documento XML de gran tama&ntilde;o. El
+	 * documento se lee dos veces: una para canonicalizarlo y calcular su huella
+	 * con StAX y otra para copiar sus bytes insertando la firma, sin construir
+	 * en ning&uacute;n momento el &aacute;rbol DOM.
+	 *
+	 * El documento debe estar en una codificaci&oacute;n compatible con ASCII,
+	 * no tener DTD y terminar con la etiqueta de cierre del nodo ra&iacute;z.
+	 * No se admite indicar el nodo a firmar, transformaciones a medida ni
+	 * canonicalizaciones distintas de la inclusiva.
+	 *
+	 * @param xml
+	 *            Fichero con el documento a firmar
+	 * @param out
+	 *            Flujo en el que se escribe el documento firmado; no se cierra
+	 * @throws RubricaException
+	 *             Si no se puede generar la firma o el documento no se admite
+	 * @throws IOException
+	 *             Si hay problemas leyendo el documento o escribiendo la firma
+	 */
+	public void signEnveloped(Path xml, OutputStream out) throws RubricaException, IOException {
+		checkEnvelopedSupported();
+
+		MessageDigest md = newMessageDigest();
+		XmlStreamCanonicalizer.Root root;
+		try (InputStream in = Files.newInputStream(xml)) {
+			root = XmlStreamCanonicalizer.canonicalize(in, FirmadorXAdES.excludesOtherSignatures(xmlSettings),
+					new DigestOutputStream(NULL_OUTPUT_STREAM, md));
+		}
+
+		if (root.hasTrailingMarkup()) {
+			throw new RubricaException("No se admiten comentarios ni instrucciones de proceso tras el nodo raiz");
+		}
+
+		Charset charset = getAsciiCompatibleCharset(root.getEncoding());
+		long insertionPoint = findRootEndTag(xml, root.getQName(), charset);
+
+		// Raiz sin contenido con los mismos espacios de nombres y atributos
+		// xml:* que la real, que se heredan en la forma canonica de la firma
+		Document document = Utils.getDocumentBuilder().newDocument();
+		Element stub = document.createElementNS(root.getNamespaceURI().isEmpty() ? null : root.getNamespaceURI(),
+				root.getQName());
+		for (Map.Entry<String, String> ns : root.getNamespaces().entrySet()) {
+			stub.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+					ns.getKey().isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + ns.getKey(),
+					ns.getValue());
+		}
+		for (Map.Entry<String, String> attr : root.getXmlAttributes().entrySet()) {
+			stub.setAttributeNS(XMLConstants.XML_NS_URI, XMLConstants.XML_NS_PREFIX + ":" + attr.getKey(),
+					attr.getValue());
+		}
+		document.appendChild(stub);
+
+		Element signature = FirmadorXAdES.signEnvelopedHash(stub, root.getId() != null ? "#" + root.getId() : "",
+				md.digest(), key, xmlSettings);
+
+		ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+		try {
+			XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(signatureBytes, charset.name());
+			new SignatureWriter(writer, null, null, root.getNamespaces()).write(signature);
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new RubricaException("Error al escribir la firma: " + e, e);
+		}
+
+		try (FileChannel channel = FileChannel.open(xml, StandardOpenOption.READ)) {
+			WritableByteChannel target = Channels.newChannel(out);
+			transfer(channel, 0, insertionPoint, target);
+			signatureBytes.writeTo(out);
+			transfer(channel, insertionPoint, channel.size() - insertionPoint, target);
+		}
+		out.flush();
+	}
+
+	private void checkEnvelopedSupported() throws RubricaException {
+		if (xmlSettings.getPrecalculatedHashAlgorithm() != null) {
+			throw new RubricaException("La firma enveloped no admite huellas precalculadas");
+		}
+		if (xmlSettings.getNodeToSign() != null) {
+			throw new RubricaException("La firma enveloped en streaming no admite indicar el nodo a firmar");
+		}
+		String canonicalization = xmlSettings.getCanonicalizationAlgorithm();
+		if (canonicalization != null && !CanonicalizationMethod.INCLUSIVE.equals(canonicalization)) {
+			throw new RubricaException(
+					"La firma enveloped en streaming solo admite canonicalizacion inclusiva: " + canonicalization);
+		}
+		List<Transform> customTransforms = new ArrayList<>();
+		Utils.addCustomTransforms(customTransforms, xmlSettings.getExtraParams(), XAdESSigner.XML_SIGNATURE_PREFIX);
+		if (!customTransforms.isEmpty()) {
+			throw new RubricaException("La firma enveloped en streaming no admite transformaciones a medida");
+		}
+	}
+
+	/**
+	 * La firma se escribe en los bytes originales, por lo que su codificacion
+	 * debe representar los caracteres ASCII con un solo byte.
+	 */
+	private static Charset getAsciiCompatibleCharset(String encoding) throws RubricaException {
+		Charset charset;
+		try {
+			charset = Charset.forName(encoding);
+		} catch (IllegalArgumentException e) {
+			throw new RubricaException("Codificacion del documento no soportada: " + encoding, e);
+		}
+		if (!Arrays.equals("</>".getBytes(charset), "</>".getBytes(StandardCharsets.US_ASCII))) {
+			throw new RubricaException("Codificacion del documento no soportada: " + encoding);
+		}
+		return charset;
+	}
+
+	/**
+	 * Busca al final del fichero la etiqueta de cierre del nodo raiz, de la que
+	 * solo pueden seguir espacios.
+	 */
+	private static long findRootEndTag(Path xml, String qName, Charset charset) throws IOException, RubricaException {
+		byte[] endTag = ("</" + qName).getBytes(charset);
+
+		try (FileChannel channel = FileChannel.open(xml, StandardOpenOption.READ)) {
+			long size = channel.size();
+			int tailLength = (int) Math.min(size, 4096 + endTag.length);
+			ByteBuffer tail = ByteBuffer.allocate(tailLength);
+			long tailStart = size - tailLength;
+			while (tail.hasRemaining() && channel.read(tail, tailStart + tail.position()) != -1) {
+				// Leemos la cola completa
+			}
+
+			byte[] bytes = tail.array();
+			int i = tailLength - 1;
+			while (i >= 0 && isWhitespace(bytes[i])) {
+				i--;
+			}
+			if (i >= 0 && bytes[i] == '>') {
+				i--;
+				while (i >= 0 && isWhitespace(bytes[i])) {
+					i--;
+				}
+				int start = i - endTag.length + 1;
+				if (start >= 0 && Arrays.equals(Arrays.copyOfRange(bytes, start, i + 1), endTag)) {
+					return tailStart + start;
+				}
+			}
+		}
+
+		throw new RubricaException("El documento no termina con la etiqueta de cierre del nodo raiz " + qName);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	private static void transfer(FileChannel channel, long position, long count, WritableByteChannel target)
+			throws IOException {
+		long transferred = 0;
+		while (transferred < count) {
+			transferred += channel.transferTo(position + transferred, count - transferred, target);
+		}
+	}
+
+	private MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(digestAlgorithmName);
+		} catch (NoSuchAlgorithmException e) {
+			// Comprobado en el constructor
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] digest(InputStream in, OutputStream copy) throws IOException {
+		MessageDigest md = newMessageDigest();
+
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			md.update(buffer, 0, n);
+			if (copy != null) {
+				copy.write(buffer, 0, n);
+			}
+		}
+		return md.digest();
+	}
+
+	private void writeEnveloping(byte[] hash, Path data, OutputStream out) throws RubricaException, IOException {
+		String objectId = "Object-" + UUID.randomUUID().toString();
+		Element signature = FirmadorXAdES.signEnvelopingHash(objectId, hash, key, settings);
+
+		// El ds:Object de datos no esta firmado (se firma su contenido
+		// decodificado), por lo que se puede anadir despues de firmar
+		Element dataObject = signature.getOwnerDocument().createElementNS(XMLSignature.XMLNS,
+				signature.getPrefix() == null ? "Object" : signature.getPrefix() + ":Object");
+		dataObject.setAttributeNS(null, "Id", objectId);
+		dataObject.setAttributeNS(null, "MimeType", settings.getMimeType());
+		dataObject.setAttributeNS(null, "Encoding", BASE64_ENCODING);
+		signature.appendChild(dataObject);
+
+		try {
+			XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			new SignatureWriter(writer, dataObject, data, Collections.<String, String> emptyMap()).write(signature);
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new RubricaException("Error al escribir la firma: " + e, e);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Escribe un arbol DOM con StAX, declarando los espacios de nombres que
+	 * falten y copiando el contenido de los datos en Base64 dentro del nodo de
+	 * datos.
+	 */
+	private static final class SignatureWriter {
+
+		private final XMLStreamWriter writer;
+		private final Element dataObject;
+		private final Path data;
+		private final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+
+		/**
+		 * @param writer
+		 *            Destino del arbol
+		 * @param dataObject
+		 *            Nodo en el que copiar los datos, o {@code null}
+		 * @param data
+		 *            Fichero con los datos
+		 * @param inScope
+		 *            Espacios de nombres ya declarados en el destino, por
+		 *            prefijo
+		 */
+		SignatureWriter(XMLStreamWriter writer, Element dataObject, Path data, Map<String, String> inScope) {
+			this.writer = writer;
+			this.dataObject = dataObject;
+			this.data = data;
+			this.scopes.push(new HashMap<>(inScope));
+		}
+
+		void write(Element element) throws XMLStreamException, IOException {
+			String prefix = nonNull(element.getPrefix());
+			String namespace = nonNull(element.getNamespaceURI());
+
+			writer.writeStartElement(prefix, localName(element), namespace);
+			scopes.push(new HashMap<>());
+
+			NamedNodeMap attributes = element.getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attr = (Attr) attributes.item(i);
+				if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+					declare(XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getPrefix()) ? attr.getLocalName() : "",
+							attr.getValue());
+				}
+			}
+			declare(prefix, namespace);
+
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attr = (Attr) attributes.item(i);
+				String attrNamespace = nonNull(attr.getNamespaceURI());
+				if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attrNamespace)) {
+					continue;
+				}
+				// Como en la forma canonica, un atributo con espacio de nombres
+				// pero sin prefijo se escribe sin cualificar
+				if (attrNamespace.isEmpty() || attr.getPrefix() == null) {
+					writer.writeAttribute(localName(attr), attr.getValue());
+				} else {
+					declare(attr.getPrefix(), attrNamespace);
+					writer.writeAttribute(attr.getPrefix(), attrNamespace, localName(attr), attr.getValue());
+				}
+			}
+
+			for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+				switch (child.getNodeType()) {
+				case Node.ELEMENT_NODE:
+					write((Element) child);
+					break;
+				case Node.TEXT_NODE:
+				case Node.CDATA_SECTION_NODE:
+					writeText(child.getNodeValue());
+					break;
+				case Node.COMMENT_NODE:
+					writer.writeComment(child.getNodeValue());
+					break;
+				default:
+					break;
+				}
+			}
+
+			if (element == dataObject) {
+				writeData();
+			}
+
+			writer.writeEndElement();
+			scopes.pop();
+		}
+
+		private void declare(String prefix, String namespace) throws XMLStreamException {
+			if (namespace.equals(lookup(prefix))) {
+				return;
+			}
+			if (prefix.isEmpty()) {
+				writer.writeDefaultNamespace(namespace);
+			} else {
+				writer.writeNamespace(prefix, namespace);
+			}
+			scopes.peek().put(prefix, namespace);
+		}
+
+		private String lookup(String prefix) {
+			for (Map<String, String> scope : scopes) {
+				String namespace = scope.get(prefix);
+				if (namespace != null) {
+					return namespace;
+				}
+			}
+			return prefix.isEmpty() ? "" : null;
+		}
+
+		/**
+		 * Los retornos de carro se escriben como referencia de caracter, ya que
+		 * forman parte de la forma canonica firmada y un analizador XML los
+		 * normalizaria si se escribieran tal cual.
+		 */
+		private void writeText(String text) throws XMLStreamException {
+			int start = 0;
+			int cr;
+			while ((cr = text.indexOf('\r', start)) != -1) {
+				writer.writeCharacters(text.substring(start, cr));
+				writer.writeEntityRef("#13");
+				start = cr + 1;
+			}
+			writer.writeCharacters(text.substring(start));
+		}
+
+		private void writeData() throws XMLStreamException, IOException {
+			writer.writeCharacters("\n");
+			try (InputStream in = Files.newInputStream(data);
+					OutputStream base64 = Base64.getMimeEncoder(76, new byte[] { '\n' })
+							.wrap(new CharactersOutputStream(writer))) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					base64.write(buffer, 0, n);
+				}
+			}
+			writer.writeCharacters("\n");
+		}
+
+		private static String localName(Node node) {
+			return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+		}
+
+		private static String nonNull(String s) {
+			return s == null ? "" : s;
+		}
+	}
+
+	/**
+	 * Escribe como texto en un {@link XMLStreamWriter} los caracteres ASCII que
+	 * recibe, con un buffer de tama&ntilde;o fijo.
+	 */
+	private static final class CharactersOutputStream extends OutputStream {
+
+		private final XMLStreamWriter writer;
+		private final char[] buffer = new char[BUFFER_SIZE];
+		private int count;
+
+		CharactersOutputStream(XMLStreamWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (char) (b & 0xff);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					flush();
+				}
+				int n = Math.min(len, buffer.length - count);
+				for (int i = 0; i < n; i++) {
+					buffer[count++] = (char) (b[off++] & 0xff);
+				}
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				try {
+					writer.writeCharacters(buffer, 0, count);
+				} catch (XMLStreamException e) {
+					throw new IOException(e);
+				}
+				count = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			// No se cierra el escritor, solo se vacia el buffer
+			flush();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,953 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.crypto.NodeSetData;
+import javax.xml.crypto.OctetStreamData;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.TransformService;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import io.rubrica.certificate.CrlUtils;
+import io.rubrica.core.RubricaException;
+import io.rubrica.ocsp.ValidadorOCSP;
+import io.rubrica.sign.BatchProcessor;
+import io.rubrica.sign.BatchResult;
+import io.rubrica.sign.InvalidFormatException;
+import io.rubrica.sign.pdf.tsa.TSAClientBouncyCastleWithOid;
+import io.rubrica.util.CertificateUtils;
+import io.rubrica.xml.Utils;
+
+/**
+ * Ampl&iacute;a firmas XAdES-BES existentes a firmas longevas, a&ntilde;adiendo
+ * a sus propiedades no firmadas un sello de tiempo de la firma
+ * (<i>SignatureTimeStamp</i>, XAdES-T) y los certificados y las respuestas
+ * OCSP o CRL de la cadena del firmante (<i>CertificateValues</i> y
+ * <i>RevocationValues</i>, XAdES-LT).
+ *
+ * Los lotes se procesan en paralelo y por etapas: mientras unos documentos
+ * esperan a la TSA, otros se est&aacute;n analizando o escribiendo. El estado
+ * de revocaci&oacute;n se consulta una sola vez por cada cadena de
+ * certificados distinta, y todos los documentos del mismo firmante comparten
+ * la respuesta durante {@link #REVOCATION_TTL}. Solo se incorporan respuestas
+ * OCSP y CRL con firma v&aacute;lida del emisor del certificado que indiquen
+ * que no est&aacute; revocado; si no se obtiene ninguna, el documento falla.
+ * Los lotes de ficheros anotan cada documento terminado en un
+ * fichero de progreso, de forma que si el proceso se interrumpe, al relanzarlo
+ * solo se procesan los documentos pendientes.
+ *
+ * Las firmas que ya tienen sello de tiempo no se modifican.
+ */
+public class XadesUpgrader {
+
+	private static final Logger logger = Logger.getLogger(XadesUpgrader.class.getName());
+
+	private static final String SIGNATURE_TIMESTAMP = "SignatureTimeStamp";
+
+	/** Tiempo durante el que se reutilizan los valores de revocaci&oacute;n de una cadena. */
+	static final long REVOCATION_TTL = TimeUnit.MINUTES.toMillis(15);
+
+	/** N&uacute;mero m&aacute;ximo de cadenas con valores de revocaci&oacute;n guardados. */
+	private static final int MAX_REVOCATION_ENTRIES = 256;
+
+	private final TSAClientBouncyCastleWithOid tsaClient;
+	private final ExecutorService executor;
+
+	/** Valores de revocaci&oacute;n ya obtenidos o en curso, por cadena. */
+	private final Map<String, CachedRevocationValues> revocationValues = new ConcurrentHashMap<>();
+
+	/**
+	 * Crea un ampliador de firmas que usa el pool comun de
+	 * {@link ForkJoinPool}.
+	 *
+	 * @param tsaClient
+	 *            Cliente de la TSA que emite los sellos de tiempo
+	 */
+	public XadesUpgrader(TSAClientBouncyCastleWithOid tsaClient) {
+		this(tsaClient, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Crea un ampliador de firmas.
+	 *
+	 * @param tsaClient
+	 *            Cliente de la TSA que emite los sellos de tiempo
+	 * @param executor
+	 *            Pool de hilos en donde se procesan los documentos; no se
+	 *            cierra al terminar
+	 */
+	public XadesUpgrader(TSAClientBouncyCastleWithOid tsaClient, ExecutorService executor) {
+		if (tsaClient == null) {
+			throw new IllegalArgumentException("El cliente TSA no puede ser nulo");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("El pool de hilos no puede ser nulo");
+		}
+		this.tsaClient = tsaClient;
+		this.executor = executor;
+	}
+
+	/**
+	 * Ampl&iacute;a las firmas XAdES de un documento en el hilo actual. Puede
+	 * llamarse desde varios hilos a la vez.
+	 *
+	 * @param signedXml
+	 *            Documento XML firmado
+	 * @return Documento con las firmas ampliadas
+	 * @throws RubricaException
+	 *             Si el documento no contiene firmas XAdES o no se pueden
+	 *             obtener el sello o los valores de revocaci&oacute;n
+	 */
+	public byte[] upgrade(byte[] signedXml) throws RubricaException {
+		PendingDocument pending = prepare(signedXml);
+		try {
+			pending.revocationValuesFetched().join();
+		} catch (CompletionException e) {
+			throw toRubricaException(e.getCause());
+		}
+		return complete(pending);
+	}
+
+	/**
+	 * Ampl&iacute;a las firmas de un lote de documentos XML. El resultado de
+	 * cada documento contiene el documento ampliado.
+	 *
+	 * @param documents
+	 *            Documentos firmados
+	 * @return Resultado de cada documento, en el orden de entrada
+	 */
+	public List<BatchResult> upgrade(Iterable<byte[]> documents) {
+		return BatchProcessor.process(documents, document -> upgradeAsync(() -> document));
+	}
+
+	/**
+	 * Ampl&iacute;a las firmas de un lote de ficheros XML. Cada documento
+	 * ampliado se escribe en el directorio de salida con el mismo nombre (de
+	 * forma at&oacute;mica, por lo que puede ser el propio directorio de
+	 * origen) y se anota en el fichero de progreso. Los documentos ya anotados
+	 * en ese fichero se omiten, y los que fallan no se anotan, de forma que se
+	 * reintentan al volver a lanzar el lote.
+	 *
+	 * @param documents
+	 *            Ficheros firmados
+	 * @param outputDirectory
+	 *            Directorio donde se escriben los documentos ampliados
+	 * @param progressFile
+	 *            Fichero de progreso, que se crea si no existe
+	 * @return Error de cada documento que no se ha podido ampliar en esta
+	 *         ejecuci&oacute;n
+	 * @throws IOException
+	 *             Si no se puede leer o escribir el fichero de progreso
+	 */
+	public Map<Path, Throwable> upgrade(List<Path> documents, Path outputDirectory, Path progressFile)
+			throws IOException {
+		Set<String> done = new HashSet<>();
+		if (Files.exists(progressFile)) {
+			done.addAll(Files.readAllLines(progressFile, StandardCharsets.UTF_8));
+		}
+		Files.createDirectories(outputDirectory);
+
+		Map<Path, Throwable> errors = new ConcurrentHashMap<>();
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+
+		// Se limita el numero de documentos en curso para no cargar en memoria
+		// todo el archivo mientras se espera a la TSA
+		Semaphore pending = new Semaphore(BatchProcessor.MAX_PENDING_DOCUMENTS);
+
+		try (Writer progress = Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			for (Path document : documents) {
+				String key = document.toAbsolutePath().normalize().toString();
+				if (done.contains(key)) {
+					continue;
+				}
+
+				pending.acquireUninterruptibly();
+				tasks.add(upgradeAsync(() -> Files.readAllBytes(document))
+						.thenAcceptAsync(upgraded -> call(() -> write(upgraded, outputDirectory, document)), executor)
+						.handle((result, e) -> {
+							pending.release();
+							if (e != null) {
+								Throwable cause = unwrap(e);
+								logger.warning("No se ha podido ampliar la firma de " + document + ": " + cause);
+								errors.put(document, cause);
+							} else {
+								try {
+									synchronized (progress) {
+										progress.write(key);
+										progress.write('\n');
+										progress.flush();
+									}
+								} catch (IOException ioe) {
+									errors.put(document, ioe);
+								}
+							}
+							return null;
+						}));
+			}
+
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).join();
+		}
+
+		return errors;
+	}
+
+	/**
+	 * Obtiene los valores de revocaci&oacute;n de una cadena de certificados:
+	 * para cada certificado que no sea autofirmado se consulta el OCSP de su
+	 * <i>AuthorityInformationAccess</i> y, si no responde con una respuesta
+	 * v&aacute;lida, se descarga la CRL de sus puntos de distribuci&oacute;n.
+	 * Solo se aceptan respuestas firmadas por el emisor del certificado (o por
+	 * un respondedor OCSP delegado por &eacute;l) con estado correcto, y CRL
+	 * firmadas por el emisor que no incluyan el certificado. Se llama una sola
+	 * vez por cada cadena distinta.
+	 *
+	 * @param chain
+	 *            Cadena de certificados, empezando por el del firmante
+	 * @return Valores de revocaci&oacute;n de la cadena
+	 * @throws IOException
+	 *             Si no se puede obtener el estado de revocaci&oacute;n de
+	 *             alg&uacute;n certificado
+	 * @throws RubricaException
+	 *             Si alg&uacute;n certificado de la cadena est&aacute; revocado
+	 */
+	protected RevocationValues fetchRevocationValues(List<X509Certificate> chain)
+			throws IOException, RubricaException {
+		List<byte[]> crls = new ArrayList<>();
+		List<byte[]> ocspResponses = new ArrayList<>();
+
+		for (int i = 0; i < chain.size(); i++) {
+			X509Certificate certificate = chain.get(i);
+			if (certificate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal())) {
+				continue;
+			}
+
+			// Sin el emisor no se pueden verificar las respuestas
+			if (i + 1 >= chain.size()) {
+				throw new IOException("No se ha encontrado el emisor del certificado "
+						+ certificate.getSubjectX500Principal() + " para verificar su estado de revocacion");
+			}
+			X509Certificate issuer = chain.get(i + 1);
+
+			byte[] ocspResponse = fetchOcspResponse(certificate, issuer);
+			if (ocspResponse != null) {
+				ocspResponses.add(ocspResponse);
+				continue;
+			}
+
+			byte[] crl = fetchCrl(certificate, issuer);
+			if (crl == null) {
+				throw new IOException("No se ha podido obtener el estado de revocacion del certificado "
+						+ certificate.getSubjectX500Principal());
+			}
+			if (!crls.stream().anyMatch(c -> Arrays.equals(c, crl))) {
+				crls.add(crl);
+			}
+		}
+
+		return new RevocationValues(crls, ocspResponses);
+	}
+
+	private static byte[] fetchOcspResponse(X509Certificate certificate, X509Certificate issuer)
+			throws RubricaException {
+		if (certificate.getExtensionValue(Extension.authorityInfoAccess.getId()) == null) {
+			return null;
+		}
+		try {
+			for (String url : CertificateUtils.getAuthorityInformationAccess(certificate)) {
+				if (!url.startsWith("http")) {
+					continue;
+				}
+				byte[] response;
+				try {
+					response = new ValidadorOCSP().consultar(certificate, issuer, url);
+				} catch (IOException | RubricaException e) {
+					logger.fine("No se ha podido consultar el OCSP " + url + ": " + e);
+					continue;
+				}
+				if (isGoodOcspResponse(response, certificate, issuer, url)) {
+					return response;
+				}
+			}
+		} catch (IOException e) {
+			logger.warning("No se ha podido leer el AuthorityInformationAccess del certificado: " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Comprueba que la respuesta OCSP est&eacute; firmada por el emisor o por
+	 * un respondedor delegado y que indique que el certificado es correcto.
+	 *
+	 * @return <code>true</code> si el estado es correcto, <code>false</code>
+	 *         si la respuesta no es v&aacute;lida o el estado es desconocido
+	 * @throws RubricaException
+	 *             Si la respuesta indica que el certificado est&aacute;
+	 *             revocado
+	 */
+	private static boolean isGoodOcspResponse(byte[] response, X509Certificate certificate, X509Certificate issuer,
+			String url) throws RubricaException {
+		boolean good = false;
+		try {
+			BasicOCSPResp ocsp = (BasicOCSPResp) new OCSPResp(response).getResponseObject();
+			if (ocsp == null) {
+				logger.fine("El OCSP " + url + " no ha devuelto una respuesta basica");
+				return false;
+			}
+
+			List<PublicKey> responderKeys = new ArrayList<>();
+			responderKeys.add(issuer.getPublicKey());
+			for (X509CertificateHolder holder : ocsp.getCerts()) {
+				X509Certificate responder = new JcaX509CertificateConverter().getCertificate(holder);
+				if (isDelegatedResponder(responder, issuer, ocsp.getProducedAt())) {
+					responderKeys.add(responder.getPublicKey());
+				}
+			}
+
+			boolean signed = false;
+			JcaContentVerifierProviderBuilder verifiers = new JcaContentVerifierProviderBuilder();
+			for (PublicKey key : responderKeys) {
+				if (ocsp.isSignatureValid(verifiers.build(key))) {
+					signed = true;
+					break;
+				}
+			}
+			if (!signed) {
+				logger.warning("La respuesta del OCSP " + url + " no esta firmada por el emisor del certificado");
+				return false;
+			}
+
+			X509CertificateHolder issuerHolder = new JcaX509CertificateHolder(issuer);
+			DigestCalculatorProvider digestCalculators = new JcaDigestCalculatorProviderBuilder().build();
+			for (SingleResp single : ocsp.getResponses()) {
+				CertificateID id = single.getCertID();
+				if (!id.getSerialNumber().equals(certificate.getSerialNumber())
+						|| !id.matchesIssuer(issuerHolder, digestCalculators)) {
+					continue;
+				}
+				Object status = single.getCertStatus();
+				if (status instanceof RevokedStatus) {
+					throw new RubricaException("El certificado " + certificate.getSubjectX500Principal()
+							+ " esta revocado segun el OCSP " + url);
+				}
+				if (status == CertificateStatus.GOOD) {
+					good = true;
+				}
+			}
+
+			if (!good) {
+				logger.fine("El OCSP " + url + " no indica un estado correcto para el certificado");
+			}
+		} catch (RubricaException e) {
+			throw e;
+		} catch (Exception e) {
+			logger.warning("No se ha podido verificar la respuesta del OCSP " + url + ": " + e);
+			return false;
+		}
+		return good;
+	}
+
+	/**
+	 * Indica si un certificado incluido en la respuesta OCSP es un respondedor
+	 * delegado por el emisor: emitido y firmado por &eacute;l, vigente al
+	 * generar la respuesta y con el uso extendido id-kp-OCSPSigning.
+	 */
+	private static boolean isDelegatedResponder(X509Certificate responder, X509Certificate issuer,
+			Date producedAt) {
+		if (!responder.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+			return false;
+		}
+
+		try {
+			responder.verify(issuer.getPublicKey());
+			responder.checkValidity(producedAt);
+			List<String> extendedKeyUsage = responder.getExtendedKeyUsage();
+			return extendedKeyUsage != null && extendedKeyUsage.contains(KeyPurposeId.id_kp_OCSPSigning.getId());
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static byte[] fetchCrl(X509Certificate certificate, X509Certificate issuer) throws RubricaException {
+		if (certificate.getExtensionValue(Extension.cRLDistributionPoints.getId()) == null) {
+			return null;
+		}
+		try {
+			for (String url : CertificateUtils.getCrlDistributionPoints(certificate)) {
+				// Ignorar los URL que contengan la cadena de texto "ocsp"
+				if (url.toLowerCase().contains("ocsp")) {
+					continue;
+				}
+
+				byte[] encoded;
+				X509CRL crl;
+				try {
+					encoded = CrlUtils.downloadCRL(url);
+					crl = (X509CRL) CertificateFactory.getInstance("X.509")
+							.generateCRL(new ByteArrayInputStream(encoded));
+				} catch (Exception e) {
+					logger.fine("No se ha podido descargar la CRL " + url + ": " + e);
+					continue;
+				}
+
+				try {
+					if (!crl.getIssuerX500Principal().equals(certificate.getIssuerX500Principal())) {
+						throw new IOException("la CRL es de otro emisor: " + crl.getIssuerX500Principal());
+					}
+					crl.verify(issuer.getPublicKey());
+				} catch (Exception e) {
+					logger.warning("No se ha podido verificar la CRL " + url + ": " + e);
+					continue;
+				}
+
+				if (crl.isRevoked(certificate)) {
+					throw new RubricaException("El certificado " + certificate.getSubjectX500Principal()
+							+ " esta revocado segun la CRL " + url);
+				}
+				return encoded;
+			}
+		} catch (IOException e) {
+			logger.warning("No se han podido leer los puntos de distribucion de CRL del certificado: " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Procesa un documento por etapas en el pool: an&aacute;lisis, espera a los
+	 * valores de revocaci&oacute;n de sus firmantes (sin ocupar un hilo) y
+	 * sellado.
+	 */
+	private CompletableFuture<byte[]> upgradeAsync(Callable<byte[]> source) {
+		return CompletableFuture.supplyAsync(() -> call(() -> prepare(source.call())), executor)
+				.thenCompose(PendingDocument::revocationValuesFetched)
+				.thenApplyAsync(pending -> call(() -> complete(pending)), executor);
+	}
+
+	/**
+	 * Analiza el documento, calcula la huella a sellar de cada firma y solicita
+	 * los valores de revocaci&oacute;n de sus cadenas.
+	 */
+	private PendingDocument prepare(byte[] signedXml) throws RubricaException {
+		Document document;
+		try {
+			document = Utils.getDocumentBuilder().parse(new ByteArrayInputStream(signedXml));
+		} catch (Exception e) {
+			throw new InvalidFormatException("El documento no es un XML valido", e);
+		}
+
+		PendingDocument pending = new PendingDocument(signedXml, document);
+		boolean xades = false;
+
+		NodeList signatures = document.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+		List<Element> signatureElements = new ArrayList<>(signatures.getLength());
+		for (int i = 0; i < signatures.getLength(); i++) {
+			signatureElements.add((Element) signatures.item(i));
+		}
+
+		for (Element signature : signatureElements) {
+			Element qualifyingProperties = getQualifyingProperties(signature);
+			if (qualifyingProperties == null) {
+				continue;
+			}
+			xades = true;
+
+			if (XadesValidator.getXadesElement(qualifyingProperties, SIGNATURE_TIMESTAMP) != null) {
+				logger.fine("La firma " + signature.getAttribute("Id") + " ya tiene sello de tiempo");
+				continue;
+			}
+
+			List<X509Certificate> chain;
+			try {
+				List<X509Certificate> certificates = XadesValidator.readCertificates(signature);
+				X509Certificate signer = XadesValidator.findSigningCertificate(
+						XadesValidator.getXadesElement(qualifyingProperties, "SignedProperties"), certificates);
+				chain = getChain(signer != null ? signer : certificates.isEmpty() ? null : certificates.get(0),
+						certificates);
+			} catch (Exception e) {
+				throw new InvalidFormatException("No se han podido leer los certificados de la firma", e);
+			}
+
+			PendingSignature pendingSignature = new PendingSignature(signature, qualifyingProperties, chain,
+					getTimeStampImprint(signature));
+			pendingSignature.revocationValues = getRevocationValues(chain);
+			pending.signatures.add(pendingSignature);
+		}
+
+		if (!xades) {
+			throw new InvalidFormatException("El documento no contiene firmas XAdES");
+		}
+
+		return pending;
+	}
+
+	/**
+	 * A&ntilde;ade a cada firma el sello de tiempo y los valores de
+	 * validaci&oacute;n, y serializa el documento.
+	 */
+	private byte[] complete(PendingDocument pending) throws RubricaException {
+		if (pending.signatures.isEmpty()) {
+			return pending.original;
+		}
+
+		for (PendingSignature signature : pending.signatures) {
+			byte[] timeStamp;
+			try {
+				timeStamp = tsaClient.getTimeStampToken(signature.imprint);
+			} catch (Exception e) {
+				throw new RubricaException("No se ha podido obtener el sello de tiempo de la firma: " + e, e);
+			}
+			addUnsignedProperties(signature, timeStamp, signature.revocationValues.join());
+		}
+
+		return Utils.writeXML(pending.document.getDocumentElement(),
+				XAdESUtil.getOriginalXMLProperties(pending.document, null));
+	}
+
+	private static void addUnsignedProperties(PendingSignature signature, byte[] timeStamp,
+			RevocationValues revocation) throws RubricaException {
+		Element qualifyingProperties = signature.qualifyingProperties;
+		String xadesNamespace = qualifyingProperties.getNamespaceURI();
+		String xadesPrefix = qualifyingProperties.getPrefix();
+		String dsPrefix = signature.element.getPrefix();
+
+		Element unsignedProperties = getChild(qualifyingProperties, xadesNamespace, "UnsignedProperties");
+		if (unsignedProperties == null) {
+			unsignedProperties = appendElement(qualifyingProperties, xadesNamespace, xadesPrefix,
+					"UnsignedProperties");
+		}
+		Element unsignedSignatureProperties = getChild(unsignedProperties, xadesNamespace,
+				"UnsignedSignatureProperties");
+		if (unsignedSignatureProperties == null) {
+			// Debe preceder a UnsignedDataObjectProperties
+			unsignedSignatureProperties = qualifyingProperties.getOwnerDocument().createElementNS(xadesNamespace,
+					qualifiedName(xadesPrefix, "UnsignedSignatureProperties"));
+			unsignedProperties.insertBefore(unsignedSignatureProperties, unsignedProperties.getFirstChild());
+		}
+
+		String signatureId = signature.element.getAttribute("Id");
+		if (signatureId.isEmpty()) {
+			signatureId = "Signature-" + UUID.randomUUID().toString();
+		}
+
+		Element signatureTimeStamp = appendElement(unsignedSignatureProperties, xadesNamespace, xadesPrefix,
+				SIGNATURE_TIMESTAMP);
+		signatureTimeStamp.setAttributeNS(null, "Id", signatureId + "-SignatureTimeStamp");
+		appendElement(signatureTimeStamp, XMLSignature.XMLNS, dsPrefix, "CanonicalizationMethod")
+				.setAttributeNS(null, "Algorithm", CanonicalizationMethod.INCLUSIVE);
+		appendElement(signatureTimeStamp, xadesNamespace, xadesPrefix, "EncapsulatedTimeStamp")
+				.setTextContent(Base64.getEncoder().encodeToString(timeStamp));
+
+		if (signature.chain.isEmpty()) {
+			return;
+		}
+
+		Element certificateValues = appendElement(unsignedSignatureProperties, xadesNamespace, xadesPrefix,
+				"CertificateValues");
+		for (X509Certificate certificate : signature.chain) {
+			try {
+				appendElement(certificateValues, xadesNamespace, xadesPrefix, "EncapsulatedX509Certificate")
+						.setTextContent(Base64.getEncoder().encodeToString(certificate.getEncoded()));
+			} catch (CertificateEncodingException e) {
+				throw new RubricaException("No se ha podido codificar el certificado: " + e, e);
+			}
+		}
+
+		Element revocationValues = appendElement(unsignedSignatureProperties, xadesNamespace, xadesPrefix,
+				"RevocationValues");
+		if (!revocation.getCrls().isEmpty()) {
+			Element crlValues = appendElement(revocationValues, xadesNamespace, xadesPrefix, "CRLValues");
+			for (byte[] crl : revocation.getCrls()) {
+				appendElement(crlValues, xadesNamespace, xadesPrefix, "EncapsulatedCRLValue")
+						.setTextContent(Base64.getEncoder().encodeToString(crl));
+			}
+		}
+		if (!revocation.getOcspResponses().isEmpty()) {
+			Element ocspValues = appendElement(revocationValues, xadesNamespace, xadesPrefix, "OCSPValues");
+			for (byte[] ocspResponse : revocation.getOcspResponses()) {
+				appendElement(ocspValues, xadesNamespace, xadesPrefix, "EncapsulatedOCSPValue")
+						.setTextContent(Base64.getEncoder().encodeToString(ocspResponse));
+			}
+		}
+	}
+
+	/**
+	 * Calcula la huella a sellar: el elemento <i>SignatureValue</i> en forma
+	 * can&oacute;nica, como el conjunto de nodos de su sub&aacute;rbol (sin
+	 * comentarios), para que se incluyan los espacios de nombres heredados.
+	 */
+	private static byte[] getTimeStampImprint(Element signature) throws RubricaException {
+		Element signatureValue = getChild(signature, XMLSignature.XMLNS, "SignatureValue");
+		if (signatureValue == null) {
+			throw new InvalidFormatException("La firma no tiene SignatureValue");
+		}
+
+		List<Node> nodes = new ArrayList<>();
+		Deque<Node> stack = new ArrayDeque<>();
+		stack.push(signatureValue);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			if (node.getNodeType() == Node.COMMENT_NODE) {
+				continue;
+			}
+			nodes.add(node);
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				NamedNodeMap attributes = node.getAttributes();
+				for (int i = 0; i < attributes.getLength(); i++) {
+					nodes.add(attributes.item(i));
+				}
+			}
+			for (Node child = node.getLastChild(); child != null; child = child.getPreviousSibling()) {
+				stack.push(child);
+			}
+		}
+
+		try {
+			TransformService c14n = TransformService.getInstance(CanonicalizationMethod.INCLUSIVE, "DOM");
+			c14n.init(null);
+			NodeSetData nodeSet = nodes::iterator;
+			OctetStreamData canonical = (OctetStreamData) c14n.transform(nodeSet,
+					new DOMValidateContext(new XadesValidator.NullKeySelector(), signatureValue));
+
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			try (InputStream in = canonical.getOctetStream()) {
+				byte[] buffer = new byte[8192];
+				for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+					md.update(buffer, 0, n);
+				}
+			}
+			return md.digest();
+		} catch (Exception e) {
+			throw new RubricaException("No se ha podido calcular la huella del valor de la firma: " + e, e);
+		}
+	}
+
+	private CompletableFuture<RevocationValues> getRevocationValues(List<X509Certificate> chain)
+			throws RubricaException {
+		if (chain.isEmpty()) {
+			return CompletableFuture
+					.completedFuture(new RevocationValues(Collections.emptyList(), Collections.emptyList()));
+		}
+
+		String key = getChainKey(chain);
+		CachedRevocationValues cached = new CachedRevocationValues();
+		while (true) {
+			CachedRevocationValues existing = revocationValues.putIfAbsent(key, cached);
+			if (existing == null) {
+				break;
+			}
+			if (existing.isFresh()) {
+				return existing.future;
+			}
+			revocationValues.remove(key, existing);
+		}
+		purgeRevocationValues();
+
+		executor.execute(() -> {
+			try {
+				cached.future.complete(fetchRevocationValues(chain));
+			} catch (Throwable e) {
+				// Se olvida el fallo para que los siguientes documentos lo
+				// reintenten
+				revocationValues.remove(key, cached);
+				cached.future.completeExceptionally(e);
+			}
+		});
+		return cached.future;
+	}
+
+	/**
+	 * Elimina los valores de revocaci&oacute;n caducados si hay demasiados
+	 * guardados.
+	 */
+	private void purgeRevocationValues() {
+		if (revocationValues.size() <= MAX_REVOCATION_ENTRIES) {
+			return;
+		}
+		for (Iterator<CachedRevocationValues> it = revocationValues.values().iterator(); it.hasNext();) {
+			if (!it.next().isFresh()) {
+				it.remove();
+			}
+		}
+	}
+
+	private static String getChainKey(List<X509Certificate> chain) throws RubricaException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (X509Certificate certificate : chain) {
+				md.update(certificate.getEncoded());
+			}
+			return Base64.getEncoder().encodeToString(md.digest());
+		} catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+			throw new RubricaException("No se ha podido identificar la cadena de certificados: " + e, e);
+		}
+	}
+
+	/**
+	 * Ordena la cadena desde el firmante hasta la ra&iacute;z con los
+	 * certificados del <i>KeyInfo</i>.
+	 */
+	private static List<X509Certificate> getChain(X509Certificate signer, List<X509Certificate> certificates) {
+		List<X509Certificate> chain = new ArrayList<>();
+		X509Certificate current = signer;
+		while (current != null && !chain.contains(current)) {
+			chain.add(current);
+			if (current.getSubjectX500Principal().equals(current.getIssuerX500Principal())) {
+				break;
+			}
+			X509Certificate issuer = null;
+			for (X509Certificate certificate : certificates) {
+				if (certificate.getSubjectX500Principal().equals(current.getIssuerX500Principal())) {
+					issuer = certificate;
+					break;
+				}
+			}
+			current = issuer;
+		}
+		return chain;
+	}
+
+	private static Element getQualifyingProperties(Element signature) {
+		for (Node object = signature.getFirstChild(); object != null; object = object.getNextSibling()) {
+			if (object instanceof Element && XMLSignature.XMLNS.equals(object.getNamespaceURI())
+					&& "Object".equals(object.getLocalName())) {
+				for (Node child = object.getFirstChild(); child != null; child = child.getNextSibling()) {
+					if (child instanceof Element && "QualifyingProperties".equals(child.getLocalName())
+							&& XAdESUtil.isSupportedXadesNamespace(child.getNamespaceURI())) {
+						return (Element) child;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Element getChild(Element parent, String namespace, String localName) {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child instanceof Element && localName.equals(child.getLocalName())
+					&& namespace.equals(child.getNamespaceURI())) {
+				return (Element) child;
+			}
+		}
+		return null;
+	}
+
+	private static Element appendElement(Element parent, String namespace, String prefix, String localName) {
+		Element element = parent.getOwnerDocument().createElementNS(namespace, qualifiedName(prefix, localName));
+		parent.appendChild(element);
+		return element;
+	}
+
+	private static String qualifiedName(String prefix, String localName) {
+		return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+	}
+
+	private static Void write(byte[] upgraded, Path outputDirectory, Path document) throws IOException {
+		Path target = outputDirectory.resolve(document.getFileName().toString());
+		Path temp = Files.createTempFile(outputDirectory, document.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, upgraded);
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return null;
+	}
+
+	private static <T> T call(Callable<T> task) {
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		while (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e;
+	}
+
+	private static RubricaException toRubricaException(Throwable e) {
+		if (e instanceof RubricaException) {
+			return (RubricaException) e;
+		}
+		logger.log(Level.FINE, "Error obteniendo los valores de revocacion", e);
+		return new RubricaException("No se han podido obtener los valores de revocacion: " + e, e);
+	}
+
+	/**
+	 * Respuestas OCSP y CRL de una cadena de certificados, codificadas en DER.
+	 */
+	public static final class RevocationValues {
+
+		private final List<byte[]> crls;
+		private final List<byte[]> ocspResponses;
+
+		/**
+		 * Crea los valores de revocaci&oacute;n de una cadena.
+		 *
+		 * @param crls
+		 *            CRL codificadas en DER
+		 * @param ocspResponses
+		 *            Respuestas OCSP codificadas en DER
+		 */
+		public RevocationValues(List<byte[]> crls, List<byte[]> ocspResponses) {
+			this.crls = Collections.unmodifiableList(new ArrayList<>(crls));
+			this.ocspResponses = Collections.unmodifiableList(new ArrayList<>(ocspResponses));
+		}
+
+		/**
+		 * Obtiene las CRL.
+		 *
+		 * @return CRL codificadas en DER
+		 */
+		public List<byte[]> getCrls() {
+			return crls;
+		}
+
+		/**
+		 * Obtiene las respuestas OCSP.
+		 *
+		 * @return Respuestas OCSP codificadas en DER
+		 */
+		public List<byte[]> getOcspResponses() {
+			return ocspResponses;
+		}
+	}
+
+	/**
+	 * Valores de revocaci&oacute;n de una cadena, obtenidos o en curso, que se
+	 * reutilizan durante {@link #REVOCATION_TTL} desde la consulta.
+	 */
+	private static final class CachedRevocationValues {
+
+		private final CompletableFuture<RevocationValues> future = new CompletableFuture<>();
+		private final long expiresAt = System.currentTimeMillis() + REVOCATION_TTL;
+
+		boolean isFresh() {
+			return System.currentTimeMillis() < expiresAt;
+		}
+	}
+
+	/**
+	 * Documento analizado a la espera de sus sellos de tiempo.
+	 */
+	private static final class PendingDocument {
+
+		private final byte[] original;
+		private final Document document;
+		private final List<PendingSignature> signatures = new ArrayList<>();
+
+		PendingDocument(byte[] original, Document document) {
+			this.original = original;
+			this.document = document;
+		}
+
+		CompletableFuture<PendingDocument> revocationValuesFetched() {
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[signatures.size()];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = signatures.get(i).revocationValues;
+			}
+			return CompletableFuture.allOf(futures).thenApply(v -> this);
+		}
+	}
+
+	/**
+	 * Firma pendiente de ampliar dentro de un documento.
+	 */
+	private static final class PendingSignature {
+
+		private final Element element;
+		private final Element qualifyingProperties;
+		private final List<X509Certificate> chain;
+		private final byte[] imprint;
+		private CompletableFuture<RevocationValues> revocationValues;
+
+		PendingSignature(Element element, Element qualifyingProperties, List<X509Certificate> chain,
+				byte[] imprint) {
+			this.element = element;
+			this.qualifyingProperties = qualifyingProperties;
+			this.chain = chain;
+			this.imprint = imprint;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.URIReferenceException;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import es.uji.crypto.xades.jxades.util.SystemUtils;
+import io.rubrica.certificate.CertPathUtils;
+import io.rubrica.certificate.ValidationResult;
+import io.rubrica.sign.InvalidFormatException;
+import io.rubrica.sign.SignValidity;
+import io.rubrica.sign.SignValidity.SIGN_DETAIL_TYPE;
+import io.rubrica.sign.SignValidity.VALIDITY_ERROR;
+import io.rubrica.sign.Validator;
+import io.rubrica.sign.XMLConstants;
+import io.rubrica.xml.Utils;
+
+/**
+ * Valida todas las firmas XAdES de un documento XML.
+ *
+ * El documento se analiza una sola vez y en la misma pasada se indexan los
+ * atributos identificadores con {@link XmlIdIndex}, con los que se resuelven
+ * las referencias de todas las firmas. Ni el DOM ni los contextos de
+ * validacion XMLDSig admiten el acceso desde varios hilos, por lo que la
+ * lectura de la firma, las huellas de cada <i>ds:Reference</i> y el valor de
+ * firma se comprueban en serie en el hilo que llama: las huellas de las
+ * referencias no se calculan en paralelo. Solo la ruta de certificacion de
+ * cada firmante se valida en paralelo en el {@link ExecutorService} indicado.
+ * Las referencias a datos externos al documento no se resuelven.
+ *
+ * La ruta de certificacion se valida en la fecha actual: la fecha de firma
+ * (<i>SigningTime</i>) la declara el propio firmante y no esta respaldada por
+ * un sello de tiempo verificado.
+ */
+public class XadesValidator implements Validator {
+
+	private static final Logger logger = Logger.getLogger(XadesValidator.class.getName());
+
+	private static final String XADES_NAMESPACE_PREFIX = "http://uri.etsi.org/01903";
+
+	/** Analizador sin expansion diferida de nodos. */
+	private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		try {
+			dbf.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+		} catch (ParserConfigurationException e) {
+			logger.warning("No se ha podido desactivar la expansion diferida del DOM: " + e);
+		}
+		try {
+			return dbf.newDocumentBuilder();
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("No se ha podido crear el analizador XML: " + e, e);
+		}
+	});
+
+	private final Set<TrustAnchor> trustAnchors;
+	private final ExecutorService executor;
+
+	/**
+	 * Crea un validador que usa las CA raiz soportadas y el pool comun de
+	 * {@link ForkJoinPool}.
+	 */
+	public XadesValidator() {
+		this(CertPathUtils.getTrustAnchors(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Crea un validador.
+	 *
+	 * @param trustAnchors
+	 *            CA raiz de confianza
+	 * @param executor
+	 *            Pool de hilos en donde se validan las rutas de certificacion;
+	 *            no se cierra al terminar
+	 */
+	public XadesValidator(Set<TrustAnchor> trustAnchors, ExecutorService executor) {
+		if (trustAnchors == null || trustAnchors.isEmpty()) {
+			throw new IllegalArgumentException("Se debe indicar al menos una CA raiz de confianza");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("El pool de hilos no puede ser nulo");
+		}
+
+		this.trustAnchors = trustAnchors;
+		this.executor = executor;
+	}
+
+	/**
+	 * Valida todas las firmas del documento. El documento es valido si tiene al
+	 * menos una firma y todas son validas; en caso contrario se devuelve el error
+	 * de la primera firma invalida.
+	 */
+	@Override
+	public SignValidity validate(final byte[] sign) throws IOException {
+		List<XadesSignatureReport> reports;
+
+		try {
+			reports = verify(sign);
+		} catch (InvalidFormatException e) {
+			return new SignValidity(SIGN_DETAIL_TYPE.FAIL, VALIDITY_ERROR.UNKOWN_SIGNATURE_FORMAT);
+		}
+
+		if (reports.isEmpty()) {
+			return new SignValidity(SIGN_DETAIL_TYPE.FAIL, VALIDITY_ERROR.NO_SIGN);
+		}
+
+		for (XadesSignatureReport report : reports) {
+			if (!report.isValid()) {
+				return report.getValidity();
+			}
+		}
+
+		return new SignValidity(SIGN_DETAIL_TYPE.OK, null);
+	}
+
+	/**
+	 * Verifica todas las firmas del documento.
+	 *
+	 * @param xml
+	 *            Documento XML firmado
+	 * @return Resultado de cada firma, en el orden en que aparecen en el
+	 *         documento
+	 * @throws InvalidFormatException
+	 *             Si los datos no son un XML
+	 * @throws IOException
+	 *             Si se interrumpe la verificacion
+	 */
+	public List<XadesSignatureReport> verify(final byte[] xml) throws InvalidFormatException, IOException {
+		Document doc;
+
+		try {
+			DocumentBuilder documentBuilder = DOCUMENT_BUILDER.get();
+			documentBuilder.reset();
+			doc = documentBuilder.parse(new ByteArrayInputStream(xml));
+		} catch (Exception e) {
+			throw new InvalidFormatException("El documento no es un XML valido", e);
+		}
+
+		// Indice de identificadores y firmas, en una sola pasada
+		XmlIdIndex ids = new XmlIdIndex();
+		List<Element> signatureElements = new ArrayList<>();
+
+		NodeList elements = doc.getElementsByTagName("*");
+		for (int i = 0; i < elements.getLength(); i++) {
+			Element element = (Element) elements.item(i);
+			ids.addAttributes(element);
+
+			if (XMLSignature.XMLNS.equals(element.getNamespaceURI()) && "Signature".equals(element.getLocalName())) {
+				signatureElements.add(element);
+			}
+		}
+		ids.markIdAttributes();
+
+		List<PendingSignature> pending = new ArrayList<>(signatureElements.size());
+		for (Element signatureElement : signatureElements) {
+			pending.add(startVerification(signatureElement, ids));
+		}
+
+		List<XadesSignatureReport> reports = new ArrayList<>(pending.size());
+		for (PendingSignature signature : pending) {
+			completeVerification(signature);
+			reports.add(signature.report);
+		}
+
+		return reports;
+	}
+
+	/**
+	 * Lee la firma y comprueba sus referencias y su valor de firma en el hilo
+	 * actual, y lanza en el pool la validacion de la ruta de certificacion.
+	 */
+	private PendingSignature startVerification(Element signatureElement, XmlIdIndex ids) {
+		String id = signatureElement.getAttribute(FirmadorXAdES.ID_IDENTIFIER);
+
+		// Certificados y firmante
+		List<X509Certificate> certificates = new ArrayList<>();
+		String certificateError = null;
+		try {
+			certificates = readCertificates(signatureElement);
+		} catch (Exception e) {
+			certificateError = "No se han podido leer los certificados de la firma: " + e;
+		}
+
+		Element signedProperties = getXadesElement(signatureElement, "SignedProperties");
+		X509Certificate signer = null;
+		boolean signerMatches = false;
+
+		if (!certificates.isEmpty()) {
+			signer = findSigningCertificate(signedProperties, certificates);
+			signerMatches = signer != null;
+			if (signer == null) {
+				signer = certificates.get(0);
+			} else if (certificates.indexOf(signer) != 0) {
+				certificates.remove(signer);
+				certificates.add(0, signer);
+			}
+		}
+
+		DOMValidateContext context = new DOMValidateContext(
+				signer != null ? KeySelector.singletonKeySelector(signer.getPublicKey()) : new NullKeySelector(),
+				signatureElement);
+
+		XMLSignature signature;
+		try {
+			signature = Utils.getDOMFactory().unmarshalXMLSignature(context);
+		} catch (MarshalException e) {
+			logger.warning("La firma " + id + " esta corrupta: " + e);
+			PendingSignature pending = new PendingSignature(new XadesSignatureReport(id, 0));
+			pending.report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "No se ha podido leer la firma: " + e);
+			return pending;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<Reference> references = signature.getSignedInfo().getReferences();
+		XadesSignatureReport report = new XadesSignatureReport(id, references.size());
+		PendingSignature pending = new PendingSignature(report);
+
+		if (certificateError != null) {
+			report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM, certificateError);
+		} else if (signer == null) {
+			report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM, "La firma no incluye el certificado del firmante");
+		} else {
+			report.certificates = certificates.toArray(new X509Certificate[certificates.size()]);
+		}
+
+		// Propiedades firmadas
+		String signedPropertiesUri = null;
+		if (signedProperties == null) {
+			report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "La firma no incluye propiedades firmadas XAdES");
+		} else {
+			signedPropertiesUri = "#" + signedProperties.getAttribute(FirmadorXAdES.ID_IDENTIFIER);
+
+			Element signingTime = getXadesElement(signedProperties, "SigningTime");
+			if (signingTime != null) {
+				try {
+					report.signingTime = SystemUtils.parseDate(signingTime.getTextContent().trim());
+				} catch (Exception e) {
+					report.messages.add("No se ha podido leer la fecha de firma: " + e);
+				}
+			}
+
+			if (signer != null && !signerMatches) {
+				report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM,
+						"El certificado firmante no corresponde al indicado en las propiedades firmadas");
+			}
+		}
+
+		// Huellas de las referencias
+		boolean signedPropertiesReferenced = false;
+		boolean signedPropertiesDigestValid = false;
+		boolean referencesValid = true;
+		for (Reference reference : references) {
+			String uri = reference.getURI();
+			boolean valid = false;
+
+			if (uri != null && uri.equals(signedPropertiesUri)) {
+				signedPropertiesReferenced = true;
+			}
+
+			if (uri != null && !uri.isEmpty() && uri.charAt(0) != '#') {
+				report.fail(VALIDITY_ERROR.NO_DATA, "No se verifica la referencia a datos externos " + uri);
+			} else if (ids.isDuplicated(uri)) {
+				report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "La referencia " + uri + " apunta a un identificador duplicado");
+			} else {
+				try {
+					valid = reference.validate(context);
+					if (!valid) {
+						report.fail(VALIDITY_ERROR.NO_MATCH_DATA,
+								"La huella de la referencia '" + uri + "' no corresponde a los datos");
+					}
+				} catch (Exception e) {
+					logger.warning("No se ha podido verificar la referencia '" + uri + "': " + e);
+					report.fail(getError(e), "No se ha podido verificar la referencia '" + uri + "': " + e);
+				}
+			}
+
+			referencesValid &= valid;
+			if (valid && uri != null && uri.equals(signedPropertiesUri)) {
+				signedPropertiesDigestValid = true;
+			}
+		}
+
+		report.referencesValid = referencesValid;
+		report.signedPropertiesValid = signedPropertiesDigestValid && signerMatches;
+
+		if (signedProperties != null && !signedPropertiesReferenced) {
+			report.fail(VALIDITY_ERROR.CORRUPTED_SIGN, "Las propiedades firmadas no estan referenciadas en SignedInfo");
+		}
+
+		// Valor de firma y ruta de certificacion
+		if (signer != null) {
+			try {
+				report.signatureValueValid = signature.getSignatureValue().validate(context);
+				if (!report.signatureValueValid) {
+					report.fail(VALIDITY_ERROR.NO_MATCH_DATA, "El valor de firma no corresponde a la clave del firmante");
+				}
+			} catch (Exception e) {
+				logger.warning("No se ha podido verificar el valor de firma: " + e);
+				report.fail(getError(e), "No se ha podido verificar el valor de firma: " + e);
+			}
+
+			// Sin un sello de tiempo verificado, la fecha de la firma no es fiable
+			X509Certificate signerCert = signer;
+			List<X509Certificate> chain = certificates;
+			Date date = new Date();
+			pending.certPathResult = executor
+					.submit(() -> CertPathUtils.verifyCertPath(signerCert, chain, date, trustAnchors));
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Espera la validacion de la ruta de certificacion y completa el informe.
+	 */
+	private void completeVerification(PendingSignature pending) throws InterruptedIOException {
+		XadesSignatureReport report = pending.report;
+
+		if (pending.certPathResult == null) {
+			return;
+		}
+
+		try {
+			report.certPathResult = pending.certPathResult.get();
+		} catch (ExecutionException e) {
+			logger.warning("No se ha podido validar la ruta de certificacion: " + e.getCause());
+			report.certPathResult = ValidationResult.UNKNOWN;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Se ha interrumpido la verificacion de las firmas");
+		}
+
+		switch (report.certPathResult) {
+		case VALID:
+			break;
+		case EXPIRED:
+			report.fail(VALIDITY_ERROR.CERTIFICATE_EXPIRED, "El certificado estaba caducado en la fecha de firma");
+			break;
+		case NOT_YET_VALID:
+			report.fail(VALIDITY_ERROR.CERTIFICATE_NOT_VALID_YET,
+					"El certificado aun no era valido en la fecha de firma");
+			break;
+		case CA_NOT_SUPPORTED:
+			report.fail(VALIDITY_ERROR.CA_NOT_SUPPORTED, "El certificado no es de una CA soportada");
+			break;
+		default:
+			report.fail(VALIDITY_ERROR.CERTIFICATE_PROBLEM,
+					"No se ha podido validar la ruta de certificacion: " + report.certPathResult);
+		}
+	}
+
+	private static VALIDITY_ERROR getError(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof NoSuchAlgorithmException) {
+				return VALIDITY_ERROR.ALGORITHM_NOT_SUPPORTED;
+			}
+			if (t instanceof URIReferenceException) {
+				return VALIDITY_ERROR.NO_DATA;
+			}
+		}
+		return VALIDITY_ERROR.CORRUPTED_SIGN;
+	}
+
+	/**
+	 * Lee los certificados del <i>KeyInfo</i> de la firma.
+	 */
+	static List<X509Certificate> readCertificates(Element signatureElement) throws Exception {
+		List<X509Certificate> certificates = new ArrayList<>();
+		CertificateFactory cf = CertificateFactory.getInstance("X.509");
+
+		for (Node child = signatureElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child instanceof Element && XMLSignature.XMLNS.equals(child.getNamespaceURI())
+					&& "KeyInfo".equals(child.getLocalName())) {
+				NodeList certs = ((Element) child).getElementsByTagNameNS(XMLSignature.XMLNS, "X509Certificate");
+				for (int i = 0; i < certs.getLength(); i++) {
+					byte[] encoded = Base64.getMimeDecoder().decode(certs.item(i).getTextContent().trim());
+					certificates.add((X509Certificate) cf.generateCertificate(new ByteArrayInputStream(encoded)));
+				}
+			}
+		}
+
+		return certificates;
+	}
+
+	/**
+	 * Busca entre los certificados de la firma el identificado en el
+	 * <i>SigningCertificate</i> de las propiedades firmadas.
+	 */
+	static X509Certificate findSigningCertificate(Element signedProperties,
+			List<X509Certificate> certificates) {
+		if (signedProperties == null) {
+			return null;
+		}
+
+		NodeList certDigests = signedProperties.getElementsByTagNameNS("*", "CertDigest");
+		for (int i = 0; i < certDigests.getLength(); i++) {
+			Element certDigest = (Element) certDigests.item(i);
+			NodeList digestMethod = certDigest.getElementsByTagNameNS(XMLSignature.XMLNS, "DigestMethod");
+			NodeList digestValue = certDigest.getElementsByTagNameNS(XMLSignature.XMLNS, "DigestValue");
+			if (digestMethod.getLength() == 0 || digestValue.getLength() == 0) {
+				continue;
+			}
+
+			try {
+				MessageDigest md = MessageDigest.getInstance(XMLConstants
+						.getDigestAlgorithmName(((Element) digestMethod.item(0)).getAttribute("Algorithm")));
+				byte[] expected = Base64.getMimeDecoder().decode(digestValue.item(0).getTextContent().trim());
+
+				for (X509Certificate certificate : certificates) {
+					if (Arrays.equals(expected, md.digest(certificate.getEncoded()))) {
+						return certificate;
+					}
+				}
+			} catch (Exception e) {
+				logger.warning("No se ha podido comprobar el certificado firmante: " + e);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Obtiene el primer descendiente XAdES (de cualquier version) con el nombre
+	 * indicado.
+	 */
+	static Element getXadesElement(Element parent, String localName) {
+		NodeList nodes = parent.getElementsByTagNameNS("*", localName);
+		for (int i = 0; i < nodes.getLength(); i++) {
+			String namespace = nodes.item(i).getNamespaceURI();
+			if (namespace != null && namespace.startsWith(XADES_NAMESPACE_PREFIX)) {
+				return (Element) nodes.item(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Firma en proceso de verificacion.
+	 */
+	private static final class PendingSignature {
+
+		private final XadesSignatureReport report;
+		private Future<ValidationResult> certPathResult;
+
+		PendingSignature(XadesSignatureReport report) {
+			this.report = report;
+		}
+	}
+
+	/**
+	 * Selector de claves para firmas sin certificado, que no devuelve ninguna.
+	 */
+	static final class NullKeySelector extends KeySelector {
+
+		@Override
+		public KeySelectorResult select(KeyInfo keyInfo, Purpose purpose, AlgorithmMethod method,
+				XMLCryptoContext context) throws KeySelectorException {
+			throw new KeySelectorException("La firma no incluye el certificado del firmante");
+		}
+	}
+}
\ No newline at end of file
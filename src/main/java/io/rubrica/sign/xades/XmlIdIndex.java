@@ -0,0 +1,203 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dom.DOMCryptoContext;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * &Iacute;ndice de los elementos de un documento XML por el valor de su
+ * atributo <i>Id</i>, con el mismo criterio que
+ * {@link CustomUriDereferencer#getElementById(Document, String)}: el nombre del
+ * atributo se compara sin distinguir may&uacute;sculas y, si hay varios
+ * elementos con el mismo valor, prevalece el primero en orden de documento y
+ * el valor se marca como duplicado.
+ *
+ * Es el criterio con el que el firmador, el dereferenciador, los validadores
+ * XAdES y ODF y {@link XadesSignatureDocument} resuelven las referencias
+ * internas.
+ *
+ * Se construye con un solo recorrido del documento y se actualiza al
+ * insertar nuevos nodos (por ejemplo, la propia firma), de forma que cada
+ * referencia interna se resuelve sin volver a recorrer el &aacute;rbol.
+ */
+public final class XmlIdIndex {
+
+	private static final String ID = "Id";
+
+	private static final String CONTEXT_PROPERTY = XmlIdIndex.class.getName();
+
+	private final Map<String, Attr> ids = new HashMap<>();
+	private final Set<String> duplicates = new HashSet<>();
+
+	/**
+	 * Crea un &iacute;ndice vac&iacute;o, para rellenarlo elemento a elemento
+	 * con {@link #addAttributes(Element)} desde un recorrido propio del
+	 * documento.
+	 */
+	public XmlIdIndex() {
+	}
+
+	/**
+	 * Construye el &iacute;ndice de un documento.
+	 *
+	 * @param doc
+	 *            Documento XML
+	 * @return &Iacute;ndice con todos los elementos con atributo <i>Id</i>
+	 */
+	public static XmlIdIndex build(Document doc) {
+		XmlIdIndex index = new XmlIdIndex();
+		if (doc != null && doc.getDocumentElement() != null) {
+			index.add(doc.getDocumentElement());
+		}
+		return index;
+	}
+
+	/**
+	 * Obtiene el &iacute;ndice registrado en un contexto de firma o
+	 * validaci&oacute;n.
+	 *
+	 * @param context
+	 *            Contexto de firma o validaci&oacute;n
+	 * @return &Iacute;ndice registrado o {@code null} si no hay ninguno
+	 */
+	static XmlIdIndex get(XMLCryptoContext context) {
+		Object index = context.getProperty(CONTEXT_PROPERTY);
+		return index instanceof XmlIdIndex ? (XmlIdIndex) index : null;
+	}
+
+	/**
+	 * A&ntilde;ade al &iacute;ndice los elementos de un sub&aacute;rbol, sin
+	 * reemplazar los identificadores ya indexados.
+	 *
+	 * @param subtree
+	 *            Ra&iacute;z del sub&aacute;rbol insertado
+	 */
+	void add(Element subtree) {
+		// Recorrido iterativo en orden de documento, sin recursividad para no
+		// desbordar la pila con documentos muy anidados
+		Node node = subtree;
+		while (node != null) {
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				addAttributes((Element) node);
+			}
+
+			Node next = node.getFirstChild();
+			while (next == null && node != subtree) {
+				next = node.getNextSibling();
+				if (next == null) {
+					node = node.getParentNode();
+				}
+			}
+			node = next;
+		}
+	}
+
+	/**
+	 * A&ntilde;ade al &iacute;ndice los identificadores de un elemento, sin
+	 * recorrer sus hijos.
+	 *
+	 * @param element
+	 *            Elemento a indexar
+	 */
+	public void addAttributes(Element element) {
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			if (ID.equalsIgnoreCase(attr.getNodeName())) {
+				Attr previous = ids.putIfAbsent(attr.getValue(), attr);
+				if (previous != null && previous != attr) {
+					duplicates.add(attr.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Obtiene el elemento con el identificador indicado.
+	 *
+	 * @param id
+	 *            Identificador, con o sin el prefijo <i>#</i> de las
+	 *            referencias internas
+	 * @return Elemento con ese identificador o {@code null} si no hay ninguno
+	 */
+	public Element getElement(String id) {
+		if (id == null) {
+			return null;
+		}
+		Attr attr = ids.get(stripFragment(id));
+		return attr != null ? attr.getOwnerElement() : null;
+	}
+
+	/**
+	 * Indica si hay varios elementos con el identificador indicado.
+	 *
+	 * @param id
+	 *            Identificador, con o sin el prefijo <i>#</i> de las
+	 *            referencias internas
+	 * @return {@code true} si el identificador est&aacute; duplicado
+	 */
+	public boolean isDuplicated(String id) {
+		return id != null && duplicates.contains(stripFragment(id));
+	}
+
+	private static String stripFragment(String id) {
+		return id.length() > 0 && id.charAt(0) == '#' ? id.substring(1) : id;
+	}
+
+	/**
+	 * Marca en el DOM los atributos indexados como atributos de tipo ID, para
+	 * que {@link Document#getElementById(String)} y el dereferenciador por
+	 * defecto de cualquier contexto los resuelvan.
+	 */
+	public void markIdAttributes() {
+		for (Attr attr : ids.values()) {
+			attr.getOwnerElement().setIdAttributeNode(attr, true);
+		}
+	}
+
+	/**
+	 * Registra los identificadores en un contexto de firma o validaci&oacute;n,
+	 * para que el dereferenciador por defecto los resuelva directamente, y deja
+	 * el &iacute;ndice accesible desde el propio contexto.
+	 *
+	 * @param context
+	 *            Contexto de firma o validaci&oacute;n
+	 */
+	void register(DOMCryptoContext context) {
+		for (Attr attr : ids.values()) {
+			// Los atributos sin espacio de nombres DOM nivel 2 no pueden
+			// registrarse, pero siguen resolviendose con el indice
+			if (attr.getLocalName() != null) {
+				context.setIdAttributeNS(attr.getOwnerElement(), attr.getNamespaceURI(), attr.getLocalName());
+			}
+		}
+		context.setProperty(CONTEXT_PROPERTY, this);
+	}
+}
\ No newline at end of file
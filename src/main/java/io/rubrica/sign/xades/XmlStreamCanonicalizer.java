@@ -0,0 +1,433 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import io.rubrica.core.RubricaException;
+
+/**
+ * Canonicalizaci&oacute;n inclusiva (C14N 1.0 sin comentarios) de un documento
+ * XML en una sola pasada con StAX, sin construir el &aacute;rbol DOM.
+ *
+ * Produce los mismos octetos que las transformaciones de una firma
+ * <i>enveloped</i> sobre el documento completo (URI vac&iacute;a) o sobre su
+ * ra&iacute;z (URI <code>#Id</code> si la ra&iacute;z tiene atributo
+ * <i>Id</i>), opcionalmente sin los nodos <i>ds:Signature</i> ya presentes.
+ * No se admiten documentos con DTD.
+ */
+final class XmlStreamCanonicalizer {
+
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * Datos de la ra&iacute;z del documento canonicalizado.
+	 */
+	static final class Root {
+
+		private final String prefix;
+		private final String localName;
+		private final String namespaceURI;
+		private final Map<String, String> namespaces;
+		private final Map<String, String> xmlAttributes;
+		private final String id;
+		private String encoding;
+		private boolean trailingMarkup;
+
+		Root(XMLStreamReader reader) {
+			this.prefix = nonNull(reader.getPrefix());
+			this.localName = reader.getLocalName();
+			this.namespaceURI = nonNull(reader.getNamespaceURI());
+
+			Map<String, String> declared = new LinkedHashMap<>();
+			for (int i = 0; i < reader.getNamespaceCount(); i++) {
+				declared.put(nonNull(reader.getNamespacePrefix(i)), nonNull(reader.getNamespaceURI(i)));
+			}
+			this.namespaces = Collections.unmodifiableMap(declared);
+
+			Map<String, String> xml = new LinkedHashMap<>();
+			String rootId = null;
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				String attrNamespace = nonNull(reader.getAttributeNamespace(i));
+				if (XMLConstants.XML_NS_URI.equals(attrNamespace)) {
+					xml.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+				} else if (attrNamespace.isEmpty() && FirmadorXAdES.ID_IDENTIFIER.equals(reader.getAttributeLocalName(i))
+						&& !reader.getAttributeValue(i).isEmpty()) {
+					rootId = reader.getAttributeValue(i);
+				}
+			}
+			this.xmlAttributes = Collections.unmodifiableMap(xml);
+			this.id = rootId;
+		}
+
+		String getPrefix() {
+			return prefix;
+		}
+
+		String getLocalName() {
+			return localName;
+		}
+
+		String getQName() {
+			return prefix.isEmpty() ? localName : prefix + ":" + localName;
+		}
+
+		String getNamespaceURI() {
+			return namespaceURI;
+		}
+
+		/** Declaraciones de espacios de nombres de la ra&iacute;z, por prefijo. */
+		Map<String, String> getNamespaces() {
+			return namespaces;
+		}
+
+		/** Atributos <code>xml:*</code> de la ra&iacute;z, por nombre local. */
+		Map<String, String> getXmlAttributes() {
+			return xmlAttributes;
+		}
+
+		/** Atributo <i>Id</i> de la ra&iacute;z, o {@code null} si no tiene. */
+		String getId() {
+			return id;
+		}
+
+		/** Codificaci&oacute;n del documento. */
+		String getEncoding() {
+			return encoding;
+		}
+
+		/**
+		 * Indica si tras la ra&iacute;z hay comentarios o instrucciones de
+		 * proceso.
+		 */
+		boolean hasTrailingMarkup() {
+			return trailingMarkup;
+		}
+	}
+
+	private final boolean excludeSignatures;
+	private final Writer writer;
+	private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 1024);
+	private final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+
+	private XmlStreamCanonicalizer(boolean excludeSignatures, OutputStream out) {
+		this.excludeSignatures = excludeSignatures;
+		this.writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Canonicaliza un documento XML.
+	 *
+	 * @param in
+	 *            Documento a canonicalizar; no se cierra
+	 * @param excludeSignatures
+	 *            {@code true} para omitir los nodos <i>ds:Signature</i> y todo
+	 *            su contenido
+	 * @param out
+	 *            Flujo en el que se escribe la forma can&oacute;nica; no se
+	 *            cierra
+	 * @return Datos de la ra&iacute;z del documento
+	 * @throws RubricaException
+	 *             Si el documento no es XML o no se puede canonicalizar en
+	 *             streaming
+	 * @throws IOException
+	 *             Si hay problemas escribiendo la forma can&oacute;nica
+	 */
+	static Root canonicalize(InputStream in, boolean excludeSignatures, OutputStream out)
+			throws RubricaException, IOException {
+		XMLStreamReader reader;
+		try {
+			reader = INPUT_FACTORY.createXMLStreamReader(in);
+		} catch (XMLStreamException e) {
+			throw new InvalidXMLException("No se ha podido leer el documento XML", e);
+		}
+
+		try {
+			return new XmlStreamCanonicalizer(excludeSignatures, out).canonicalize(reader);
+		} catch (XMLStreamException e) {
+			throw new InvalidXMLException("El documento no es un XML valido", e);
+		} finally {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// Ignoramos
+			}
+		}
+	}
+
+	private Root canonicalize(XMLStreamReader reader) throws XMLStreamException, RubricaException, IOException {
+		Root root = null;
+		StringBuilder prolog = new StringBuilder();
+		int depth = 0;
+		int skipped = 0;
+
+		scopes.push(Collections.singletonMap("", ""));
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (skipped > 0) {
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					skipped++;
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					skipped--;
+				}
+				continue;
+			}
+
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				if (excludeSignatures && XMLSignature.XMLNS.equals(reader.getNamespaceURI())
+						&& XAdESSigner.SIGNATURE_TAG.equals(reader.getLocalName())) {
+					if (depth == 0) {
+						throw new RubricaException("El documento es en si mismo una firma XML");
+					}
+					skipped = 1;
+					break;
+				}
+				if (depth == 0) {
+					root = new Root(reader);
+					String encoding = reader.getCharacterEncodingScheme();
+					root.encoding = encoding != null ? encoding
+							: reader.getEncoding() != null ? reader.getEncoding() : "UTF-8";
+					// Las instrucciones de proceso fuera de la raiz solo
+					// forman parte del documento completo
+					if (root.getId() == null) {
+						buffer.append(prolog);
+					}
+				}
+				startElement(reader);
+				depth++;
+				break;
+
+			case XMLStreamConstants.END_ELEMENT:
+				buffer.append("</").append(qName(reader.getPrefix(), reader.getLocalName())).append('>');
+				scopes.pop();
+				depth--;
+				break;
+
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				// Fuera de la raiz solo puede haber espacios, que no forman
+				// parte de la forma canonica
+				if (depth > 0) {
+					appendText(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				if (depth > 0) {
+					appendProcessingInstruction(buffer, reader);
+				} else if (root == null) {
+					appendProcessingInstruction(prolog, reader);
+					prolog.append('\n');
+				} else {
+					root.trailingMarkup = true;
+					if (root.getId() == null) {
+						buffer.append('\n');
+						appendProcessingInstruction(buffer, reader);
+					}
+				}
+				break;
+
+			case XMLStreamConstants.COMMENT:
+				if (depth == 0 && root != null) {
+					root.trailingMarkup = true;
+				}
+				break;
+
+			case XMLStreamConstants.DTD:
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				throw new RubricaException("No se admiten documentos XML con DTD");
+
+			default:
+				break;
+			}
+
+			if (buffer.length() >= BUFFER_SIZE) {
+				flushBuffer();
+			}
+		}
+
+		if (root == null) {
+			throw new InvalidXMLException("El documento XML no tiene nodo raiz");
+		}
+
+		flushBuffer();
+		writer.flush();
+		return root;
+	}
+
+	private void startElement(XMLStreamReader reader) {
+		Map<String, String> parent = scopes.peek();
+		Map<String, String> current = parent;
+
+		// Solo se escriben las declaraciones que cambian el valor heredado, en
+		// orden de prefijo (el espacio por defecto primero)
+		TreeMap<String, String> rendered = new TreeMap<>();
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String prefix = nonNull(reader.getNamespacePrefix(i));
+			String uri = nonNull(reader.getNamespaceURI(i));
+			if (XMLConstants.XML_NS_PREFIX.equals(prefix) || uri.equals(parent.get(prefix))) {
+				continue;
+			}
+			if (!prefix.isEmpty() && uri.isEmpty()) {
+				continue;
+			}
+			if (current == parent) {
+				current = new HashMap<>(parent);
+			}
+			current.put(prefix, uri);
+			rendered.put(prefix, uri);
+		}
+		scopes.push(current);
+
+		buffer.append('<').append(qName(reader.getPrefix(), reader.getLocalName()));
+
+		for (Map.Entry<String, String> ns : rendered.entrySet()) {
+			buffer.append(ns.getKey().isEmpty() ? " xmlns" : " xmlns:" + ns.getKey()).append("=\"");
+			appendAttributeValue(ns.getValue());
+			buffer.append('"');
+		}
+
+		// Atributos ordenados por espacio de nombres y nombre local
+		int count = reader.getAttributeCount();
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> {
+			int c = nonNull(reader.getAttributeNamespace(a)).compareTo(nonNull(reader.getAttributeNamespace(b)));
+			return c != 0 ? c : reader.getAttributeLocalName(a).compareTo(reader.getAttributeLocalName(b));
+		});
+
+		for (int i : order) {
+			buffer.append(' ').append(qName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)))
+					.append("=\"");
+			appendAttributeValue(reader.getAttributeValue(i));
+			buffer.append('"');
+		}
+
+		buffer.append('>');
+	}
+
+	private void appendText(char[] text, int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			char c = text[i];
+			switch (c) {
+			case '&':
+				buffer.append("&amp;");
+				break;
+			case '<':
+				buffer.append("&lt;");
+				break;
+			case '>':
+				buffer.append("&gt;");
+				break;
+			case '\r':
+				buffer.append("&#xD;");
+				break;
+			default:
+				buffer.append(c);
+				break;
+			}
+		}
+	}
+
+	private void appendAttributeValue(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				buffer.append("&amp;");
+				break;
+			case '<':
+				buffer.append("&lt;");
+				break;
+			case '"':
+				buffer.append("&quot;");
+				break;
+			case '\t':
+				buffer.append("&#x9;");
+				break;
+			case '\n':
+				buffer.append("&#xA;");
+				break;
+			case '\r':
+				buffer.append("&#xD;");
+				break;
+			default:
+				buffer.append(c);
+				break;
+			}
+		}
+	}
+
+	private static void appendProcessingInstruction(StringBuilder sb, XMLStreamReader reader) {
+		sb.append("<?").append(reader.getPITarget());
+		String data = reader.getPIData();
+		if (data != null && !data.isEmpty()) {
+			sb.append(' ').append(data);
+		}
+		sb.append("?>");
+	}
+
+	private void flushBuffer() throws IOException {
+		if (buffer.length() > 0) {
+			writer.append(buffer);
+			buffer.setLength(0);
+		}
+	}
+
+	private static String qName(String prefix, String localName) {
+		return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+	}
+
+	private static String nonNull(String s) {
+		return s == null ? "" : s;
+	}
+}
\ No newline at end of file
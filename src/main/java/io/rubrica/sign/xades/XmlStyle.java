@@ -95,7 +95,7 @@ public final class XmlStyle {
 				this.element = null;
 			}
 
-			this.encoding = tmpDoc.getXmlEncoding();
+			this.encoding = XmlStyleCache.getXmlEncoding(tmpDoc);
 		} else {
 			this.encoding = null;
 			this.element = null;
@@ -202,8 +202,20 @@ public final class XmlStyle {
 
 		byte[] xml = null;
 
-		// Intentamos dereferenciar directamente, cosa que funciona con
-		// http://, https:// y file://
+		// Las hojas remotas se comparten entre firmas a traves de la cache,
+		// que solo las vuelve a descargar cuando han caducado
+		if (id.startsWith(HTTP_PROTOCOL_PREFIX) || id.startsWith(HTTPS_PROTOCOL_PREFIX)) {
+			try {
+				return XmlStyleCache.getShared().get(Util.createURI(id));
+			} catch (ReferenceIsNotXmlException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new CannotDereferenceException(
+						"No se ha podido dereferenciar la hoja de estilo '" + id + "': " + e, e);
+			}
+		}
+
+		// Intentamos dereferenciar directamente el resto de esquemas
 		try {
 			URI styleURI = Util.createURI(id);
 			if (styleURI.getScheme().equals("file")) {
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.xades;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+import io.rubrica.core.Util;
+
+/**
+ * Cache compartida de hojas de estilo remotas (HTTP y HTTPS), indexada por la
+ * URI absoluta de la hoja.
+ *
+ * Cada hoja se descarga y analiza una sola vez y se guarda como plantilla DOM,
+ * de la que se entrega una copia en cada uso. Las entradas caducan seg&uacute;n las
+ * cabeceras <i>Cache-Control</i> (<i>max-age</i>, <i>no-cache</i>,
+ * <i>no-store</i>) o <i>Expires</i> de la respuesta, o pasado un tiempo por
+ * defecto si no las hay, y al caducar se revalidan con una petici&oacute;n
+ * condicional (<i>If-None-Match</i> con la <i>ETag</i> e
+ * <i>If-Modified-Since</i>). Las respuestas con <i>no-store</i> no se guardan.
+ * Las peticiones simult&aacute;neas de una misma hoja se agrupan en una sola
+ * descarga, con tiempos m&aacute;ximos de conexi&oacute;n, lectura y espera. Si la
+ * revalidaci&oacute;n falla por un error de red se sigue usando la copia anterior.
+ *
+ * Solo la usa el constructor {@link XmlStyle#XmlStyle(byte[], boolean)}: los
+ * firmadores XAdES no resuelven las hojas de estilo del documento, por lo que
+ * esta cache no interviene en la firma.
+ */
+final class XmlStyleCache {
+
+	private static final Logger logger = Logger.getLogger(XmlStyleCache.class.getName());
+
+	/** Tiempo de vida por defecto de una hoja si el servidor no indica otro. */
+	static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+
+	/** Tiempo m&aacute;ximo para conectar con el servidor de la hoja. */
+	static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+	/** Tiempo m&aacute;ximo de espera entre lecturas de la respuesta. */
+	static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+	/** Tiempo m&aacute;ximo que se espera a una descarga iniciada por otro hilo. */
+	static final long WAIT_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+	/** N&uacute;mero m&aacute;ximo de hojas guardadas. */
+	private static final int MAX_ENTRIES = 64;
+
+	private static final String XML_ENCODING_KEY = XmlStyleCache.class.getName() + ".xmlEncoding";
+
+	private static final XmlStyleCache SHARED = new XmlStyleCache(DEFAULT_TTL);
+
+	private final long defaultTtl;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+	XmlStyleCache(long defaultTtl) {
+		this.defaultTtl = defaultTtl;
+	}
+
+	/**
+	 * Obtiene la cache compartida por todas las firmas.
+	 *
+	 * @return Cache de hojas de estilo
+	 */
+	static XmlStyleCache getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Obtiene una copia de la hoja de estilo, descarg&aacute;ndola solo si no
+	 * est&aacute; en la cache o ha caducado.
+	 *
+	 * @param uri
+	 *            URI absoluta de la hoja de estilo
+	 * @return Documento DOM con la hoja de estilo, propio del llamante
+	 * @throws IOException
+	 *             Si no se puede descargar la hoja
+	 * @throws ReferenceIsNotXmlException
+	 *             Si la hoja descargada no es XML
+	 */
+	Document get(URI uri) throws IOException, ReferenceIsNotXmlException {
+		String key = uri.toString();
+
+		Entry entry = entries.get(key);
+		if (entry != null && entry.isFresh()) {
+			return entry.cloneDocument();
+		}
+
+		CompletableFuture<Entry> future = new CompletableFuture<>();
+		CompletableFuture<Entry> existing = inFlight.putIfAbsent(key, future);
+
+		if (existing == null) {
+			try {
+				Entry fetched = fetch(uri, entry);
+				if (fetched.storable) {
+					put(key, fetched);
+				} else {
+					entries.remove(key);
+				}
+				future.complete(fetched);
+			} catch (IOException | ReferenceIsNotXmlException | RuntimeException e) {
+				future.completeExceptionally(e);
+			} finally {
+				inFlight.remove(key, future);
+			}
+		} else {
+			future = existing;
+		}
+
+		try {
+			return future.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS).cloneDocument();
+		} catch (TimeoutException e) {
+			throw new IOException("Agotado el tiempo de espera de la hoja de estilo " + key, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrumpida la descarga de la hoja de estilo " + key, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof ReferenceIsNotXmlException) {
+				throw (ReferenceIsNotXmlException) cause;
+			}
+			throw new IOException("Error al obtener la hoja de estilo " + key + ": " + cause, cause);
+		}
+	}
+
+	/**
+	 * Obtiene la codificaci&oacute;n declarada de una hoja de estilo, ya
+	 * proceda de la cache o no.
+	 *
+	 * @param doc
+	 *            Documento DOM con la hoja de estilo
+	 * @return Codificaci&oacute;n declarada en la hoja, o {@code null} si no
+	 *         declaraba ninguna
+	 */
+	static String getXmlEncoding(Document doc) {
+		Object encoding = doc.getUserData(XML_ENCODING_KEY);
+		return encoding != null ? (String) encoding : doc.getXmlEncoding();
+	}
+
+	/** Vac&iacute;a la cache. */
+	void clear() {
+		entries.clear();
+	}
+
+	private void put(String key, Entry entry) {
+		if (entries.size() >= MAX_ENTRIES && !entries.containsKey(key)) {
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+				if (!it.next().isFresh()) {
+					it.remove();
+				}
+			}
+			if (entries.size() >= MAX_ENTRIES) {
+				entries.clear();
+			}
+		}
+		entries.put(key, entry);
+	}
+
+	private Entry fetch(URI uri, Entry previous) throws IOException, ReferenceIsNotXmlException {
+		HttpURLConnection connection;
+		int responseCode;
+		try {
+			connection = (HttpURLConnection) uri.toURL().openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			if (previous != null) {
+				if (previous.etag != null) {
+					connection.setRequestProperty("If-None-Match", previous.etag);
+				}
+				if (previous.lastModified > 0) {
+					connection.setIfModifiedSince(previous.lastModified);
+				}
+			}
+			responseCode = connection.getResponseCode();
+		} catch (IOException e) {
+			if (previous != null) {
+				logger.warning("No se ha podido revalidar la hoja de estilo " + uri + ", se usa la copia anterior: " + e);
+				return previous;
+			}
+			throw e;
+		}
+
+		try {
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+				return new Entry(previous.template, previous.etag, previous.lastModified, getExpiration(connection),
+						isStorable(connection));
+			}
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Respuesta HTTP " + responseCode + " al descargar la hoja de estilo " + uri);
+			}
+
+			byte[] xml;
+			try (InputStream in = connection.getInputStream()) {
+				xml = Util.getDataFromInputStream(in);
+			}
+
+			Document template;
+			try {
+				template = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+						.parse(new ByteArrayInputStream(xml));
+			} catch (Exception e) {
+				throw new ReferenceIsNotXmlException(e);
+			}
+
+			return new Entry(template, connection.getHeaderField("ETag"), connection.getLastModified(),
+					getExpiration(connection), isStorable(connection));
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Calcula la caducidad de la respuesta: <i>Cache-Control</i> tiene
+	 * prioridad sobre <i>Expires</i>, y si no hay ninguna se usa el tiempo por
+	 * defecto.
+	 */
+	private long getExpiration(HttpURLConnection connection) {
+		long now = System.currentTimeMillis();
+
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-cache") || directive.equals("no-store")) {
+					return now;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						return now + TimeUnit.SECONDS.toMillis(Long.parseLong(directive.substring(8).trim()));
+					} catch (NumberFormatException e) {
+						logger.fine("Cabecera Cache-Control no valida: " + cacheControl);
+					}
+				}
+			}
+		}
+
+		long expires = connection.getExpiration();
+		if (expires > 0) {
+			return expires;
+		}
+
+		return now + defaultTtl;
+	}
+
+	/** Indica si la respuesta se puede guardar, es decir, si no trae <i>no-store</i>. */
+	private static boolean isStorable(HttpURLConnection connection) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+				if (directive.trim().equals("no-store")) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/** Hoja de estilo guardada. */
+	private static final class Entry {
+
+		final Document template;
+		final String etag;
+		final long lastModified;
+		final long expiresAt;
+		final boolean storable;
+
+		Entry(Document template, String etag, long lastModified, long expiresAt, boolean storable) {
+			this.template = template;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expiresAt = expiresAt;
+			this.storable = storable;
+		}
+
+		boolean isFresh() {
+			return System.currentTimeMillis() < expiresAt;
+		}
+
+		Document cloneDocument() {
+			// El DOM no es seguro para varios hilos, ni siquiera en lectura
+			Document clone;
+			synchronized (template) {
+				clone = (Document) template.cloneNode(true);
+			}
+			// La copia pierde la declaracion XML, que no se puede asignar por DOM
+			clone.setUserData(XML_ENCODING_KEY, template.getXmlEncoding(), null);
+			return clone;
+		}
+	}
+}
\ No newline at end of file
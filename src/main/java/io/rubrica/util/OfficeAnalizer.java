@@ -25,7 +25,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
@@ -35,7 +34,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import io.rubrica.xml.FileUtils;
+import io.rubrica.zip.ZipContainer;
 
 /**
  * Clase para el an&aacute;lisis de ficheros OOXML, ODF y Microsoft Office
@@ -128,15 +127,14 @@ public final class OfficeAnalizer {
 	 *             Si no se puede leer el fichero
 	 */
 	static String getMimeType(final byte[] data) throws IOException {
-		ZipFile zipFile = null;
 		try {
-			zipFile = FileUtils.createTempZipFile(data);
+			ZipContainer zipFile = ZipContainer.open(data);
 			String mimetype = ZIP_MIMETYPE;
 			String tempMimetype = null;
 			if (isODFFile(zipFile)) {
-				tempMimetype = getODFMimeType(zipFile.getInputStream(zipFile.getEntry("mimetype")));
+				tempMimetype = getODFMimeType(zipFile.getInputStream("mimetype"));
 			} else if (isOOXMLFile(zipFile)) {
-				tempMimetype = getOOXMLMimeType(zipFile.getInputStream(zipFile.getEntry("[Content_Types].xml")));
+				tempMimetype = getOOXMLMimeType(zipFile.getInputStream("[Content_Types].xml"));
 			} else {
 				tempMimetype = getMimeTypeOffice97(data);
 			}
@@ -146,10 +144,6 @@ public final class OfficeAnalizer {
 			return mimetype;
 		} catch (final ZipException e1) {
 			logger.warning("El fichero indicado no es un ZIP: " + e1);
-		} finally {
-			if (zipFile != null) {
-				zipFile.close();
-			}
 		}
 
 		final String retVal = getMimeTypeOffice97(data);
@@ -216,10 +210,7 @@ public final class OfficeAnalizer {
 	 *             SI ocurren problemas leyendo el fichero
 	 */
 	public static boolean isOOXMLDocument(final byte[] document) throws IOException {
-		final ZipFile zipFile = FileUtils.createTempZipFile(document);
-		final boolean ret = isOOXMLFile(zipFile);
-		zipFile.close();
-		return ret;
+		return isOOXMLFile(ZipContainer.open(document));
 	}
 
 	/**
@@ -230,10 +221,10 @@ public final class OfficeAnalizer {
 	 * @return Devuelve <code>true</code> si el fichero era un OOXML soportado,
 	 *         <code>false</code> en caso contrario.
 	 */
-	private static boolean isOOXMLFile(final ZipFile zipFile) {
+	private static boolean isOOXMLFile(final ZipContainer zipFile) {
 		// Comprobamos si estan todos los ficheros principales del documento
-		return zipFile.getEntry("[Content_Types].xml") != null && zipFile.getEntry("_rels/.rels") != null
-				&& zipFile.getEntry("docProps/app.xml") != null && zipFile.getEntry("docProps/core.xml") != null;
+		return zipFile.contains("[Content_Types].xml") && zipFile.contains("_rels/.rels")
+				&& zipFile.contains("docProps/app.xml") && zipFile.contains("docProps/core.xml");
 	}
 
 	/**
@@ -299,10 +290,7 @@ public final class OfficeAnalizer {
 	 *             Si ocurren problemas leyendo el fichero
 	 */
 	public static boolean isODFDocument(final byte[] document) throws IOException {
-		final ZipFile zipFile = FileUtils.createTempZipFile(document);
-		final boolean ret = isODFFile(zipFile);
-		zipFile.close();
-		return ret;
+		return isODFFile(ZipContainer.open(document));
 	}
 
 	/**
@@ -313,26 +301,26 @@ public final class OfficeAnalizer {
 	 * @return Devuelve <code>true</code> si el fichero era un ODF soportado,
 	 *         <code>false</code> en caso contrario.
 	 */
-	private static boolean isODFFile(final ZipFile zipFile) {
+	private static boolean isODFFile(final ZipContainer zipFile) {
 		// Comprobamos si estan todos los ficheros principales del documento
 		// Se separan las comprobaciones en varios if para no tener una sola
 		// sentencia condicional muy larga
-		if (zipFile.getEntry("mimetype") == null) {
+		if (!zipFile.contains("mimetype")) {
 			return false;
 		}
-		if (zipFile.getEntry("content.xml") == null) {
+		if (!zipFile.contains("content.xml")) {
 			return false;
 		}
-		if (zipFile.getEntry("meta.xml") == null) {
+		if (!zipFile.contains("meta.xml")) {
 			return false;
 		}
-		if (zipFile.getEntry("settings.xml") == null) {
+		if (!zipFile.contains("settings.xml")) {
 			return false;
 		}
-		if (zipFile.getEntry("styles.xml") == null) {
+		if (!zipFile.contains("styles.xml")) {
 			return false;
 		}
-		if (zipFile.getEntry("META-INF/manifest.xml") == null) {
+		if (!zipFile.contains("META-INF/manifest.xml")) {
 			return false;
 		}
 		return true;
@@ -8,6 +8,7 @@ package io.rubrica.util;
 import com.google.zxing.BinaryBitmap;
 import com.google.zxing.LuminanceSource;
 import com.google.zxing.Result;
+import com.google.zxing.WriterException;
 import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.common.HybridBinarizer;
@@ -52,21 +53,7 @@ public class QRCode {
 	}
 
 	public static BufferedImage generateQR(String text, int h, int w) throws Exception {
-		// Generamos el mapa de caracterìsticas que requerimos para el QR
-		java.util.Map<com.google.zxing.EncodeHintType, Object> hints = new EnumMap<>(
-				com.google.zxing.EncodeHintType.class);
-		// En nuestro caso particular agregamos soporte para el español con la
-		// codificación ISO-8859-1
-		hints.put(com.google.zxing.EncodeHintType.CHARACTER_SET, java.nio.charset.StandardCharsets.US_ASCII.name());// ISO_8859_1
-		// Desde la versión 3.2.1 de Zxing podemos establecer el tamaño del borde, por
-		// default es 4
-		hints.put(com.google.zxing.EncodeHintType.MARGIN, 0);
-		// Agregamos la correción de error del QR
-		hints.put(com.google.zxing.EncodeHintType.ERROR_CORRECTION,
-				com.google.zxing.qrcode.decoder.ErrorCorrectionLevel.L);
-
-		QRCodeWriter writer = new QRCodeWriter();
-		BitMatrix matrix = writer.encode(text, com.google.zxing.BarcodeFormat.QR_CODE, w, h, hints);
+		BitMatrix matrix = encode(text, w, h);
 
 		BufferedImage image = new BufferedImage(matrix.getWidth(), matrix.getHeight(), BufferedImage.TYPE_INT_RGB);
 		image.createGraphics();
@@ -86,6 +73,35 @@ public class QRCode {
 		return image;
 	}
 
+	/**
+	 * Codifica un texto como QR, con un modulo por punto y sin margen.
+	 * 
+	 * @param text
+	 *            Texto a codificar
+	 * @return Matriz de modulos del QR
+	 */
+	public static BitMatrix encode(String text) throws WriterException {
+		return encode(text, 0, 0);
+	}
+
+	private static BitMatrix encode(String text, int w, int h) throws WriterException {
+		// Generamos el mapa de caracterìsticas que requerimos para el QR
+		java.util.Map<com.google.zxing.EncodeHintType, Object> hints = new EnumMap<>(
+				com.google.zxing.EncodeHintType.class);
+		// En nuestro caso particular agregamos soporte para el español con la
+		// codificación ISO-8859-1
+		hints.put(com.google.zxing.EncodeHintType.CHARACTER_SET, java.nio.charset.StandardCharsets.US_ASCII.name());// ISO_8859_1
+		// Desde la versión 3.2.1 de Zxing podemos establecer el tamaño del borde, por
+		// default es 4
+		hints.put(com.google.zxing.EncodeHintType.MARGIN, 0);
+		// Agregamos la correción de error del QR
+		hints.put(com.google.zxing.EncodeHintType.ERROR_CORRECTION,
+				com.google.zxing.qrcode.decoder.ErrorCorrectionLevel.L);
+
+		QRCodeWriter writer = new QRCodeWriter();
+		return writer.encode(text, com.google.zxing.BarcodeFormat.QR_CODE, w, h, hints);
+	}
+
 	public static String decoder(File file) throws Exception {
 
 		FileInputStream inputStream = new FileInputStream(file);
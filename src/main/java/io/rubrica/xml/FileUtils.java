@@ -54,7 +54,10 @@ public final class FileUtils {
 	 * @throws IOException
 	 *             Cuando ocurre un error al leer los datos o crear el temporal para
 	 *             abrir el Zip.
+	 * @deprecated Usar {@link io.rubrica.zip.ZipContainer#open(byte[])}, que lee
+	 *             el Zip directamente en memoria sin crear un fichero temporal.
 	 */
+	@Deprecated
 	public static ZipFile createTempZipFile(final byte[] zipFileData) throws IOException {
 
 		// Creamos un fichero temporal
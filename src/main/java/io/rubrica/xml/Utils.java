@@ -48,6 +48,9 @@ import javax.xml.crypto.dsig.spec.XPathFilter2ParameterSpec;
 import javax.xml.crypto.dsig.spec.XPathFilterParameterSpec;
 import javax.xml.crypto.dsig.spec.XPathType;
 import javax.xml.crypto.dsig.spec.XPathType.Filter;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 
 import org.w3c.dom.Document;
@@ -70,6 +73,20 @@ public final class Utils {
 
 	private static final Logger logger = Logger.getLogger(Utils.class.getName());
 
+	/** Las factor&iacute;as no son seguras entre hilos, se crea una por hilo. */
+	private static final ThreadLocal<XMLSignatureFactory> DOM_FACTORY = ThreadLocal
+			.withInitial(() -> XMLSignatureFactory.getInstance("DOM"));
+
+	private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		try {
+			return dbf.newDocumentBuilder();
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("No se ha podido crear el constructor de documentos XML: " + e, e);
+		}
+	});
+
 	/**
 	 * A&ntilde;ade transformaciones seg&uacute; la sintaxis de par&aacute;metros
 	 * adicionales en fichero de propiedades del Cliente @firma a una lista
@@ -518,24 +535,11 @@ public final class Utils {
 			writer = new OutputStreamWriter(baos);
 		}
 
-		// Ahora escribimos el XML usando XALAN
+		// Ahora escribimos el XML usando XALAN. El serializador ya escribe en
+		// la codificacion indicada, no hace falta volver a leer el resultado
 		writeXMLwithXALAN(writer, node, xmlEncoding);
 
-		// Si no se trata de un XML completo y bien formado, devolvemos ya el
-		// resultado
-		if (!FileUtils.isXML(baos.toByteArray())) {
-			return baos.toByteArray();
-		}
-
-		// Si se trata de un XML completo, insertamos la cabecera de hoja de
-		// estilo
-		try {
-			return new String(baos.toByteArray(), xmlEncoding).getBytes(xmlEncoding);
-		} catch (Exception e) {
-			logger.warning(
-					"La codificacion '" + xmlEncoding + "' no es valida, se usara la por defecto del sistema: " + e);
-			return new String(baos.toByteArray()).getBytes();
-		}
+		return baos.toByteArray();
 	}
 
 	private static void writeXMLwithXALAN(Writer writer, Node node, String xmlEncoding) {
@@ -694,7 +698,20 @@ public final class Utils {
 	 * @return Factor&iacute;a de firmas XML
 	 */
 	public static XMLSignatureFactory getDOMFactory() {
-		return XMLSignatureFactory.getInstance("DOM");
+		return DOM_FACTORY.get();
+	}
+
+	/**
+	 * Recupera un constructor de documentos XML con soporte de espacios de
+	 * nombres. Cada hilo reutiliza el suyo, por lo que no debe compartirse
+	 * con otros hilos ni guardarse entre llamadas.
+	 * 
+	 * @return Constructor de documentos XML
+	 */
+	public static DocumentBuilder getDocumentBuilder() {
+		DocumentBuilder documentBuilder = DOCUMENT_BUILDER.get();
+		documentBuilder.reset();
+		return documentBuilder;
 	}
 
 	private static final String XMLDSIG = "XMLDSig";
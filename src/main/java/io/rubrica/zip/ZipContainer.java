@@ -0,0 +1,489 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import io.rubrica.core.Util;
+
+/**
+ * Contenedor Zip en memoria, para leer documentos ODF y OOXML sin volcarlos a
+ * un fichero temporal.
+ *
+ * El &iacute;ndice de entradas se construye una sola vez a partir del
+ * directorio central, y cada entrada se lee o descomprime directamente desde
+ * su posici&oacute;n, sin recorrer las anteriores. Las entradas que se piden
+ * m&aacute;s de una vez (por ejemplo, las relaciones <i>.rels</i>) se guardan
+ * ya descomprimidas. Si el directorio central no se puede interpretar (Zip64,
+ * paquetes truncados...) se hace un &uacute;nico recorrido secuencial que
+ * guarda todas las entradas.
+ *
+ * Varios hilos pueden leer entradas a la vez; cada uno descomprime la suya
+ * sin bloquear a los dem&aacute;s. Los datos del contenedor no deben
+ * modificarse mientras se use.
+ */
+public final class ZipContainer implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(ZipContainer.class.getName());
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+
+	private ByteBuffer buffer;
+
+	private final Map<String, Entry> entries;
+
+	private final Map<String, byte[]> cache = new HashMap<>();
+
+	private final Set<String> requested = new HashSet<>();
+
+	private ZipContainer(ByteBuffer buffer, Map<String, Entry> entries) {
+		this.buffer = buffer;
+		this.entries = entries;
+	}
+
+	/**
+	 * Abre un documento Zip en memoria. Cada llamada construye un contenedor
+	 * nuevo, por lo que quien lea varias entradas del mismo documento debe
+	 * abrirlo una sola vez y pasar el contenedor.
+	 *
+	 * @param data
+	 *            Documento Zip completo
+	 * @return Contenedor del documento
+	 * @throws ZipException
+	 *             Si los datos no son un Zip
+	 * @throws IOException
+	 *             Si no se pueden leer los datos
+	 */
+	public static ZipContainer open(byte[] data) throws IOException {
+		if (data == null) {
+			throw new IllegalArgumentException("Los datos del Zip no pueden ser nulos");
+		}
+		return build(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Abre un documento Zip contenido en un buffer, desde su posici&oacute;n
+	 * actual hasta su l&iacute;mite.
+	 *
+	 * @param buffer
+	 *            Buffer con el documento Zip
+	 * @return Contenedor del documento
+	 * @throws ZipException
+	 *             Si los datos no son un Zip
+	 * @throws IOException
+	 *             Si no se pueden leer los datos
+	 */
+	public static ZipContainer open(ByteBuffer buffer) throws IOException {
+		if (buffer == null) {
+			throw new IllegalArgumentException("El buffer del Zip no puede ser nulo");
+		}
+		return build(buffer.slice());
+	}
+
+	/**
+	 * Abre un fichero Zip proyect&aacute;ndolo en memoria, sin copiar su
+	 * contenido.
+	 *
+	 * @param file
+	 *            Fichero Zip
+	 * @return Contenedor del fichero
+	 * @throws ZipException
+	 *             Si el fichero no es un Zip
+	 * @throws IOException
+	 *             Si no se puede leer el fichero
+	 */
+	public static ZipContainer open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new ZipException("Fichero Zip demasiado grande: " + file);
+			}
+			return build(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private static ZipContainer build(ByteBuffer buffer) throws IOException {
+		ByteBuffer zip = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			return new ZipContainer(zip, readCentralDirectory(zip));
+		} catch (ZipException e) {
+			if (zip.limit() < 4 || zip.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+				throw e;
+			}
+			logger.fine("No se puede usar el directorio central, se lee el Zip secuencialmente: " + e);
+		}
+
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		ZipContainer container = new ZipContainer(zip, entries);
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(toArray(zip, 0, zip.limit())))) {
+			ZipEntry zipEntry;
+			while (null != (zipEntry = zis.getNextEntry())) {
+				// Como en una lectura secuencial, prevalece la primera entrada
+				if (!entries.containsKey(zipEntry.getName())) {
+					entries.put(zipEntry.getName(), null);
+					container.cache.put(zipEntry.getName(), Util.getDataFromInputStream(zis));
+				}
+			}
+		}
+		return container;
+	}
+
+	/**
+	 * Indica si el Zip contiene una entrada.
+	 *
+	 * @param name
+	 *            Nombre de la entrada
+	 * @return {@code true} si existe la entrada
+	 */
+	public boolean contains(String name) {
+		return this.entries.containsKey(name);
+	}
+
+	/**
+	 * Obtiene los nombres de las entradas en el orden del Zip.
+	 *
+	 * @return Nombres de las entradas
+	 */
+	public List<String> getEntryNames() {
+		return Collections.unmodifiableList(new ArrayList<>(this.entries.keySet()));
+	}
+
+	/**
+	 * Obtiene el contenido descomprimido de una entrada.
+	 *
+	 * @param name
+	 *            Nombre de la entrada
+	 * @return Contenido de la entrada, que no debe modificarse, o {@code null}
+	 *         si no existe
+	 * @throws IOException
+	 *             Si la entrada est&aacute; da&ntilde;ada o el contenedor se ha
+	 *             cerrado
+	 */
+	public byte[] getData(String name) throws IOException {
+		Entry entry;
+		ByteBuffer zip;
+		synchronized (this) {
+			byte[] data = this.cache.get(name);
+			if (data != null) {
+				return data;
+			}
+
+			entry = this.entries.get(name);
+			if (entry == null) {
+				return null;
+			}
+			if (this.buffer == null) {
+				throw new IOException("El contenedor Zip esta cerrado");
+			}
+			zip = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		// Se descomprime fuera del bloqueo, para que varios hilos puedan leer
+		// entradas distintas a la vez
+		byte[] data = read(name, entry, zip);
+
+		synchronized (this) {
+			if (this.buffer != null && !this.requested.add(name)) {
+				byte[] cached = this.cache.putIfAbsent(name, data);
+				if (cached != null) {
+					return cached;
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Obtiene el contenido descomprimido de una entrada como flujo de datos.
+	 *
+	 * @param name
+	 *            Nombre de la entrada
+	 * @return Flujo con el contenido de la entrada o {@code null} si no existe
+	 * @throws IOException
+	 *             Si la entrada est&aacute; da&ntilde;ada o el contenedor se ha
+	 *             cerrado
+	 */
+	public InputStream getInputStream(String name) throws IOException {
+		byte[] data = getData(name);
+		return data != null ? new ByteArrayInputStream(data) : null;
+	}
+
+	/**
+	 * Libera el contenido del Zip. Un fichero proyectado en memoria se libera
+	 * cuando el recolector de basura reclama el buffer.
+	 */
+	@Override
+	public synchronized void close() {
+		this.buffer = null;
+		this.cache.clear();
+	}
+
+	/**
+	 * Obtiene una entrada tal y como est&aacute; almacenada en el Zip, para
+	 * copiarla sin descomprimirla.
+	 *
+	 * @param name
+	 *            Nombre de la entrada
+	 * @return Entrada almacenada, o {@code null} si no existe o solo se dispone
+	 *         de su contenido descomprimido
+	 * @throws IOException
+	 *             Si la entrada est&aacute; da&ntilde;ada o el contenedor se ha
+	 *             cerrado
+	 */
+	synchronized RawEntry getRawEntry(String name) throws IOException {
+		Entry entry = this.entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		if (this.buffer == null) {
+			throw new IOException("El contenedor Zip esta cerrado");
+		}
+
+		ByteBuffer data = this.buffer.duplicate();
+		int start = getDataStart(name, entry, this.buffer);
+		data.position(start);
+		data.limit(start + entry.compressedSize);
+		return new RawEntry(entry.method, entry.crc, entry.size, entry.dosTime, data.slice());
+	}
+
+	private static int getDataStart(String name, Entry entry, ByteBuffer zip) throws ZipException {
+		if (entry.localHeaderOffset + LOCAL_HEADER_SIZE > zip.limit()
+				|| zip.getInt(entry.localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+			throw new ZipException("Cabecera local no valida para la entrada " + name);
+		}
+
+		long start = (long) entry.localHeaderOffset + LOCAL_HEADER_SIZE
+				+ readShort(zip, entry.localHeaderOffset + 26) + readShort(zip, entry.localHeaderOffset + 28);
+		if (start + entry.compressedSize > zip.limit()) {
+			throw new ZipException("Entrada truncada: " + name);
+		}
+		return (int) start;
+	}
+
+	private static byte[] read(String name, Entry entry, ByteBuffer zip) throws IOException {
+		int start = getDataStart(name, entry, zip);
+
+		byte[] data;
+		if (entry.method == ZipEntry.STORED) {
+			data = toArray(zip, start, entry.compressedSize);
+		} else if (entry.method == ZipEntry.DEFLATED) {
+			data = inflate(name, zip, start, entry);
+		} else {
+			throw new ZipException("Metodo de compresion no soportado (" + entry.method + ") en la entrada " + name);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if (crc.getValue() != entry.crc) {
+			throw new ZipException("CRC no valido en la entrada " + name);
+		}
+		return data;
+	}
+
+	private static byte[] inflate(String name, ByteBuffer zip, int start, Entry entry) throws ZipException {
+		byte[] data = new byte[entry.size];
+		Inflater inflater = new Inflater(true);
+		try {
+			if (zip.hasArray()) {
+				inflater.setInput(zip.array(), zip.arrayOffset() + start, entry.compressedSize);
+			} else {
+				inflater.setInput(toArray(zip, start, entry.compressedSize));
+			}
+			int count = 0;
+			boolean padded = false;
+			while (!inflater.finished() && count < data.length) {
+				int n = inflater.inflate(data, count, data.length - count);
+				if (n == 0) {
+					if (inflater.needsInput() && !padded) {
+						// Sin envoltorio zlib el inflador puede pedir un byte
+						// adicional para terminar
+						inflater.setInput(new byte[1]);
+						padded = true;
+					} else if (inflater.needsInput() || inflater.needsDictionary()) {
+						throw new ZipException("Entrada comprimida no valida: " + name);
+					}
+				}
+				count += n;
+			}
+			if (count != data.length) {
+				throw new ZipException("Tamano descomprimido incorrecto en la entrada " + name);
+			}
+			return data;
+		} catch (DataFormatException e) {
+			throw new ZipException("Entrada comprimida no valida " + name + ": " + e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static Map<String, Entry> readCentralDirectory(ByteBuffer zip) throws ZipException {
+		int end = findEndOfCentralDirectory(zip);
+
+		int entryCount = readShort(zip, end + 10);
+		long directorySize = readUnsignedInt(zip, end + 12);
+		long directoryOffset = readUnsignedInt(zip, end + 16);
+		if (entryCount == 0xFFFF || directorySize == ZIP64_MARKER || directoryOffset == ZIP64_MARKER) {
+			throw new ZipException("Zip64 no soportado");
+		}
+		if (directoryOffset + directorySize > end) {
+			throw new ZipException("Directorio central fuera del Zip");
+		}
+
+		Map<String, Entry> entries = new LinkedHashMap<>(entryCount * 2);
+		int pos = (int) directoryOffset;
+		for (int i = 0; i < entryCount; i++) {
+			if (pos + CENTRAL_HEADER_SIZE > end || zip.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+				throw new ZipException("Directorio central no valido");
+			}
+
+			int flags = readShort(zip, pos + 8);
+			int method = readShort(zip, pos + 10);
+			int dosTime = zip.getInt(pos + 12);
+			long crc = readUnsignedInt(zip, pos + 16);
+			long compressedSize = readUnsignedInt(zip, pos + 20);
+			long size = readUnsignedInt(zip, pos + 24);
+			int nameLength = readShort(zip, pos + 28);
+			int extraLength = readShort(zip, pos + 30);
+			int commentLength = readShort(zip, pos + 32);
+			long localHeaderOffset = readUnsignedInt(zip, pos + 42);
+
+			if ((flags & 1) != 0) {
+				throw new ZipException("Entradas cifradas no soportadas");
+			}
+			if (compressedSize == ZIP64_MARKER || size == ZIP64_MARKER || localHeaderOffset == ZIP64_MARKER
+					|| size > Integer.MAX_VALUE || compressedSize > Integer.MAX_VALUE
+					|| localHeaderOffset > Integer.MAX_VALUE) {
+				throw new ZipException("Entrada Zip64 no soportada");
+			}
+
+			if (pos + CENTRAL_HEADER_SIZE + nameLength > end) {
+				throw new ZipException("Directorio central no valido");
+			}
+
+			// Los nombres se leen en UTF-8, como hace ZipInputStream por defecto
+			String name = new String(toArray(zip, pos + CENTRAL_HEADER_SIZE, nameLength), StandardCharsets.UTF_8);
+			entries.putIfAbsent(name,
+					new Entry(method, crc, (int) compressedSize, (int) size, (int) localHeaderOffset, dosTime));
+
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	private static int findEndOfCentralDirectory(ByteBuffer zip) throws ZipException {
+		int min = Math.max(0, zip.limit() - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_SIZE);
+		for (int pos = zip.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; pos >= min; pos--) {
+			if (zip.getInt(pos) == END_OF_CENTRAL_DIRECTORY_SIGNATURE
+					&& pos + END_OF_CENTRAL_DIRECTORY_SIZE + readShort(zip, pos + 20) == zip.limit()) {
+				return pos;
+			}
+		}
+		throw new ZipException("No se encuentra el directorio central del Zip");
+	}
+
+	private static byte[] toArray(ByteBuffer zip, int start, int length) {
+		if (zip.hasArray()) {
+			int offset = zip.arrayOffset() + start;
+			return Arrays.copyOfRange(zip.array(), offset, offset + length);
+		}
+		byte[] data = new byte[length];
+		ByteBuffer slice = zip.duplicate();
+		slice.position(start);
+		slice.get(data);
+		return data;
+	}
+
+	private static int readShort(ByteBuffer zip, int pos) {
+		return zip.getShort(pos) & 0xFFFF;
+	}
+
+	private static long readUnsignedInt(ByteBuffer zip, int pos) {
+		return zip.getInt(pos) & 0xFFFFFFFFL;
+	}
+
+	/** Posici&oacute;n y tama&ntilde;os de una entrada del Zip. */
+	private static final class Entry {
+
+		final int method;
+		final long crc;
+		final int compressedSize;
+		final int size;
+		final int localHeaderOffset;
+		final int dosTime;
+
+		Entry(int method, long crc, int compressedSize, int size, int localHeaderOffset, int dosTime) {
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+			this.dosTime = dosTime;
+		}
+	}
+
+	/** Entrada almacenada en el Zip, con sus datos sin descomprimir. */
+	static final class RawEntry {
+
+		final int method;
+		final long crc;
+		final int size;
+		final int dosTime;
+		final ByteBuffer data;
+
+		RawEntry(int method, long crc, int size, int dosTime, ByteBuffer data) {
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.dosTime = dosTime;
+			this.data = data;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Escritor de ficheros Zip que copia las entradas que no cambian tal y como
+ * est&aacute;n comprimidas en el {@link ZipContainer} de origen, sin
+ * descomprimirlas ni volver a comprimirlas. Solo se comprimen las entradas
+ * nuevas o modificadas, de forma que el coste de copiar im&aacute;genes y otros
+ * contenidos grandes de un documento se limita al de copiar sus bytes. La
+ * entrada <i>mimetype</i> de los documentos ODF, que debe ir sin comprimir, se
+ * escribe siempre sin compresi&oacute;n.
+ *
+ * No admite Zip64, igual que {@link ZipContainer}.
+ */
+public final class ZipContainerWriter implements Closeable {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+	/** Versi&oacute;n 2.0 de la especificaci&oacute;n Zip (deflate). */
+	private static final int VERSION = 20;
+
+	/** Indicador de nombres de entrada en UTF-8. */
+	private static final int UTF8_FLAG = 0x800;
+
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+	/** Entrada que en ODF debe almacenarse sin comprimir. */
+	private static final String MIMETYPE = "mimetype";
+
+	private final OutputStream out;
+
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+	private final Set<String> names = new HashSet<>();
+
+	private final int dosTime = toDosTime(Calendar.getInstance());
+
+	private long offset;
+
+	private int entryCount;
+
+	private boolean finished;
+
+	/**
+	 * Crea un escritor Zip.
+	 *
+	 * @param out
+	 *            Flujo de salida del Zip, que se cierra al cerrar el escritor
+	 */
+	public ZipContainerWriter(OutputStream out) {
+		if (out == null) {
+			throw new IllegalArgumentException("El flujo de salida no puede ser nulo");
+		}
+		this.out = out;
+	}
+
+	/**
+	 * Copia una entrada de un Zip sin descomprimirla.
+	 *
+	 * @param source
+	 *            Zip de origen
+	 * @param name
+	 *            Nombre de la entrada
+	 * @throws ZipException
+	 *             Si la entrada no existe o ya se ha escrito otra con el mismo
+	 *             nombre
+	 * @throws IOException
+	 *             Si no se puede leer la entrada o escribir el Zip
+	 */
+	public void copyEntry(ZipContainer source, String name) throws IOException {
+		ZipContainer.RawEntry raw = source.getRawEntry(name);
+		if (raw == null) {
+			// Solo se dispone del contenido descomprimido (lectura secuencial)
+			byte[] data = source.getData(name);
+			if (data == null) {
+				throw new ZipException("No existe la entrada " + name);
+			}
+			if (MIMETYPE.equals(name)) {
+				putStoredEntry(name, data);
+			} else {
+				putEntry(name, data);
+			}
+			return;
+		}
+
+		writeEntry(name, raw.method, raw.crc, raw.size, raw.dosTime, raw.data);
+	}
+
+	/**
+	 * A&ntilde;ade una entrada nueva, comprimida con <i>deflate</i>.
+	 *
+	 * @param name
+	 *            Nombre de la entrada
+	 * @param data
+	 *            Contenido de la entrada
+	 * @throws ZipException
+	 *             Si ya se ha escrito otra entrada con el mismo nombre
+	 * @throws IOException
+	 *             Si no se puede escribir el Zip
+	 */
+	public void putEntry(String name, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+			}
+		} finally {
+			deflater.end();
+		}
+
+		writeEntry(name, ZipEntry.DEFLATED, crc.getValue(), data.length, this.dosTime,
+				ByteBuffer.wrap(compressed.toByteArray()));
+	}
+
+	private void putStoredEntry(String name, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		writeEntry(name, ZipEntry.STORED, crc.getValue(), data.length, this.dosTime, ByteBuffer.wrap(data));
+	}
+
+	private void writeEntry(String name, int method, long crc, long size, int time, ByteBuffer data)
+			throws IOException {
+		if (this.finished) {
+			throw new IOException("El Zip ya se ha terminado");
+		}
+		if (!this.names.add(name)) {
+			throw new ZipException("Entrada duplicada: " + name);
+		}
+
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		long compressedSize = data.remaining();
+		if (this.offset > MAX_SIZE || compressedSize > MAX_SIZE || size > MAX_SIZE) {
+			throw new ZipException("Zip64 no soportado");
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(30 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(LOCAL_HEADER_SIGNATURE);
+		header.putShort((short) VERSION);
+		header.putShort((short) UTF8_FLAG);
+		header.putShort((short) method);
+		header.putInt(time);
+		header.putInt((int) crc);
+		header.putInt((int) compressedSize);
+		header.putInt((int) size);
+		header.putShort((short) nameBytes.length);
+		header.putShort((short) 0);
+		header.put(nameBytes);
+
+		ByteBuffer central = ByteBuffer.allocate(46 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		central.putInt(CENTRAL_HEADER_SIGNATURE);
+		central.putShort((short) VERSION);
+		central.putShort((short) VERSION);
+		central.putShort((short) UTF8_FLAG);
+		central.putShort((short) method);
+		central.putInt(time);
+		central.putInt((int) crc);
+		central.putInt((int) compressedSize);
+		central.putInt((int) size);
+		central.putShort((short) nameBytes.length);
+		central.putShort((short) 0); // extra
+		central.putShort((short) 0); // comentario
+		central.putShort((short) 0); // disco
+		central.putShort((short) 0); // atributos internos
+		central.putInt(0); // atributos externos
+		central.putInt((int) this.offset);
+		central.put(nameBytes);
+
+		this.out.write(header.array());
+		writeBuffer(data);
+		this.centralDirectory.write(central.array());
+
+		this.offset += header.capacity() + compressedSize;
+		this.entryCount++;
+	}
+
+	private void writeBuffer(ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			this.out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		ByteBuffer source = data.duplicate();
+		byte[] buffer = new byte[8192];
+		while (source.hasRemaining()) {
+			int n = Math.min(buffer.length, source.remaining());
+			source.get(buffer, 0, n);
+			this.out.write(buffer, 0, n);
+		}
+	}
+
+	/**
+	 * Escribe el directorio central y termina el Zip, sin cerrar el flujo de
+	 * salida.
+	 *
+	 * @throws IOException
+	 *             Si no se puede escribir el Zip
+	 */
+	public void finish() throws IOException {
+		if (this.finished) {
+			return;
+		}
+		if (this.entryCount > 0xFFFF || this.offset > MAX_SIZE) {
+			throw new ZipException("Zip64 no soportado");
+		}
+
+		this.centralDirectory.writeTo(this.out);
+
+		ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+		end.putShort((short) 0); // disco
+		end.putShort((short) 0); // disco del directorio central
+		end.putShort((short) this.entryCount);
+		end.putShort((short) this.entryCount);
+		end.putInt(this.centralDirectory.size());
+		end.putInt((int) this.offset);
+		end.putShort((short) 0); // comentario
+		this.out.write(end.array());
+		this.out.flush();
+
+		this.finished = true;
+	}
+
+	/**
+	 * Termina el Zip y cierra el flujo de salida.
+	 *
+	 * @throws IOException
+	 *             Si no se puede escribir el Zip
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			this.out.close();
+		}
+	}
+
+	private static int toDosTime(Calendar calendar) {
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+				| calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11
+				| calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+import io.rubrica.core.RubricaException;
+import io.rubrica.util.Utils;
+import io.rubrica.zip.ZipContainer;
+
+public class ManifestDigesterTest {
+
+	private static final String DATA_FILE = "prueba.docx";
+
+	@Test
+	public void mismasHuellasQueSecuencial() throws Exception {
+		byte[] ooxml = Utils.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(DATA_FILE));
+
+		List<String> names = new ArrayList<>();
+		List<byte[]> expected = new ArrayList<>();
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(ooxml))) {
+			ZipEntry entry;
+			while (null != (entry = zis.getNextEntry())) {
+				names.add(entry.getName());
+				expected.add(md.digest(Utils.getDataFromInputStream(zis)));
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(8);
+		try {
+			// Varios hilos leen a la vez del mismo contenedor
+			ZipContainer zip = ZipContainer.open(ooxml);
+			List<byte[]> digests = new ManifestDigester("SHA-256", pool).digest(names, zip::getData);
+			assertEquals(names.size(), digests.size());
+			for (int i = 0; i < names.size(); i++) {
+				assertArrayEquals(names.get(i), expected.get(i), digests.get(i));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void mantenerOrden() throws Exception {
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			names.add("parte" + i);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			// Las primeras partes son las que mas tardan en terminar
+			List<byte[]> digests = new ManifestDigester("SHA-1", pool).digest(names, name -> {
+				Thread.sleep(5 * (16 - Integer.parseInt(name.substring(5))));
+				return name.getBytes("UTF-8");
+			});
+
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for (int i = 0; i < names.size(); i++) {
+				assertArrayEquals(md.digest(names.get(i).getBytes("UTF-8")), digests.get(i));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void propagarErrores() throws Exception {
+		List<String> names = new ArrayList<>();
+		names.add("bien");
+		names.add("mal");
+		names.add("bien2");
+
+		IOException error = new IOException("parte danada");
+		ManifestDigester digester = new ManifestDigester("SHA-256");
+		try {
+			digester.digest(names, name -> {
+				if ("mal".equals(name)) {
+					throw error;
+				}
+				return new byte[1];
+			});
+			fail("Se esperaba un error en la parte 'mal'");
+		} catch (RubricaException e) {
+			assertSame(error, e.getCause());
+			assertTrue(e.getMessage(), e.getMessage().contains("'mal'"));
+		}
+
+		// Las partes inexistentes tambien son un error
+		try {
+			digester.digest(names, name -> "bien".equals(name) ? new byte[1] : null);
+			fail("Se esperaba un error por parte inexistente");
+		} catch (RubricaException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("'mal'"));
+		}
+	}
+}
\ No newline at end of file
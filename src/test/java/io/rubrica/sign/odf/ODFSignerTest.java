@@ -17,22 +17,37 @@
 
 package io.rubrica.sign.odf;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.cert.Certificate;
+import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.junit.Test;
 
 import io.rubrica.sign.SignInfo;
+import io.rubrica.sign.SignValidity;
 import io.rubrica.sign.Signer;
 import io.rubrica.sign.TestHelper;
 import io.rubrica.util.Utils;
+import io.rubrica.zip.ZipContainer;
+import io.rubrica.zip.ZipContainerWriter;
 
 public class ODFSignerTest {
 
@@ -59,4 +74,107 @@ public class ODFSignerTest {
 			assertTrue(((X509Certificate) chain[0]).getSerialNumber().equals(certs[0].getSerialNumber()));
 		}
 	}
+
+	@Test
+	public void copiarEntradasSinRecomprimir() throws Exception {
+		byte[] odf = Utils.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(DATA_FILE));
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+
+		byte[] result = new ODFSigner().sign(odf, "SHA1withRSA", kp.getPrivate(), chain, null);
+
+		ZipContainer original = ZipContainer.open(odf);
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(result))) {
+			// El mimetype debe seguir siendo la primera entrada y sin comprimir
+			ZipEntry entry = zis.getNextEntry();
+			assertEquals("mimetype", entry.getName());
+			assertEquals(ZipEntry.STORED, entry.getMethod());
+
+			do {
+				byte[] data = Utils.getDataFromInputStream(zis);
+				if (!entry.getName().startsWith("META-INF/")) {
+					assertArrayEquals(entry.getName(), original.getData(entry.getName()), data);
+				}
+			} while (null != (entry = zis.getNextEntry()));
+		}
+	}
+
+	@Test
+	public void validarFirmaYCofirma() throws Exception {
+		byte[] odf = Utils.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(DATA_FILE));
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+
+		byte[] firmado = new ODFSigner().sign(odf, "SHA1withRSA", kp.getPrivate(), chain, null);
+		byte[] cofirmado = new ODFSigner().sign(firmado, "SHA1withRSA", kp.getPrivate(), chain, null);
+
+		ODFValidator validator = new ODFValidator(
+				Collections.singleton(new TrustAnchor((X509Certificate) chain[0], null)), ForkJoinPool.commonPool());
+
+		List<ODFSignatureReport> reports = validator.verify(cofirmado);
+		assertEquals(2, reports.size());
+		for (ODFSignatureReport report : reports) {
+			assertTrue(report.toString(), report.isValid());
+			assertTrue(report.isCoversWholeDocument());
+		}
+		assertEquals(SignValidity.SIGN_DETAIL_TYPE.OK, validator.validate(cofirmado).getValidity());
+		assertEquals(SignValidity.VALIDITY_ERROR.NO_SIGN, validator.validate(odf).getError());
+
+		// Se modifica content.xml sin volver a firmar
+		ZipContainer zip = ZipContainer.open(cofirmado);
+		ByteArrayOutputStream modificado = new ByteArrayOutputStream();
+		try (ZipContainerWriter writer = new ZipContainerWriter(modificado)) {
+			for (String name : zip.getEntryNames()) {
+				if ("content.xml".equals(name)) {
+					String content = new String(zip.getData(name), StandardCharsets.UTF_8);
+					writer.putEntry(name, content.replace("</office:text>", "<text:p>x</text:p></office:text>")
+							.getBytes(StandardCharsets.UTF_8));
+				} else {
+					writer.copyEntry(zip, name);
+				}
+			}
+		}
+
+		reports = validator.verify(modificado.toByteArray());
+		assertEquals(2, reports.size());
+		for (ODFSignatureReport report : reports) {
+			assertFalse(report.isReferencesValid());
+			assertEquals(SignValidity.VALIDITY_ERROR.NO_MATCH_DATA, report.getError());
+		}
+	}
+
+	@Test
+	public void rechazarParteSinFirmar() throws Exception {
+		byte[] odf = Utils.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(DATA_FILE));
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		byte[] firmado = new ODFSigner().sign(odf, "SHA1withRSA", kp.getPrivate(), chain, null);
+
+		// Se inyecta una macro sin volver a firmar
+		ZipContainer zip = ZipContainer.open(firmado);
+		ByteArrayOutputStream modificado = new ByteArrayOutputStream();
+		try (ZipContainerWriter writer = new ZipContainerWriter(modificado)) {
+			for (String name : zip.getEntryNames()) {
+				writer.copyEntry(zip, name);
+			}
+			writer.putEntry("Basic/Standard/Module1.xml", "<script:module/>".getBytes(StandardCharsets.UTF_8));
+		}
+
+		ODFValidator validator = new ODFValidator(
+				Collections.singleton(new TrustAnchor((X509Certificate) chain[0], null)), ForkJoinPool.commonPool());
+		List<ODFSignatureReport> reports = validator.verify(modificado.toByteArray());
+		assertEquals(1, reports.size());
+		ODFSignatureReport report = reports.get(0);
+		assertTrue(report.toString(), report.isValid());
+		assertFalse(report.isCoversWholeDocument());
+
+		SignValidity validity = validator.validate(modificado.toByteArray());
+		assertEquals(SignValidity.SIGN_DETAIL_TYPE.FAIL, validity.getValidity());
+		assertEquals(SignValidity.VALIDITY_ERROR.NO_MATCH_DATA, validity.getError());
+
+		// La fecha del informe no se puede modificar desde fuera
+		Date fecha = report.getSigningTime();
+		fecha.setTime(0);
+		assertFalse(report.getSigningTime().getTime() == 0);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.lowagie.text.pdf.BaseFont;
+
+public class PdfAppearanceCacheTest {
+
+	private static final String[] NAMES = { "JOSE DAVID GAMBOA VERA", "ANA", "X",
+			"MARIA FERNANDA DE LOS ANGELES PEREZ" };
+
+	private static final float[] WIDTHS = { 10, 50, 100, 130, 200, 400, 1000 };
+
+	@Test
+	public void tamanoLetraIgualAlDeLaBusquedaLineal() throws Exception {
+		BaseFont baseFont = BaseFont.createFont(BaseFont.COURIER, BaseFont.WINANSI, false);
+
+		for (String name : NAMES) {
+			for (float width : WIDTHS) {
+				float expected = linearMaxFontSize(baseFont, name, width);
+				assertEquals(name + " / " + width, expected, PdfAppearanceCache.getMaxFontSize(baseFont, name, width),
+						0.001f);
+				// Desde la cache
+				assertEquals(name + " / " + width, expected, PdfAppearanceCache.getMaxFontSize(baseFont, name, width),
+						0.001f);
+			}
+		}
+	}
+
+	@Test
+	public void anchoDelTexto() throws Exception {
+		BaseFont baseFont = BaseFont.createFont(BaseFont.COURIER, BaseFont.WINANSI, false);
+
+		for (String name : NAMES) {
+			assertEquals(baseFont.getWidthPoint(name, 12), PdfAppearanceCache.getWidthPoint(baseFont, name, 12), 0);
+			assertEquals(baseFont.getWidthPoint(name, 7.5f), PdfAppearanceCache.getWidthPoint(baseFont, name, 7.5f),
+					0);
+		}
+	}
+
+	/**
+	 * Busqueda del tamaño de letra en pasos de 0.1, tal y como se hacia antes de
+	 * calcularlo directamente.
+	 */
+	private static float linearMaxFontSize(BaseFont baseFont, String text, float width) {
+		float measureWidth = 1;
+		float fontSize = 0.1f;
+		float oldSize = 0.1f;
+		int repeat = 0;
+		float multiply;
+		text = text.replace(" ", "*");
+		while (measureWidth < width) {
+			repeat++;
+			measureWidth = baseFont.getWidthPoint(text, fontSize);
+			oldSize = fontSize;
+			fontSize += 0.1f;
+		}
+		if (repeat > 60) {
+			multiply = 1;
+		} else if (repeat > 20) {
+			multiply = 2;
+		} else if (repeat > 10) {
+			multiply = 3;
+		} else {
+			multiply = 4;
+		}
+		if (fontSize > 20) {
+			oldSize = 20;
+			multiply = 1;
+		}
+		return oldSize * multiply;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.google.zxing.common.BitMatrix;
+import com.lowagie.text.Document;
+import com.lowagie.text.pdf.PdfTemplate;
+import com.lowagie.text.pdf.PdfWriter;
+
+import io.rubrica.util.QRCode;
+
+public class PdfQRCodeTest {
+
+	@Test
+	public void rectangulosCubrenLosModulosOscuros() throws Exception {
+		BitMatrix matrix = QRCode.encode("https://www.firmadigital.gob.ec/verificar?id=1234567890");
+		PdfQRCode qr = PdfQRCode.render(matrix);
+		assertEquals(matrix.getWidth(), qr.getModules());
+
+		String content = drawContent(qr);
+		int size = qr.getModules();
+		int[][] painted = new int[size][size];
+
+		// Se ignora el fondo blanco, que es el primer rectangulo
+		String[] lines = content.split("\n");
+		for (int i = 1; i < lines.length; i++) {
+			String[] op = lines[i].trim().split(" ");
+			if (op.length != 5 || !"re".equals(op[4])) {
+				continue;
+			}
+			int x = Integer.parseInt(op[0]);
+			int y = Integer.parseInt(op[1]);
+			int w = Integer.parseInt(op[2]);
+			int h = Integer.parseInt(op[3]);
+			// El origen de PDF esta en la esquina inferior izquierda
+			for (int row = size - y - h; row < size - y; row++) {
+				for (int col = x; col < x + w; col++) {
+					painted[row][col]++;
+				}
+			}
+		}
+
+		for (int row = 0; row < size; row++) {
+			for (int col = 0; col < size; col++) {
+				assertEquals("Modulo " + col + "," + row, matrix.get(col, row) ? 1 : 0, painted[row][col]);
+			}
+		}
+	}
+
+	@Test
+	public void cacheDeQR() throws Exception {
+		String text = "Firmado por: ANA\nFecha: 2018-01-01";
+		PdfQRCode cached = PdfQRCode.getInstance(text, true);
+		assertSame(cached, PdfQRCode.getInstance(text, true));
+
+		PdfQRCode notCached = PdfQRCode.getInstance(text, false);
+		assertNotSame(cached, notCached);
+		assertEquals(drawContent(cached), drawContent(notCached));
+	}
+
+	/**
+	 * Dibuja el QR en un documento y devuelve los operadores del formulario.
+	 */
+	private static String drawContent(PdfQRCode qr) throws Exception {
+		Document document = new Document();
+		PdfWriter writer = PdfWriter.getInstance(document, new ByteArrayOutputStream());
+		document.open();
+		try {
+			PdfTemplate template = qr.draw(writer.getDirectContent(), 10, 10, 100);
+			assertEquals(qr.getModules(), template.getWidth(), 0);
+			return new String(template.getInternalBuffer().toByteArray(), StandardCharsets.ISO_8859_1);
+		} finally {
+			document.newPage();
+			document.close();
+		}
+	}
+}
\ No newline at end of file
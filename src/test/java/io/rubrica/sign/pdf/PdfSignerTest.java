@@ -17,19 +17,35 @@
 
 package io.rubrica.sign.pdf;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyPair;
+import java.security.Signature;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
+import org.junit.Test;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+
+import io.rubrica.certificate.ValidationResult;
+import io.rubrica.sign.BatchResult;
 import io.rubrica.sign.SignConstants;
 import io.rubrica.sign.SignInfo;
+import io.rubrica.sign.SignValidity;
 import io.rubrica.sign.Signer;
 import io.rubrica.sign.TestHelper;
 
@@ -80,4 +96,183 @@ public class PdfSignerTest {
 			assertTrue(((X509Certificate) chain[0]).getSerialNumber().equals(certs[0].getSerialNumber()));
 		}
 	}
+
+	@Test
+	public void testSignPdfFromPath() throws Exception {
+		Path input = Files.createTempFile("pdfSign", "." + "test3.pdf");
+		Path output = Files.createTempFile("pdfSign", "." + "test4.pdf");
+		System.out.println("Temporal para comprobacion manual: " + output.toAbsolutePath());
+
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		Files.write(input, TestHelper.crearPdf());
+
+		Properties params = new Properties();
+		params.setProperty(PDFSigner.SIGNING_REASON, "Razon de firma");
+
+		PDFSigner signer = new PDFSigner();
+		signer.sign(input, output, SignConstants.SIGN_ALGORITHM_SHA1WITHRSA, kp.getPrivate(), chain, params);
+
+		byte[] result = Files.readAllBytes(output);
+		assertNotNull(result);
+
+		List<SignInfo> firmantes = signer.getSigners(result);
+		X509Certificate[] certs = firmantes.get(0).getCerts();
+		assertTrue(((X509Certificate) chain[0]).getSerialNumber().equals(certs[0].getSerialNumber()));
+
+		List<SignInfo> firmantesPath = signer.getSigners(output);
+		assertEquals(1, firmantesPath.size());
+		assertTrue(Arrays.equals(firmantes.get(0).getPkcs1(), firmantesPath.get(0).getPkcs1()));
+	}
+
+	@Test
+	public void testSignPdfDeferred() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		byte[] pdf = TestHelper.crearPdf();
+
+		Properties params = new Properties();
+		params.setProperty(PDFSigner.SIGNING_REASON, "Razon de firma");
+
+		PDFSigner signer = new PDFSigner();
+		PreparedPdfSignature prepared = signer.prepare(pdf, SignConstants.SIGN_ALGORITHM_SHA256WITHRSA, chain,
+				params);
+
+		// Firma externa de los atributos firmados
+		Signature signature = Signature.getInstance(SignConstants.SIGN_ALGORITHM_SHA256WITHRSA);
+		signature.initSign(kp.getPrivate());
+		signature.update(prepared.getSignedAttributes());
+
+		byte[] result = signer.complete(prepared, signature.sign(), chain);
+		assertNotNull(result);
+
+		List<SignInfo> firmantes = signer.getSigners(result);
+		X509Certificate[] certs = firmantes.get(0).getCerts();
+		assertTrue(((X509Certificate) chain[0]).getSerialNumber().equals(certs[0].getSerialNumber()));
+	}
+
+	@Test
+	public void testSignPdfBatch() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		byte[] pdf = TestHelper.crearPdf();
+
+		Properties params = new Properties();
+		params.setProperty(PDFSigner.SIGNING_REASON, "Razon de firma");
+
+		PdfBatchSigner batchSigner = new PdfBatchSigner(kp.getPrivate(), chain, params);
+		List<BatchResult> results = batchSigner.sign(Arrays.asList(pdf, "no es un PDF".getBytes(), pdf));
+
+		assertEquals(3, results.size());
+		assertTrue(results.get(0).isSuccessful());
+		assertFalse(results.get(1).isSuccessful());
+		assertNotNull(results.get(1).getError());
+		assertTrue(results.get(2).isSuccessful());
+
+		List<SignInfo> firmantes = new PDFSigner().getSigners(results.get(2).getData());
+		X509Certificate[] certs = firmantes.get(0).getCerts();
+		assertTrue(((X509Certificate) chain[0]).getSerialNumber().equals(certs[0].getSerialNumber()));
+	}
+
+	@Test
+	public void testValidatePdf() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		byte[] pdf = TestHelper.crearPdf();
+
+		Properties params = new Properties();
+		params.setProperty(PDFSigner.SIGNING_REASON, "Razon de firma");
+
+		PDFSigner signer = new PDFSigner();
+		byte[] result = signer.sign(pdf, SignConstants.SIGN_ALGORITHM_SHA256WITHRSA, kp.getPrivate(), chain, params);
+		result = signer.sign(result, SignConstants.SIGN_ALGORITHM_SHA256WITHRSA, kp.getPrivate(), chain, params);
+
+		PdfValidator validator = new PdfValidator();
+		List<PdfSignatureReport> reports = validator.verify(result);
+
+		assertEquals(2, reports.size());
+		for (PdfSignatureReport report : reports) {
+			assertTrue(report.isIntegrityValid());
+			assertEquals(report.getRevision() == 2, report.isCoversWholeDocument());
+			// El certificado de prueba no es de una CA soportada
+			assertEquals(ValidationResult.CA_NOT_SUPPORTED, report.getCertPathResult());
+		}
+
+		assertEquals(SignValidity.VALIDITY_ERROR.CA_NOT_SUPPORTED, validator.validate(result).getError());
+		assertEquals(SignValidity.VALIDITY_ERROR.NO_SIGN, validator.validate(pdf).getError());
+	}
+
+	@Test
+	public void testCountSignatures() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+
+		// Con referencias clasicas y con streams de referencias y de objetos
+		byte[] plain = TestHelper.crearPdf();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		PdfStamper stamper = new PdfStamper(new PdfReader(plain), compressed);
+		stamper.setFullCompression();
+		stamper.close();
+
+		Properties params = new Properties();
+		params.setProperty(PDFSigner.SIGNING_REASON, "Razon de firma");
+		PDFSigner signer = new PDFSigner();
+
+		for (byte[] pdf : Arrays.asList(plain, compressed.toByteArray())) {
+			assertEquals(0, PdfSignatureScanner.countSignatures(pdf));
+			assertFalse(PDFUtils.yaEstaFirmado(pdf));
+
+			for (int i = 1; i <= 3; i++) {
+				pdf = signer.sign(pdf, SignConstants.SIGN_ALGORITHM_SHA256WITHRSA, kp.getPrivate(), chain, params);
+				assertEquals(i, PdfSignatureScanner.countSignatures(pdf));
+				assertTrue(PDFUtils.yaEstaFirmado(pdf));
+			}
+
+			Path file = Files.createTempFile("firmado-", ".pdf");
+			try {
+				Files.write(file, pdf);
+				assertEquals(3, PdfSignatureScanner.countSignatures(file));
+				assertTrue(PdfSignatureScanner.isSigned(file));
+			} finally {
+				Files.delete(file);
+			}
+		}
+
+		// Un PDF sin referencias validas se lee con el lector completo
+		byte[] damaged = TestHelper.crearPdf();
+		int startxref = new String(damaged, "ISO-8859-1").lastIndexOf("startxref");
+		damaged[startxref + "startxref".length() + 1] = '9';
+		assertEquals(0, PdfSignatureScanner.countSignatures(damaged));
+	}
+
+	@Test
+	public void testSignDateFromCms() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+
+		Properties params = new Properties();
+		params.setProperty(PDFSigner.SIGNING_REASON, "Razon de firma");
+
+		// La firma en dos pasos incluye el atributo CMS signing-time
+		PDFSigner signer = new PDFSigner();
+		PreparedPdfSignature prepared = signer.prepare(TestHelper.crearPdf(),
+				SignConstants.SIGN_ALGORITHM_SHA256WITHRSA, chain, params, null);
+		Signature signature = Signature.getInstance(SignConstants.SIGN_ALGORITHM_SHA256WITHRSA);
+		signature.initSign(kp.getPrivate());
+		signature.update(prepared.getSignedAttributes());
+		byte[] signed = signer.complete(prepared, signature.sign(), chain);
+
+		// Se borra /M del diccionario de firma sin mover ningun byte
+		String text = new String(signed, StandardCharsets.ISO_8859_1);
+		int start = text.indexOf("/M(D:");
+		assertTrue(start > 0);
+		int end = text.indexOf(')', start);
+		Arrays.fill(signed, start, end + 1, (byte) ' ');
+
+		List<SignInfo> signers = new PDFSigner().getSigners(signed);
+		assertEquals(1, signers.size());
+		assertNotNull(signers.get(0).getSigningTime());
+		assertEquals(prepared.getSignDate().getTimeInMillis() / 1000,
+				signers.get(0).getSigningTime().getTime() / 1000);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf.tsa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.junit.Test;
+
+import io.rubrica.sign.SignConstants;
+import io.rubrica.sign.SignValidity;
+import io.rubrica.sign.TestHelper;
+import io.rubrica.sign.pdf.PDFSigner;
+import io.rubrica.sign.pdf.PdfSignatureReport;
+import io.rubrica.sign.pdf.PdfValidator;
+import io.rubrica.sign.pdf.PreparedPdfSignature;
+
+public class TSAClientTest {
+
+	private static final String OID_BANCO_CENTRAL = "1.3.6.1.4.1.37947.4.10";
+
+	@Test
+	public void testTimeStampToken() throws Exception {
+		try (TSAResponder responder = new TSAResponder(OID_BANCO_CENTRAL)) {
+			TSAClientBancoCentral tsaClient = new TSAClientBancoCentral(responder.getUrl());
+			assertEquals(4096, tsaClient.getTokenSizeEstimate());
+
+			int maxSize = 0;
+			for (int i = 0; i < 20; i++) {
+				byte[] imprint = MessageDigest.getInstance("SHA-256").digest(("documento " + i).getBytes());
+				byte[] encoded = tsaClient.getTimeStampToken(imprint);
+				maxSize = Math.max(maxSize, encoded.length);
+
+				TimeStampToken token = new TimeStampToken(new CMSSignedData(encoded));
+				token.validate(new JcaSimpleSignerInfoVerifierBuilder().build(responder.getCertificate()));
+				assertEquals(OID_BANCO_CENTRAL, token.getTimeStampInfo().getPolicy().getId());
+				assertArrayEquals(imprint, token.getTimeStampInfo().getMessageImprintDigest());
+			}
+
+			// El espacio reservado se ajusta al tamaño real de los sellos
+			assertTrue(tsaClient.getTokenSizeEstimate() >= maxSize);
+			assertTrue(tsaClient.getTokenSizeEstimate() < 4096);
+
+			// Las conexiones se reutilizan
+			assertEquals(20, responder.getRequestCount());
+			assertTrue(responder.getConnectionCount() < responder.getRequestCount());
+		}
+	}
+
+	@Test
+	public void testSignPdfWithTimeStamp() throws Exception {
+		try (TSAResponder responder = new TSAResponder(OID_BANCO_CENTRAL)) {
+			KeyPair kp = TestHelper.createKeyPair();
+			Certificate[] chain = TestHelper.createCertificate(kp);
+			byte[] pdf = TestHelper.crearPdf();
+
+			Properties params = new Properties();
+			params.setProperty(PDFSigner.SIGNING_REASON, "Razon de firma");
+
+			PDFSigner signer = new PDFSigner();
+			PreparedPdfSignature prepared = signer.prepare(pdf, SignConstants.SIGN_ALGORITHM_SHA256WITHRSA, chain,
+					params, new TSAClientBancoCentral(responder.getUrl()));
+
+			Signature signature = Signature.getInstance(SignConstants.SIGN_ALGORITHM_SHA256WITHRSA);
+			signature.initSign(kp.getPrivate());
+			signature.update(prepared.getSignedAttributes());
+
+			byte[] result = signer.complete(prepared, signature.sign(), chain);
+
+			Set<TrustAnchor> trustAnchors = new HashSet<>();
+			trustAnchors.add(new TrustAnchor((X509Certificate) chain[0], null));
+			trustAnchors.add(new TrustAnchor(responder.getCertificate(), null));
+
+			List<PdfSignatureReport> reports = new PdfValidator(trustAnchors, ForkJoinPool.commonPool())
+					.verify(result);
+			assertEquals(1, reports.size());
+			assertTrue(reports.get(0).toString(), reports.get(0).isValid());
+			assertTrue(reports.get(0).isIntegrityValid());
+			assertTrue(reports.get(0).isTimeStamped());
+			assertTrue(reports.get(0).isTimeStampValid());
+
+			// Un sello de una TSA que no es de confianza no acredita la fecha
+			reports = new PdfValidator(Collections.singleton(new TrustAnchor((X509Certificate) chain[0], null)),
+					ForkJoinPool.commonPool()).verify(result);
+			assertTrue(reports.get(0).isTimeStamped());
+			assertFalse(reports.get(0).isTimeStampValid());
+			assertEquals(SignValidity.VALIDITY_ERROR.CA_NOT_SUPPORTED, reports.get(0).getError());
+		}
+	}
+
+	@Test
+	public void testMerkleTimeStamp() throws Exception {
+		try (TSAResponder responder = new TSAResponder(OID_BANCO_CENTRAL)) {
+			MerkleTimeStamper stamper = new MerkleTimeStamper(new TSAClientBancoCentral(responder.getUrl()));
+
+			int requests = 0;
+			for (int n : new int[] { 1, 2, 3, 7, 100 }) {
+				List<byte[]> imprints = new ArrayList<>();
+				for (int i = 0; i < n; i++) {
+					imprints.add(MessageDigest.getInstance("SHA-256").digest(("documento " + i).getBytes()));
+				}
+
+				List<MerkleTimeStamp> timeStamps = stamper.timeStamp(imprints);
+
+				// Una sola peticion a la TSA por lote
+				assertEquals(++requests, responder.getRequestCount());
+				assertEquals(n, timeStamps.size());
+
+				for (int i = 0; i < n; i++) {
+					MerkleTimeStamp timeStamp = MerkleTimeStamp.getInstance(timeStamps.get(i).getEncoded());
+					assertTrue(timeStamp.verify(imprints.get(i), responder.getCertificate()));
+					if (n > 1) {
+						assertFalse(timeStamp.verify(imprints.get((i + 1) % n)));
+					}
+				}
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.sign.pdf.tsa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.rubrica.util.Utils;
+
+/**
+ * Autoridad de sellado de tiempo (RFC 3161) en proceso, para pruebas sin
+ * conexion. Atiende peticiones HTTP en localhost con un certificado de TSA
+ * autofirmado, y cuenta las peticiones y las conexiones recibidas.
+ */
+public class TSAResponder implements AutoCloseable {
+
+	static {
+		// Sin esto el servidor envia cabeceras y cuerpo en segmentos TCP
+		// separados, y el algoritmo de Nagle agrega ~40 ms por peticion
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final X509Certificate certificate;
+	private final TimeStampResponseGenerator generator;
+	private final AtomicLong serial = new AtomicLong();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final Set<InetSocketAddress> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+
+	public TSAResponder(String policy) throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair keyPair = kpg.generateKeyPair();
+
+		X500Principal name = new X500Principal("CN=TSA de prueba, O=Rubrica, C=EC");
+		long now = System.currentTimeMillis();
+		JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+				new Date(now - 60000), new Date(now + 3600000), name, keyPair.getPublic());
+		builder.addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+		this.certificate = new JcaX509CertificateConverter().getCertificate(
+				builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+		TimeStampTokenGenerator tokenGenerator = new TimeStampTokenGenerator(
+				new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", keyPair.getPrivate(), certificate),
+				new JcaDigestCalculatorProviderBuilder().build()
+						.get(new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1)),
+				new ASN1ObjectIdentifier(policy));
+		tokenGenerator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+		this.generator = new TimeStampResponseGenerator(tokenGenerator, TSPAlgorithms.ALLOWED);
+
+		this.executor = Executors.newFixedThreadPool(4);
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.server.createContext("/", this::handle);
+		this.server.setExecutor(executor);
+		this.server.start();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		connections.add(exchange.getRemoteAddress());
+
+		try (InputStream is = exchange.getRequestBody(); OutputStream os = exchange.getResponseBody()) {
+			TimeStampRequest request = new TimeStampRequest(Utils.getDataFromInputStream(is));
+			TimeStampResponse response;
+			synchronized (generator) {
+				response = generator.generate(request, BigInteger.valueOf(serial.incrementAndGet()), new Date());
+			}
+			byte[] encoded = response.getEncoded();
+
+			exchange.getResponseHeaders().set("Content-Type", "application/timestamp-reply");
+			exchange.sendResponseHeaders(200, encoded.length);
+			os.write(encoded);
+		} catch (Exception e) {
+			exchange.sendResponseHeaders(500, -1);
+		}
+	}
+
+	public String getUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+	}
+
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
\ No newline at end of file
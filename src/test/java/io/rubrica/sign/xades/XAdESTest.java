@@ -18,19 +18,90 @@
 package io.rubrica.sign.xades;
 
 import static junit.framework.Assert.assertNotNull;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.cert.Certificate;
+import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.tsp.TimeStampToken;
 import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
+import io.rubrica.certificate.ValidationResult;
+import io.rubrica.core.RubricaException;
+import io.rubrica.core.Util;
+import io.rubrica.sign.BatchResult;
+import io.rubrica.sign.InvalidFormatException;
 import io.rubrica.sign.SignInfo;
+import io.rubrica.sign.SignValidity;
 import io.rubrica.sign.TestHelper;
+import io.rubrica.sign.pdf.tsa.TSAClientBouncyCastleWithOid;
+import io.rubrica.sign.pdf.tsa.TSAResponder;
+import io.rubrica.xml.Utils;
+
+import com.sun.net.httpserver.HttpServer;
 
 public class XAdESTest {
 
@@ -56,4 +127,626 @@ public class XAdESTest {
 			assertTrue(((X509Certificate) chain[0]).getSerialNumber().equals(certs[0].getSerialNumber()));
 		}
 	}
+
+	@Test
+	public void firmarLoteXml() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+
+		List<byte[]> documentos = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			documentos.add(("<factura id=\"comprobante\"><claveAcceso>" + i + "</claveAcceso></factura>").getBytes());
+		}
+		documentos.add("no es un XML".getBytes());
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			XadesBatchSigner batchSigner = new XadesBatchSigner(kp.getPrivate(), chain, "SHA256withRSA", null,
+					executor);
+			List<BatchResult> results = batchSigner.sign(documentos);
+
+			assertEquals(21, results.size());
+			assertFalse(results.get(20).isSuccessful());
+			assertTrue(results.get(20).getError() instanceof InvalidXMLException);
+
+			XAdESSigner signer = new XAdESSigner();
+			for (int i = 0; i < 20; i++) {
+				byte[] firmado = results.get(i).getData();
+				assertTrue(results.get(i).isSuccessful());
+				assertTrue(new String(firmado).contains("<claveAcceso>" + i + "</claveAcceso>"));
+
+				// La firma es valida criptograficamente
+				assertTrue(validarFirma(firmado, chain[0]));
+
+				X509Certificate[] certs = signer.getSigners(firmado).get(0).getCerts();
+				assertEquals(((X509Certificate) chain[0]).getSerialNumber(), certs[0].getSerialNumber());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void firmarLoteXmlConPlantilla() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+
+		Properties params = new Properties();
+		params.setProperty("useSignatureTemplate", "true");
+		XadesBatchSigner batchSigner = new XadesBatchSigner(kp.getPrivate(), chain, "SHA256withRSA", params);
+
+		// Documentos que se firman con la plantilla, sin reserializar
+		String[] plantilla = { "<factura id=\"comprobante\"><claveAcceso>1</claveAcceso></factura>",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- comentario -->\n<?estilo a?>\n"
+						+ "<factura version=\"1.1.0\">\n\t<campo a='&amp;'>x &lt; y</campo>\r\n</factura >\n",
+				"<comprobante Id=\"comprobante-1\"><detalle/></comprobante>",
+				"<lote><f:factura xmlns:f=\"urn:factura\" xml:lang=\"es\"><f:total>1</f:total></f:factura></lote>" };
+
+		// Documentos que se firman por la via general
+		String[] general = { "<f:factura xmlns:f=\"urn:factura\"><f:total>1</f:total></f:factura>",
+				"<factura xml:lang=\"es\"><total>1</total></factura>", "<factura/>",
+				"<factura><total>1</total></factura><!-- fin -->" };
+
+		for (String documento : plantilla) {
+			byte[] firmado = batchSigner.sign(documento.getBytes(StandardCharsets.UTF_8));
+			String texto = new String(firmado, StandardCharsets.UTF_8);
+			int cierre = documento.lastIndexOf("</");
+			assertTrue(texto.startsWith(documento.substring(0, cierre) + "<ds:Signature"));
+			assertTrue(texto.endsWith(documento.substring(cierre)));
+			assertTrue(validarFirma(firmado, chain[0]));
+
+			// Se puede volver a firmar, ahora por la via general
+			assertTrue(validarFirma(batchSigner.sign(firmado), chain[0]));
+		}
+
+		for (String documento : general) {
+			assertTrue(validarFirma(batchSigner.sign(documento.getBytes(StandardCharsets.UTF_8)), chain[0]));
+		}
+	}
+
+	@Test
+	public void validarXml() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		X509Certificate cert = (X509Certificate) chain[0];
+
+		byte[] xml = "<factura id=\"comprobante\"><claveAcceso>1</claveAcceso></factura>".getBytes();
+		XAdESSigner signer = new XAdESSigner();
+		byte[] firmado = signer.sign(xml, "SHA256withRSA", kp.getPrivate(), chain, null);
+		byte[] cofirmado = signer.sign(firmado, "SHA256withRSA", kp.getPrivate(), chain, null);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			XadesValidator validator = new XadesValidator(Collections.singleton(new TrustAnchor(cert, null)),
+					executor);
+
+			List<XadesSignatureReport> reports = validator.verify(cofirmado);
+			assertEquals(2, reports.size());
+			for (XadesSignatureReport report : reports) {
+				assertTrue(report.toString(), report.isValid());
+				assertTrue(report.isReferencesValid());
+				assertTrue(report.isSignedPropertiesValid());
+				assertTrue(report.isSignatureValueValid());
+				assertEquals(3, report.getReferenceCount());
+				assertEquals(ValidationResult.VALID, report.getCertPathResult());
+				assertEquals(cert.getSerialNumber(), report.getCertificates()[0].getSerialNumber());
+				assertNotNull(report.getSigningTime());
+			}
+			assertEquals(SignValidity.SIGN_DETAIL_TYPE.OK, validator.validate(cofirmado).getValidity());
+
+			// Datos modificados despues de la firma
+			byte[] modificado = new String(firmado, StandardCharsets.UTF_8)
+					.replace("<claveAcceso>1<", "<claveAcceso>2<").getBytes(StandardCharsets.UTF_8);
+			XadesSignatureReport report = validator.verify(modificado).get(0);
+			assertFalse(report.isReferencesValid());
+			assertTrue(report.isSignedPropertiesValid());
+			assertTrue(report.isSignatureValueValid());
+			assertEquals(SignValidity.VALIDITY_ERROR.NO_MATCH_DATA, validator.validate(modificado).getError());
+
+			assertEquals(SignValidity.VALIDITY_ERROR.NO_SIGN, validator.validate(xml).getError());
+			assertEquals(SignValidity.VALIDITY_ERROR.UNKOWN_SIGNATURE_FORMAT,
+					validator.validate("no es un XML".getBytes()).getError());
+		} finally {
+			executor.shutdown();
+		}
+
+		// El certificado de prueba no es de una CA soportada
+		assertEquals(SignValidity.VALIDITY_ERROR.CA_NOT_SUPPORTED, new XadesValidator().validate(firmado).getError());
+	}
+
+	@Test
+	public void firmarHuellaPrecalculada() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		X509Certificate cert = (X509Certificate) chain[0];
+
+		byte[] huella = MessageDigest.getInstance("SHA-256").digest("contenido muy grande".getBytes());
+
+		Properties params = new Properties();
+		params.setProperty("precalculatedHashAlgorithm", "SHA-256");
+		params.setProperty("uri", "https://example.com/datos/archivo.pdf");
+		params.setProperty("mimeType", "application/pdf");
+
+		byte[] firma = new XAdESSigner().sign(huella, "SHA256withRSA", kp.getPrivate(), chain, params);
+
+		Document doc = Utils.getDocumentBuilder().parse(new ByteArrayInputStream(firma));
+		Element referencia = (Element) doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Reference").item(0);
+		assertEquals("https://example.com/datos/archivo.pdf", referencia.getAttribute("URI"));
+		assertEquals("http://www.w3.org/2001/04/xmlenc#sha256",
+				((Element) referencia.getElementsByTagNameNS(XMLSignature.XMLNS, "DigestMethod").item(0))
+						.getAttribute("Algorithm"));
+		assertEquals(Base64.getEncoder().encodeToString(huella),
+				referencia.getElementsByTagNameNS(XMLSignature.XMLNS, "DigestValue").item(0).getTextContent());
+		assertEquals("application/pdf", doc.getElementsByTagNameNS("*", "MimeType").item(0).getTextContent());
+
+		// Los datos externos no se resuelven, pero el resto de la firma es valida
+		XadesSignatureReport report = new XadesValidator(Collections.singleton(new TrustAnchor(cert, null)),
+				ForkJoinPool.commonPool()).verify(firma).get(0);
+		assertTrue(report.isSignatureValueValid());
+		assertTrue(report.isSignedPropertiesValid());
+		assertEquals(SignValidity.VALIDITY_ERROR.NO_DATA, report.getError());
+
+		// La huella debe corresponder al algoritmo indicado
+		try {
+			new XAdESSigner().sign(new byte[20], "SHA256withRSA", kp.getPrivate(), chain, params);
+			fail("Se esperaba un error por huella de tamano incorrecto");
+		} catch (RubricaException e) {
+			// Correcto
+		}
+	}
+
+	@Test
+	public void firmarEnvolventeEnStreaming() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		X509Certificate cert = (X509Certificate) chain[0];
+
+		byte[] datos = new byte[300 * 1024 + 7];
+		new Random(1).nextBytes(datos);
+
+		Properties params = new Properties();
+		params.setProperty("mimeType", "application/pdf");
+
+		XadesStreamingSigner signer = new XadesStreamingSigner(kp.getPrivate(), chain, "SHA256withRSA", params);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		signer.signEnveloping(new ByteArrayInputStream(datos), out);
+		byte[] firma = out.toByteArray();
+
+		Document doc = Utils.getDocumentBuilder().parse(new ByteArrayInputStream(firma));
+		assertEquals("Signature", doc.getDocumentElement().getLocalName());
+		Element objeto = (Element) doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Object").item(1);
+		assertEquals("application/pdf", objeto.getAttribute("MimeType"));
+		assertArrayEquals(datos, Base64.getMimeDecoder().decode(objeto.getTextContent().trim()));
+
+		XadesSignatureReport report = new XadesValidator(Collections.singleton(new TrustAnchor(cert, null)),
+				ForkJoinPool.commonPool()).verify(firma).get(0);
+		assertTrue(report.toString(), report.isValid());
+
+		// En modo detached solo se firma la huella de los datos
+		params.setProperty("uri", "https://example.com/datos/archivo.pdf");
+		signer = new XadesStreamingSigner(kp.getPrivate(), chain, "SHA256withRSA", params);
+		doc = Utils.getDocumentBuilder()
+				.parse(new ByteArrayInputStream(signer.signDetached(new ByteArrayInputStream(datos))));
+		Element referencia = (Element) doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Reference").item(0);
+		assertEquals("https://example.com/datos/archivo.pdf", referencia.getAttribute("URI"));
+		assertEquals(Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-512").digest(datos)),
+				referencia.getElementsByTagNameNS(XMLSignature.XMLNS, "DigestValue").item(0).getTextContent()
+						.replaceAll("\\s", ""));
+	}
+
+	@Test
+	public void firmarEnvelopedEnStreaming() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		X509Certificate cert = (X509Certificate) chain[0];
+
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- exportacion -->\n"
+				+ "<export xmlns=\"urn:export\" xmlns:p=\"urn:p\" xml:lang=\"es\">"
+				+ "<p:registro b=\"2\" a=\"1 &amp; &quot;3&quot;\">Cliente &lt;n&#13;1&gt;<![CDATA[<&>]]></p:registro>"
+				+ "<!-- comentario --><otro xmlns=\"\"/></export>\n";
+		File archivo = File.createTempFile("export", ".xml");
+		archivo.deleteOnExit();
+		Files.write(archivo.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+		XadesStreamingSigner signer = new XadesStreamingSigner(kp.getPrivate(), chain, "SHA256withRSA",
+				new Properties());
+		XadesValidator validator = new XadesValidator(Collections.singleton(new TrustAnchor(cert, null)),
+				ForkJoinPool.commonPool());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		signer.signEnveloped(archivo.toPath(), out);
+		byte[] firma = out.toByteArray();
+
+		// Los bytes originales se conservan y la firma es valida
+		String firmado = new String(firma, StandardCharsets.UTF_8);
+		assertTrue(firmado.startsWith(xml.substring(0, xml.indexOf("</export>"))));
+		assertTrue(firmado.endsWith("</ds:Signature></export>\n"));
+		XadesSignatureReport report = validator.verify(firma).get(0);
+		assertTrue(report.toString(), report.isValid());
+
+		// Cofirma: la firma previa queda fuera de la huella
+		Files.write(archivo.toPath(), firma);
+		out = new ByteArrayOutputStream();
+		signer.signEnveloped(archivo.toPath(), out);
+		List<XadesSignatureReport> reports = validator.verify(out.toByteArray());
+		assertEquals(2, reports.size());
+		assertTrue(reports.get(0).isValid());
+		assertTrue(reports.get(1).isValid());
+	}
+
+	@Test
+	public void inspeccionarFirma() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		XAdESSigner signer = new XAdESSigner();
+
+		byte[] xml = "<documento><parrafo Id=\"p1\">Hola mundo</parrafo></documento>".getBytes();
+		byte[] firma = signer.sign(signer.sign(xml, "SHA256withRSA", kp.getPrivate(), chain, null), "SHA256withRSA",
+				kp.getPrivate(), chain, null);
+
+		XadesSignatureDocument documento = XadesSignatureDocument.parse(firma);
+		assertTrue(documento.isSign());
+		assertTrue(documento.isEnveloped());
+		assertFalse(documento.isEnveloping());
+		assertFalse(documento.isDetached());
+		assertEquals(2, documento.getSignatureCount());
+		assertEquals(6, documento.getReferenceCount());
+		assertTrue(documento.containsId("p1"));
+		assertEquals(2, documento.getSigners().size());
+
+		// Los datos se extraen sin firmas y sin modificar el documento
+		byte[] datos = documento.getData();
+		assertEquals(0, XadesSignatureDocument.parse(datos).getSignatureCount());
+		assertArrayEquals(datos, documento.getData());
+		assertArrayEquals(datos, signer.getData(firma));
+		assertEquals(2, documento.getSignatureCount());
+
+		assertFalse(signer.isSign(xml));
+		assertFalse(signer.isSign("no es xml".getBytes()));
+		try {
+			XadesSignatureDocument.parse(xml).getSigners();
+			fail("Se esperaba un error por no ser una firma");
+		} catch (InvalidFormatException e) {
+			// Correcto
+		}
+	}
+
+	@Test
+	public void cachearHojaDeEstilo() throws Exception {
+		byte[] xsl = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"/>")
+						.getBytes(StandardCharsets.UTF_8);
+		AtomicInteger peticiones = new AtomicInteger();
+		AtomicInteger noModificadas = new AtomicInteger();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/fija.xsl", exchange -> {
+			peticiones.incrementAndGet();
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+			exchange.sendResponseHeaders(200, xsl.length);
+			exchange.getResponseBody().write(xsl);
+			exchange.close();
+		});
+		server.createContext("/revalida.xsl", exchange -> {
+			peticiones.incrementAndGet();
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			exchange.getResponseHeaders().set("ETag", "\"v1\"");
+			if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				noModificadas.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				exchange.sendResponseHeaders(200, xsl.length);
+				exchange.getResponseBody().write(xsl);
+			}
+			exchange.close();
+		});
+		server.createContext("/privada.xsl", exchange -> {
+			peticiones.incrementAndGet();
+			exchange.getResponseHeaders().set("Cache-Control", "no-store");
+			exchange.getResponseHeaders().set("ETag", "\"v1\"");
+			if (exchange.getRequestHeaders().containsKey("If-None-Match")) {
+				noModificadas.incrementAndGet();
+			}
+			exchange.sendResponseHeaders(200, xsl.length);
+			exchange.getResponseBody().write(xsl);
+			exchange.close();
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+
+		try {
+			String base = "http://127.0.0.1:" + server.getAddress().getPort();
+			XmlStyleCache cache = new XmlStyleCache(XmlStyleCache.DEFAULT_TTL);
+			URI fija = new URI(base + "/fija.xsl");
+
+			// Las descargas simultaneas de la misma hoja se agrupan en una
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			List<Future<Document>> docs = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				docs.add(executor.submit(() -> cache.get(fija)));
+			}
+			for (Future<Document> doc : docs) {
+				assertEquals("xsl:stylesheet", doc.get().getDocumentElement().getNodeName());
+			}
+			executor.shutdown();
+			assertEquals(1, peticiones.get());
+
+			// Cada uso recibe su propia copia
+			Document copia = cache.get(fija);
+			copia.getDocumentElement().setAttribute("modificado", "true");
+			assertFalse(cache.get(fija).getDocumentElement().hasAttribute("modificado"));
+			assertEquals(1, peticiones.get());
+
+			// Con no-cache se revalida en cada uso, usando la ETag
+			URI revalida = new URI(base + "/revalida.xsl");
+			cache.get(revalida);
+			assertEquals("xsl:stylesheet", cache.get(revalida).getDocumentElement().getNodeName());
+			assertEquals(3, peticiones.get());
+			assertEquals(1, noModificadas.get());
+
+			// Con no-store no se guarda nada: cada uso es una descarga completa
+			URI privada = new URI(base + "/privada.xsl");
+			cache.get(privada);
+			assertEquals("xsl:stylesheet", cache.get(privada).getDocumentElement().getNodeName());
+			assertEquals(5, peticiones.get());
+			assertEquals(1, noModificadas.get());
+
+			XmlStyle style = new XmlStyle(("<?xml version=\"1.0\"?><?xml-stylesheet type=\"text/xsl\" href=\"" + base
+					+ "/fija.xsl\"?><documento/>").getBytes(), true);
+			assertEquals("UTF-8", style.getStyleEncoding());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void firmarNodoIndexado() throws Exception {
+		KeyPair kp = TestHelper.createKeyPair();
+		Certificate[] chain = TestHelper.createCertificate(kp);
+		byte[] xml = "<documento><parrafo Id=\"p1\">Uno</parrafo><parrafo Id=\"p2\">Dos</parrafo><parrafo ID=\"p1\">Tres</parrafo></documento>"
+				.getBytes();
+
+		Document doc = Utils.getDocumentBuilder().parse(new ByteArrayInputStream(xml));
+		XmlIdIndex index = XmlIdIndex.build(doc);
+		assertEquals("Uno", index.getElement("#p1").getTextContent());
+		assertEquals("Dos", index.getElement("p2").getTextContent());
+		assertNull(index.getElement("p3"));
+		assertTrue(index.isDuplicated("#p1"));
+		assertFalse(index.isDuplicated("p2"));
+
+		Element nuevo = doc.createElement("parrafo");
+		nuevo.setAttribute("Id", "p3");
+		doc.getDocumentElement().appendChild(nuevo);
+		index.add(nuevo);
+		assertEquals(nuevo, index.getElement("p3"));
+
+		Properties params = new Properties();
+		params.setProperty("nodeToSign", "p2");
+		byte[] firma = new XAdESSigner().sign(xml, "SHA256withRSA", kp.getPrivate(), chain, params);
+
+		Document signed = Utils.getDocumentBuilder().parse(new ByteArrayInputStream(firma));
+		Element nodo = CustomUriDereferencer.getElementById(signed, "p2");
+		assertEquals(1, nodo.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").getLength());
+		assertTrue(validarFirma(firma, chain[0]));
+	}
+
+	@Test
+	public void ampliarFirmasLongevas() throws Exception {
+		KeyPair kp1 = TestHelper.createKeyPair();
+		Certificate[] chain1 = TestHelper.createCertificate(kp1);
+		KeyPair kp2 = TestHelper.createKeyPair();
+		Certificate[] chain2 = TestHelper.createCertificate(kp2);
+
+		XAdESSigner signer = new XAdESSigner();
+		List<byte[]> firmas = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			byte[] xml = ("<documento><parrafo>" + i + "</parrafo></documento>").getBytes();
+			firmas.add(i < 3 ? signer.sign(xml, "SHA256withRSA", kp1.getPrivate(), chain1, null)
+					: signer.sign(xml, "SHA256withRSA", kp2.getPrivate(), chain2, null));
+		}
+
+		AtomicInteger consultas = new AtomicInteger();
+		try (TSAResponder responder = new TSAResponder("1.3.6.1.4.1.37947.4.10")) {
+			XadesUpgrader upgrader = new XadesUpgrader(new TSAClientBouncyCastleWithOid(responder.getUrl())) {
+				@Override
+				protected RevocationValues fetchRevocationValues(List<X509Certificate> chain) {
+					consultas.incrementAndGet();
+					return new RevocationValues(
+							Collections.singletonList(chain.get(0).getSerialNumber().toByteArray()),
+							Collections.emptyList());
+				}
+			};
+
+			// Una consulta de revocacion por firmante y un sello por firma
+			List<BatchResult> results = upgrader.upgrade(firmas);
+			assertEquals(2, consultas.get());
+			assertEquals(4, responder.getRequestCount());
+
+			for (BatchResult result : results) {
+				assertTrue(result.isSuccessful());
+				Certificate cert = result.getIndex() < 3 ? chain1[0] : chain2[0];
+				byte[] ampliada = result.getData();
+				assertTrue(validarFirma(ampliada, cert));
+
+				Document doc = Utils.getDocumentBuilder().parse(new ByteArrayInputStream(ampliada));
+				String sello = doc.getElementsByTagNameNS("*", "EncapsulatedTimeStamp").item(0).getTextContent();
+				TimeStampToken token = new TimeStampToken(new CMSSignedData(Base64.getDecoder().decode(sello)));
+
+				// El sello cubre el SignatureValue en forma canonica
+				Element signatureValue = (Element) doc.getElementsByTagNameNS(XMLSignature.XMLNS, "SignatureValue")
+						.item(0);
+				String c14n = "<ds:SignatureValue xmlns:ds=\"" + XMLSignature.XMLNS + "\" Id=\""
+						+ signatureValue.getAttribute("Id") + "\">"
+						+ signatureValue.getTextContent().replace("\r", "&#xD;") + "</ds:SignatureValue>";
+				assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(c14n.getBytes(StandardCharsets.UTF_8)),
+						token.getTimeStampInfo().getMessageImprintDigest());
+
+				assertArrayEquals(cert.getEncoded(), Base64.getDecoder().decode(
+						doc.getElementsByTagNameNS("*", "EncapsulatedX509Certificate").item(0).getTextContent()));
+				assertEquals(1, doc.getElementsByTagNameNS("*", "EncapsulatedCRLValue").getLength());
+			}
+
+			// Las firmas que ya tienen sello no se vuelven a sellar
+			byte[] ampliada = results.get(0).getData();
+			assertArrayEquals(ampliada, upgrader.upgrade(ampliada));
+			assertEquals(4, responder.getRequestCount());
+
+			// Lote de ficheros reanudable
+			Path dir = Files.createTempDirectory("xades-lt");
+			List<Path> ficheros = new ArrayList<>();
+			for (int i = 0; i < firmas.size(); i++) {
+				ficheros.add(Files.write(dir.resolve("factura" + i + ".xml"), firmas.get(i)));
+			}
+			Path salida = dir.resolve("ampliadas");
+			Path progreso = dir.resolve("progreso.txt");
+
+			assertTrue(upgrader.upgrade(ficheros.subList(0, 2), salida, progreso).isEmpty());
+			assertEquals(6, responder.getRequestCount());
+			assertTrue(upgrader.upgrade(ficheros, salida, progreso).isEmpty());
+			assertEquals(8, responder.getRequestCount());
+			assertEquals(4, Files.readAllLines(progreso).size());
+			assertTrue(validarFirma(Files.readAllBytes(salida.resolve("factura3.xml")), chain2[0]));
+			assertEquals(2, consultas.get());
+		}
+	}
+
+	@Test
+	public void verificarValoresDeRevocacion() throws Exception {
+		KeyPair caKeys = TestHelper.createKeyPair();
+		KeyPair otraClave = TestHelper.createKeyPair();
+		X500Name caName = new X500Name("CN=CA de prueba, O=Rubrica, C=EC");
+		long now = System.currentTimeMillis();
+		X509Certificate ca = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(caName,
+				BigInteger.ONE, new Date(now - 60000), new Date(now + 3600000), caName, caKeys.getPublic())
+						.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+
+		AtomicReference<CertificateStatus> estadoOcsp = new AtomicReference<>();
+		AtomicReference<KeyPair> firmanteOcsp = new AtomicReference<>(caKeys);
+		AtomicReference<byte[]> crl = new AtomicReference<>();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/ocsp", exchange -> {
+			try {
+				OCSPReq request = new OCSPReq(Util.getDataFromInputStream(exchange.getRequestBody()));
+				BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(
+						new RespID(new X500Name(ca.getSubjectX500Principal().getName())));
+				builder.addResponse(request.getRequestList()[0].getCertID(), estadoOcsp.get());
+				BasicOCSPResp basic = builder.build(
+						new JcaContentSignerBuilder("SHA256withRSA").build(firmanteOcsp.get().getPrivate()), null,
+						new Date());
+				byte[] encoded = new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic).getEncoded();
+				exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+				exchange.sendResponseHeaders(200, encoded.length);
+				exchange.getResponseBody().write(encoded);
+			} catch (Exception e) {
+				exchange.sendResponseHeaders(500, -1);
+			}
+			exchange.close();
+		});
+		server.createContext("/ca.crl", exchange -> {
+			exchange.sendResponseHeaders(200, crl.get().length);
+			exchange.getResponseBody().write(crl.get());
+			exchange.close();
+		});
+		server.start();
+
+		try {
+			String base = "http://127.0.0.1:" + server.getAddress().getPort();
+			JcaX509v3CertificateBuilder leafBuilder = new JcaX509v3CertificateBuilder(caName, BigInteger.TEN,
+					new Date(now - 60000), new Date(now + 3600000), new X500Name("CN=Firmante, O=Rubrica, C=EC"),
+					TestHelper.createKeyPair().getPublic());
+			leafBuilder.addExtension(Extension.authorityInfoAccess, false,
+					new AuthorityInformationAccess(new AccessDescription(AccessDescription.id_ad_ocsp,
+							new GeneralName(GeneralName.uniformResourceIdentifier, base + "/ocsp"))));
+			leafBuilder.addExtension(Extension.cRLDistributionPoints, false,
+					new CRLDistPoint(new DistributionPoint[] { new DistributionPoint(
+							new DistributionPointName(new GeneralNames(
+									new GeneralName(GeneralName.uniformResourceIdentifier, base + "/ca.crl"))),
+							null, null) }));
+			X509Certificate leaf = new JcaX509CertificateConverter().getCertificate(
+					leafBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+			List<X509Certificate> chain = Arrays.asList(leaf, ca);
+
+			XadesUpgrader upgrader = new XadesUpgrader(new TSAClientBouncyCastleWithOid(base + "/tsa"));
+			crl.set(crearCrl(caName, caKeys, null));
+
+			// OCSP correcto firmado por la CA
+			estadoOcsp.set(CertificateStatus.GOOD);
+			XadesUpgrader.RevocationValues values = upgrader.fetchRevocationValues(chain);
+			assertEquals(1, values.getOcspResponses().size());
+			assertTrue(values.getCrls().isEmpty());
+
+			// Certificado revocado segun el OCSP
+			estadoOcsp.set(new RevokedStatus(new Date(now - 1000), CRLReason.keyCompromise));
+			try {
+				upgrader.fetchRevocationValues(chain);
+				fail("Se esperaba que fallara por certificado revocado");
+			} catch (RubricaException e) {
+				// Correcto
+			}
+
+			// OCSP con estado desconocido o firmado por otra clave: se usa la CRL
+			estadoOcsp.set(new UnknownStatus());
+			values = upgrader.fetchRevocationValues(chain);
+			assertTrue(values.getOcspResponses().isEmpty());
+			assertEquals(1, values.getCrls().size());
+
+			estadoOcsp.set(CertificateStatus.GOOD);
+			firmanteOcsp.set(otraClave);
+			values = upgrader.fetchRevocationValues(chain);
+			assertTrue(values.getOcspResponses().isEmpty());
+			assertEquals(1, values.getCrls().size());
+
+			// CRL que incluye el certificado
+			crl.set(crearCrl(caName, caKeys, leaf.getSerialNumber()));
+			try {
+				upgrader.fetchRevocationValues(chain);
+				fail("Se esperaba que fallara por certificado revocado");
+			} catch (RubricaException e) {
+				// Correcto
+			}
+
+			// CRL firmada por otra clave
+			crl.set(crearCrl(caName, otraClave, null));
+			try {
+				upgrader.fetchRevocationValues(chain);
+				fail("Se esperaba que fallara por CRL no verificada");
+			} catch (IOException e) {
+				// Correcto
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static byte[] crearCrl(X500Name issuer, KeyPair keys, BigInteger revoked) throws Exception {
+		X509v2CRLBuilder builder = new X509v2CRLBuilder(issuer, new Date());
+		if (revoked != null) {
+			builder.addCRLEntry(revoked, new Date(), CRLReason.keyCompromise);
+		}
+		return builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())).getEncoded();
+	}
+
+	private static boolean validarFirma(byte[] firmado, Certificate cert) throws Exception {
+		Document doc = Utils.getDocumentBuilder().parse(new ByteArrayInputStream(firmado));
+		NodeList signatures = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+		DOMValidateContext context = new DOMValidateContext(cert.getPublicKey(),
+				signatures.item(signatures.getLength() - 1));
+		NodeList elements = doc.getElementsByTagName("*");
+		for (int j = 0; j < elements.getLength(); j++) {
+			Element element = (Element) elements.item(j);
+			for (String id : new String[] { "id", "Id" }) {
+				if (element.hasAttribute(id)) {
+					context.setIdAttributeNS(element, null, id);
+				}
+			}
+		}
+		return XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(context).validate(context);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import io.rubrica.util.Utils;
+
+public class ZipContainerTest {
+
+	private static final String DATA_FILE = "prueba.docx";
+
+	@Test
+	public void indexarPaquete() throws Exception {
+		byte[] ooxml = Utils.getDataFromInputStream(ClassLoader.getSystemResourceAsStream(DATA_FILE));
+		ZipContainer container = ZipContainer.open(ooxml);
+
+		Path file = Files.createTempFile("zipContainer", "." + DATA_FILE);
+		Files.write(file, ooxml);
+		try (ZipContainer mapped = ZipContainer.open(file);
+				ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(ooxml))) {
+			List<String> partes = new ArrayList<>();
+			ZipEntry entry;
+			while (null != (entry = zis.getNextEntry())) {
+				byte[] data = Utils.getDataFromInputStream(zis);
+				assertArrayEquals(entry.getName(), data, container.getData(entry.getName()));
+				assertArrayEquals(entry.getName(), data, mapped.getData(entry.getName()));
+				// La segunda lectura sale de la cache
+				assertSame(container.getData(entry.getName()), container.getData(entry.getName()));
+				partes.add(entry.getName());
+			}
+			assertEquals(partes, container.getEntryNames());
+		} finally {
+			Files.delete(file);
+		}
+		assertNull(container.getData("no/existe.xml"));
+	}
+
+	@Test
+	public void reutilizarBuffer() throws Exception {
+		byte[] uno = crearZip("uno.xml", "<contenido>uno</contenido>");
+		byte[] dos = crearZip("dos.xml", "<contenido>dos</contenido>");
+		assertEquals(uno.length, dos.length);
+
+		// El mismo array con otro documento es otro contenedor
+		byte[] buffer = uno.clone();
+		assertEquals(Collections.singletonList("uno.xml"), ZipContainer.open(buffer).getEntryNames());
+		System.arraycopy(dos, 0, buffer, 0, dos.length);
+		ZipContainer container = ZipContainer.open(buffer);
+		assertEquals(Collections.singletonList("dos.xml"), container.getEntryNames());
+		assertArrayEquals("<contenido>dos</contenido>".getBytes(StandardCharsets.UTF_8),
+				container.getData("dos.xml"));
+	}
+
+	private static byte[] crearZip(String name, String content) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+			zos.putNextEntry(new ZipEntry(name));
+			zos.write(content.getBytes(StandardCharsets.UTF_8));
+			zos.closeEntry();
+		}
+		return baos.toByteArray();
+	}
+
+	@Test(expected = ZipException.class)
+	public void rechazarNoZip() throws Exception {
+		ZipContainer.open("no es un zip".getBytes());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009-2018 Rubrica
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.rubrica.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import io.rubrica.util.Utils;
+
+public class ZipContainerWriterTest {
+
+	private static final byte[] MIMETYPE = "application/vnd.oasis.opendocument.text".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CONTENT = "<office:document-content/>".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void copiarEntradas() throws Exception {
+		byte[] odf = crearOdf();
+		ZipContainer source = ZipContainer.open(odf);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipContainerWriter writer = new ZipContainerWriter(baos)) {
+			writer.copyEntry(source, "mimetype");
+			writer.copyEntry(source, "content.xml");
+			writer.putEntry("META-INF/manifest.xml", CONTENT);
+		}
+
+		// Las entradas copiadas conservan su metodo y sus bytes comprimidos
+		ZipContainer copy = ZipContainer.open(baos.toByteArray());
+		assertEquals(Arrays.asList("mimetype", "content.xml", "META-INF/manifest.xml"), copy.getEntryNames());
+		assertEquals(ZipEntry.STORED, copy.getRawEntry("mimetype").method);
+		assertEquals(source.getRawEntry("content.xml").data, copy.getRawEntry("content.xml").data);
+		assertEquals(ZipEntry.DEFLATED, copy.getRawEntry("META-INF/manifest.xml").method);
+		assertEntries(baos.toByteArray());
+	}
+
+	@Test
+	public void copiarMimetypeSinComprimirDesdeLecturaSecuencial() throws Exception {
+		// Sin directorio central el contenedor solo tiene el contenido
+		// descomprimido de las entradas
+		byte[] odf = crearOdf();
+		int directoryOffset = ByteBuffer.wrap(odf).order(ByteOrder.LITTLE_ENDIAN).getInt(odf.length - 6);
+		ZipContainer source = ZipContainer.open(Arrays.copyOf(odf, directoryOffset));
+		assertNull(source.getRawEntry("mimetype"));
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipContainerWriter writer = new ZipContainerWriter(baos)) {
+			for (String name : source.getEntryNames()) {
+				writer.copyEntry(source, name);
+			}
+		}
+
+		byte[] zip = baos.toByteArray();
+		ZipContainer copy = ZipContainer.open(zip);
+		assertEquals(ZipEntry.STORED, copy.getRawEntry("mimetype").method);
+		assertEquals(ZipEntry.DEFLATED, copy.getRawEntry("content.xml").method);
+		// El mimetype sin comprimir queda en claro en la posicion 38
+		assertArrayEquals(MIMETYPE, Arrays.copyOfRange(zip, 38, 38 + MIMETYPE.length));
+		assertEntries(zip);
+	}
+
+	@Test
+	public void rechazarEntradas() throws Exception {
+		ZipContainer source = ZipContainer.open(crearOdf());
+		try (ZipContainerWriter writer = new ZipContainerWriter(new ByteArrayOutputStream())) {
+			writer.copyEntry(source, "mimetype");
+			try {
+				writer.putEntry("mimetype", MIMETYPE);
+				fail("Se esperaba una entrada duplicada");
+			} catch (ZipException e) {
+				// Correcto
+			}
+			try {
+				writer.copyEntry(source, "no/existe.xml");
+				fail("Se esperaba una entrada inexistente");
+			} catch (ZipException e) {
+				// Correcto
+			}
+		}
+	}
+
+	private static void assertEntries(byte[] zip) throws Exception {
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			ZipEntry entry;
+			while (null != (entry = zis.getNextEntry())) {
+				byte[] data = Utils.getDataFromInputStream(zis);
+				assertArrayEquals(entry.getName(), "mimetype".equals(entry.getName()) ? MIMETYPE : CONTENT, data);
+			}
+		}
+	}
+
+	private static byte[] crearOdf() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+			ZipEntry mimetype = new ZipEntry("mimetype");
+			mimetype.setMethod(ZipEntry.STORED);
+			mimetype.setSize(MIMETYPE.length);
+			CRC32 crc = new CRC32();
+			crc.update(MIMETYPE);
+			mimetype.setCrc(crc.getValue());
+			zos.putNextEntry(mimetype);
+			zos.write(MIMETYPE);
+			zos.closeEntry();
+
+			zos.putNextEntry(new ZipEntry("content.xml"));
+			zos.write(CONTENT);
+			zos.closeEntry();
+		}
+		return baos.toByteArray();
+	}
+}
\ No newline at end of file